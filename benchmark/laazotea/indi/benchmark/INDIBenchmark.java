@@ -0,0 +1,394 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A benchmark harness for the hottest paths of the library. Each case is run
+ * some warmup iterations and then some measured ones, reporting its
+ * throughput, the memory allocated per operation, the garbage collections
+ * and the percentiles of the latencies of its operations. The default cases
+ * measure the <code>INDIProtocolReader</code> and the parsing of the
+ * <code>INDIDriver</code>s with synthetic streams (created by
+ * <code>INDIStreamGenerator</code>) fed in fixed and random sized chunks.
+ *
+ * @author farom
+ */
+public class INDIBenchmark {
+
+  /**
+   * The cases to run.
+   */
+  private List<INDIBenchmarkCase> cases;
+  /**
+   * The number of warmup iterations.
+   */
+  private int warmupIterations;
+  /**
+   * The number of measured iterations.
+   */
+  private int measuredIterations;
+  /**
+   * The bean to get the memory allocated by the current thread (if
+   * supported by the JVM).
+   */
+  private ThreadMXBean threadBean;
+  /**
+   * The method to get the memory allocated by a thread (<code>null</code> if
+   * not supported by the JVM).
+   */
+  private Method allocatedBytesMethod;
+
+  /**
+   * Constructs a new harness.
+   *
+   * @param warmupIterations The number of warmup iterations.
+   * @param measuredIterations The number of measured iterations.
+   */
+  public INDIBenchmark(int warmupIterations, int measuredIterations) {
+    this.warmupIterations = warmupIterations;
+    this.measuredIterations = measuredIterations;
+
+    cases = new ArrayList<INDIBenchmarkCase>();
+
+    threadBean = ManagementFactory.getThreadMXBean();
+
+    try {
+      Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+
+      if (c.isInstance(threadBean)) {
+        allocatedBytesMethod = c.getMethod("getThreadAllocatedBytes", long.class);
+
+        c.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threadBean, true);
+      }
+    } catch (Exception e) {
+      allocatedBytesMethod = null;
+    }
+  }
+
+  /**
+   * Adds a case to be run.
+   *
+   * @param c The case.
+   */
+  public void addCase(INDIBenchmarkCase c) {
+    cases.add(c);
+  }
+
+  /**
+   * Gets the memory allocated by the current thread.
+   *
+   * @return The memory allocated by the current thread (in bytes).
+   * <code>-1</code> if not supported by the JVM.
+   */
+  private long getAllocatedBytes() {
+    if (allocatedBytesMethod == null) {
+      return -1;
+    }
+
+    try {
+      return (Long)allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Gets the total number of garbage collections.
+   *
+   * @return The total number of garbage collections.
+   */
+  private static long getGCCount() {
+    long count = 0;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+
+    return count;
+  }
+
+  /**
+   * Gets the total time spent in garbage collections.
+   *
+   * @return The total time spent in garbage collections (in milliseconds).
+   */
+  private static long getGCTime() {
+    long time = 0;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+
+    return time;
+  }
+
+  /**
+   * Runs all the cases whose name contains <code>filter</code>, printing the
+   * results to the standard output.
+   *
+   * @param filter Only the cases whose name contains this string are run.
+   * <code>null</code> to run all of them.
+   */
+  public void run(String filter) {
+    System.out.println(String.format(Locale.US, "%-28s %12s %9s %10s %5s %7s %9s %9s %9s %9s %9s",
+            "Case", "ops/s", "MB/s", "B/op", "GCs", "GC ms", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+
+    for (INDIBenchmarkCase c : cases) {
+      if ((filter != null) && (!c.getName().contains(filter))) {
+        continue;
+      }
+
+      runCase(c);
+    }
+  }
+
+  /**
+   * Runs one case, printing its results to the standard output.
+   *
+   * @param c The case.
+   */
+  private void runCase(INDIBenchmarkCase c) {
+    INDILatencyRecorder recorder = new INDILatencyRecorder();
+
+    c.setUp();
+
+    recorder.ensureCapacity(c.getOperationsPerIteration() * measuredIterations);
+
+    recorder.setRecording(false);
+
+    for (int i = 0 ; i < warmupIterations ; i++) {
+      c.runIteration(recorder);
+    }
+
+    System.gc();
+
+    recorder.setRecording(true);
+
+    long gcCount = getGCCount();
+    long gcTime = getGCTime();
+    long allocated = getAllocatedBytes();
+    long start = System.nanoTime();
+    long operations = 0;
+
+    for (int i = 0 ; i < measuredIterations ; i++) {
+      operations += c.runIteration(recorder);
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long allocatedAfter = getAllocatedBytes();
+
+    gcCount = getGCCount() - gcCount;
+    gcTime = getGCTime() - gcTime;
+
+    double seconds = elapsed / 1e9;
+    double opsPerSecond = operations / seconds;
+    double mbPerSecond = c.getBytesPerIteration() * (double)measuredIterations / seconds / (1024 * 1024);
+    String bytesPerOperation = "n/a";
+
+    if ((allocated >= 0) && (allocatedAfter >= 0) && (operations > 0)) {
+      bytesPerOperation = String.format(Locale.US, "%.1f", (allocatedAfter - allocated) / (double)operations);
+    }
+
+    recorder.sort();
+
+    System.out.println(String.format(Locale.US, "%-28s %12.1f %9.2f %10s %5d %7d %9.1f %9.1f %9.1f %9.1f %9.1f",
+            c.getName(), opsPerSecond, mbPerSecond, bytesPerOperation, gcCount, gcTime,
+            recorder.getPercentile(50) / 1e3, recorder.getPercentile(90) / 1e3, recorder.getPercentile(99) / 1e3,
+            recorder.getPercentile(99.9) / 1e3, recorder.getPercentile(100) / 1e3));
+
+    c.tearDown();
+  }
+
+  /**
+   * Adds the cases that measure the parsing path: all the kinds of streams,
+   * fed in fixed and random sized chunks, to all the destinations.
+   *
+   * @param messages The number of Number and Switch messages of the streams.
+   * @param blobSizes The sizes of the BLOBs of the mixed streams (in bytes).
+   * @param chunkSize The size of the fixed chunks and the maximum size of the
+   * random ones.
+   * @param seed The seed for the generation of the streams and the chunks.
+   */
+  public void addParsingCases(int messages, int[] blobSizes, int chunkSize, long seed) {
+    for (INDIStreamBenchmark.Streams s : INDIStreamBenchmark.Streams.values()) {
+      int m = messages;
+
+      if (s == INDIStreamBenchmark.Streams.MIXED) {
+        m = Math.max(1, messages / 10);
+      }
+
+      for (INDIStreamBenchmark.Paths p : INDIStreamBenchmark.Paths.values()) {
+        addCase(new INDIStreamBenchmark(s, p, m, blobSizes, chunkSize, seed));
+        addCase(new INDIStreamBenchmark(s, p, m, blobSizes, -chunkSize, seed));
+      }
+    }
+  }
+
+  /**
+   * Adds the cases that measure the checks done by the Server to know if a
+   * listener is interested in each forwarded message, with hash tables and
+   * with the old linear scans of the rules.
+   *
+   * @param properties The number of Properties listened by the listener.
+   * @param messages The number of checked messages in each iteration.
+   */
+  public void addListenerCases(int properties, int messages) {
+    for (INDIListenerBenchmark.Rules r : INDIListenerBenchmark.Rules.values()) {
+      addCase(new INDIListenerBenchmark(r, properties, messages));
+    }
+  }
+
+  /**
+   * Adds the cases that stress the Server with continuous connections and
+   * disconnections of Clients while messages flow through it to many
+   * listeners, with a thread for each Client and with event loops.
+   *
+   * @param port The port of the Server.
+   * @param roundTrips The number of round trips in each iteration.
+   * @param churnThreads The number of threads that connect and disconnect
+   * Clients.
+   * @param listeners The number of passive listener Clients.
+   */
+  public void addServerCases(int port, int roundTrips, int churnThreads, int listeners) {
+    addCase(new INDIServerStressBenchmark(port, 0, roundTrips, churnThreads, listeners));
+    addCase(new INDIServerStressBenchmark(port + 1, 2, roundTrips, churnThreads, listeners));
+  }
+
+  /**
+   * Splits an argument in the form <code>-name=value</code>.
+   *
+   * @param arg The argument.
+   * @return The name and the value of the argument.
+   */
+  private static String[] splitArgument(String arg) {
+    int pos = arg.indexOf("=");
+
+    if (pos != -1) {
+      return new String[]{arg.substring(0, pos), arg.substring(pos + 1)};
+    } else {
+      return new String[]{arg, ""};
+    }
+  }
+
+  /**
+   * Prints a message about the arguments of the program.
+   */
+  private static void printArgumentHelp() {
+    System.err.println("\nThe following arguments can be used:");
+    System.err.println("  -messages=n          Number of Number / Switch messages of the streams (default 100000).");
+    System.err.println("  -blobs=s1,s2,...     Sizes (in MB) of the BLOBs of the mixed streams (default 1,10,50).");
+    System.err.println("  -chunk=n             Size of the fixed chunks / maximum size of the random ones (default 16384).");
+    System.err.println("  -properties=n        Number of Properties listened in the listener cases (default 100).");
+    System.err.println("  -port=n              First port of the Servers of the stress cases (default 17624).");
+    System.err.println("  -churn=n             Number of threads connecting and disconnecting Clients (default 4).");
+    System.err.println("  -listeners=n         Number of passive Clients receiving the updates in the stress cases (default 100).");
+    System.err.println("  -warmup=n            Number of warmup iterations (default 2).");
+    System.err.println("  -iterations=n        Number of measured iterations (default 5).");
+    System.err.println("  -seed=n              Seed for the streams and chunks (default 42).");
+    System.err.println("  -only=text           Only runs the cases whose name contains the text.");
+    System.err.println("  -help                Shows this help.");
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args The arguments of the program.
+   */
+  public static void main(String[] args) {
+    int messages = 100000;
+    int[] blobSizes = new int[]{1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024};
+    int chunkSize = 16384;
+    int properties = 100;
+    int port = 17624;
+    int churnThreads = 4;
+    int listeners = 100;
+    int warmup = 2;
+    int iterations = 5;
+    long seed = 42;
+    String filter = null;
+
+    for (int i = 0 ; i < args.length ; i++) {
+      String[] s = splitArgument(args[i]);
+
+      try {
+        if (s[0].equals("-messages")) {
+          messages = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-blobs")) {
+          String[] sizes = s[1].split(",");
+
+          blobSizes = new int[sizes.length];
+
+          for (int j = 0 ; j < sizes.length ; j++) {
+            blobSizes[j] = (int)(Double.parseDouble(sizes[j]) * 1024 * 1024);
+          }
+        } else if (s[0].equals("-chunk")) {
+          chunkSize = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-properties")) {
+          properties = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-port")) {
+          port = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-churn")) {
+          churnThreads = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-listeners")) {
+          listeners = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-warmup")) {
+          warmup = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-iterations")) {
+          iterations = Integer.parseInt(s[1]);
+        } else if (s[0].equals("-seed")) {
+          seed = Long.parseLong(s[1]);
+        } else if (s[0].equals("-only")) {
+          filter = s[1];
+        } else if (s[0].equals("-help")) {
+          printArgumentHelp();
+          System.exit(0);
+        } else {
+          System.err.println("Argument '" + args[i] + "' not correct.");
+          printArgumentHelp();
+          System.exit(-1);
+        }
+      } catch (NumberFormatException e) {
+        System.err.println("Argument '" + args[i] + "' not correct.");
+        printArgumentHelp();
+        System.exit(-1);
+      }
+    }
+
+    if ((messages < 1) || (chunkSize < 1) || (properties < 1) || (churnThreads < 0) || (listeners < 0) || (warmup < 0) || (iterations < 1)) {
+      System.err.println("Incorrect arguments.");
+      printArgumentHelp();
+      System.exit(-1);
+    }
+
+    INDIBenchmark benchmark = new INDIBenchmark(warmup, iterations);
+
+    benchmark.addParsingCases(messages, blobSizes, chunkSize, seed);
+    benchmark.addListenerCases(properties, messages);
+    benchmark.addServerCases(port, Math.max(1, messages / 1000), churnThreads, listeners);
+
+    benchmark.run(filter);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+/**
+ * A case to be measured by <code>INDIBenchmark</code>. The harness calls
+ * <code>setUp</code> once, then <code>runIteration</code> repeatedly (first
+ * some warmup iterations and then the measured ones) and finally
+ * <code>tearDown</code>.
+ *
+ * @author farom
+ */
+public abstract class INDIBenchmarkCase {
+
+  /**
+   * The name of the case.
+   */
+  private String name;
+
+  /**
+   * Constructs a new case.
+   *
+   * @param name The name of the case.
+   */
+  protected INDIBenchmarkCase(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name of the case.
+   *
+   * @return The name of the case.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Prepares the case (creates the streams, readers, etc.). Not measured.
+   */
+  public void setUp() {
+  }
+
+  /**
+   * Releases the resources used by the case. Not measured.
+   */
+  public void tearDown() {
+  }
+
+  /**
+   * Gets the maximum number of operations done in one iteration. Used to
+   * size the latency recorder before measuring.
+   *
+   * @return The maximum number of operations done in one iteration.
+   */
+  public abstract int getOperationsPerIteration();
+
+  /**
+   * Gets the number of bytes processed in one iteration.
+   *
+   * @return The number of bytes processed in one iteration. <code>0</code>
+   * if it does not make sense for this case.
+   */
+  public long getBytesPerIteration() {
+    return 0;
+  }
+
+  /**
+   * Runs one iteration of the case. The latency of each operation should be
+   * recorded in <code>recorder</code>.
+   *
+   * @param recorder The recorder of the latencies.
+   * @return The number of completed operations.
+   */
+  public abstract long runIteration(INDILatencyRecorder recorder);
+}
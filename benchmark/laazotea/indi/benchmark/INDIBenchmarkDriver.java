@@ -0,0 +1,147 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import laazotea.indi.Constants.PropertyPermissions;
+import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.Constants.SwitchRules;
+import laazotea.indi.Constants.SwitchStatus;
+import laazotea.indi.driver.*;
+
+/**
+ * A Driver that defines the Properties of the streams created by
+ * <code>INDIStreamGenerator</code> and just counts the values that it
+ * receives. Used to measure the parsing path of the Drivers.
+ *
+ * @author farom
+ */
+public class INDIBenchmarkDriver extends INDIDriver {
+
+  /**
+   * The number of received values.
+   */
+  private long receivedValues;
+  /**
+   * A checksum of the received values (so that they are really used).
+   */
+  private double checksum;
+
+  /**
+   * Constructs a new benchmark Driver.
+   *
+   * @param inputStream The stream from which to read messages.
+   * @param outputStream The stream to which to write the messages.
+   */
+  public INDIBenchmarkDriver(InputStream inputStream, OutputStream outputStream) {
+    super(inputStream, outputStream);
+
+    INDINumberProperty coordP = new INDINumberProperty(this, "EQUATORIAL_EOD_COORD", "Coordinates", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0);
+    new INDINumberElement(coordP, "RA", "RA", 0, 0, 24, 0, "%10.6m");
+    new INDINumberElement(coordP, "DEC", "DEC", 0, -90, 90, 0, "%10.6m");
+    addProperty(coordP);
+
+    INDINumberProperty motorP = new INDINumberProperty(this, "MOTOR_STATUS", "Motor Status", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0);
+    new INDINumberElement(motorP, "RA_STEPS", "RA Steps", 0, 0, 1000000, 1, "%.0f");
+    new INDINumberElement(motorP, "DE_STEPS", "DEC Steps", 0, 0, 1000000, 1, "%.0f");
+    new INDINumberElement(motorP, "RA_SPEED", "RA Speed", 0, -1, 1, 0, "%.4f");
+    new INDINumberElement(motorP, "DE_SPEED", "DEC Speed", 0, -1, 1, 0, "%.4f");
+    new INDINumberElement(motorP, "RA_POWER", "RA Power", 0, 0, 1, 0, "%.3f");
+    new INDINumberElement(motorP, "DE_POWER", "DEC Power", 0, 0, 1, 0, "%.3f");
+    addProperty(motorP);
+
+    INDINumberProperty lstP = new INDINumberProperty(this, "TIME_LST", "Local Sidereal Time", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0);
+    new INDINumberElement(lstP, "LST", "LST", 0, 0, 24, 0, "%10.6m");
+    addProperty(lstP);
+
+    INDISwitchProperty motionP = new INDISwitchProperty(this, "TELESCOPE_MOTION_NS", "North / South", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0, SwitchRules.AT_MOST_ONE);
+    new INDISwitchElement(motionP, "MOTION_NORTH", "North", SwitchStatus.OFF);
+    new INDISwitchElement(motionP, "MOTION_SOUTH", "South", SwitchStatus.OFF);
+    addProperty(motionP);
+
+    INDISwitchProperty abortP = new INDISwitchProperty(this, "TELESCOPE_ABORT_MOTION", "Abort", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0, SwitchRules.AT_MOST_ONE);
+    new INDISwitchElement(abortP, "ABORT", "Abort", SwitchStatus.OFF);
+    addProperty(abortP);
+
+    INDIBLOBProperty ccdP = new INDIBLOBProperty(this, "CCD1", "Image", "Main", PropertyStates.IDLE, PropertyPermissions.RW, 0);
+    new INDIBLOBElement(ccdP, "CCD1", "Image");
+    addProperty(ccdP);
+
+    receivedValues = 0;
+    checksum = 0;
+  }
+
+  @Override
+  public String getName() {
+    return INDIStreamGenerator.DEVICE_NAME;
+  }
+
+  /**
+   * Gets the number of received values.
+   *
+   * @return The number of received values.
+   */
+  public long getReceivedValues() {
+    return receivedValues;
+  }
+
+  /**
+   * Gets a checksum of the received values.
+   *
+   * @return The checksum of the received values.
+   */
+  public double getChecksum() {
+    return checksum;
+  }
+
+  @Override
+  public void processNewTextValue(INDITextProperty property, Date timestamp, INDITextElementAndValue[] elementsAndValues) {
+    receivedValues += elementsAndValues.length;
+  }
+
+  @Override
+  public void processNewSwitchValue(INDISwitchProperty property, Date timestamp, INDISwitchElementAndValue[] elementsAndValues) {
+    for (int i = 0 ; i < elementsAndValues.length ; i++) {
+      if (elementsAndValues[i].getValue() == SwitchStatus.ON) {
+        checksum++;
+      }
+    }
+
+    receivedValues += elementsAndValues.length;
+  }
+
+  @Override
+  public void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues) {
+    for (int i = 0 ; i < elementsAndValues.length ; i++) {
+      checksum += elementsAndValues[i].getValue();
+    }
+
+    receivedValues += elementsAndValues.length;
+  }
+
+  @Override
+  public void processNewBLOBValue(INDIBLOBProperty property, Date timestamp, INDIBLOBElementAndValue[] elementsAndValues) {
+    for (int i = 0 ; i < elementsAndValues.length ; i++) {
+      checksum += elementsAndValues[i].getValue().getSize();
+    }
+
+    receivedValues += elementsAndValues.length;
+  }
+}
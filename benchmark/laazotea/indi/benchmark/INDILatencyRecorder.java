@@ -0,0 +1,157 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * A class to record the latencies of the operations of a benchmark. The
+ * latencies are stored in a growing array of <code>long</code>s (in
+ * nanoseconds) so that recording them does not create any garbage once the
+ * array is big enough.
+ *
+ * @author farom
+ */
+public class INDILatencyRecorder {
+
+  /**
+   * The recorded latencies (in nanoseconds).
+   */
+  private long[] latencies;
+  /**
+   * The number of recorded latencies.
+   */
+  private int count;
+  /**
+   * The moment in which the current operation started (as given by
+   * <code>System.nanoTime()</code>).
+   */
+  private long start;
+  /**
+   * <code>true</code> if the latencies are being recorded.
+   */
+  private boolean recording;
+
+  /**
+   * Constructs a new recorder.
+   */
+  public INDILatencyRecorder() {
+    latencies = new long[1024];
+    count = 0;
+    recording = false;
+  }
+
+  /**
+   * Sets if the latencies should be recorded. Used to ignore the warmup
+   * iterations.
+   *
+   * @param recording <code>true</code> if the latencies should be recorded.
+   */
+  public void setRecording(boolean recording) {
+    this.recording = recording;
+  }
+
+  /**
+   * Ensures that the recorder can hold at least <code>capacity</code>
+   * latencies without growing. Should be called before measuring so that the
+   * growth is not accounted as allocated memory.
+   *
+   * @param capacity The number of latencies to be held.
+   */
+  public void ensureCapacity(int capacity) {
+    if (capacity > latencies.length) {
+      latencies = Arrays.copyOf(latencies, capacity);
+    }
+  }
+
+  /**
+   * Marks the start of an operation (or of a group of them).
+   */
+  public void start() {
+    start = System.nanoTime();
+  }
+
+  /**
+   * Records the time elapsed since the last call to <code>start()</code>.
+   */
+  public void stop() {
+    if (!recording) {
+      return;
+    }
+
+    long latency = System.nanoTime() - start;
+
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, latencies.length * 2);
+    }
+
+    latencies[count] = latency;
+    count++;
+  }
+
+  /**
+   * Gets the number of recorded latencies.
+   *
+   * @return The number of recorded latencies.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Removes all the recorded latencies.
+   */
+  public void reset() {
+    count = 0;
+  }
+
+  /**
+   * Sorts the recorded latencies. Must be called before asking for any
+   * percentile.
+   */
+  public void sort() {
+    Arrays.sort(latencies, 0, count);
+  }
+
+  /**
+   * Gets a percentile of the recorded latencies. <code>sort()</code> must
+   * have been called before.
+   *
+   * @param percentile The percentile (between 0 and 100).
+   * @return The latency (in nanoseconds) below which <code>percentile</code>
+   * percent of the operations have finished. <code>0</code> if there are no
+   * recorded latencies.
+   */
+  public long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    int pos = (int)Math.ceil(percentile / 100.0 * count) - 1;
+
+    if (pos < 0) {
+      pos = 0;
+    }
+
+    if (pos >= count) {
+      pos = count - 1;
+    }
+
+    return latencies[pos];
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.util.ArrayList;
+import laazotea.indi.Constants.BLOBEnables;
+import laazotea.indi.server.INDIDeviceListener;
+
+/**
+ * A benchmark case that measures the checks done by the Server for each
+ * forwarded message to know if a listener (Client) is interested in it: if
+ * it listens to the Property and if it accepts its BLOB or non BLOB updates.
+ * The listener subscribes to many individual Properties (with some BLOB
+ * Enable rules) and each operation checks a message of one of those
+ * Properties or of a Property that is not listened. The checks are done by a
+ * <code>INDIDeviceListener</code> (hash tables) or by a reference
+ * implementation that scans lists of rules (the way it was done in previous
+ * versions) to show the difference.
+ *
+ * @author farom
+ */
+public class INDIListenerBenchmark extends INDIBenchmarkCase {
+
+  /**
+   * The implementations of the checks.
+   */
+  public enum Rules {
+
+    /**
+     * The hash tables of <code>INDIDeviceListener</code>
+     */
+    HASH,
+    /**
+     * Linear scans of lists of rules
+     */
+    LINEAR
+  };
+
+  /**
+   * The implementation of the checks.
+   */
+  private Rules rules;
+  /**
+   * The number of listened Properties.
+   */
+  private int properties;
+  /**
+   * The number of checks in each iteration.
+   */
+  private int messages;
+  /**
+   * The names of the checked Properties (listened and not listened ones).
+   */
+  private String[] propertyNames;
+  /**
+   * The listener using hash tables.
+   */
+  private BenchmarkListener hashListener;
+  /**
+   * The listener using lists of rules.
+   */
+  private LinearListener linearListener;
+  /**
+   * The number of accepted messages (so that the checks are really used).
+   */
+  private long accepted;
+
+  /**
+   * Constructs a new listener benchmark case.
+   *
+   * @param rules The implementation of the checks.
+   * @param properties The number of listened Properties.
+   * @param messages The number of checks in each iteration.
+   */
+  public INDIListenerBenchmark(Rules rules, int properties, int messages) {
+    super("listener/" + properties + "/" + rules.name().toLowerCase());
+
+    this.rules = rules;
+    this.properties = properties;
+    this.messages = messages;
+  }
+
+  @Override
+  public void setUp() {
+    propertyNames = new String[properties * 2];
+
+    for (int i = 0 ; i < propertyNames.length ; i++) {
+      propertyNames[i] = "PROPERTY_" + i;
+    }
+
+    hashListener = new BenchmarkListener();
+    linearListener = new LinearListener();
+
+    for (int i = 0 ; i < properties ; i++) {  // Only the first half is listened
+      hashListener.addPropertyToListen(INDIStreamGenerator.DEVICE_NAME, propertyNames[i]);
+      linearListener.addPropertyToListen(INDIStreamGenerator.DEVICE_NAME, propertyNames[i]);
+
+      if (i % 10 == 0) {
+        hashListener.addBLOBEnableRule(INDIStreamGenerator.DEVICE_NAME, propertyNames[i], BLOBEnables.NEVER);
+        linearListener.addBLOBEnableRule(INDIStreamGenerator.DEVICE_NAME, propertyNames[i], BLOBEnables.NEVER);
+      }
+    }
+
+    hashListener.addBLOBEnableRule(INDIStreamGenerator.DEVICE_NAME, BLOBEnables.ALSO);
+    linearListener.addBLOBEnableRule(INDIStreamGenerator.DEVICE_NAME, null, BLOBEnables.ALSO);
+
+    accepted = 0;
+  }
+
+  @Override
+  public void tearDown() {
+    propertyNames = null;
+    hashListener = null;
+    linearListener = null;
+  }
+
+  @Override
+  public int getOperationsPerIteration() {
+    return messages;
+  }
+
+  @Override
+  public long runIteration(INDILatencyRecorder recorder) {
+    for (int i = 0 ; i < messages ; i++) {
+      String propertyName = propertyNames[i % propertyNames.length];
+      boolean isBLOB = i % 5 == 0;
+      boolean ok;
+
+      recorder.start();
+
+      if (rules == Rules.HASH) {
+        ok = hashListener.acceptsUpdate(INDIStreamGenerator.DEVICE_NAME, propertyName, isBLOB);
+      } else {
+        ok = linearListener.acceptsUpdate(INDIStreamGenerator.DEVICE_NAME, propertyName, isBLOB);
+      }
+
+      recorder.stop();
+
+      if (ok) {
+        accepted++;
+      }
+    }
+
+    return messages;
+  }
+
+  /**
+   * Gets the number of accepted messages.
+   *
+   * @return The number of accepted messages.
+   */
+  public long getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * A listener that exposes the checks of <code>INDIDeviceListener</code>.
+   */
+  private static class BenchmarkListener extends INDIDeviceListener {
+
+    /**
+     * Checks if an update of a Property would be sent to the listener (as
+     * done by the Server).
+     *
+     * @param deviceName The name of the Device.
+     * @param propertyName The name of the Property.
+     * @param isBLOB If the Property is a BLOB one.
+     * @return <code>true</code> if the update would be sent.
+     */
+    public boolean acceptsUpdate(String deviceName, String propertyName, boolean isBLOB) {
+      if (!listensToProperty(deviceName, propertyName)) {
+        return false;
+      }
+
+      if (isBLOB) {
+        return isBLOBAccepted(deviceName, propertyName);
+      }
+
+      return areNonBLOBsAccepted(deviceName);
+    }
+
+    @Override
+    protected void addPropertyToListen(String deviceName, String propertyName) {
+      super.addPropertyToListen(deviceName, propertyName);
+    }
+
+    @Override
+    protected void addBLOBEnableRule(String deviceName, BLOBEnables enable) {
+      super.addBLOBEnableRule(deviceName, enable);
+    }
+
+    @Override
+    protected void addBLOBEnableRule(String deviceName, String propertyName, BLOBEnables enable) {
+      super.addBLOBEnableRule(deviceName, propertyName, enable);
+    }
+
+    @Override
+    protected void sendXMLMessage(String xml) {
+    }
+  }
+
+  /**
+   * A reference listener that keeps its rules in lists and scans them with
+   * string comparisons.
+   */
+  private static class LinearListener {
+
+    /**
+     * The listened Properties (pairs of Device and Property names).
+     */
+    private ArrayList<String[]> propertiesToListen;
+    /**
+     * The BLOB Enable rules (the Property name is <code>null</code> for whole
+     * Devices).
+     */
+    private ArrayList<Object[]> BLOBEnableRules;
+
+    /**
+     * Constructs a listener without any rule.
+     */
+    LinearListener() {
+      propertiesToListen = new ArrayList<String[]>();
+      BLOBEnableRules = new ArrayList<Object[]>();
+    }
+
+    /**
+     * Adds a new Property to be listened.
+     *
+     * @param deviceName The Device name.
+     * @param propertyName The Property name.
+     */
+    void addPropertyToListen(String deviceName, String propertyName) {
+      propertiesToListen.add(new String[]{deviceName, propertyName});
+    }
+
+    /**
+     * Adds a new BLOB Enable rule.
+     *
+     * @param deviceName The Device name.
+     * @param propertyName The Property name (<code>null</code> for the whole
+     * Device).
+     * @param enable The rule.
+     */
+    void addBLOBEnableRule(String deviceName, String propertyName, BLOBEnables enable) {
+      BLOBEnableRules.add(new Object[]{deviceName, propertyName, enable});
+    }
+
+    /**
+     * Gets a BLOB Enable rule.
+     *
+     * @param deviceName The Device name.
+     * @param propertyName The Property name (<code>null</code> for the whole
+     * Device).
+     * @return The rule (<code>null</code> if there is no rule).
+     */
+    private BLOBEnables getBLOBEnableRule(String deviceName, String propertyName) {
+      for (int i = 0 ; i < BLOBEnableRules.size() ; i++) {
+        Object[] r = BLOBEnableRules.get(i);
+
+        if ((r[0].equals(deviceName)) && ((propertyName == null) ? (r[1] == null) : (propertyName.equals(r[1])))) {
+          return (BLOBEnables)r[2];
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * Checks if an update of a Property would be sent to the listener.
+     *
+     * @param deviceName The name of the Device.
+     * @param propertyName The name of the Property.
+     * @param isBLOB If the Property is a BLOB one.
+     * @return <code>true</code> if the update would be sent.
+     */
+    boolean acceptsUpdate(String deviceName, String propertyName, boolean isBLOB) {
+      boolean listens = false;
+
+      for (int i = 0 ; i < propertiesToListen.size() ; i++) {
+        String[] p = propertiesToListen.get(i);
+
+        if ((p[0].equals(deviceName)) && (p[1].equals(propertyName))) {
+          listens = true;
+
+          break;
+        }
+      }
+
+      if (!listens) {
+        return false;
+      }
+
+      if (isBLOB) {
+        BLOBEnables enable = getBLOBEnableRule(deviceName, propertyName);
+
+        if (enable == null) {
+          enable = getBLOBEnableRule(deviceName, null);
+        }
+
+        return (enable != null) && (enable != BLOBEnables.NEVER);
+      }
+
+      return getBLOBEnableRule(deviceName, null) != BLOBEnables.ONLY;
+    }
+  }
+}
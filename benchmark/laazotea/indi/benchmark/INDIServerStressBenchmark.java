@@ -0,0 +1,549 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import laazotea.indi.INDIException;
+import laazotea.indi.driver.INDINumberElementAndValue;
+import laazotea.indi.driver.INDINumberProperty;
+import laazotea.indi.server.DefaultINDIServer;
+
+/**
+ * A stress case for the Server: while some threads continuously connect
+ * Clients, subscribe them to the Device (in different ways) and disconnect
+ * them, a commander Client sends new coordinates to a Driver that echoes
+ * them. Each operation is a round trip (from the sending of the new value to
+ * the reception of its update) and its latency is recorded. Many passive
+ * listener Clients (read by a single thread) may also be connected, so that
+ * every update is sent to all of them. The lost updates, the disconnected
+ * listeners and the uncaught exceptions of any thread are reported at the end
+ * of the case, so that the thread safety of the registries of the Server and
+ * its behaviour with many Clients can be checked under connection churn.
+ *
+ * @author farom
+ */
+public class INDIServerStressBenchmark extends INDIBenchmarkCase {
+
+  /**
+   * The messages sent by the churning Clients after connecting.
+   */
+  private static final String[] SUBSCRIPTIONS = new String[]{
+    "<getProperties version=\"1.7\" />",
+    "<getProperties version=\"1.7\" device=\"" + INDIStreamGenerator.DEVICE_NAME + "\" />",
+    "<getProperties version=\"1.7\" device=\"" + INDIStreamGenerator.DEVICE_NAME + "\" name=\"EQUATORIAL_EOD_COORD\" />",
+    "<getProperties version=\"1.7\" device=\"" + INDIStreamGenerator.DEVICE_NAME + "\" name=\"TIME_LST\" />",
+    "<getProperties version=\"1.7\" /><enableBLOB device=\"" + INDIStreamGenerator.DEVICE_NAME + "\">Also</enableBLOB>",
+    "<getProperties version=\"1.7\" /><enableBLOB device=\"" + INDIStreamGenerator.DEVICE_NAME + "\">Only</enableBLOB>"
+  };
+  /**
+   * The maximum time (in milliseconds) to wait for each update.
+   */
+  private static final int UPDATE_TIMEOUT = 10000;
+  /**
+   * The beginning of the updates echoed by the Driver.
+   */
+  private static final byte[] UPDATE_TAG = "<setNumberVector".getBytes();
+  /**
+   * The port of the Server.
+   */
+  private int port;
+  /**
+   * The number of event loop threads of the Server (0 for a thread for each
+   * Client and Device).
+   */
+  private int eventLoopThreads;
+  /**
+   * The number of round trips in each iteration.
+   */
+  private int roundTrips;
+  /**
+   * The number of threads that connect and disconnect Clients.
+   */
+  private int churnThreads;
+  /**
+   * The number of passive listener Clients.
+   */
+  private int listeners;
+  /**
+   * The selector of the channels of the listener Clients.
+   */
+  private Selector listenerSelector;
+  /**
+   * The thread that reads from the listener Clients.
+   */
+  private Thread drainer;
+  /**
+   * The number of bytes received by the listener Clients.
+   */
+  private AtomicLong listenerBytes;
+  /**
+   * The number of listener Clients disconnected by the Server.
+   */
+  private AtomicLong closedListeners;
+  /**
+   * The Server.
+   */
+  private StressServer server;
+  /**
+   * The threads that connect and disconnect Clients.
+   */
+  private Thread[] churners;
+  /**
+   * <code>true</code> while the churning threads must run.
+   */
+  private volatile boolean churning;
+  /**
+   * The commander Client.
+   */
+  private Socket commander;
+  /**
+   * The number of bytes of <code>UPDATE_TAG</code> matched at the end of the
+   * last read.
+   */
+  private int matched;
+  /**
+   * The number of pending updates already read by the commander.
+   */
+  private int pendingUpdates;
+  /**
+   * The number of connections done by the churning threads.
+   */
+  private AtomicLong connections;
+  /**
+   * The number of uncaught exceptions in any thread.
+   */
+  private AtomicLong uncaughtExceptions;
+  /**
+   * The number of round trips whose update has not been received.
+   */
+  private long lostUpdates;
+  /**
+   * The previous handler of uncaught exceptions.
+   */
+  private Thread.UncaughtExceptionHandler previousHandler;
+
+  /**
+   * Constructs a new stress case.
+   *
+   * @param port The port of the Server.
+   * @param eventLoopThreads The number of event loop threads of the Server (0
+   * for a thread for each Client and Device).
+   * @param roundTrips The number of round trips in each iteration.
+   * @param churnThreads The number of threads that connect and disconnect
+   * Clients.
+   * @param listeners The number of passive listener Clients.
+   */
+  public INDIServerStressBenchmark(int port, int eventLoopThreads, int roundTrips, int churnThreads, int listeners) {
+    super("server/churn/" + (eventLoopThreads > 0 ? "event-loop" : "threads"));
+
+    this.port = port;
+    this.eventLoopThreads = eventLoopThreads;
+    this.roundTrips = roundTrips;
+    this.churnThreads = churnThreads;
+    this.listeners = listeners;
+  }
+
+  @Override
+  public void setUp() {
+    server = null;
+    connections = new AtomicLong();
+    uncaughtExceptions = new AtomicLong();
+    listenerBytes = new AtomicLong();
+    closedListeners = new AtomicLong();
+    lostUpdates = 0;
+
+    previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread t, Throwable e) {
+        uncaughtExceptions.incrementAndGet();
+
+        e.printStackTrace();
+      }
+    });
+
+    try {
+      server = new StressServer(port, eventLoopThreads);
+      server.loadJavaDriver(EchoDriver.class);
+
+      commander = connect();
+      commander.getOutputStream().write(SUBSCRIPTIONS[2].getBytes());
+
+      listenerSelector = Selector.open();
+
+      for (int i = 0 ; i < listeners ; i++) {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.write(ByteBuffer.wrap(SUBSCRIPTIONS[2].getBytes()));  // Only the echoed Property
+        channel.configureBlocking(false);
+        channel.register(listenerSelector, SelectionKey.OP_READ);
+      }
+    } catch (Exception e) {
+      if (server != null) {
+        server.stop();
+      }
+
+      Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+
+      throw new IllegalStateException("Could not start the Server: " + e.getMessage(), e);
+    }
+
+    matched = 0;
+    pendingUpdates = 0;
+
+    churning = true;
+    churners = new Thread[churnThreads];
+
+    for (int i = 0 ; i < churnThreads ; i++) {
+      churners[i] = new Thread(new Churner(i), "Churner " + i);
+      churners[i].start();
+    }
+
+    drainer = new Thread(new Drainer(), "Listener drainer");
+    drainer.start();
+  }
+
+  @Override
+  public void tearDown() {
+    churning = false;
+
+    for (int i = 0 ; i < churners.length ; i++) {
+      try {
+        churners[i].join();
+      } catch (InterruptedException e) {
+      }
+    }
+
+    try {
+      drainer.join();
+    } catch (InterruptedException e) {
+    }
+
+    for (SelectionKey key : listenerSelector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+      }
+    }
+
+    try {
+      listenerSelector.close();
+    } catch (IOException e) {
+    }
+
+    try {
+      commander.close();
+    } catch (IOException e) {
+    }
+
+    server.stop();
+
+    Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+
+    System.err.println(getName() + ": " + connections.get() + " churned connections, " + lostUpdates + " lost updates, "
+            + listeners + " listeners (" + (listenerBytes.get() / 1024) + " KB received, " + closedListeners.get() + " disconnected), "
+            + uncaughtExceptions.get() + " uncaught exceptions");
+  }
+
+  @Override
+  public int getOperationsPerIteration() {
+    return roundTrips;
+  }
+
+  @Override
+  public long runIteration(INDILatencyRecorder recorder) {
+    long completed = 0;
+
+    try {
+      OutputStream os = commander.getOutputStream();
+
+      for (int i = 0 ; i < roundTrips ; i++) {
+        byte[] message = ("<newNumberVector device=\"" + INDIStreamGenerator.DEVICE_NAME + "\" name=\"EQUATORIAL_EOD_COORD\">"
+                + "<oneNumber name=\"RA\">" + (i % 24) + "</oneNumber><oneNumber name=\"DEC\">" + (i % 90) + "</oneNumber>"
+                + "</newNumberVector>").getBytes();
+
+        recorder.start();
+        os.write(message);
+
+        if (waitForUpdate()) {
+          recorder.stop();
+          completed++;
+        } else {
+          lostUpdates++;
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("The commander has been disconnected: " + e.getMessage(), e);
+    }
+
+    return completed;
+  }
+
+  /**
+   * Connects a new Client to the Server, waiting for it to be listening.
+   *
+   * @return The socket of the new Client.
+   * @throws IOException if the Server is not listening after some time.
+   */
+  private Socket connect() throws IOException {
+    for (int i = 0 ; ; i++) {
+      try {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress("localhost", port));
+
+        return s;
+      } catch (IOException e) {
+        if (i == 50) {
+          throw e;
+        }
+      }
+
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  /**
+   * Reads from the commander until an update is received.
+   *
+   * @return <code>true</code> if an update has been received,
+   * <code>false</code> if it has not arrived in time.
+   * @throws IOException if there is any problem reading.
+   */
+  private boolean waitForUpdate() throws IOException {
+    InputStream is = commander.getInputStream();
+    byte[] buffer = new byte[4096];
+    long deadline = System.currentTimeMillis() + UPDATE_TIMEOUT;
+
+    while (pendingUpdates == 0) {
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0) {  // Other messages may keep arriving
+        return false;
+      }
+
+      int n;
+
+      try {
+        commander.setSoTimeout((int)remaining);
+
+        n = is.read(buffer);
+      } catch (SocketTimeoutException e) {
+        return false;
+      }
+
+      if (n == -1) {
+        throw new IOException("End of stream");
+      }
+
+      for (int i = 0 ; i < n ; i++) {
+        if (buffer[i] == UPDATE_TAG[matched]) {
+          matched++;
+
+          if (matched == UPDATE_TAG.length) {
+            pendingUpdates++;
+            matched = 0;
+          }
+        } else {
+          matched = (buffer[i] == UPDATE_TAG[0]) ? 1 : 0;
+        }
+      }
+    }
+
+    pendingUpdates--;
+
+    return true;
+  }
+
+  /**
+   * A Server that can be stopped.
+   */
+  private static class StressServer extends DefaultINDIServer {
+
+    /**
+     * Constructs a new Server.
+     *
+     * @param port The port to which the Server will listen.
+     * @param eventLoopThreads The number of event loop threads.
+     * @throws INDIException if the event loops cannot be created.
+     */
+    StressServer(int port, int eventLoopThreads) throws INDIException {
+      super(port, eventLoopThreads);
+    }
+
+    /**
+     * Stops the Server, disconnecting all the Clients and destroying the
+     * Driver.
+     */
+    void stop() {
+      stopServer();
+
+      destroyJavaDriver(EchoDriver.class);
+    }
+  }
+
+  /**
+   * A benchmark Driver that echoes the new coordinates that it receives.
+   */
+  public static class EchoDriver extends INDIBenchmarkDriver {
+
+    /**
+     * Constructs a new echo Driver.
+     *
+     * @param inputStream The stream from which to read messages.
+     * @param outputStream The stream to which to write the messages.
+     */
+    public EchoDriver(InputStream inputStream, OutputStream outputStream) {
+      super(inputStream, outputStream);
+    }
+
+    @Override
+    public void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues) {
+      super.processNewNumberValue(property, timestamp, elementsAndValues);
+
+      property.setValues(elementsAndValues);
+
+      try {
+        updateProperty(property);
+      } catch (INDIException e) {
+      }
+    }
+  }
+
+  /**
+   * A task that reads (and discards) everything sent to the listener Clients
+   * while the case runs.
+   */
+  private class Drainer implements Runnable {
+
+    @Override
+    public void run() {
+      ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+      while (churning) {
+        try {
+          listenerSelector.select(100);
+        } catch (IOException e) {
+          return;
+        }
+
+        Iterator<SelectionKey> it = listenerSelector.selectedKeys().iterator();
+
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+
+          int n;
+
+          try {
+            buffer.clear();
+
+            n = ((SocketChannel)key.channel()).read(buffer);
+          } catch (IOException e) {
+            n = -1;
+          }
+
+          if (n == -1) {
+            closedListeners.incrementAndGet();
+
+            key.cancel();
+
+            try {
+              key.channel().close();
+            } catch (IOException e) {
+            }
+          } else {
+            listenerBytes.addAndGet(n);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A task that continuously connects a Client, subscribes it, reads for a
+   * while and disconnects it (sometimes abruptly).
+   */
+  private class Churner implements Runnable {
+
+    /**
+     * The random generator of the task.
+     */
+    private Random random;
+
+    /**
+     * Constructs a new churning task.
+     *
+     * @param index The index of the task (used as seed).
+     */
+    Churner(int index) {
+      random = new Random(index);
+    }
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[4096];
+
+      while (churning) {
+        try {
+          Socket s = connect();
+
+          connections.incrementAndGet();
+
+          s.getOutputStream().write(SUBSCRIPTIONS[random.nextInt(SUBSCRIPTIONS.length)].getBytes());
+
+          long end = System.currentTimeMillis() + random.nextInt(20);
+
+          while (System.currentTimeMillis() < end) {
+            InputStream is = s.getInputStream();
+
+            if (is.available() > 0) {
+              is.read(buffer);
+            } else {
+              Thread.sleep(1);
+            }
+          }
+
+          if (random.nextBoolean()) {
+            s.setSoLinger(true, 0);  // Abrupt close (reset)
+          }
+
+          s.close();
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
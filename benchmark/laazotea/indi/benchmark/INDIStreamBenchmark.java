@@ -0,0 +1,350 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIMessageParser;
+import laazotea.indi.INDIProtocolParser;
+import laazotea.indi.INDIProtocolReader;
+import org.w3c.dom.Document;
+
+/**
+ * A benchmark case that feeds a synthetic stream to a
+ * <code>INDIProtocolReader</code> in chunks (as if read from a socket). The
+ * parsed messages may be sent to a parser that just reads their values, to a
+ * <code>INDIDriver</code> as typed messages or to a <code>INDIDriver</code>
+ * by means of its <code>parseXML</code> method. Each operation is the parsing
+ * of one message and its latency is measured from the start of the feeding
+ * of the chunk that completes it.
+ *
+ * @author farom
+ */
+public class INDIStreamBenchmark extends INDIBenchmarkCase {
+
+  /**
+   * The kinds of streams.
+   */
+  public enum Streams {
+
+    /**
+     * Small Number Vectors
+     */
+    NUMBERS,
+    /**
+     * Switch Vectors
+     */
+    SWITCHES,
+    /**
+     * Number and Switch Vectors with some big BLOBs
+     */
+    MIXED
+  };
+
+  /**
+   * The destinations of the parsed messages.
+   */
+  public enum Paths {
+
+    /**
+     * The typed messages are just read
+     */
+    READER,
+    /**
+     * The typed messages are parsed by a Driver
+     */
+    DRIVER,
+    /**
+     * The messages are parsed by the <code>parseXML</code> method of a Driver
+     */
+    DRIVER_DOM
+  };
+
+  /**
+   * The kind of stream.
+   */
+  private Streams streamKind;
+  /**
+   * The destination of the parsed messages.
+   */
+  private Paths path;
+  /**
+   * The number of Number and Switch messages of the stream.
+   */
+  private int messages;
+  /**
+   * The sizes of the BLOBs of a mixed stream (in bytes).
+   */
+  private int[] blobSizes;
+  /**
+   * The maximum size of the chunks. If negative the chunks will have random
+   * sizes between 1 and <code>-maxChunkSize</code>.
+   */
+  private int maxChunkSize;
+  /**
+   * The seed for the generation of the stream and the chunks.
+   */
+  private long seed;
+  /**
+   * The stream.
+   */
+  private byte[] stream;
+  /**
+   * The number of messages in the stream.
+   */
+  private int streamMessages;
+  /**
+   * The sizes of the chunks in which the stream is fed.
+   */
+  private int[] chunks;
+  /**
+   * The reader that is fed.
+   */
+  private INDIProtocolReader reader;
+  /**
+   * The Driver that receives the messages (if any).
+   */
+  private INDIBenchmarkDriver driver;
+  /**
+   * The recorder of the current iteration.
+   */
+  private INDILatencyRecorder recorder;
+  /**
+   * The number of parsed messages.
+   */
+  private long parsedMessages;
+  /**
+   * A checksum of the parsed values (so that they are really used).
+   */
+  private double checksum;
+
+  /**
+   * Constructs a new stream benchmark case.
+   *
+   * @param streamKind The kind of stream.
+   * @param path The destination of the parsed messages.
+   * @param messages The number of Number and Switch messages of the stream.
+   * @param blobSizes The sizes of the BLOBs of a mixed stream (in bytes).
+   * @param maxChunkSize The maximum size of the chunks. If negative the chunks
+   * will have random sizes between 1 and <code>-maxChunkSize</code>.
+   * @param seed The seed for the generation of the stream and the chunks.
+   */
+  public INDIStreamBenchmark(Streams streamKind, Paths path, int messages, int[] blobSizes, int maxChunkSize, long seed) {
+    super(streamKind.name().toLowerCase() + "/" + (maxChunkSize < 0 ? "random" : "fixed") + "/" + path.name().toLowerCase().replace('_', '-'));
+
+    this.streamKind = streamKind;
+    this.path = path;
+    this.messages = messages;
+    this.blobSizes = blobSizes;
+    this.maxChunkSize = maxChunkSize;
+    this.seed = seed;
+  }
+
+  @Override
+  public void setUp() {
+    boolean toDriver = path != Paths.READER;
+    INDIStreamGenerator g;
+
+    if (streamKind == Streams.NUMBERS) {
+      g = INDIStreamGenerator.createNumberStream(messages, toDriver, seed);
+    } else if (streamKind == Streams.SWITCHES) {
+      g = INDIStreamGenerator.createSwitchStream(messages, toDriver, seed);
+    } else {
+      g = INDIStreamGenerator.createMixedStream(messages, blobSizes, toDriver, seed);
+    }
+
+    stream = g.getBytes();
+    streamMessages = g.getMessageCount();
+
+    if (maxChunkSize < 0) {
+      chunks = INDIStreamGenerator.createRandomChunks(stream.length, -maxChunkSize, seed);
+    } else {
+      chunks = INDIStreamGenerator.createFixedChunks(stream.length, maxChunkSize);
+    }
+
+    if (path == Paths.READER) {
+      reader = new INDIProtocolReader(new ValuesParser());
+    } else {
+      driver = new INDIBenchmarkDriver(new ByteArrayInputStream(new byte[0]), new DiscardingOutputStream());
+
+      if (path == Paths.DRIVER) {
+        reader = new INDIProtocolReader(new DriverMessageParser());
+      } else {
+        reader = new INDIProtocolReader(new DriverXMLParser());
+      }
+    }
+
+    parsedMessages = 0;
+    checksum = 0;
+  }
+
+  @Override
+  public void tearDown() {
+    stream = null;
+    chunks = null;
+    reader = null;
+    driver = null;
+  }
+
+  @Override
+  public int getOperationsPerIteration() {
+    return streamMessages;
+  }
+
+  @Override
+  public long getBytesPerIteration() {
+    return stream.length;
+  }
+
+  @Override
+  public long runIteration(INDILatencyRecorder recorder) {
+    this.recorder = recorder;
+
+    long before = parsedMessages;
+    int pos = 0;
+
+    for (int i = 0 ; i < chunks.length ; i++) {
+      recorder.start();
+      reader.feed(stream, pos, chunks[i]);
+      pos += chunks[i];
+    }
+
+    return parsedMessages - before;
+  }
+
+  /**
+   * Gets a checksum of the parsed values.
+   *
+   * @return The checksum of the parsed values.
+   */
+  public double getChecksum() {
+    if (driver != null) {
+      return driver.getChecksum();
+    }
+
+    return checksum;
+  }
+
+  /**
+   * Called each time a message has been completely parsed.
+   */
+  private void messageParsed() {
+    parsedMessages++;
+
+    recorder.stop();
+  }
+
+  /**
+   * A parser that just reads the values of the typed messages.
+   */
+  private class ValuesParser implements INDIMessageParser {
+
+    @Override
+    public void parseMessage(INDIMessage message) {
+      int count = message.getElementCount();
+
+      if (message.isNumberVector()) {
+        for (int i = 0 ; i < count ; i++) {
+          checksum += message.getNumberValue(i);
+        }
+      } else {
+        checksum += count;
+      }
+
+      messageParsed();
+    }
+
+    @Override
+    public void parseXML(Document doc) {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return null;
+    }
+
+    @Override
+    public void finishReader() {
+    }
+  }
+
+  /**
+   * A parser that sends the typed messages to the Driver.
+   */
+  private class DriverMessageParser implements INDIMessageParser {
+
+    @Override
+    public void parseMessage(INDIMessage message) {
+      driver.parseMessage(message);
+
+      messageParsed();
+    }
+
+    @Override
+    public void parseXML(Document doc) {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return null;
+    }
+
+    @Override
+    public void finishReader() {
+    }
+  }
+
+  /**
+   * A parser that sends the messages to the Driver as XML documents.
+   */
+  private class DriverXMLParser implements INDIProtocolParser {
+
+    @Override
+    public void parseXML(Document doc) {
+      driver.parseXML(doc);
+
+      messageParsed();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return null;
+    }
+
+    @Override
+    public void finishReader() {
+    }
+  }
+
+  /**
+   * A stream that discards everything written to it (the definitions sent by
+   * the Driver).
+   */
+  private static class DiscardingOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
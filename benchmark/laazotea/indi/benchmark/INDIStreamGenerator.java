@@ -0,0 +1,380 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import laazotea.indi.Base64;
+import laazotea.indi.INDIDateFormat;
+
+/**
+ * A class to generate synthetic INDI streams that mimic the traffic of a real
+ * telescope / camera driver: small Number Vectors (coordinates, motor
+ * status, sidereal time) sent at high rate, Switch Vectors and big BLOBs. The
+ * streams may be directed to clients (&lt;setXXXVector&gt; messages) or to
+ * drivers (&lt;newXXXVector&gt; messages). The generation is deterministic for
+ * a given seed.
+ *
+ * @author farom
+ */
+public class INDIStreamGenerator {
+
+  /**
+   * The name of the device of the generated messages.
+   */
+  public static final String DEVICE_NAME = "Benchmark Device";
+  /**
+   * The charset of the generated messages.
+   */
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  /**
+   * The generated stream.
+   */
+  private ByteArrayOutputStream stream;
+  /**
+   * The number of generated messages.
+   */
+  private int messageCount;
+  /**
+   * <code>true</code> if the messages are directed to drivers
+   * (&lt;newXXXVector&gt;), <code>false</code> if they are directed to
+   * clients (&lt;setXXXVector&gt;).
+   */
+  private boolean toDriver;
+  /**
+   * The random number generator.
+   */
+  private Random random;
+  /**
+   * The timestamp of the next message (in milliseconds).
+   */
+  private long time;
+
+  /**
+   * Constructs a new generator.
+   *
+   * @param toDriver <code>true</code> if the messages are directed to drivers
+   * (&lt;newXXXVector&gt;), <code>false</code> if they are directed to
+   * clients (&lt;setXXXVector&gt;).
+   * @param seed The seed of the random number generator.
+   */
+  public INDIStreamGenerator(boolean toDriver, long seed) {
+    this.toDriver = toDriver;
+    this.random = new Random(seed);
+
+    stream = new ByteArrayOutputStream();
+    messageCount = 0;
+    time = 1350000000000L;
+  }
+
+  /**
+   * Gets the generated stream.
+   *
+   * @return The generated stream.
+   */
+  public byte[] getBytes() {
+    return stream.toByteArray();
+  }
+
+  /**
+   * Gets the number of generated messages.
+   *
+   * @return The number of generated messages.
+   */
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  /**
+   * Appends a message to the stream.
+   *
+   * @param xml The message.
+   */
+  private void append(String xml) {
+    byte[] b = xml.getBytes(CHARSET);
+
+    stream.write(b, 0, b.length);
+
+    messageCount++;
+    time += 50;
+  }
+
+  /**
+   * Gets the opening of a vector message (without the closing
+   * <code>&gt;</code>).
+   *
+   * @param kind The kind of the vector (<code>Number</code>,
+   * <code>Switch</code>, etc.)
+   * @param name The name of the property.
+   * @return The opening of the vector message.
+   */
+  private String openVector(String kind, String name) {
+    String s = "<" + (toDriver ? "new" : "set") + kind + "Vector device=\"" + DEVICE_NAME + "\" name=\"" + name + "\"";
+
+    if (!toDriver) {
+      s += " state=\"Ok\" timeout=\"60\"";
+    }
+
+    return s + " timestamp=\"" + INDIDateFormat.formatTimestamp(new Date(time)) + "\">\n";
+  }
+
+  /**
+   * Gets the closing of a vector message.
+   *
+   * @param kind The kind of the vector (<code>Number</code>,
+   * <code>Switch</code>, etc.)
+   * @return The closing of the vector message.
+   */
+  private String closeVector(String kind) {
+    return "</" + (toDriver ? "new" : "set") + kind + "Vector>\n";
+  }
+
+  /**
+   * Gets a one element message.
+   *
+   * @param kind The kind of the element (<code>Number</code>,
+   * <code>Switch</code>, etc.)
+   * @param name The name of the element.
+   * @param value The value of the element.
+   * @return The one element message.
+   */
+  private String oneElement(String kind, String name, String value) {
+    return "  <one" + kind + " name=\"" + name + "\">\n" + value + "\n  </one" + kind + ">\n";
+  }
+
+  /**
+   * Formats a number with a decimal point (independently of the default
+   * locale).
+   *
+   * @param format The format.
+   * @param value The value.
+   * @return The formatted number.
+   */
+  private static String format(String format, double value) {
+    return String.format(Locale.US, format, value);
+  }
+
+  /**
+   * Appends a small Number Vector message. Cycles through the coordinates
+   * (one decimal and one sexagesimal value), the motor status (six values)
+   * and the local sidereal time (one value).
+   */
+  public void appendNumberVector() {
+    int kind = messageCount % 3;
+    String xml;
+
+    if (kind == 0) {
+      double dec = random.nextDouble() * 180 - 90;
+      int decD = (int)Math.abs(dec);
+      int decM = (int)((Math.abs(dec) - decD) * 60);
+      double decS = ((Math.abs(dec) - decD) * 60 - decM) * 60;
+
+      xml = openVector("Number", "EQUATORIAL_EOD_COORD")
+              + oneElement("Number", "RA", format("%.6f", random.nextDouble() * 24))
+              + oneElement("Number", "DEC", (dec < 0 ? "-" : "") + decD + ":" + decM + ":" + format("%.2f", decS))
+              + closeVector("Number");
+    } else if (kind == 1) {
+      xml = openVector("Number", "MOTOR_STATUS")
+              + oneElement("Number", "RA_STEPS", "" + random.nextInt(1000000))
+              + oneElement("Number", "DE_STEPS", "" + random.nextInt(1000000))
+              + oneElement("Number", "RA_SPEED", format("%.4f", random.nextDouble() * 2 - 1))
+              + oneElement("Number", "DE_SPEED", format("%.4f", random.nextDouble() * 2 - 1))
+              + oneElement("Number", "RA_POWER", format("%.3f", random.nextDouble()))
+              + oneElement("Number", "DE_POWER", format("%.3f", random.nextDouble()))
+              + closeVector("Number");
+    } else {
+      xml = openVector("Number", "TIME_LST")
+              + oneElement("Number", "LST", format("%.8f", random.nextDouble() * 24))
+              + closeVector("Number");
+    }
+
+    append(xml);
+  }
+
+  /**
+   * Appends a Switch Vector message. Cycles through the north / south motion
+   * and the abort motion properties.
+   */
+  public void appendSwitchVector() {
+    String xml;
+
+    if (messageCount % 2 == 0) {
+      boolean north = random.nextBoolean();
+
+      xml = openVector("Switch", "TELESCOPE_MOTION_NS")
+              + oneElement("Switch", "MOTION_NORTH", north ? "On" : "Off")
+              + oneElement("Switch", "MOTION_SOUTH", north ? "Off" : "On")
+              + closeVector("Switch");
+    } else {
+      xml = openVector("Switch", "TELESCOPE_ABORT_MOTION")
+              + oneElement("Switch", "ABORT", random.nextBoolean() ? "On" : "Off")
+              + closeVector("Switch");
+    }
+
+    append(xml);
+  }
+
+  /**
+   * Appends a BLOB Vector message with one BLOB of random (not compressible)
+   * bytes.
+   *
+   * @param size The size of the BLOB (in bytes, before being encoded in
+   * base64).
+   */
+  public void appendBLOBVector(int size) {
+    byte[] data = new byte[size];
+
+    random.nextBytes(data);
+
+    String xml = openVector("BLOB", "CCD1")
+            + "  <oneBLOB name=\"CCD1\" size=\"" + size + "\" format=\".fits\">\n"
+            + Base64.encodeBytes(data)
+            + "\n  </oneBLOB>\n"
+            + closeVector("BLOB");
+
+    append(xml);
+  }
+
+  /**
+   * Creates a stream of small Number Vectors.
+   *
+   * @param messages The number of messages.
+   * @param toDriver <code>true</code> if the messages are directed to drivers.
+   * @param seed The seed of the random number generator.
+   * @return The generator with the stream.
+   */
+  public static INDIStreamGenerator createNumberStream(int messages, boolean toDriver, long seed) {
+    INDIStreamGenerator g = new INDIStreamGenerator(toDriver, seed);
+
+    for (int i = 0 ; i < messages ; i++) {
+      g.appendNumberVector();
+    }
+
+    return g;
+  }
+
+  /**
+   * Creates a stream of Switch Vectors.
+   *
+   * @param messages The number of messages.
+   * @param toDriver <code>true</code> if the messages are directed to drivers.
+   * @param seed The seed of the random number generator.
+   * @return The generator with the stream.
+   */
+  public static INDIStreamGenerator createSwitchStream(int messages, boolean toDriver, long seed) {
+    INDIStreamGenerator g = new INDIStreamGenerator(toDriver, seed);
+
+    for (int i = 0 ; i < messages ; i++) {
+      g.appendSwitchVector();
+    }
+
+    return g;
+  }
+
+  /**
+   * Creates a mixed stream of Number and Switch Vectors in which the BLOBs are
+   * evenly interleaved.
+   *
+   * @param messages The number of Number and Switch messages.
+   * @param blobSizes The sizes of the BLOBs (in bytes).
+   * @param toDriver <code>true</code> if the messages are directed to drivers.
+   * @param seed The seed of the random number generator.
+   * @return The generator with the stream.
+   */
+  public static INDIStreamGenerator createMixedStream(int messages, int[] blobSizes, boolean toDriver, long seed) {
+    INDIStreamGenerator g = new INDIStreamGenerator(toDriver, seed);
+
+    int blobsAdded = 0;
+
+    for (int i = 0 ; i < messages ; i++) {
+      if (i % 4 == 3) {
+        g.appendSwitchVector();
+      } else {
+        g.appendNumberVector();
+      }
+
+      while ((blobsAdded < blobSizes.length) && ((long)(blobsAdded + 1) * messages <= (long)(i + 1) * (blobSizes.length + 1))) {
+        g.appendBLOBVector(blobSizes[blobsAdded]);
+        blobsAdded++;
+      }
+    }
+
+    while (blobsAdded < blobSizes.length) {
+      g.appendBLOBVector(blobSizes[blobsAdded]);
+      blobsAdded++;
+    }
+
+    return g;
+  }
+
+  /**
+   * Splits a stream in chunks of random sizes (between 1 and
+   * <code>maxChunkSize</code> bytes), as if read from a socket.
+   *
+   * @param length The length of the stream.
+   * @param maxChunkSize The maximum size of a chunk.
+   * @param seed The seed of the random number generator.
+   * @return The sizes of the chunks.
+   */
+  public static int[] createRandomChunks(int length, int maxChunkSize, long seed) {
+    Random r = new Random(seed);
+    int[] chunks = new int[16];
+    int count = 0;
+    int pos = 0;
+
+    while (pos < length) {
+      int size = Math.min(1 + r.nextInt(maxChunkSize), length - pos);
+
+      if (count == chunks.length) {
+        int[] aux = new int[chunks.length * 2];
+        System.arraycopy(chunks, 0, aux, 0, count);
+        chunks = aux;
+      }
+
+      chunks[count] = size;
+      count++;
+      pos += size;
+    }
+
+    int[] res = new int[count];
+    System.arraycopy(chunks, 0, res, 0, count);
+
+    return res;
+  }
+
+  /**
+   * Splits a stream in chunks of a fixed size (the last one may be smaller).
+   *
+   * @param length The length of the stream.
+   * @param chunkSize The size of the chunks.
+   * @return The sizes of the chunks.
+   */
+  public static int[] createFixedChunks(int length, int chunkSize) {
+    int count = (length + chunkSize - 1) / chunkSize;
+    int[] res = new int[count];
+
+    for (int i = 0 ; i < count ; i++) {
+      res[i] = Math.min(chunkSize, length - i * chunkSize);
+    }
+
+    return res;
+  }
+}
@@ -49,6 +49,19 @@ public abstract class INDIAstroidDriver extends INDIDriver implements INDIConnec
 	private static final float GOTO_ACC_T = 10;
 	private static final float GOTO_SLOW_SPEED = GOTO_SPEED/10;
 
+	/**
+	 * minimum interval (in milliseconds) between two updates of the properties
+	 * refreshed on every status frame, faster updates are coalesced
+	 */
+	private static final long MIN_UPDATE_INTERVAL = 100;
+
+	/**
+	 * maximum number of messages waiting to be sent to the clients, the
+	 * messages are sent from a dedicated thread so that the serial port
+	 * handling only blocks on a slow client when the queue is full
+	 */
+	private static final int OUTPUT_QUEUE_CAPACITY = 1024;
+
 	/**
 	 * sideral rate in arcmin/sec
 	 */
@@ -198,7 +211,8 @@ public abstract class INDIAstroidDriver extends INDIDriver implements INDIConnec
 	 */
 	public INDIAstroidDriver(InputStream inputStream, OutputStream outputStream) {
 		super(inputStream, outputStream);
-		
+		startAsynchronousOutput(OUTPUT_QUEUE_CAPACITY);
+
 
 		// ------------------------------------------
 		// --- Setup INDI properties and elements ---
@@ -229,6 +243,7 @@ public abstract class INDIAstroidDriver extends INDIDriver implements INDIConnec
 				Constants.PropertyStates.IDLE, Constants.PropertyPermissions.RW); // EQUATORIAL_EOD_COORD
 		eqCoordRAE = new INDINumberElement(eqCoordP, "RA", "RA (hh:mm:ss)", 0., 0, 24, 0, "%010.6m"); // RA
 		eqCoordDEE = new INDINumberElement(eqCoordP, "DEC", "DEC (dd:mm:ss)", 0., -180, 180, 0, "%010.6m"); // DEC
+		setMinimumUpdateInterval(eqCoordP, MIN_UPDATE_INTERVAL);
 
 		
 		sideP = new INDISwitchProperty(this, "TELESCOPE_PIER_SIDE", "Telescope side", "Main Control",
@@ -275,6 +290,8 @@ public abstract class INDIAstroidDriver extends INDIDriver implements INDIConnec
 				"%7.2f");
 		trackingRateE = new INDINumberElement(currentRateP, "TRACKING_RATE", "Tracking rate (X)", -1, -2*MAX_SPEED, 2*MAX_SPEED, 0,
 				"%7.2f");
+		currentRateP.setDeltaUpdates(true); // only the rates that have changed are sent
+		setMinimumUpdateInterval(currentRateP, MIN_UPDATE_INTERVAL);
 		
 
 		
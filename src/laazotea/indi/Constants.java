@@ -490,4 +490,202 @@ public class Constants {
 
     return "";
   }
+
+
+  /**
+   * Possible kinds of INDI messages (top level elements of the protocol).
+   */
+  public enum MessageTypes {
+
+    /**
+     * Get Properties (&lt;getProperties&gt;)
+     */
+    GET_PROPERTIES,
+    /**
+     * Text Vector definition (&lt;defTextVector&gt;)
+     */
+    DEF_TEXT_VECTOR,
+    /**
+     * Number Vector definition (&lt;defNumberVector&gt;)
+     */
+    DEF_NUMBER_VECTOR,
+    /**
+     * Switch Vector definition (&lt;defSwitchVector&gt;)
+     */
+    DEF_SWITCH_VECTOR,
+    /**
+     * Light Vector definition (&lt;defLightVector&gt;)
+     */
+    DEF_LIGHT_VECTOR,
+    /**
+     * BLOB Vector definition (&lt;defBLOBVector&gt;)
+     */
+    DEF_BLOB_VECTOR,
+    /**
+     * Text Vector update (&lt;setTextVector&gt;)
+     */
+    SET_TEXT_VECTOR,
+    /**
+     * Number Vector update (&lt;setNumberVector&gt;)
+     */
+    SET_NUMBER_VECTOR,
+    /**
+     * Switch Vector update (&lt;setSwitchVector&gt;)
+     */
+    SET_SWITCH_VECTOR,
+    /**
+     * Light Vector update (&lt;setLightVector&gt;)
+     */
+    SET_LIGHT_VECTOR,
+    /**
+     * BLOB Vector update (&lt;setBLOBVector&gt;)
+     */
+    SET_BLOB_VECTOR,
+    /**
+     * Text Vector change request (&lt;newTextVector&gt;)
+     */
+    NEW_TEXT_VECTOR,
+    /**
+     * Number Vector change request (&lt;newNumberVector&gt;)
+     */
+    NEW_NUMBER_VECTOR,
+    /**
+     * Switch Vector change request (&lt;newSwitchVector&gt;)
+     */
+    NEW_SWITCH_VECTOR,
+    /**
+     * BLOB Vector change request (&lt;newBLOBVector&gt;)
+     */
+    NEW_BLOB_VECTOR,
+    /**
+     * Message (&lt;message&gt;)
+     */
+    MESSAGE,
+    /**
+     * Property deletion (&lt;delProperty&gt;)
+     */
+    DEL_PROPERTY,
+    /**
+     * BLOB enabling (&lt;enableBLOB&gt;)
+     */
+    ENABLE_BLOB
+  };
+
+  /**
+   * Parses a Message Type.
+   *
+   * @param messageType the name of the XML element of the message (for
+   * example "setNumberVector").
+   * @return The parsed Message Type
+   * @throws IllegalArgumentException if the
+   * <code>messageType</code> is not a valid one.
+   */
+  public static MessageTypes parseMessageType(String messageType) throws IllegalArgumentException {
+    if (messageType.compareTo("getProperties") == 0) {
+      return MessageTypes.GET_PROPERTIES;
+    } else if (messageType.compareTo("defTextVector") == 0) {
+      return MessageTypes.DEF_TEXT_VECTOR;
+    } else if (messageType.compareTo("defNumberVector") == 0) {
+      return MessageTypes.DEF_NUMBER_VECTOR;
+    } else if (messageType.compareTo("defSwitchVector") == 0) {
+      return MessageTypes.DEF_SWITCH_VECTOR;
+    } else if (messageType.compareTo("defLightVector") == 0) {
+      return MessageTypes.DEF_LIGHT_VECTOR;
+    } else if (messageType.compareTo("defBLOBVector") == 0) {
+      return MessageTypes.DEF_BLOB_VECTOR;
+    } else if (messageType.compareTo("setTextVector") == 0) {
+      return MessageTypes.SET_TEXT_VECTOR;
+    } else if (messageType.compareTo("setNumberVector") == 0) {
+      return MessageTypes.SET_NUMBER_VECTOR;
+    } else if (messageType.compareTo("setSwitchVector") == 0) {
+      return MessageTypes.SET_SWITCH_VECTOR;
+    } else if (messageType.compareTo("setLightVector") == 0) {
+      return MessageTypes.SET_LIGHT_VECTOR;
+    } else if (messageType.compareTo("setBLOBVector") == 0) {
+      return MessageTypes.SET_BLOB_VECTOR;
+    } else if (messageType.compareTo("newTextVector") == 0) {
+      return MessageTypes.NEW_TEXT_VECTOR;
+    } else if (messageType.compareTo("newNumberVector") == 0) {
+      return MessageTypes.NEW_NUMBER_VECTOR;
+    } else if (messageType.compareTo("newSwitchVector") == 0) {
+      return MessageTypes.NEW_SWITCH_VECTOR;
+    } else if (messageType.compareTo("newBLOBVector") == 0) {
+      return MessageTypes.NEW_BLOB_VECTOR;
+    } else if (messageType.compareTo("message") == 0) {
+      return MessageTypes.MESSAGE;
+    } else if (messageType.compareTo("delProperty") == 0) {
+      return MessageTypes.DEL_PROPERTY;
+    } else if (messageType.compareTo("enableBLOB") == 0) {
+      return MessageTypes.ENABLE_BLOB;
+    }
+
+    throw new IllegalArgumentException("Invalid MessageType String: '" + messageType + "'");
+  }
+
+  /**
+   * Checks if a string corresponds to a valid MessageType.
+   *
+   * @param messageType The string to check
+   * @return
+   * <code>true</code> if it corresponds to a valid MessageType.
+   * <code>false</code> otherwise.
+   */
+  public static boolean isValidMessageType(String messageType) {
+    try {
+      parseMessageType(messageType);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets a String representation of the Message Type (the name of its XML
+   * element).
+   *
+   * @param messageType The Message Type
+   * @return A String representation of the Message Type.
+   */
+  public static String getMessageTypeAsString(MessageTypes messageType) {
+    if (messageType == MessageTypes.GET_PROPERTIES) {
+      return "getProperties";
+    } else if (messageType == MessageTypes.DEF_TEXT_VECTOR) {
+      return "defTextVector";
+    } else if (messageType == MessageTypes.DEF_NUMBER_VECTOR) {
+      return "defNumberVector";
+    } else if (messageType == MessageTypes.DEF_SWITCH_VECTOR) {
+      return "defSwitchVector";
+    } else if (messageType == MessageTypes.DEF_LIGHT_VECTOR) {
+      return "defLightVector";
+    } else if (messageType == MessageTypes.DEF_BLOB_VECTOR) {
+      return "defBLOBVector";
+    } else if (messageType == MessageTypes.SET_TEXT_VECTOR) {
+      return "setTextVector";
+    } else if (messageType == MessageTypes.SET_NUMBER_VECTOR) {
+      return "setNumberVector";
+    } else if (messageType == MessageTypes.SET_SWITCH_VECTOR) {
+      return "setSwitchVector";
+    } else if (messageType == MessageTypes.SET_LIGHT_VECTOR) {
+      return "setLightVector";
+    } else if (messageType == MessageTypes.SET_BLOB_VECTOR) {
+      return "setBLOBVector";
+    } else if (messageType == MessageTypes.NEW_TEXT_VECTOR) {
+      return "newTextVector";
+    } else if (messageType == MessageTypes.NEW_NUMBER_VECTOR) {
+      return "newNumberVector";
+    } else if (messageType == MessageTypes.NEW_SWITCH_VECTOR) {
+      return "newSwitchVector";
+    } else if (messageType == MessageTypes.NEW_BLOB_VECTOR) {
+      return "newBLOBVector";
+    } else if (messageType == MessageTypes.MESSAGE) {
+      return "message";
+    } else if (messageType == MessageTypes.DEL_PROPERTY) {
+      return "delProperty";
+    } else if (messageType == MessageTypes.ENABLE_BLOB) {
+      return "enableBLOB";
+    }
+
+    return "";
+  }
 }
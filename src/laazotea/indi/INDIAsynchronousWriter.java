@@ -0,0 +1,261 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class that writes INDI messages from a dedicated thread. The messages are
+ * put in a bounded queue by any number of threads and the writer thread
+ * drains them in batches, encoding them with a
+ * <code>INDIMessageEncoder</code> and flushing once per batch. If the queue
+ * is full (the consumer of the messages is too slow) the threads that write
+ * wait for some room (back-pressure), except for the messages marked as
+ * droppable (complete updates that a later update replaces), which are
+ * dropped and counted.
+ *
+ * @author farom
+ * @see INDIMessageEncoder
+ */
+public class INDIAsynchronousWriter implements Runnable {
+
+  /**
+   * The maximum number of messages written in a batch.
+   */
+  private static final int MAX_BATCH_SIZE = 256;
+  /**
+   * The maximum time (in milliseconds) waited for room in the queue before
+   * checking again if the writer is still running.
+   */
+  private static final long OFFER_WAIT = 100;
+  /**
+   * The encoder that writes the messages.
+   */
+  private INDIMessageEncoder encoder;
+  /**
+   * The queue of messages to be written.
+   */
+  private ArrayBlockingQueue<String> queue;
+  /**
+   * The name of the writer thread.
+   */
+  private String name;
+  /**
+   * The writer thread.
+   */
+  private volatile Thread thread;
+  /**
+   * <code>true</code> if the writer must stop after writing the queued
+   * messages.
+   */
+  private volatile boolean stop;
+  /**
+   * The number of dropped messages.
+   */
+  private final AtomicLong droppedMessages;
+  /**
+   * The number of written messages.
+   */
+  private volatile long writtenMessages;
+  /**
+   * The number of written batches.
+   */
+  private volatile long writtenBatches;
+
+  /**
+   * Constructs a new asynchronous writer.
+   *
+   * @param encoder The encoder that writes the messages. It must not be used
+   * by any other thread while the writer is running.
+   * @param capacity The maximum number of messages waiting to be written.
+   * @param name The name of the writer thread.
+   */
+  public INDIAsynchronousWriter(INDIMessageEncoder encoder, int capacity, String name) {
+    this.encoder = encoder;
+    this.queue = new ArrayBlockingQueue<String>(Math.max(1, capacity));
+    this.name = name;
+
+    stop = false;
+    droppedMessages = new AtomicLong();
+    writtenMessages = 0;
+    writtenBatches = 0;
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  public void start() {
+    thread = INDIThreadFactory.newThread(this, name);
+
+    if (!thread.isDaemon()) {
+      thread.setDaemon(true);
+    }
+
+    thread.start();
+  }
+
+  /**
+   * Stops the writer thread once all the queued messages have been written
+   * and waits for it to finish.
+   */
+  public void stop() {
+    stop = true;
+
+    if ((thread != null) && (thread != Thread.currentThread())) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Queues a message to be written. If the queue is full it waits until there
+   * is room for it.
+   *
+   * @param xml The message to be written.
+   * @return <code>true</code> if the message has been queued,
+   * <code>false</code> if it has been dropped (because the writer has been
+   * stopped).
+   */
+  public boolean write(String xml) {
+    return write(xml, false);
+  }
+
+  /**
+   * Queues a message to be written. If the queue is full a
+   * <code>droppable</code> message is dropped. Otherwise it waits until there
+   * is room for it. Only messages whose loss is repaired by a later message
+   * (like complete &lt;setXXXVector&gt; messages without a text message)
+   * should be droppable.
+   *
+   * @param xml The message to be written.
+   * @param droppable <code>true</code> if the message can be dropped when
+   * the queue is full.
+   * @return <code>true</code> if the message has been queued,
+   * <code>false</code> if it has been dropped (because the queue is full or
+   * the writer has been stopped).
+   */
+  public boolean write(String xml, boolean droppable) {
+    if (!stop) {
+      if (queue.offer(xml)) {
+        return true;
+      }
+
+      if (!droppable) {
+        try {
+          while ((!stop) && (thread != null) && (thread.isAlive())) {  // Otherwise nobody would drain the queue
+            if (queue.offer(xml, OFFER_WAIT, TimeUnit.MILLISECONDS)) {
+              return true;
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    droppedMessages.incrementAndGet();
+
+    return false;
+  }
+
+  /**
+   * Gets the number of messages waiting to be written.
+   *
+   * @return The number of messages waiting to be written.
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Gets the number of messages that have been dropped because the queue was
+   * full (only the droppable ones) or the writer had been stopped.
+   *
+   * @return The number of dropped messages.
+   */
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Gets the number of written messages.
+   *
+   * @return The number of written messages.
+   */
+  public long getWrittenMessages() {
+    return writtenMessages;
+  }
+
+  /**
+   * Gets the number of written batches (each one with a single flush).
+   *
+   * @return The number of written batches.
+   */
+  public long getWrittenBatches() {
+    return writtenBatches;
+  }
+
+  /**
+   * Writes the queued messages in batches until it is stopped.
+   */
+  @Override
+  public void run() {
+    ArrayList<String> batch = new ArrayList<String>(MAX_BATCH_SIZE);
+
+    while ((!stop) || (!queue.isEmpty())) {
+      String first;
+
+      try {
+        first = queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      if (first == null) {
+        continue;
+      }
+
+      batch.add(first);
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+      try {
+        for (int i = 0 ; i < batch.size() ; i++) {
+          encoder.append(batch.get(i));
+        }
+      } catch (IOException e) {  // As with the synchronous writes, errors are silently ignored
+      }
+
+      try {
+        encoder.flush();  // Always called, as it also resets the encoder buffer
+      } catch (IOException e) {
+      }
+
+      writtenMessages += batch.size();
+      writtenBatches++;
+
+      batch.clear();
+    }
+  }
+}
@@ -64,7 +64,6 @@ public class INDIBLOBValue {
    */
   public INDIBLOBValue(Element xml) throws IllegalArgumentException {
     int size = 0;
-    String f;
  
     try {
       String s = xml.getAttribute("size").trim();
@@ -77,11 +76,38 @@ public class INDIBLOBValue {
       throw new IllegalArgumentException("No format attribute");
     }
 
-    f = xml.getAttribute("format").trim();
+    decodeData(size, xml.getAttribute("format").trim(), xml.getTextContent().trim());
+  }
+
+  /**
+   * Constructs a new BLOB Value from a Element of a typed BLOB message.
+   * @param message the BLOB message
+   * @param index the index of the Element in the message
+   * @throws IllegalArgumentException if the Element is not correct.
+   */
+  public INDIBLOBValue(INDIMessage message, int index) throws IllegalArgumentException {
+    if (message.getElementSize(index) < 0) {
+      throw new IllegalArgumentException("Size number not correct");
+    }
+
+    if (message.getElementFormat(index) == null) {
+      throw new IllegalArgumentException("No format attribute");
+    }
+
+    decodeData(message.getElementSize(index), message.getElementFormat(index), message.getTextValue(index));
+  }
 
+  /**
+   * Decodes the BASE64 (and possibly compressed) data of the BLOB.
+   * @param size the size of the data
+   * @param f the format of the data
+   * @param data the BASE64 encoded data
+   * @throws IllegalArgumentException if the data is not correct.
+   */
+  private void decodeData(int size, String f, String data) throws IllegalArgumentException {
     byte[] val;
 
-    base64EncodedData = xml.getTextContent().trim();
+    base64EncodedData = data;
     
     try {
       val = Base64.decode(base64EncodedData);
@@ -116,6 +142,7 @@ public class INDIBLOBValue {
     format = f;
     BLOBData = val;
   }
+
   /**
    * Gets the BLOB data
    * @return the BLOB data
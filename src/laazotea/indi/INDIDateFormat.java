@@ -37,6 +37,22 @@ public class INDIDateFormat {
    * The second possible format for INDI timestamps.
    */
   private static SimpleDateFormat dateFormat2 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+  /**
+   * The format used by <code>appendCurrentTimestamp</code>. It is not shared
+   * with <code>parseTimestamp</code>, and it is only used while holding the
+   * class lock, as <code>SimpleDateFormat</code> is not thread safe.
+   */
+  private static final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+  /**
+   * The second (in milliseconds since the epoch) of the last timestamp
+   * appended by <code>appendCurrentTimestamp</code>.
+   */
+  private static long lastSecond = Long.MIN_VALUE;
+  /**
+   * The formatted last timestamp appended by
+   * <code>appendCurrentTimestamp</code> (without the milliseconds).
+   */
+  private static String lastSecondFormatted;
 
   /**
    * Parses a timestamp expressed in the INDI format. If the timestamp does not
@@ -85,4 +101,44 @@ public class INDIDateFormat {
   public static String getCurrentTimestamp() {
     return formatTimestamp(new Date());
   }
+
+  /**
+   * Appends the current timestamp to a buffer according to the INDI
+   * specification. The timestamp is only formatted once per second, so it
+   * creates much less garbage than <code>getCurrentTimestamp</code>.
+   *
+   * @param buffer The buffer to which the timestamp is appended.
+   */
+  public static void appendCurrentTimestamp(StringBuilder buffer) {
+    long now = System.currentTimeMillis();
+    long millis = now % 1000;
+
+    if (millis < 0) {
+      millis += 1000;
+    }
+
+    long second = now - millis;
+    String formatted;
+
+    synchronized (INDIDateFormat.class) {
+      if (second != lastSecond) {
+        lastSecondFormatted = secondFormat.format(new Date(second));
+        lastSecond = second;
+      }
+
+      formatted = lastSecondFormatted;
+    }
+
+    buffer.append(formatted).append('.');
+
+    if (millis < 100) {
+      buffer.append('0');
+    }
+
+    if (millis < 10) {
+      buffer.append('0');
+    }
+
+    buffer.append(millis);
+  }
 }
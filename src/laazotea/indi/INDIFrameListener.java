@@ -0,0 +1,39 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A interface representing a listener to the complete top level elements
+ * (frames) delimited by a <code>INDIMessageFramer</code>.
+ *
+ * @author farom
+ * @see INDIMessageFramer
+ */
+public interface INDIFrameListener {
+
+  /**
+   * Called each time that a complete top level element has been received.
+   * The array is reused by the framer, so its contents are only valid during
+   * the call.
+   *
+   * @param frame The bytes of the element, from its opening <code>&lt;</code>
+   * to its closing <code>&gt;</code>.
+   * @param length The number of valid bytes in <code>frame</code>.
+   */
+  public void frameReceived(byte[] frame, int length);
+}
@@ -0,0 +1,1027 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import laazotea.indi.Constants.BLOBEnables;
+import laazotea.indi.Constants.LightStates;
+import laazotea.indi.Constants.MessageTypes;
+import laazotea.indi.Constants.PropertyPermissions;
+import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.Constants.SwitchRules;
+import laazotea.indi.Constants.SwitchStatus;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A class representing a typed INDI message (a top level element of the
+ * protocol) that does not need any DOM tree. It contains the attributes of the
+ * message (device, property name, state, timestamp, etc.) and the ones of its
+ * &lt;oneXXX&gt; / &lt;defXXX&gt; children, with their values already parsed
+ * into primitive arrays (for Numbers) or enums (for Switches and Lights).
+ *
+ * Instances are usually filled by a <code>INDIMessageDecoder</code> and
+ * reused for every message read from a stream, so they (and the arrays of
+ * values) are only valid during the <code>parseMessage</code> call of the
+ * <code>INDIMessageParser</code> that receives them. Messages constructed from
+ * a DOM <code>Element</code> are the compatibility adapter with the
+ * <code>parseXML</code> methods.
+ *
+ * Attributes that are not present in the message are <code>null</code> (or
+ * <code>NaN</code> for numeric attributes). Text attributes are trimmed.
+ *
+ * @author farom
+ * @see INDIMessageDecoder
+ * @see INDIMessageParser
+ */
+public class INDIMessage {
+
+  /**
+   * The initial capacity of the arrays of Elements.
+   */
+  private static final int INITIAL_ELEMENTS = 8;
+  /**
+   * A formatter used to parse sexagesimal numbers (the format is not used
+   * while parsing).
+   */
+  private static final INDISexagesimalFormatter SEXAGESIMAL_FORMATTER = new INDISexagesimalFormatter("%10.6m");
+  /**
+   * The type of the message.
+   */
+  private MessageTypes type;
+  /**
+   * The device attribute.
+   */
+  private String device;
+  /**
+   * The name attribute (the Property name).
+   */
+  private String name;
+  /**
+   * The label attribute.
+   */
+  private String label;
+  /**
+   * The group attribute.
+   */
+  private String group;
+  /**
+   * The state attribute.
+   */
+  private PropertyStates state;
+  /**
+   * The perm attribute.
+   */
+  private PropertyPermissions permission;
+  /**
+   * The rule attribute.
+   */
+  private SwitchRules rule;
+  /**
+   * The timeout attribute.
+   */
+  private double timeout;
+  /**
+   * The timestamp attribute, as it appears in the message.
+   */
+  private String timestamp;
+  /**
+   * The position of the timestamp attribute in <code>xmlBytes</code> (used to
+   * build <code>timestamp</code> only when it is requested).
+   */
+  private int timestampOffset;
+  /**
+   * The length of the timestamp attribute in <code>xmlBytes</code>.
+   */
+  private int timestampLength;
+  /**
+   * The message attribute.
+   */
+  private String message;
+  /**
+   * The version attribute.
+   */
+  private String version;
+  /**
+   * The text contents of the message (for example the rule of a
+   * &lt;enableBLOB&gt; message).
+   */
+  private String text;
+  /**
+   * The rule of a &lt;enableBLOB&gt; message.
+   */
+  private BLOBEnables BLOBEnable;
+  /**
+   * The number of Elements (&lt;oneXXX&gt; or &lt;defXXX&gt; children) in the
+   * message.
+   */
+  private int elementCount;
+  /**
+   * The names of the Elements.
+   */
+  private String[] elementNames;
+  /**
+   * The labels of the Elements.
+   */
+  private String[] elementLabels;
+  /**
+   * The text values of the Elements (for Text and BLOB messages).
+   */
+  private String[] textValues;
+  /**
+   * The values of the Elements (for Number messages).
+   */
+  private double[] numberValues;
+  /**
+   * The values of the Elements (for Switch messages).
+   */
+  private SwitchStatus[] switchValues;
+  /**
+   * The values of the Elements (for Light messages).
+   */
+  private LightStates[] lightValues;
+  /**
+   * The format attributes of the Elements (for Number definitions and BLOBs).
+   */
+  private String[] formats;
+  /**
+   * The min attributes of the Elements (for Number definitions).
+   */
+  private double[] mins;
+  /**
+   * The max attributes of the Elements (for Number definitions).
+   */
+  private double[] maxs;
+  /**
+   * The step attributes of the Elements (for Number definitions).
+   */
+  private double[] steps;
+  /**
+   * The size attributes of the Elements (for BLOBs).
+   */
+  private int[] sizes;
+  /**
+   * The XML bytes from which the message has been decoded (may be
+   * <code>null</code>).
+   */
+  private byte[] xmlBytes;
+  /**
+   * The number of valid bytes in <code>xmlBytes</code>.
+   */
+  private int xmlLength;
+  /**
+   * The DOM Element from which the message has been constructed (may be
+   * <code>null</code>).
+   */
+  private Element xmlElement;
+  /**
+   * The serialized message to be sent to the listeners (created when first
+   * needed).
+   */
+  private ByteBuffer xmlByteBuffer;
+
+  /**
+   * Constructs an empty message, usually to be filled by a
+   * <code>INDIMessageDecoder</code>.
+   */
+  public INDIMessage() {
+    elementNames = new String[INITIAL_ELEMENTS];
+    elementLabels = new String[INITIAL_ELEMENTS];
+    textValues = new String[INITIAL_ELEMENTS];
+    numberValues = new double[INITIAL_ELEMENTS];
+    switchValues = new SwitchStatus[INITIAL_ELEMENTS];
+    lightValues = new LightStates[INITIAL_ELEMENTS];
+    formats = new String[INITIAL_ELEMENTS];
+    mins = new double[INITIAL_ELEMENTS];
+    maxs = new double[INITIAL_ELEMENTS];
+    steps = new double[INITIAL_ELEMENTS];
+    sizes = new int[INITIAL_ELEMENTS];
+
+    clear();
+  }
+
+  /**
+   * Constructs a message from a DOM Element.
+   *
+   * @param xml The XML Element.
+   * @throws IllegalArgumentException if the Element is not a INDI message.
+   */
+  public INDIMessage(Element xml) throws IllegalArgumentException {
+    this();
+
+    setType(Constants.parseMessageType(xml.getNodeName()));
+
+    xmlElement = xml;
+
+    setAttributesFromElement(xml);
+
+    NodeList nodes = xml.getChildNodes();
+
+    for (int i = 0 ; i < nodes.getLength() ; i++) {
+      Node n = nodes.item(i);
+
+      if (n instanceof Element) {
+        Element child = (Element)n;
+
+        int index = addElement();
+
+        setElementAttributesFromElement(index, child);
+        setElementText(index, child.getTextContent());
+      }
+    }
+
+    if (type == MessageTypes.ENABLE_BLOB) {
+      setText(xml.getTextContent());
+    }
+  }
+
+  /**
+   * Sets the attributes of the message from a DOM Element.
+   *
+   * @param xml The XML Element.
+   */
+  private void setAttributesFromElement(Element xml) {
+    String[] attributes = new String[]{"device", "name", "label", "group", "state", "perm", "rule", "timeout", "timestamp", "message", "version"};
+
+    for (int i = 0 ; i < attributes.length ; i++) {
+      if (xml.hasAttribute(attributes[i])) {
+        setAttribute(attributes[i], xml.getAttribute(attributes[i]));
+      }
+    }
+  }
+
+  /**
+   * Sets the attributes of an Element of the message from a DOM Element.
+   *
+   * @param index The index of the Element.
+   * @param xml The XML Element.
+   */
+  private void setElementAttributesFromElement(int index, Element xml) {
+    String[] attributes = new String[]{"name", "label", "format", "min", "max", "step", "size"};
+
+    for (int i = 0 ; i < attributes.length ; i++) {
+      if (xml.hasAttribute(attributes[i])) {
+        setElementAttribute(index, attributes[i], xml.getAttribute(attributes[i]));
+      }
+    }
+  }
+
+  /**
+   * Empties the message so it can be reused.
+   */
+  public void clear() {
+    type = null;
+    device = null;
+    name = null;
+    label = null;
+    group = null;
+    state = null;
+    permission = null;
+    rule = null;
+    timeout = Double.NaN;
+    timestamp = null;
+    timestampOffset = 0;
+    timestampLength = 0;
+    message = null;
+    version = null;
+    text = null;
+    BLOBEnable = null;
+    elementCount = 0;
+    xmlBytes = null;
+    xmlLength = 0;
+    xmlElement = null;
+    xmlByteBuffer = null;
+  }
+
+  /**
+   * Sets the type of the message.
+   *
+   * @param type The type of the message.
+   */
+  protected void setType(MessageTypes type) {
+    this.type = type;
+  }
+
+  /**
+   * Sets the XML bytes from which the message is being decoded. The array is
+   * not copied.
+   *
+   * @param xmlBytes The XML bytes.
+   * @param xmlLength The number of valid bytes in <code>xmlBytes</code>.
+   */
+  protected void setXMLBytes(byte[] xmlBytes, int xmlLength) {
+    this.xmlBytes = xmlBytes;
+    this.xmlLength = xmlLength;
+    this.xmlByteBuffer = null;
+  }
+
+  /**
+   * Sets an attribute of the message. Unknown attributes and invalid values
+   * for the enumerated ones are ignored.
+   *
+   * @param attribute The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  protected void setAttribute(String attribute, String value) {
+    value = value.trim();
+
+    if (attribute.equals("device")) {
+      device = value;
+    } else if (attribute.equals("name")) {
+      name = value;
+    } else if (attribute.equals("label")) {
+      label = value;
+    } else if (attribute.equals("group")) {
+      group = value;
+    } else if (attribute.equals("state")) {
+      try {
+        state = Constants.parsePropertyState(value);
+      } catch (IllegalArgumentException e) {
+      }
+    } else if (attribute.equals("perm")) {
+      try {
+        permission = Constants.parsePropertyPermission(value);
+      } catch (IllegalArgumentException e) {
+      }
+    } else if (attribute.equals("rule")) {
+      try {
+        rule = Constants.parseSwitchRule(value);
+      } catch (IllegalArgumentException e) {
+      }
+    } else if (attribute.equals("timeout")) {
+      timeout = parseNumber(value);
+    } else if (attribute.equals("timestamp")) {
+      timestamp = value;
+      timestampLength = 0;
+    } else if (attribute.equals("message")) {
+      message = value;
+    } else if (attribute.equals("version")) {
+      version = value;
+    }
+  }
+
+  /**
+   * Sets the timeout attribute of the message.
+   *
+   * @param timeout The timeout attribute of the message.
+   */
+  protected void setTimeout(double timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Sets the position of the timestamp attribute in the XML bytes of the
+   * message. The timestamp <code>String</code> will only be built if it is
+   * requested.
+   *
+   * @param offset The position of the timestamp in the XML bytes.
+   * @param length The length of the timestamp in the XML bytes.
+   */
+  protected void setTimestampPosition(int offset, int length) {
+    timestamp = null;
+    timestampOffset = offset;
+    timestampLength = length;
+  }
+
+  /**
+   * Sets the text contents of the message.
+   *
+   * @param text The text contents of the message.
+   */
+  protected void setText(String text) {
+    this.text = text.trim();
+
+    if (type == MessageTypes.ENABLE_BLOB) {
+      try {
+        BLOBEnable = Constants.parseBLOBEnable(this.text);
+      } catch (IllegalArgumentException e) {
+        BLOBEnable = null;
+      }
+    }
+  }
+
+  /**
+   * Adds a new (empty) Element to the message.
+   *
+   * @return The index of the new Element.
+   */
+  protected int addElement() {
+    if (elementCount == elementNames.length) {
+      growElements();
+    }
+
+    int index = elementCount;
+
+    elementNames[index] = null;
+    elementLabels[index] = null;
+    textValues[index] = null;
+    numberValues[index] = Double.NaN;
+    switchValues[index] = null;
+    lightValues[index] = null;
+    formats[index] = null;
+    mins[index] = Double.NaN;
+    maxs[index] = Double.NaN;
+    steps[index] = Double.NaN;
+    sizes[index] = -1;
+
+    elementCount++;
+
+    return index;
+  }
+
+  /**
+   * Doubles the capacity of the arrays of Elements.
+   */
+  private void growElements() {
+    int newSize = elementNames.length * 2;
+
+    String[] newElementNames = new String[newSize];
+    System.arraycopy(elementNames, 0, newElementNames, 0, elementCount);
+    elementNames = newElementNames;
+
+    String[] newElementLabels = new String[newSize];
+    System.arraycopy(elementLabels, 0, newElementLabels, 0, elementCount);
+    elementLabels = newElementLabels;
+
+    String[] newTextValues = new String[newSize];
+    System.arraycopy(textValues, 0, newTextValues, 0, elementCount);
+    textValues = newTextValues;
+
+    double[] newNumberValues = new double[newSize];
+    System.arraycopy(numberValues, 0, newNumberValues, 0, elementCount);
+    numberValues = newNumberValues;
+
+    SwitchStatus[] newSwitchValues = new SwitchStatus[newSize];
+    System.arraycopy(switchValues, 0, newSwitchValues, 0, elementCount);
+    switchValues = newSwitchValues;
+
+    LightStates[] newLightValues = new LightStates[newSize];
+    System.arraycopy(lightValues, 0, newLightValues, 0, elementCount);
+    lightValues = newLightValues;
+
+    String[] newFormats = new String[newSize];
+    System.arraycopy(formats, 0, newFormats, 0, elementCount);
+    formats = newFormats;
+
+    double[] newMins = new double[newSize];
+    System.arraycopy(mins, 0, newMins, 0, elementCount);
+    mins = newMins;
+
+    double[] newMaxs = new double[newSize];
+    System.arraycopy(maxs, 0, newMaxs, 0, elementCount);
+    maxs = newMaxs;
+
+    double[] newSteps = new double[newSize];
+    System.arraycopy(steps, 0, newSteps, 0, elementCount);
+    steps = newSteps;
+
+    int[] newSizes = new int[newSize];
+    System.arraycopy(sizes, 0, newSizes, 0, elementCount);
+    sizes = newSizes;
+  }
+
+  /**
+   * Sets an attribute of an Element of the message. Unknown attributes are
+   * ignored.
+   *
+   * @param index The index of the Element.
+   * @param attribute The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  protected void setElementAttribute(int index, String attribute, String value) {
+    value = value.trim();
+
+    if (attribute.equals("name")) {
+      elementNames[index] = value;
+    } else if (attribute.equals("label")) {
+      elementLabels[index] = value;
+    } else if (attribute.equals("format")) {
+      formats[index] = value;
+    } else if (attribute.equals("min")) {
+      mins[index] = parseNumber(value);
+    } else if (attribute.equals("max")) {
+      maxs[index] = parseNumber(value);
+    } else if (attribute.equals("step")) {
+      steps[index] = parseNumber(value);
+    } else if (attribute.equals("size")) {
+      try {
+        sizes[index] = Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        sizes[index] = -1;
+      }
+    }
+  }
+
+  /**
+   * Sets the text contents of an Element of the message, parsing it according
+   * to the type of the message.
+   *
+   * @param index The index of the Element.
+   * @param value The text contents of the Element.
+   */
+  protected void setElementText(int index, String value) {
+    value = value.trim();
+
+    if (isNumberVector()) {
+      numberValues[index] = parseNumber(value);
+    } else if (isSwitchVector()) {
+      try {
+        switchValues[index] = Constants.parseSwitchStatus(value);
+      } catch (IllegalArgumentException e) {
+      }
+    } else if (isLightVector()) {
+      try {
+        lightValues[index] = Constants.parseLightState(value);
+      } catch (IllegalArgumentException e) {
+      }
+    } else {
+      textValues[index] = value;
+    }
+  }
+
+  /**
+   * Sets the value of an Element of a Number message.
+   *
+   * @param index The index of the Element.
+   * @param value The value of the Element (<code>NaN</code> if it is not
+   * correct).
+   */
+  protected void setNumberValue(int index, double value) {
+    numberValues[index] = value;
+  }
+
+  /**
+   * Parses a number as it may appear in a INDI message: in decimal or in
+   * sexagesimal format.
+   *
+   * @param number The number to parse.
+   * @return The parsed number or <code>NaN</code> if it is not correct.
+   */
+  public static double parseNumber(String number) {
+    try {
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+    }
+
+    try {
+      return SEXAGESIMAL_FORMATTER.parseSexagesimal(number);
+    } catch (IllegalArgumentException e) {
+    }
+
+    return Double.NaN;
+  }
+
+  /**
+   * Gets the type of the message.
+   *
+   * @return The type of the message.
+   */
+  public MessageTypes getType() {
+    return type;
+  }
+
+  /**
+   * Gets the device attribute of the message.
+   *
+   * @return The device attribute of the message.
+   */
+  public String getDevice() {
+    return device;
+  }
+
+  /**
+   * Gets the name attribute of the message (the name of the Property).
+   *
+   * @return The name attribute of the message.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the label attribute of the message.
+   *
+   * @return The label attribute of the message.
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Gets the group attribute of the message.
+   *
+   * @return The group attribute of the message.
+   */
+  public String getGroup() {
+    return group;
+  }
+
+  /**
+   * Gets the state attribute of the message.
+   *
+   * @return The state attribute of the message (<code>null</code> if it is not
+   * present or it is not valid).
+   */
+  public PropertyStates getState() {
+    return state;
+  }
+
+  /**
+   * Gets the perm attribute of the message.
+   *
+   * @return The perm attribute of the message (<code>null</code> if it is not
+   * present or it is not valid).
+   */
+  public PropertyPermissions getPermission() {
+    return permission;
+  }
+
+  /**
+   * Gets the rule attribute of the message.
+   *
+   * @return The rule attribute of the message (<code>null</code> if it is not
+   * present or it is not valid).
+   */
+  public SwitchRules getRule() {
+    return rule;
+  }
+
+  /**
+   * Gets the timeout attribute of the message.
+   *
+   * @return The timeout attribute of the message (<code>NaN</code> if it is
+   * not present or it is not valid).
+   */
+  public double getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Gets the timestamp attribute of the message. If it is not present or it is
+   * not correct the current timestamp is returned.
+   *
+   * @return The timestamp of the message.
+   */
+  public Date getTimestamp() {
+    String t = getTimestampAsString();
+
+    if (t == null) {
+      return new Date();
+    }
+
+    return INDIDateFormat.parseTimestamp(t);
+  }
+
+  /**
+   * Gets the timestamp attribute of the message as it appears in the message.
+   *
+   * @return The timestamp attribute of the message.
+   */
+  public String getTimestampAsString() {
+    if ((timestamp == null) && (timestampLength > 0) && (xmlBytes != null)) {
+      try {
+        timestamp = new String(xmlBytes, timestampOffset, timestampLength, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        timestamp = new String(xmlBytes, timestampOffset, timestampLength);
+      }
+    }
+
+    return timestamp;
+  }
+
+  /**
+   * Gets the message attribute of the message.
+   *
+   * @return The message attribute of the message.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * Gets the version attribute of the message.
+   *
+   * @return The version attribute of the message.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the text contents of the message (for example the rule of a
+   * &lt;enableBLOB&gt; message).
+   *
+   * @return The text contents of the message.
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Gets the rule of a &lt;enableBLOB&gt; message.
+   *
+   * @return The rule of a &lt;enableBLOB&gt; message (<code>null</code> if it
+   * is not valid).
+   */
+  public BLOBEnables getBLOBEnable() {
+    return BLOBEnable;
+  }
+
+  /**
+   * Gets the number of Elements (&lt;oneXXX&gt; or &lt;defXXX&gt; children)
+   * in the message.
+   *
+   * @return The number of Elements in the message.
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Gets the name of an Element.
+   *
+   * @param index The index of the Element.
+   * @return The name of the Element.
+   */
+  public String getElementName(int index) {
+    return elementNames[index];
+  }
+
+  /**
+   * Gets the label of an Element.
+   *
+   * @param index The index of the Element.
+   * @return The label of the Element.
+   */
+  public String getElementLabel(int index) {
+    return elementLabels[index];
+  }
+
+  /**
+   * Gets the value of an Element of a Text message or the BASE64 encoded data
+   * of an Element of a BLOB message.
+   *
+   * @param index The index of the Element.
+   * @return The value of the Element.
+   */
+  public String getTextValue(int index) {
+    return textValues[index];
+  }
+
+  /**
+   * Gets the value of an Element of a Number message.
+   *
+   * @param index The index of the Element.
+   * @return The value of the Element (<code>NaN</code> if it is not correct).
+   */
+  public double getNumberValue(int index) {
+    return numberValues[index];
+  }
+
+  /**
+   * Gets the values of the Elements of a Number message. Only the first
+   * <code>getElementCount()</code> values of the array are valid.
+   *
+   * @return The values of the Elements.
+   */
+  public double[] getNumberValues() {
+    return numberValues;
+  }
+
+  /**
+   * Gets the value of an Element of a Switch message.
+   *
+   * @param index The index of the Element.
+   * @return The value of the Element (<code>null</code> if it is not correct).
+   */
+  public SwitchStatus getSwitchValue(int index) {
+    return switchValues[index];
+  }
+
+  /**
+   * Gets the value of an Element of a Light message.
+   *
+   * @param index The index of the Element.
+   * @return The value of the Element (<code>null</code> if it is not correct).
+   */
+  public LightStates getLightValue(int index) {
+    return lightValues[index];
+  }
+
+  /**
+   * Gets the format of an Element (of a Number definition or a BLOB).
+   *
+   * @param index The index of the Element.
+   * @return The format of the Element.
+   */
+  public String getElementFormat(int index) {
+    return formats[index];
+  }
+
+  /**
+   * Gets the minimum of an Element of a Number definition.
+   *
+   * @param index The index of the Element.
+   * @return The minimum of the Element.
+   */
+  public double getElementMin(int index) {
+    return mins[index];
+  }
+
+  /**
+   * Gets the maximum of an Element of a Number definition.
+   *
+   * @param index The index of the Element.
+   * @return The maximum of the Element.
+   */
+  public double getElementMax(int index) {
+    return maxs[index];
+  }
+
+  /**
+   * Gets the step of an Element of a Number definition.
+   *
+   * @param index The index of the Element.
+   * @return The step of the Element.
+   */
+  public double getElementStep(int index) {
+    return steps[index];
+  }
+
+  /**
+   * Gets the size of an Element of a BLOB message.
+   *
+   * @param index The index of the Element.
+   * @return The size of the Element (-1 if it is not present or it is not
+   * correct).
+   */
+  public int getElementSize(int index) {
+    return sizes[index];
+  }
+
+  /**
+   * Checks if the message is a &lt;defXXXVector&gt; one.
+   *
+   * @return <code>true</code> if the message is a &lt;defXXXVector&gt; one.
+   * <code>false</code> otherwise.
+   */
+  public boolean isDefVector() {
+    return (type == MessageTypes.DEF_TEXT_VECTOR) || (type == MessageTypes.DEF_NUMBER_VECTOR) || (type == MessageTypes.DEF_SWITCH_VECTOR) || (type == MessageTypes.DEF_LIGHT_VECTOR) || (type == MessageTypes.DEF_BLOB_VECTOR);
+  }
+
+  /**
+   * Checks if the message is a &lt;setXXXVector&gt; one.
+   *
+   * @return <code>true</code> if the message is a &lt;setXXXVector&gt; one.
+   * <code>false</code> otherwise.
+   */
+  public boolean isSetVector() {
+    return (type == MessageTypes.SET_TEXT_VECTOR) || (type == MessageTypes.SET_NUMBER_VECTOR) || (type == MessageTypes.SET_SWITCH_VECTOR) || (type == MessageTypes.SET_LIGHT_VECTOR) || (type == MessageTypes.SET_BLOB_VECTOR);
+  }
+
+  /**
+   * Checks if the message is a &lt;newXXXVector&gt; one.
+   *
+   * @return <code>true</code> if the message is a &lt;newXXXVector&gt; one.
+   * <code>false</code> otherwise.
+   */
+  public boolean isNewVector() {
+    return (type == MessageTypes.NEW_TEXT_VECTOR) || (type == MessageTypes.NEW_NUMBER_VECTOR) || (type == MessageTypes.NEW_SWITCH_VECTOR) || (type == MessageTypes.NEW_BLOB_VECTOR);
+  }
+
+  /**
+   * Checks if the message is about a Number Property.
+   *
+   * @return <code>true</code> if the message is about a Number Property.
+   * <code>false</code> otherwise.
+   */
+  public boolean isNumberVector() {
+    return (type == MessageTypes.DEF_NUMBER_VECTOR) || (type == MessageTypes.SET_NUMBER_VECTOR) || (type == MessageTypes.NEW_NUMBER_VECTOR);
+  }
+
+  /**
+   * Checks if the message is about a Switch Property.
+   *
+   * @return <code>true</code> if the message is about a Switch Property.
+   * <code>false</code> otherwise.
+   */
+  public boolean isSwitchVector() {
+    return (type == MessageTypes.DEF_SWITCH_VECTOR) || (type == MessageTypes.SET_SWITCH_VECTOR) || (type == MessageTypes.NEW_SWITCH_VECTOR);
+  }
+
+  /**
+   * Checks if the message is about a Light Property.
+   *
+   * @return <code>true</code> if the message is about a Light Property.
+   * <code>false</code> otherwise.
+   */
+  public boolean isLightVector() {
+    return (type == MessageTypes.DEF_LIGHT_VECTOR) || (type == MessageTypes.SET_LIGHT_VECTOR);
+  }
+
+  /**
+   * Checks if the message is about a BLOB Property.
+   *
+   * @return <code>true</code> if the message is about a BLOB Property.
+   * <code>false</code> otherwise.
+   */
+  public boolean isBLOBVector() {
+    return (type == MessageTypes.DEF_BLOB_VECTOR) || (type == MessageTypes.SET_BLOB_VECTOR) || (type == MessageTypes.NEW_BLOB_VECTOR);
+  }
+
+  /**
+   * Gets the XML representation of the message. If the message has been
+   * decoded from some bytes they are returned without any change.
+   *
+   * @return The XML representation of the message.
+   */
+  public String getXML() {
+    if (xmlBytes != null) {
+      try {
+        return new String(xmlBytes, 0, xmlLength, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        return new String(xmlBytes, 0, xmlLength);
+      }
+    }
+
+    if (xmlElement != null) {
+      return XMLToString.transform(xmlElement);
+    }
+
+    return "";
+  }
+
+  /**
+   * Gets the serialized message (UTF-8 encoded) to be sent to the listeners.
+   * If the message has been decoded from some bytes they are copied without
+   * any change, otherwise the message is serialized. This is done only once,
+   * so the same bytes can be sent to any number of listeners. The returned
+   * buffer is shared and it must not be modified (the listeners should write
+   * a <code>duplicate()</code> of it).
+   *
+   * @return The serialized message.
+   */
+  public ByteBuffer getXMLBytes() {
+    if (xmlByteBuffer == null) {
+      if (xmlBytes != null) {  // The decoded bytes may be reused by the reader, so they are copied
+        xmlByteBuffer = ByteBuffer.wrap(Arrays.copyOf(xmlBytes, xmlLength));
+      } else if (xmlElement != null) {
+        xmlByteBuffer = ByteBuffer.wrap(XMLToString.transformToBytes(xmlElement));
+      } else {
+        xmlByteBuffer = ByteBuffer.allocate(0);
+      }
+    }
+
+    return xmlByteBuffer;
+  }
+
+  /**
+   * Gets a DOM Element representing the message. Used as a compatibility
+   * adapter for code that still works with DOM trees.
+   *
+   * @return A DOM Element representing the message (<code>null</code> if it
+   * cannot be built).
+   */
+  public Element toElement() {
+    if (xmlElement != null) {
+      return xmlElement;
+    }
+
+    if (xmlBytes == null) {
+      return null;
+    }
+
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xmlBytes, 0, xmlLength)).getDocumentElement();
+    } catch (ParserConfigurationException e) {
+    } catch (SAXException e) {
+    } catch (IOException e) {
+    }
+
+    return null;
+  }
+}
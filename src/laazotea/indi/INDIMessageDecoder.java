@@ -0,0 +1,870 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.charset.Charset;
+import laazotea.indi.Constants.MessageTypes;
+
+/**
+ * A class that decodes complete top level INDI elements (as produced by a
+ * <code>INDIMessageFramer</code>) into <code>INDIMessage</code> objects
+ * without building any DOM tree. Only the small subset of XML used by the INDI
+ * protocol is understood: elements, attributes, text (with the predefined and
+ * numeric character references), CDATA sections, comments and processing
+ * instructions (which are ignored).
+ *
+ * Names (of tags, attributes, devices, properties, Elements, states, etc.) are
+ * obtained from a <code>INDINameTable</code> and numbers are parsed directly
+ * from the bytes, so in the steady state decoding Number, Switch and Light
+ * vectors does not create any object.
+ *
+ * @author farom
+ * @see INDIMessage
+ */
+public class INDIMessageDecoder {
+
+  /**
+   * The charset of the INDI messages.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The maximum number of significant digits of a decimal number that can be
+   * exactly converted with <code>POWERS_OF_TEN</code>.
+   */
+  private static final int MAX_EXACT_DIGITS = 15;
+  /**
+   * The powers of ten that are exactly representable as doubles.
+   */
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+  /**
+   * The table of names.
+   */
+  private INDINameTable names;
+  /**
+   * The bytes being decoded.
+   */
+  private byte[] xml;
+  /**
+   * The number of valid bytes in <code>xml</code>.
+   */
+  private int length;
+  /**
+   * The current position in <code>xml</code>.
+   */
+  private int pos;
+  /**
+   * The position of the last read attribute value.
+   */
+  private int valueStart;
+  /**
+   * The position after the last read attribute value.
+   */
+  private int valueEnd;
+  /**
+   * If the last read attribute value contains character references.
+   */
+  private boolean valueHasReferences;
+  /**
+   * Used to build the decoded texts.
+   */
+  private StringBuilder text;
+
+  /**
+   * Constructs a new decoder.
+   */
+  public INDIMessageDecoder() {
+    names = new INDINameTable();
+    text = new StringBuilder();
+  }
+
+  /**
+   * Decodes a complete top level INDI element. The <code>message</code> is
+   * cleared before decoding.
+   *
+   * @param xml The bytes of the element.
+   * @param length The number of valid bytes in <code>xml</code>.
+   * @param message The message to fill.
+   * @return <code>true</code> if the element has been correctly decoded.
+   * <code>false</code> if it is malformed or it is not a INDI message.
+   */
+  public boolean decode(byte[] xml, int length, INDIMessage message) {
+    this.xml = xml;
+    this.length = length;
+    this.pos = 0;
+
+    message.clear();
+
+    try {
+      return decodeMessage(message);
+    } catch (ArrayIndexOutOfBoundsException e) {  // Truncated element
+      return false;
+    } catch (IllegalArgumentException e) {  // Incorrect character reference
+      return false;
+    } finally {
+      this.xml = null;
+    }
+  }
+
+  /**
+   * Decodes the top level element.
+   *
+   * @param message The message to fill.
+   * @return <code>true</code> if the element has been correctly decoded.
+   * <code>false</code> otherwise.
+   */
+  private boolean decodeMessage(INDIMessage message) {
+    skipWhitespace();
+
+    if (!startsWith("<")) {
+      return false;
+    }
+
+    pos++;
+
+    String tagName = readName();
+
+    MessageTypes type;
+
+    try {
+      type = Constants.parseMessageType(tagName);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+
+    message.setType(type);
+    message.setXMLBytes(xml, length);
+
+    while (true) {
+      skipWhitespace();
+
+      if (xml[pos] == '/') {
+        return xml[pos + 1] == '>';
+      }
+
+      if (xml[pos] == '>') {
+        pos++;
+        break;
+      }
+
+      String attribute = readName();
+
+      if (!readAttributeValue()) {
+        return false;
+      }
+
+      setAttribute(message, attribute);
+    }
+
+    boolean keepText = type == MessageTypes.ENABLE_BLOB;  // The only message with text contents
+
+    text.setLength(0);
+
+    while (pos < length) {
+      if (xml[pos] != '<') {
+        int start = pos;
+
+        while (pos < length && xml[pos] != '<') {
+          pos++;
+        }
+
+        if (keepText) {
+          appendText(start, pos);
+        }
+      } else if (startsWith("</")) {
+        pos += 2;
+
+        if (!readName().equals(tagName)) {
+          return false;
+        }
+
+        if (keepText) {
+          message.setText(text.toString());
+        }
+
+        return true;
+      } else if (startsWith("<![CDATA[")) {
+        if (!readCDATA()) {
+          return false;
+        }
+      } else if (startsWith("<!--") || startsWith("<?")) {
+        skipSpecial();
+      } else {
+        pos++;
+
+        if (!decodeElement(message, readName())) {
+          return false;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Sets an attribute of the message from the last read attribute value.
+   *
+   * @param message The message to fill.
+   * @param attribute The name of the attribute.
+   */
+  private void setAttribute(INDIMessage message, String attribute) {
+    if (valueHasReferences) {
+      message.setAttribute(attribute, getAttributeValue(false));
+    } else if (attribute.equals("timestamp")) {
+      trimValue();
+      message.setTimestampPosition(valueStart, valueEnd - valueStart);
+    } else if (attribute.equals("timeout")) {
+      message.setTimeout(parseNumber(xml, valueStart, valueEnd));
+    } else if (attribute.equals("message")) {
+      message.setAttribute(attribute, getAttributeValue(false));
+    } else {
+      message.setAttribute(attribute, getAttributeValue(true));
+    }
+  }
+
+  /**
+   * Decodes a child element (a &lt;oneXXX&gt; or &lt;defXXX&gt; one). The
+   * position must be just after its name.
+   *
+   * @param message The message to fill.
+   * @param tagName The name of the child element.
+   * @return <code>true</code> if the child has been correctly decoded.
+   * <code>false</code> otherwise.
+   */
+  private boolean decodeElement(INDIMessage message, String tagName) {
+    int index = message.addElement();
+
+    while (true) {
+      skipWhitespace();
+
+      if (xml[pos] == '/') {
+        if (xml[pos + 1] != '>') {
+          return false;
+        }
+
+        pos += 2;
+        message.setElementText(index, "");
+
+        return true;
+      }
+
+      if (xml[pos] == '>') {
+        pos++;
+        break;
+      }
+
+      String attribute = readName();
+
+      if (!readAttributeValue()) {
+        return false;
+      }
+
+      if (attribute.equals("size") || attribute.equals("min") || attribute.equals("max") || attribute.equals("step")) {
+        message.setElementAttribute(index, attribute, getAttributeValue(false));
+      } else {
+        message.setElementAttribute(index, attribute, getAttributeValue(!valueHasReferences));
+      }
+    }
+
+    if (decodeSimpleElementText(message, index)) {
+      return readEndTag(tagName);
+    }
+
+    text.setLength(0);
+
+    while (pos < length) {
+      if (xml[pos] != '<') {
+        int start = pos;
+
+        while (pos < length && xml[pos] != '<') {
+          pos++;
+        }
+
+        appendText(start, pos);
+      } else if (startsWith("</")) {
+        message.setElementText(index, text.toString());
+
+        text.setLength(0);
+
+        return readEndTag(tagName);
+      } else if (startsWith("<![CDATA[")) {
+        if (!readCDATA()) {
+          return false;
+        }
+      } else if (startsWith("<!--") || startsWith("<?")) {
+        skipSpecial();
+      } else {  // Nested elements are not allowed in INDI
+        return false;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Decodes the text contents of a child element if they are just some
+   * characters without any character reference (the usual case), without
+   * creating any intermediate object for Numbers, Switches and Lights. If
+   * decoded, the position is left at the end tag.
+   *
+   * @param message The message to fill.
+   * @param index The index of the Element in the message.
+   * @return <code>true</code> if the text has been decoded. <code>false</code>
+   * if it must be decoded by the general method.
+   */
+  private boolean decodeSimpleElementText(INDIMessage message, int index) {
+    int end = pos;
+
+    while (end < length && xml[end] != '<') {
+      if (xml[end] == '&') {
+        return false;
+      }
+
+      end++;
+    }
+
+    if (end + 1 >= length || xml[end + 1] != '/') {
+      return false;
+    }
+
+    if (message.isNumberVector()) {
+      message.setNumberValue(index, parseNumber(xml, pos, end));
+    } else {
+      int start = pos;
+
+      while (start < end && isWhitespace(xml[start])) {
+        start++;
+      }
+
+      int last = end;
+
+      while (last > start && isWhitespace(xml[last - 1])) {
+        last--;
+      }
+
+      if (message.isSwitchVector() || message.isLightVector()) {
+        message.setElementText(index, names.getName(xml, start, last - start));
+      } else {
+        message.setElementText(index, new String(xml, start, last - start, UTF8));
+      }
+    }
+
+    pos = end;
+
+    return true;
+  }
+
+  /**
+   * Reads the end tag of a child element at the current position.
+   *
+   * @param tagName The name of the child element.
+   * @return <code>true</code> if the end tag is correct. <code>false</code>
+   * otherwise.
+   */
+  private boolean readEndTag(String tagName) {
+    pos += 2;
+
+    if (!readName().equals(tagName)) {
+      return false;
+    }
+
+    skipWhitespace();
+
+    if (xml[pos] != '>') {
+      return false;
+    }
+
+    pos++;
+
+    return true;
+  }
+
+  /**
+   * Checks if the bytes at the current position are a given ASCII string.
+   *
+   * @param s The string to check.
+   * @return <code>true</code> if the bytes at the current position are
+   * <code>s</code>. <code>false</code> otherwise.
+   */
+  private boolean startsWith(String s) {
+    if (pos + s.length() > length) {
+      return false;
+    }
+
+    for (int i = 0 ; i < s.length() ; i++) {
+      if (xml[pos + i] != s.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Skips the white spaces at the current position.
+   */
+  private void skipWhitespace() {
+    while (pos < length && isWhitespace(xml[pos])) {
+      pos++;
+    }
+  }
+
+  /**
+   * Checks if a byte is a XML white space.
+   *
+   * @param b The byte to check.
+   * @return <code>true</code> if it is a white space. <code>false</code>
+   * otherwise.
+   */
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  /**
+   * Reads a XML name (of a tag or an attribute) at the current position.
+   *
+   * @return The read name.
+   */
+  private String readName() {
+    int start = pos;
+
+    while (pos < length && !isWhitespace(xml[pos]) && xml[pos] != '=' && xml[pos] != '>' && xml[pos] != '/') {
+      pos++;
+    }
+
+    return names.getName(xml, start, pos - start);
+  }
+
+  /**
+   * Reads the <code>="value"</code> part of an attribute, storing the
+   * position of the value in <code>valueStart</code> and
+   * <code>valueEnd</code>.
+   *
+   * @return <code>true</code> if the attribute is correct. <code>false</code>
+   * otherwise.
+   */
+  private boolean readAttributeValue() {
+    skipWhitespace();
+
+    if (xml[pos] != '=') {
+      return false;
+    }
+
+    pos++;
+
+    skipWhitespace();
+
+    byte quote = xml[pos];
+
+    if (quote != '"' && quote != '\'') {
+      return false;
+    }
+
+    pos++;
+
+    valueStart = pos;
+    valueHasReferences = false;
+
+    while (xml[pos] != quote) {
+      if (xml[pos] == '&') {
+        valueHasReferences = true;
+      }
+
+      pos++;
+    }
+
+    valueEnd = pos;
+
+    pos++;
+
+    return true;
+  }
+
+  /**
+   * Removes the white spaces at the beginning and end of the last read
+   * attribute value.
+   */
+  private void trimValue() {
+    while (valueStart < valueEnd && isWhitespace(xml[valueStart])) {
+      valueStart++;
+    }
+
+    while (valueEnd > valueStart && isWhitespace(xml[valueEnd - 1])) {
+      valueEnd--;
+    }
+  }
+
+  /**
+   * Gets the last read attribute value (trimmed), decoding its character
+   * references.
+   *
+   * @param isName If the value is a name that should be obtained from the
+   * table of names.
+   * @return The value of the attribute.
+   */
+  private String getAttributeValue(boolean isName) {
+    trimValue();
+
+    if (valueHasReferences) {
+      text.setLength(0);
+      appendText(valueStart, valueEnd);
+
+      String value = text.toString();
+
+      text.setLength(0);
+
+      return value;
+    }
+
+    if (isName) {
+      return names.getName(xml, valueStart, valueEnd - valueStart);
+    }
+
+    return new String(xml, valueStart, valueEnd - valueStart, UTF8);
+  }
+
+  /**
+   * Reads a CDATA section at the current position, appending its contents to
+   * the text.
+   *
+   * @return <code>true</code> if the section is correct. <code>false</code>
+   * otherwise.
+   */
+  private boolean readCDATA() {
+    pos += 9;
+
+    int start = pos;
+
+    while (pos < length && !startsWith("]]>")) {
+      pos++;
+    }
+
+    if (pos >= length) {
+      return false;
+    }
+
+    text.append(new String(xml, start, pos - start, UTF8));
+
+    pos += 3;
+
+    return true;
+  }
+
+  /**
+   * Skips a comment or processing instruction at the current position.
+   */
+  private void skipSpecial() {
+    String end = startsWith("<!--") ? "-->" : "?>";
+
+    while (pos < length && !startsWith(end)) {
+      pos++;
+    }
+
+    pos += end.length();
+  }
+
+  /**
+   * Appends to the text the bytes between two positions, decoding the
+   * character references.
+   *
+   * @param start The first position.
+   * @param end The position after the last one.
+   */
+  private void appendText(int start, int end) {
+    boolean simple = true;
+
+    for (int i = start ; i < end ; i++) {
+      if (xml[i] < 0 || xml[i] == '&') {  // Not ASCII or reference
+        simple = false;
+        break;
+      }
+    }
+
+    if (simple) {
+      for (int i = start ; i < end ; i++) {
+        text.append((char)xml[i]);
+      }
+
+      return;
+    }
+
+    String s = new String(xml, start, end - start, UTF8);
+
+    int i = 0;
+
+    while (i < s.length()) {
+      char c = s.charAt(i);
+
+      int semicolon;
+
+      if (c == '&' && (semicolon = s.indexOf(';', i)) != -1) {
+        String entity = s.substring(i + 1, semicolon);
+
+        if (entity.equals("lt")) {
+          text.append('<');
+        } else if (entity.equals("gt")) {
+          text.append('>');
+        } else if (entity.equals("amp")) {
+          text.append('&');
+        } else if (entity.equals("quot")) {
+          text.append('"');
+        } else if (entity.equals("apos")) {
+          text.append('\'');
+        } else if (entity.startsWith("#x")) {
+          text.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+        } else if (entity.startsWith("#")) {
+          text.appendCodePoint(Integer.parseInt(entity.substring(1)));
+        } else {
+          text.append(s, i, semicolon + 1);
+        }
+
+        i = semicolon + 1;
+      } else {
+        text.append(c);
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Checks if a byte separates the components of a sexagesimal number.
+   *
+   * @param b The byte to check.
+   * @return <code>true</code> if it is a separator. <code>false</code>
+   * otherwise.
+   */
+  private static boolean isSexagesimalSeparator(byte b) {
+    return b == ':' || b == ';' || b == ' ';
+  }
+
+  /**
+   * Parses a number directly from some bytes, without creating any object in
+   * the usual cases. The number may be in decimal or in any of the sexagesimal
+   * forms accepted by <code>INDISexagesimalFormatter.parseSexagesimal</code>
+   * (up to three components separated by : ; or a blank space).
+   *
+   * @param bytes The array containing the number.
+   * @param start The position of the first byte of the number.
+   * @param end The position after the last byte of the number.
+   * @return The parsed number or <code>NaN</code> if it is not correct.
+   * @see INDISexagesimalFormatter#parseSexagesimal
+   */
+  public static double parseNumber(byte[] bytes, int start, int end) {
+    while (start < end && isWhitespace(bytes[start])) {
+      start++;
+    }
+
+    while (end > start && isWhitespace(bytes[end - 1])) {
+      end--;
+    }
+
+    if (start == end) {
+      return Double.NaN;
+    }
+
+    int separators = 0;
+
+    for (int i = start ; i < end ; i++) {
+      if (isSexagesimalSeparator(bytes[i])) {
+        separators++;
+      }
+    }
+
+    if (separators == 0) {
+      return parseDecimal(bytes, start, end);
+    }
+
+    if (separators > 2) {
+      return Double.NaN;
+    }
+
+    double degrees = 0;
+    double minutes = 0;
+    double seconds = 0;
+    int component = 0;
+    int i = start;
+
+    while (i < end) {
+      while (i < end && isSexagesimalSeparator(bytes[i])) {  // Empty components are ignored
+        i++;
+      }
+
+      if (i == end) {
+        break;
+      }
+
+      int componentStart = i;
+
+      while (i < end && !isSexagesimalSeparator(bytes[i])) {
+        i++;
+      }
+
+      double value = parseDecimal(bytes, componentStart, i);
+
+      if (Double.isNaN(value)) {
+        return Double.NaN;
+      }
+
+      if (component == 0) {
+        degrees = value;
+      } else if (component == 1) {
+        minutes = value;
+      } else {
+        seconds = value;
+      }
+
+      component++;
+    }
+
+    if ((minutes < 0) || (seconds < 0)) {
+      return Double.NaN;
+    }
+
+    double res = degrees;
+    if (Double.valueOf(degrees).compareTo(-0.) > 0) {
+      res += (minutes / 60.0) + (seconds / 3600.0);
+    } else {
+      res -= (minutes / 60.0) + (seconds / 3600.0);
+    }
+
+    return res;
+  }
+
+  /**
+   * Parses a decimal number directly from some bytes. Numbers with up to
+   * <code>MAX_EXACT_DIGITS</code> significant digits and small exponents (the
+   * usual ones) are exactly converted without creating any object. Any other
+   * number is parsed by <code>Double.parseDouble</code>.
+   *
+   * @param bytes The array containing the number.
+   * @param start The position of the first byte of the number.
+   * @param end The position after the last byte of the number.
+   * @return The parsed number or <code>NaN</code> if it is not correct.
+   */
+  private static double parseDecimal(byte[] bytes, int start, int end) {
+    int i = start;
+    boolean negative = false;
+
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+      negative = bytes[i] == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean point = false;
+
+    while (i < end) {
+      byte b = bytes[i];
+
+      if (b >= '0' && b <= '9') {
+        digits++;
+
+        if (mantissa != 0 || b != '0') {
+          significantDigits++;
+        }
+
+        if (significantDigits > MAX_EXACT_DIGITS) {
+          return parseDecimalSlowly(bytes, start, end);
+        }
+
+        mantissa = mantissa * 10 + (b - '0');
+
+        if (point) {
+          exponent--;
+        }
+      } else if (b == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+
+      i++;
+    }
+
+    if (digits == 0) {
+      return parseDecimalSlowly(bytes, start, end);
+    }
+
+    if (i < end) {
+      if (bytes[i] != 'e' && bytes[i] != 'E') {
+        return parseDecimalSlowly(bytes, start, end);
+      }
+
+      i++;
+
+      boolean negativeExponent = false;
+
+      if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+        negativeExponent = bytes[i] == '-';
+        i++;
+      }
+
+      if (i == end) {
+        return Double.NaN;
+      }
+
+      int e = 0;
+
+      while (i < end) {
+        byte b = bytes[i];
+
+        if (b < '0' || b > '9' || e > 1000) {
+          return parseDecimalSlowly(bytes, start, end);
+        }
+
+        e = e * 10 + (b - '0');
+        i++;
+      }
+
+      exponent += negativeExponent ? -e : e;
+    }
+
+    double value;
+
+    if (mantissa == 0) {
+      value = 0;
+    } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+      value = mantissa * POWERS_OF_TEN[exponent];
+    } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+      value = mantissa / POWERS_OF_TEN[-exponent];
+    } else {
+      return parseDecimalSlowly(bytes, start, end);
+    }
+
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses a decimal number from some bytes by means of
+   * <code>Double.parseDouble</code>.
+   *
+   * @param bytes The array containing the number.
+   * @param start The position of the first byte of the number.
+   * @param end The position after the last byte of the number.
+   * @return The parsed number or <code>NaN</code> if it is not correct.
+   */
+  private static double parseDecimalSlowly(byte[] bytes, int start, int end) {
+    try {
+      return Double.parseDouble(new String(bytes, start, end - start, UTF8));
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A class that encodes INDI messages (built in a <code>CharSequence</code>,
+ * usually a reusable <code>StringBuilder</code>) as UTF-8 bytes directly into
+ * a reusable <code>ByteBuffer</code> and writes them to an
+ * <code>OutputStream</code>, without creating any intermediate
+ * <code>String</code> or <code>byte</code> array. Messages that fit in the
+ * buffer are written with a single write operation. Several messages may be
+ * batched in a single write by appending them and then flushing the encoder.
+ *
+ * If the stream is a <code>FileOutputStream</code> (for example the standard
+ * output of a Driver launched by a INDI server) the buffer is a direct one and
+ * is written through the channel of the stream.
+ *
+ * This class is not thread safe: the callers must synchronize the writes.
+ *
+ * @author farom
+ * @see INDIMessageDecoder
+ */
+public class INDIMessageEncoder {
+
+  /**
+   * The size of the buffer. Bigger messages (BLOBs) are written in several
+   * pieces.
+   */
+  public static final int BUFFER_SIZE = 65536;
+  /**
+   * The stream to which the messages are written.
+   */
+  private OutputStream out;
+  /**
+   * The channel to which the messages are written (<code>null</code> if they
+   * are written to <code>out</code>).
+   */
+  private WritableByteChannel channel;
+  /**
+   * The buffer in which the messages are encoded.
+   */
+  private ByteBuffer buffer;
+
+  /**
+   * Constructs a new encoder.
+   *
+   * @param out The stream to which the messages will be written.
+   */
+  public INDIMessageEncoder(OutputStream out) {
+    this.out = out;
+
+    if (out instanceof FileOutputStream) {
+      channel = ((FileOutputStream)out).getChannel();
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    } else {
+      channel = null;
+      buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+  }
+
+  /**
+   * Encodes a message and writes it (flushing the stream).
+   *
+   * @param xml The message to be written.
+   * @throws IOException if there is any problem writing the message.
+   */
+  public void write(CharSequence xml) throws IOException {
+    try {
+      append(xml);
+    } catch (IOException e) {
+      buffer.clear();
+
+      throw e;
+    }
+
+    flush();
+  }
+
+  /**
+   * Encodes a message into the buffer. The buffer is only written when it
+   * gets full, so several messages can be written in a single operation by
+   * appending them and then calling <code>flush</code>.
+   *
+   * @param xml The message to be encoded.
+   * @throws IOException if there is any problem writing the full buffer.
+   */
+  public void append(CharSequence xml) throws IOException {
+    int length = xml.length();
+
+    for (int i = 0 ; i < length ; i++) {
+      if (buffer.remaining() < 4) {
+        writeBuffer();
+      }
+
+      char c = xml.charAt(i);
+
+      if (c < 0x80) {
+        buffer.put((byte)c);
+      } else if (c < 0x800) {
+        buffer.put((byte)(0xc0 | (c >> 6)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && (i + 1 < length) && Character.isLowSurrogate(xml.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, xml.charAt(i + 1));
+
+        i++;
+
+        buffer.put((byte)(0xf0 | (cp >> 18)));
+        buffer.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+        buffer.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+        buffer.put((byte)(0x80 | (cp & 0x3f)));
+      } else if (Character.isSurrogate(c)) {  // Not paired surrogate
+        buffer.put((byte)'?');
+      } else {
+        buffer.put((byte)(0xe0 | (c >> 12)));
+        buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte)(0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  /**
+   * Writes all the encoded messages and flushes the stream.
+   *
+   * @throws IOException if there is any problem writing the messages.
+   */
+  public void flush() throws IOException {
+    try {
+      writeBuffer();
+
+      if (channel == null) {
+        out.flush();
+      }
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Writes the encoded bytes of the buffer and clears it.
+   *
+   * @throws IOException if there is any problem writing the bytes.
+   */
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+
+    if (channel != null) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } else if (buffer.hasRemaining()) {
+      out.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+    }
+
+    buffer.clear();
+  }
+}
@@ -0,0 +1,547 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A class that splits a byte stream of INDI messages into its top level
+ * elements (<code>setNumberVector</code>, <code>newSwitchVector</code>, etc.)
+ * before any XML parsing is done. It directly tracks the tag depth, the quoted
+ * attribute values, the XML declarations and the comments in the bytes, so the
+ * bytes may be fed in chunks of any size and each complete element is passed
+ * to the listener exactly once, as soon as its last byte arrives. XML
+ * declarations, comments and any text between top level elements are
+ * discarded.
+ *
+ * The memory used by the framer is bounded: elements bigger than a maximum
+ * size (different for BLOB and non BLOB messages) or than the memory budget
+ * of the framer are dropped, skipping their bytes until the next top level
+ * element. A top level start tag (like <code>&lt;setNumberVector</code>) found
+ * inside another element means that the outer element was truncated, so it is
+ * dropped and the framing continues with the new one. The number of dropped
+ * and oversized elements is counted.
+ *
+ * @author farom
+ */
+public class INDIMessageFramer {
+
+  /**
+   * The initial size of the frame buffer.
+   */
+  private static final int INITIAL_FRAME_SIZE = 4096;
+  /**
+   * The frame buffer is shrunk to its initial size after receiving an
+   * element bigger than this.
+   */
+  private static final int SHRINK_THRESHOLD = 1048576;
+  /**
+   * The default maximum size (in bytes) of a non BLOB message.
+   */
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = 1048576;
+  /**
+   * The default maximum size (in bytes) of a BLOB message.
+   */
+  public static final int DEFAULT_MAX_BLOB_MESSAGE_SIZE = 134217728;
+  /**
+   * The names of the top level INDI elements.
+   */
+  private static final byte[][] TOP_LEVEL_NAMES;
+
+  static {
+    Constants.MessageTypes[] types = Constants.MessageTypes.values();
+
+    TOP_LEVEL_NAMES = new byte[types.length][];
+
+    for (int i = 0 ; i < types.length ; i++) {
+      TOP_LEVEL_NAMES[i] = Constants.getMessageTypeAsString(types[i]).getBytes();
+    }
+  }
+  /**
+   * Framing state: between top level elements or in the text of an element.
+   */
+  private static final int CONTENT = 0;
+  /**
+   * Framing state: just after a <code>&lt;</code> byte.
+   */
+  private static final int TAG_OPEN = 1;
+  /**
+   * Framing state: inside a start or end tag.
+   */
+  private static final int TAG = 2;
+  /**
+   * Framing state: inside a quoted attribute value.
+   */
+  private static final int QUOTED = 3;
+  /**
+   * Framing state: just after <code>&lt;!</code>.
+   */
+  private static final int DECLARATION_OPEN = 4;
+  /**
+   * Framing state: inside a XML declaration or processing instruction
+   * (<code>&lt;? ... ?&gt;</code>).
+   */
+  private static final int PROCESSING_INSTRUCTION = 5;
+  /**
+   * Framing state: inside a comment (<code>&lt;!-- ... --&gt;</code>).
+   */
+  private static final int COMMENT = 6;
+  /**
+   * Framing state: inside any other <code>&lt;! ... &gt;</code> declaration.
+   */
+  private static final int DECLARATION = 7;
+  /**
+   * The listener to which the complete frames are sent.
+   */
+  private INDIFrameListener listener;
+  /**
+   * The bytes of the top level element being currently received.
+   */
+  private byte[] frame;
+  /**
+   * The number of valid bytes in <code>frame</code>.
+   */
+  private int frameLength;
+  /**
+   * The current framing state.
+   */
+  private int state;
+  /**
+   * The nesting depth of the current position in the stream.
+   */
+  private int depth;
+  /**
+   * <code>true</code> if the tag being framed is an end tag.
+   */
+  private boolean endTag;
+  /**
+   * The quote byte that opened the attribute value being framed.
+   */
+  private byte quote;
+  /**
+   * The last byte of the tag, declaration or comment being framed.
+   */
+  private byte last;
+  /**
+   * The byte before <code>last</code>.
+   */
+  private byte beforeLast;
+  /**
+   * The position in <code>frame</code> of the tag being framed.
+   */
+  private int tagStart;
+  /**
+   * <code>true</code> if the current element is being skipped (it has been
+   * dropped).
+   */
+  private boolean skipping;
+  /**
+   * The maximum size (in bytes) of a non BLOB message.
+   */
+  private int maxMessageSize;
+  /**
+   * The maximum size (in bytes) of a BLOB message.
+   */
+  private int maxBLOBMessageSize;
+  /**
+   * The maximum size (in bytes) of the frame buffer.
+   */
+  private int memoryBudget;
+  /**
+   * The maximum size (in bytes) of a non BLOB element (including the memory
+   * budget). The size of the elements is checked when they reach it, even if
+   * the frame buffer (grown for bigger elements) is not full.
+   */
+  private int messageLimit;
+  /**
+   * The maximum size (in bytes) of a BLOB element (including the memory
+   * budget). The size of the elements is checked when they reach it, even if
+   * the frame buffer is not full.
+   */
+  private int blobLimit;
+  /**
+   * The number of dropped elements (truncated or oversized).
+   */
+  private volatile long droppedMessages;
+  /**
+   * The number of elements dropped because they were too big.
+   */
+  private volatile long oversizedMessages;
+
+  /**
+   * Constructs a new framer.
+   *
+   * @param listener The listener to which the complete frames are sent.
+   */
+  public INDIMessageFramer(INDIFrameListener listener) {
+    this.listener = listener;
+
+    frame = new byte[INITIAL_FRAME_SIZE];
+
+    maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    maxBLOBMessageSize = DEFAULT_MAX_BLOB_MESSAGE_SIZE;
+    memoryBudget = DEFAULT_MAX_BLOB_MESSAGE_SIZE;
+    messageLimit = Math.min(maxMessageSize, memoryBudget);
+    blobLimit = Math.min(maxBLOBMessageSize, memoryBudget);
+
+    droppedMessages = 0;
+    oversizedMessages = 0;
+
+    reset();
+  }
+
+  /**
+   * Discards any partially received element and resets the framer to its
+   * initial state.
+   */
+  public void reset() {
+    frameLength = 0;
+    state = CONTENT;
+    depth = 0;
+    skipping = false;
+  }
+
+  /**
+   * Sets the limits of the framer. Elements bigger than their limit are
+   * dropped.
+   *
+   * @param maxMessageSize The maximum size (in bytes) of a non BLOB message.
+   * @param maxBLOBMessageSize The maximum size (in bytes) of a BLOB message.
+   * @param memoryBudget The maximum size (in bytes) of the buffer used to
+   * keep the element being received (it also limits the size of any message).
+   */
+  public void setLimits(int maxMessageSize, int maxBLOBMessageSize, int memoryBudget) {
+    this.maxMessageSize = maxMessageSize;
+    this.maxBLOBMessageSize = maxBLOBMessageSize;
+    this.memoryBudget = memoryBudget;
+
+    messageLimit = Math.min(maxMessageSize, memoryBudget);
+    blobLimit = Math.min(maxBLOBMessageSize, memoryBudget);
+  }
+
+  /**
+   * Gets the maximum size (in bytes) of a non BLOB message.
+   *
+   * @return The maximum size of a non BLOB message.
+   */
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  /**
+   * Gets the maximum size (in bytes) of a BLOB message.
+   *
+   * @return The maximum size of a BLOB message.
+   */
+  public int getMaxBLOBMessageSize() {
+    return maxBLOBMessageSize;
+  }
+
+  /**
+   * Gets the maximum size (in bytes) of the buffer used to keep the element
+   * being received.
+   *
+   * @return The memory budget of the framer.
+   */
+  public int getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Gets the number of dropped elements (truncated or oversized).
+   *
+   * @return The number of dropped elements.
+   */
+  public long getDroppedMessages() {
+    return droppedMessages;
+  }
+
+  /**
+   * Gets the number of elements dropped because they were too big.
+   *
+   * @return The number of oversized elements.
+   */
+  public long getOversizedMessages() {
+    return oversizedMessages;
+  }
+
+  /**
+   * Gets the current size (in bytes) of the buffer used to keep the element
+   * being received.
+   *
+   * @return The current size of the frame buffer.
+   */
+  public int getBufferSize() {
+    return frame.length;
+  }
+
+  /**
+   * Feeds some new bytes to the framer. The listener is called (in the current
+   * thread) for every top level element completed by them.
+   *
+   * @param bytes The new bytes.
+   * @param offset The offset of the first byte to feed in <code>bytes</code>.
+   * @param length The number of bytes to feed.
+   */
+  public void feed(byte[] bytes, int offset, int length) {
+    int end = offset + length;
+
+    for (int i = offset ; i < end ; i++) {
+      byte b = bytes[i];
+
+      if (skipping) {  // Only the tags are kept, to find the end of the element or the next one
+        if ((state == CONTENT) && (b == '<')) {
+          frameLength = 0;
+        }
+
+        if ((state != CONTENT) || (b == '<')) {
+          append(b);
+        }
+      } else if ((depth > 0) || (state != CONTENT) || (b == '<')) {
+        append(b);
+      }
+
+      switch (state) {
+        case CONTENT:
+          if (b == '<') {
+            tagStart = frameLength - 1;
+            state = TAG_OPEN;
+          }
+          break;
+        case TAG_OPEN:
+          if (b == '?') {
+            state = PROCESSING_INSTRUCTION;
+            last = 0;
+          } else if (b == '!') {
+            state = DECLARATION_OPEN;
+            last = 0;
+          } else {
+            endTag = (b == '/');
+            last = b;
+            state = TAG;
+          }
+          break;
+        case TAG:
+          if ((b == '"') || (b == '\'')) {
+            quote = b;
+            state = QUOTED;
+          } else if (b == '>') {
+            tagClosed();
+          } else {
+            last = b;
+          }
+          break;
+        case QUOTED:
+          if (b == quote) {
+            last = b;
+            state = TAG;
+          }
+          break;
+        case DECLARATION_OPEN:
+          if ((b == '-') && (last == '-')) {
+            state = COMMENT;
+            last = 0;
+            beforeLast = 0;
+          } else if (b == '>') {
+            specialClosed();
+          } else if (b != '-') {
+            state = DECLARATION;
+          } else {
+            last = b;
+          }
+          break;
+        case PROCESSING_INSTRUCTION:
+          if ((b == '>') && (last == '?')) {
+            specialClosed();
+          } else {
+            last = b;
+          }
+          break;
+        case COMMENT:
+          if ((b == '>') && (last == '-') && (beforeLast == '-')) {
+            specialClosed();
+          } else {
+            beforeLast = last;
+            last = b;
+          }
+          break;
+        case DECLARATION:
+          if (b == '>') {
+            specialClosed();
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * Called when a start or end tag has been closed. Updates the depth and, if
+   * a top level element has been completed, sends it to the listener. Stray end
+   * tags at the top level are discarded.
+   */
+  private void tagClosed() {
+    state = CONTENT;
+
+    if (!endTag && (depth > 0 || skipping) && isTopLevelName(tagStart + 1)) {  // A new message: the current one is truncated
+      if (!skipping) {
+        droppedMessages++;
+      }
+
+      System.arraycopy(frame, tagStart, frame, 0, frameLength - tagStart);
+      frameLength -= tagStart;
+      depth = 0;
+      skipping = false;
+    }
+
+    if (endTag) {
+      if (depth == 0) {
+        frameLength = 0;
+
+        return;
+      }
+
+      depth--;
+    } else if (last != '/') {
+      depth++;
+    }
+
+    if (depth == 0) {
+      if (!skipping) {
+        listener.frameReceived(frame, frameLength);
+      }
+
+      skipping = false;
+      frameLength = 0;
+
+      if (frame.length > SHRINK_THRESHOLD) {
+        frame = new byte[INITIAL_FRAME_SIZE];
+      }
+    }
+  }
+
+  /**
+   * Checks if the name of a tag in the frame buffer is the one of a top level
+   * INDI element.
+   *
+   * @param start The position of the name in the frame buffer.
+   * @return <code>true</code> if it is the name of a top level element.
+   * <code>false</code> otherwise.
+   */
+  private boolean isTopLevelName(int start) {
+    int end = start;
+
+    while ((end < frameLength) && (frame[end] != ' ') && (frame[end] != '\t') && (frame[end] != '\n') && (frame[end] != '\r') && (frame[end] != '/') && (frame[end] != '>')) {
+      end++;
+    }
+
+    for (int i = 0 ; i < TOP_LEVEL_NAMES.length ; i++) {
+      byte[] name = TOP_LEVEL_NAMES[i];
+
+      if (name.length == end - start) {
+        int j = 0;
+
+        while ((j < name.length) && (name[j] == frame[start + j])) {
+          j++;
+        }
+
+        if (j == name.length) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Checks if the element being received is a BLOB one (its name contains
+   * <code>BLOB</code>).
+   *
+   * @return <code>true</code> if the element being received is a BLOB one.
+   * <code>false</code> otherwise.
+   */
+  private boolean isBLOBMessage() {
+    for (int i = 1 ; (i + 3 < frameLength) && (frame[i] != ' ') && (frame[i] != '>') ; i++) {
+      if ((frame[i] == 'B') && (frame[i + 1] == 'L') && (frame[i + 2] == 'O') && (frame[i + 3] == 'B')) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Called when a XML declaration, processing instruction or comment has been
+   * closed. If it is not inside an element it is discarded.
+   */
+  private void specialClosed() {
+    state = CONTENT;
+
+    if (depth == 0) {
+      frameLength = 0;
+    }
+  }
+
+  /**
+   * Appends a byte to the frame buffer, growing it if necessary (never beyond
+   * the limit of the element). If the element reaches its limit it is
+   * dropped and its bytes are skipped.
+   *
+   * @param b The byte to append.
+   */
+  private void append(byte b) {
+    if ((frameLength == frame.length) || (((frameLength == messageLimit) || (frameLength == blobLimit)) && (!skipping))) {
+      int limit = isBLOBMessage() ? blobLimit : messageLimit;
+
+      if ((!skipping) && (frameLength >= limit)) {
+        droppedMessages++;
+        oversizedMessages++;
+        skipping = true;
+      }
+
+      if (frameLength < frame.length) {  // Checked at a limit, still room
+        frame[frameLength++] = b;
+
+        return;
+      }
+
+      if (skipping) {  // Only the current tag is kept
+        if ((state == CONTENT) || (frameLength - tagStart >= frame.length)) {  // Text or huge tag: forget it
+          frameLength = 0;
+          tagStart = 0;
+
+          frame[frameLength++] = b;
+
+          return;
+        }
+
+        System.arraycopy(frame, tagStart, frame, 0, frameLength - tagStart);
+        frameLength -= tagStart;
+        tagStart = 0;
+      } else {
+        int newSize = (int)Math.min((long)frame.length * 2, limit);
+
+        byte[] newFrame = new byte[newSize];
+
+        System.arraycopy(frame, 0, newFrame, 0, frameLength);
+
+        frame = newFrame;
+      }
+    }
+
+    frame[frameLength++] = b;
+  }
+}
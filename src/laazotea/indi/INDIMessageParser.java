@@ -0,0 +1,38 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A interface representing a INDI Protocol Parser that can receive typed
+ * messages directly, without any DOM tree. The <code>INDIProtocolReader</code>
+ * will use <code>parseMessage</code> instead of <code>parseXML</code> for the
+ * parsers implementing it.
+ *
+ * @author farom
+ * @see INDIMessage
+ */
+public interface INDIMessageParser extends INDIProtocolParser {
+
+  /**
+   * Parses a typed INDI message. The message (and its arrays of values) may be
+   * reused by the caller once this method returns, so it should not be kept.
+   *
+   * @param message The message to parse.
+   */
+  public void parseMessage(INDIMessage message);
+}
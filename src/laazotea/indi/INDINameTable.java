@@ -0,0 +1,150 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.charset.Charset;
+
+/**
+ * A table of the names (of devices, properties, elements, attributes, etc.)
+ * that appear in the INDI messages. It converts the bytes of a name into a
+ * <code>String</code>, always returning the same <code>String</code> object for
+ * the same bytes, so no new objects are created for names that have already
+ * been seen. The table is bounded: once it is full, new names are converted
+ * without being stored.
+ *
+ * This class is not thread safe. Each reader should use its own table.
+ *
+ * @author farom
+ */
+public class INDINameTable {
+
+  /**
+   * The charset of the names.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The number of slots in the table (must be a power of 2).
+   */
+  private static final int CAPACITY = 2048;
+  /**
+   * The maximum number of names stored in the table.
+   */
+  private static final int MAX_NAMES = CAPACITY / 2;
+  /**
+   * The maximum length (in bytes) of the names stored in the table.
+   */
+  private static final int MAX_NAME_LENGTH = 128;
+  /**
+   * The bytes of the stored names.
+   */
+  private byte[][] keys;
+  /**
+   * The stored names.
+   */
+  private String[] names;
+  /**
+   * The number of stored names.
+   */
+  private int size;
+
+  /**
+   * Constructs an empty table.
+   */
+  public INDINameTable() {
+    keys = new byte[CAPACITY][];
+    names = new String[CAPACITY];
+    size = 0;
+  }
+
+  /**
+   * Gets the name corresponding to some bytes.
+   *
+   * @param bytes The array containing the bytes of the name.
+   * @param offset The position of the first byte of the name.
+   * @param length The number of bytes of the name.
+   * @return The name.
+   */
+  public String getName(byte[] bytes, int offset, int length) {
+    if (length > MAX_NAME_LENGTH) {
+      return new String(bytes, offset, length, UTF8);
+    }
+
+    int hash = 0;
+
+    for (int i = 0 ; i < length ; i++) {
+      hash = 31 * hash + bytes[offset + i];
+    }
+
+    int mask = CAPACITY - 1;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+
+    while (keys[slot] != null) {
+      if (equals(keys[slot], bytes, offset, length)) {
+        return names[slot];
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    String name = new String(bytes, offset, length, UTF8);
+
+    if (size < MAX_NAMES) {
+      byte[] key = new byte[length];
+      System.arraycopy(bytes, offset, key, 0, length);
+
+      keys[slot] = key;
+      names[slot] = name;
+      size++;
+    }
+
+    return name;
+  }
+
+  /**
+   * Checks if a stored key is equal to some bytes.
+   *
+   * @param key The stored key.
+   * @param bytes The array containing the bytes to compare.
+   * @param offset The position of the first byte to compare.
+   * @param length The number of bytes to compare.
+   * @return <code>true</code> if the key and the bytes are equal.
+   * <code>false</code> otherwise.
+   */
+  private static boolean equals(byte[] key, byte[] bytes, int offset, int length) {
+    if (key.length != length) {
+      return false;
+    }
+
+    for (int i = 0 ; i < length ; i++) {
+      if (key[i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets the number of names stored in the table.
+   *
+   * @return The number of names stored in the table.
+   */
+  public int getSize() {
+    return size;
+  }
+}
@@ -17,25 +17,42 @@
  */
 package laazotea.indi;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.InputStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 /**
- * A class that reads from a input stream and sends the read messages to a parser.
+ * A class that reads from a input stream and sends the read messages to a
+ * parser. The read bytes are split into top level INDI elements by a
+ * <code>INDIMessageFramer</code> before parsing them, so each element is parsed
+ * (and sent to the parser) exactly once, as soon as it is complete, and never
+ * waits for other incomplete elements (like big BLOBs) in the stream. If the
+ * parser is a <code>INDIMessageParser</code> the elements are decoded into
+ * typed <code>INDIMessage</code>s without building any DOM tree.
+ *
+ * The reader is a <code>Thread</code> (started with <code>start</code>), but
+ * it may also be run in a virtual thread (see <code>startReading</code>) or
+ * be fed by an event loop without running it.
  *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.2, April 1, 2012
+ * @see INDIMessageFramer
  */
-public class INDIProtocolReader extends Thread {
+public class INDIProtocolReader extends Thread implements INDIFrameListener {
+
+  /**
+   * The size of the buffer used to read from the stream. It does not limit
+   * the size of the messages, as the framer keeps the incomplete ones.
+   */
+  private static final int BUFFER_SIZE = 16384;
   /**
    * The parser to which the messages will be sent.
    */
@@ -43,93 +60,214 @@ public class INDIProtocolReader extends Thread {
   /**
    * Used to friendly stop the reader.
    */
-  private boolean stop;
-  
+  private volatile boolean stop;
+  /**
+   * The builder used to parse each of the complete elements.
+   */
+  private DocumentBuilder docBuilder;
+  /**
+   * The framer that splits the read bytes into top level elements.
+   */
+  private INDIMessageFramer framer;
+  /**
+   * The parser to which the typed messages will be sent (<code>null</code> if
+   * the parser only understands DOM trees).
+   */
+  private INDIMessageParser messageParser;
+  /**
+   * The decoder of the typed messages.
+   */
+  private INDIMessageDecoder decoder;
+  /**
+   * The (reused) typed message.
+   */
+  private INDIMessage message;
+  /**
+   * The number of complete elements that could not be parsed.
+   */
+  private volatile long malformedMessages;
+  /**
+   * <code>true</code> if the reader has been started by
+   * <code>startReading</code>.
+   */
+  private boolean started;
+
   /**
    * Creates the reader.
    * @param parser The parser to which the readed messages will be sent.
    */
   public INDIProtocolReader(INDIProtocolParser parser) {
+    super("INDI Protocol Reader");
+
     this.parser = parser;
+    this.framer = new INDIMessageFramer(this);
+
+    if (parser instanceof INDIMessageParser) {
+      messageParser = (INDIMessageParser)parser;
+      decoder = new INDIMessageDecoder();
+      message = new INDIMessage();
+    }
   }
-  
+
   /**
-   * The main body of the reader.
+   * Starts reading in a new virtual thread if they are enabled (see
+   * <code>INDIThreadFactory</code>) or in this thread (as <code>start</code>)
+   * otherwise. Like <code>start</code>, it can only be called once. A
+   * virtual thread runs the body of this reader, so the returned thread (and
+   * not this one) must be used to wait for the reader.
+   *
+   * @return The thread that runs the reader.
+   * @see INDIThreadFactory
    */
-  @Override
-  public void run() {
-    DocumentBuilderFactory docBuilderFactory;
+  public synchronized Thread startReading() {
+    if (started) {
+      throw new IllegalThreadStateException();
+    }
 
-    DocumentBuilder docBuilder;
-    try {
-      docBuilderFactory = DocumentBuilderFactory.newInstance();
-      docBuilder = docBuilderFactory.newDocumentBuilder();
-      docBuilder.setErrorHandler(new ErrorHandler() {
+    started = true;
 
-        @Override
-        public void warning(SAXParseException e) throws SAXException {
-        }
+    if (!INDIThreadFactory.isUsingVirtualThreads()) {
+      start();
 
-        @Override
-        public void fatalError(SAXParseException e) throws SAXException {
-        }
-
-        @Override
-        public void error(SAXParseException e) throws SAXException {
-        }
-      });
-    } catch (Exception e) {
-      e.printStackTrace();
-      return;
+      return this;
     }
 
-    int BUFFER_SIZE = 1000000;
+    Thread t = INDIThreadFactory.newThread(this, getName());
+    t.start();
 
-    StringBuffer bufferedInput = new StringBuffer();
+    return t;
+  }
 
-    char[] buffer = new char[BUFFER_SIZE];
+  /**
+   * The main body of the reader.
+   */
+  @Override
+  public void run() {
+    byte[] buffer = new byte[BUFFER_SIZE];
 
     stop = false;
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(parser.getInputStream()));
+    InputStream in = parser.getInputStream();
 
     try {
       while (!stop) {
         int nReaded = in.read(buffer, 0, BUFFER_SIZE);
 
         if (nReaded != -1) {
-          bufferedInput.append(buffer, 0, nReaded);  // Appending to the buffer
+          feed(buffer, 0, nReaded);
+        } else {  // If -1 readed, end
+          stop = true;
+        }
+      }
+    } catch (IOException e) {
+      //   e.printStackTrace();
+    } finally {  // Even if the parser fails
+      finish();
+    }
+  }
+
+  /**
+   * Processes some bytes read from the stream. Used by the <code>run</code>
+   * method and by the readers that are not run in their own thread (but fed
+   * by an event loop).
+   *
+   * @param bytes The array containing the read bytes.
+   * @param offset The position of the first read byte.
+   * @param length The number of read bytes.
+   */
+  public void feed(byte[] bytes, int offset, int length) {
+    framer.feed(bytes, offset, length);
+  }
 
-          boolean errorParsing = false;
+  /**
+   * Notifies the parser that the readings have finished. Used by the
+   * <code>run</code> method and by the readers that are not run in their own
+   * thread (but fed by an event loop).
+   */
+  public void finish() {
+    parser.finishReader();
+  }
 
-          try {
-            String d = "<INDI>" + bufferedInput + "</INDI>";
-            //System.err.println(d);
-            d = d.replaceAll("\\<\\?xml version='...'\\?\\>", "");
-            d = d.replaceAll("\\<\\?xml version=\"...\"\\?\\>", "");
-            //    System.err.println(d);
+  /**
+   * Gets the builder used to parse the complete elements for the parsers that
+   * are not <code>INDIMessageParser</code>s.
+   *
+   * @return The builder used to parse the complete elements.
+   */
+  private DocumentBuilder getDocumentBuilder() {
+    if (docBuilder == null) {
+      try {
+        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+        docBuilder = docBuilderFactory.newDocumentBuilder();
+        docBuilder.setErrorHandler(new ErrorHandler() {
 
-            Document doc = docBuilder.parse(new InputSource(new StringReader(d)));
+          @Override
+          public void warning(SAXParseException e) throws SAXException {
+          }
 
-            parser.parseXML(doc);
-          } catch (SAXException e) {
-            errorParsing = true;
+          @Override
+          public void fatalError(SAXParseException e) throws SAXException {
           }
 
-          if (!errorParsing) {
-            bufferedInput.setLength(0);  // Empty the buffer because it has been already parsed
+          @Override
+          public void error(SAXParseException e) throws SAXException {
           }
-        } else {  // If -1 readed, end
-          stop = true;
-        }
+        });
+      } catch (ParserConfigurationException e) {
+        e.printStackTrace();
+      }
+    }
+
+    return docBuilder;
+  }
+
+  /**
+   * Parses a complete top level element and sends it to the parser, as a typed
+   * message or inside a &lt;INDI&gt; document. Malformed elements are
+   * discarded.
+   *
+   * @param frame The bytes of the element.
+   * @param length The number of valid bytes in <code>frame</code>.
+   */
+  @Override
+  public void frameReceived(byte[] frame, int length) {
+    if (messageParser != null) {
+      if (decoder.decode(frame, length, message)) {
+        messageParser.parseMessage(message);
+      } else {
+        malformedMessages++;
       }
+
+      return;
+    }
+
+    DocumentBuilder builder = getDocumentBuilder();
+
+    if (builder == null) {
+      return;
+    }
+
+    Document parsed;
+
+    try {
+      parsed = builder.parse(new ByteArrayInputStream(frame, 0, length));
+    } catch (SAXException e) {
+      malformedMessages++;
+      return;
     } catch (IOException e) {
-      //   e.printStackTrace();
+      malformedMessages++;
+      return;
     }
 
-    parser.finishReader();
+    Document doc = builder.newDocument();
+    Element root = doc.createElement("INDI");
+
+    doc.appendChild(root);
+    root.appendChild(doc.adoptNode(parsed.getDocumentElement()));
+
+    parser.parseXML(doc);
   }
-  
+
   /**
    * Sets the stop parameter. If set to <code>true</code> the reader will gracefully stop after the next read.
    * @param stop
@@ -137,4 +275,48 @@ public class INDIProtocolReader extends Thread {
   public void setStop(boolean stop) {
     this.stop = stop; 
   }
+
+  /**
+   * Sets the limits of the memory used by the reader. Messages bigger than
+   * their limit are dropped and the reader skips to the next top level
+   * element.
+   *
+   * @param maxMessageSize The maximum size (in bytes) of a non BLOB message.
+   * @param maxBLOBMessageSize The maximum size (in bytes) of a BLOB message.
+   * @param memoryBudget The maximum size (in bytes) of the buffer used to
+   * keep the message being received.
+   * @see INDIMessageFramer#setLimits
+   */
+  public void setLimits(int maxMessageSize, int maxBLOBMessageSize, int memoryBudget) {
+    framer.setLimits(maxMessageSize, maxBLOBMessageSize, memoryBudget);
+  }
+
+  /**
+   * Gets the number of dropped messages: truncated, oversized or malformed
+   * ones.
+   *
+   * @return The number of dropped messages.
+   */
+  public long getDroppedMessages() {
+    return framer.getDroppedMessages() + malformedMessages;
+  }
+
+  /**
+   * Gets the number of messages dropped because they were too big.
+   *
+   * @return The number of oversized messages.
+   */
+  public long getOversizedMessages() {
+    return framer.getOversizedMessages();
+  }
+
+  /**
+   * Checks if the reader has been asked to stop.
+   *
+   * @return <code>true</code> if the reader has been asked to stop.
+   * <code>false</code> otherwise.
+   */
+  public boolean isStopped() {
+    return stop;
+  }
 }
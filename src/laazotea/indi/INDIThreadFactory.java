@@ -0,0 +1,140 @@
+/*
+ *  This file is part of INDI for Java.
+ * 
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.lang.reflect.Method;
+
+/**
+ * A class that creates the threads used by the library (protocol readers,
+ * server listening thread, writers, etc.). If enabled, and if the Java
+ * runtime supports them (Java 21 or later), the threads are virtual threads,
+ * so the blocking reads and writes of many idle connections do not need one
+ * operating system thread each. Otherwise usual platform threads are created.
+ *
+ * Virtual threads can be enabled with the <code>laazotea.indi.virtualThreads</code>
+ * system property (<code>-Dlaazotea.indi.virtualThreads=true</code>) or with
+ * <code>setUseVirtualThreads</code> before the threads are created.
+ *
+ * @author farom
+ */
+public class INDIThreadFactory {
+
+  /**
+   * The name of the system property that enables virtual threads.
+   */
+  public static final String VIRTUAL_THREADS_PROPERTY = "laazotea.indi.virtualThreads";
+  /**
+   * The <code>Thread.ofVirtual()</code> method (<code>null</code> if not
+   * supported).
+   */
+  private static final Method OF_VIRTUAL;
+  /**
+   * The <code>Thread.Builder.name(String)</code> method.
+   */
+  private static final Method NAME;
+  /**
+   * The <code>Thread.Builder.unstarted(Runnable)</code> method.
+   */
+  private static final Method UNSTARTED;
+  /**
+   * If virtual threads should be used.
+   */
+  private static volatile boolean useVirtualThreads = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method unstarted = null;
+
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+    } catch (ClassNotFoundException e) {  // Virtual threads not supported
+      ofVirtual = null;
+    } catch (NoSuchMethodException e) {
+      ofVirtual = null;
+    }
+
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    UNSTARTED = unstarted;
+  }
+
+  /**
+   * A private constructor to avoid instantiating this utility class.
+   */
+  private INDIThreadFactory() {
+  }
+
+  /**
+   * Sets if virtual threads should be used for the threads created from now
+   * on. If they are not supported by the Java runtime, platform threads will
+   * be used anyway.
+   *
+   * @param use <code>true</code> to use virtual threads. <code>false</code>
+   * otherwise.
+   */
+  public static void setUseVirtualThreads(boolean use) {
+    useVirtualThreads = use;
+  }
+
+  /**
+   * Checks if virtual threads are supported by the Java runtime.
+   *
+   * @return <code>true</code> if virtual threads are supported.
+   * <code>false</code> otherwise.
+   */
+  public static boolean areVirtualThreadsSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Checks if the created threads are virtual ones.
+   *
+   * @return <code>true</code> if virtual threads are enabled and supported.
+   * <code>false</code> otherwise.
+   */
+  public static boolean isUsingVirtualThreads() {
+    return useVirtualThreads && areVirtualThreadsSupported();
+  }
+
+  /**
+   * Creates a new (not started) thread. It will be a virtual thread if they
+   * are enabled and supported and a platform thread otherwise.
+   *
+   * @param task The task that the thread will run.
+   * @param name The name of the thread.
+   * @return The new thread.
+   */
+  public static Thread newThread(Runnable task, String name) {
+    if (isUsingVirtualThreads()) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        builder = NAME.invoke(builder, name);
+
+        return (Thread)UNSTARTED.invoke(builder, task);
+      } catch (Exception e) {  // Should not happen. Fall back to platform threads.
+      }
+    }
+
+    return new Thread(task, name);
+  }
+}
@@ -18,21 +18,51 @@
 package laazotea.indi;
 
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Element;
 
 /**
- * A class to transforms XML Elements into Strings.
+ * A class to transforms XML Elements into Strings. The
+ * <code>TransformerFactory</code> is created only once and each thread reuses
+ * its own <code>Transformer</code> (as they are not thread safe).
  *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.34, November 8, 2013
  */
 public class XMLToString {
 
+  /**
+   * The factory used to create the transformers.
+   */
+  private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+  /**
+   * The transformer of each thread.
+   */
+  private static final ThreadLocal<Transformer> TRANSFORMERS = new ThreadLocal<Transformer>() {
+    @Override
+    protected Transformer initialValue() {
+      try {
+        Transformer transformer;
+
+        synchronized (TRANSFORMER_FACTORY) {  // The factory is not thread safe
+          transformer = TRANSFORMER_FACTORY.newTransformer();
+        }
+
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        return transformer;
+      } catch (TransformerConfigurationException e) {
+        return null;
+      }
+    }
+  };
+
   /**
    * Transforms a XML Element into a String.
    *
@@ -41,12 +71,9 @@ public class XMLToString {
    */
   public static String transform(Element xml) {
     try {
-      TransformerFactory transFactory = TransformerFactory.newInstance();
-
-      Transformer transformer = transFactory.newTransformer();
+      Transformer transformer = TRANSFORMERS.get();
 
       StringWriter buffer = new StringWriter();
-      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
       transformer.transform(new DOMSource(xml),
               new StreamResult(buffer));
       String str = buffer.toString();
@@ -56,4 +83,18 @@ public class XMLToString {
 
     return "";
   }
-}
\ No newline at end of file
+
+  /**
+   * Transforms a XML Element into its UTF-8 encoded bytes.
+   *
+   * @param xml The XML Element
+   * @return The bytes representing the XML Element
+   */
+  public static byte[] transformToBytes(Element xml) {
+    try {
+      return transform(xml).getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return transform(xml).getBytes();
+    }
+  }
+}
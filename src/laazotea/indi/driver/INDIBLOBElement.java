@@ -18,6 +18,7 @@
 package laazotea.indi.driver;
 
 import laazotea.indi.INDIBLOBValue;
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -85,17 +86,22 @@ public class INDIBLOBElement extends INDIElement {
     }
 
     this.value = b;
+
+    markAsChanged();  // BLOBs are not compared, they are always sent
   }
 
   @Override
   public String getXMLOneElement() {
+    return super.getXMLOneElement();
+  }
+
+  @Override
+  protected void appendXMLOneElement(StringBuilder xml) {
     int size = value.getSize();
 
     String data = value.getBase64BLOBData();
 
-    String xml = "<oneBLOB name=\"" + this.getName() + "\" size=\"" + size + "\" format=\"" + value.getFormat() + "\">" + data + "</oneBLOB>";
-
-    return xml;
+    xml.append("<oneBLOB name=\"").append(getName()).append("\" size=\"").append(size).append("\" format=\"").append(value.getFormat()).append("\">").append(data).append("</oneBLOB>");
   }
 
   @Override
@@ -104,14 +110,21 @@ public class INDIBLOBElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defBLOB name=\"" + this.getName() + "\" label=\"" + getLabel() + "\" />";
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+    xml.append("<defBLOB name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\" />");
+  }
 
-    return xml;
+  @Override
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
   }
 
   @Override
   public Object parseOneValue(Element xml) {
     return new INDIBLOBValue(xml);
   }
+
+  @Override
+  public Object parseOneValue(INDIMessage message, int index) {
+    return new INDIBLOBValue(message, index);
+  }
 }
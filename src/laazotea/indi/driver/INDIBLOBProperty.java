@@ -20,7 +20,6 @@ package laazotea.indi.driver;
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
-import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
 
 /**
@@ -285,44 +284,24 @@ public class INDIBLOBProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defBLOBVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defBLOBVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionAttributes(StringBuilder xml) {
+    xml.append("<defBLOBVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\" group=\"").append(getGroup()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\" perm=\"").append(Constants.getPropertyPermissionAsString(getPermission())).append("\" timeout=\"").append(getTimeout()).append("\"");
   }
 
   @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defBLOBVector>";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionEnd(StringBuilder xml) {
+    xml.append("</defBLOBVector>");
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setBLOBVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
+  protected void appendXMLPropertySetInit(StringBuilder xml, String message) {
+    xml.append("<setBLOBVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\" timeout=\"").append(getTimeout()).append("\"");
 
-    return xml;
+    appendXMLTimestampAndMessage(xml, message);
   }
 
   @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setBLOBVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setBLOBVector>";
-
-    return xml;
+  protected void appendXMLPropertySetEnd(StringBuilder xml) {
+    xml.append("</setBLOBVector>");
   }
 }
@@ -17,12 +17,17 @@
  */
 package laazotea.indi.driver;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import laazotea.indi.Constants.MessageTypes;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.Constants.SwitchRules;
@@ -41,7 +46,7 @@ import org.w3c.dom.NodeList;
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.34, November 6, 2013
  */
-public abstract class INDIDriver implements INDIProtocolParser {
+public abstract class INDIDriver implements INDIMessageParser {
 
   private InputStream inputStream;
   private OutputStream outputStream;
@@ -71,6 +76,32 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * To know if the driver has already been started or not.
    */
   private boolean started;
+  /**
+   * The maximum size of the messages whose buffers are kept to be reused.
+   */
+  private static final int MAX_REUSABLE_BUFFER_SIZE = 65536;
+  /**
+   * A reusable buffer in which the messages to the clients are built.
+   */
+  private StringBuilder xmlBuffer;
+  /**
+   * The encoder that writes the messages as bytes to the output stream.
+   */
+  private INDIMessageEncoder encoder;
+  /**
+   * The writer that sends the messages from a dedicated thread
+   * (<code>null</code> if the messages are sent synchronously).
+   */
+  private volatile INDIAsynchronousWriter asynchronousWriter;
+  /**
+   * The coalescing state of the Properties whose updates are rate limited.
+   */
+  private HashMap<INDIProperty, CoalescedUpdate> coalescedUpdates;
+  /**
+   * The timer that sends the trailing coalesced updates (created when
+   * needed).
+   */
+  private Timer coalescingTimer;
 
   /**
    * Constructs a INDIDriver with a particular
@@ -85,6 +116,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
     this.inputStream = inputStream;
     this.outputStream = outputStream;
     this.subdrivers = new ArrayList<INDIDriver>();
+    this.xmlBuffer = new StringBuilder(1024);
+    this.encoder = new INDIMessageEncoder(outputStream);
+    this.coalescedUpdates = new HashMap<INDIProperty, CoalescedUpdate>();
 
     started = false;
 
@@ -153,7 +187,20 @@ public abstract class INDIDriver implements INDIProtocolParser {
     started = true;
 
     reader = new INDIProtocolReader(this);
-    reader.start();
+    reader.start();  // Always a platform thread, as it keeps alive the standalone Drivers
+  }
+
+  /**
+   * Starts the Driver without listening to its <code>InputStream</code>. The
+   * messages are directly delivered by calling <code>parseMessage</code> (or
+   * <code>parseXML</code>) from the threads of the encapsulating class (for
+   * example a Server that runs the Driver in its own JVM). Therefore no
+   * reader thread is created.
+   *
+   * @see laazotea.indi.server.INDIJavaDevice
+   */
+  public void startWithoutListening() {
+    started = true;
   }
 
   /**
@@ -173,6 +220,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
     if (reader != null) {
       reader.setStop(true);
     }
+
+    stopCoalescing();
+    stopAsynchronousOutput();
   }
 
   /**
@@ -265,6 +315,8 @@ public abstract class INDIDriver implements INDIProtocolParser {
 
   /**
    * Parses the XML messages. Should not be called by particular Drivers.
+   * Each of the messages is converted into a <code>INDIMessage</code> and
+   * parsed by <code>parseMessage</code>.
    *
    * @param doc the messages to be parsed.
    */
@@ -284,45 +336,54 @@ public abstract class INDIDriver implements INDIProtocolParser {
       if (n instanceof Element) {
         Element child = (Element)n;
 
-        parseXMLElement(child);
+        INDIMessage message;
+
+        try {
+          message = new INDIMessage(child);
+        } catch (IllegalArgumentException e) {  // Not a INDI message
+          continue;
+        }
+
+        parseMessage(message);
       }
     }
   }
 
   /**
-   * Parses a particular XML Element.
+   * Parses a typed message. Should not be called by particular Drivers.
    *
-   * @param xml The XML element to be parsed.
+   * @param message the message to be parsed.
    */
-  private void parseXMLElement(Element xml) {
-    INDIDriver subd = getSubdriver(xml);
+  @Override
+  public void parseMessage(INDIMessage message) {
+    INDIDriver subd = getSubdriver(message);
 
     if (subd != null) {
-      subd.parseXMLElement(xml);
+      subd.parseMessage(message);
     } else {
-      String name = xml.getNodeName();
-
-      if (name.equals("getProperties")) {
-        processGetProperties(xml);
-      } else if (name.equals("newTextVector")) {
-        processNewTextVector(xml);
-      } else if (name.equals("newSwitchVector")) {
-        processNewSwitchVector(xml);
-      } else if (name.equals("newNumberVector")) {
-        processNewNumberVector(xml);
-      } else if (name.equals("newBLOBVector")) {
-        processNewBLOBVector(xml);
+      MessageTypes type = message.getType();
+
+      if (type == MessageTypes.GET_PROPERTIES) {
+        processGetProperties(message);
+      } else if (type == MessageTypes.NEW_TEXT_VECTOR) {
+        processNewTextVector(message);
+      } else if (type == MessageTypes.NEW_SWITCH_VECTOR) {
+        processNewSwitchVector(message);
+      } else if (type == MessageTypes.NEW_NUMBER_VECTOR) {
+        processNewNumberVector(message);
+      } else if (type == MessageTypes.NEW_BLOB_VECTOR) {
+        processNewBLOBVector(message);
       }
     }
   }
 
   /**
-   * Parses a &lt;newTextVector&gt; XML message.
+   * Parses a &lt;newTextVector&gt; message.
    *
-   * @param xml The &lt;newTextVector&gt; XML message to be parsed.
+   * @param message The &lt;newTextVector&gt; message to be parsed.
    */
-  private void processNewTextVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewTextVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -332,9 +393,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDITextElementAndValue[] newEvs = new INDITextElementAndValue[evs.length];
 
@@ -359,17 +420,17 @@ public abstract class INDIDriver implements INDIProtocolParser {
   public abstract void processNewTextValue(INDITextProperty property, Date timestamp, INDITextElementAndValue[] elementsAndValues);
 
   /**
-   * Parses a &lt;newSwitchVector&gt; XML message. If the switch is the standard
+   * Parses a &lt;newSwitchVector&gt; message. If the switch is the standard
    * CONNECTION property it will analyze the message and call the
    * <code>driverConnect</code> and
    * <code>driverDisconnect</code> methods from
    * <code>INDIConnectionHandler</code>.
    *
-   * @param xml The &lt;newSwitchVector&gt; XML message to be parsed.
+   * @param message The &lt;newSwitchVector&gt; message to be parsed.
    * @see INDIConnectionHandler
    */
-  private void processNewSwitchVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewSwitchVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -379,9 +440,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDISwitchElementAndValue[] newEvs = new INDISwitchElementAndValue[evs.length];
 
@@ -455,12 +516,12 @@ public abstract class INDIDriver implements INDIProtocolParser {
   public abstract void processNewSwitchValue(INDISwitchProperty property, Date timestamp, INDISwitchElementAndValue[] elementsAndValues);
 
   /**
-   * Parses a &lt;newNumberVector&gt; XML message.
+   * Parses a &lt;newNumberVector&gt; message.
    *
-   * @param xml The &lt;newNumberVector&gt; XML message to be parsed.
+   * @param message The &lt;newNumberVector&gt; message to be parsed.
    */
-  private void processNewNumberVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewNumberVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -470,9 +531,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDINumberElementAndValue[] newEvs = new INDINumberElementAndValue[evs.length];
 
@@ -498,12 +559,12 @@ public abstract class INDIDriver implements INDIProtocolParser {
   public abstract void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues);
 
   /**
-   * Parses a &lt;newBLOBVector&gt; XML message.
+   * Parses a &lt;newBLOBVector&gt; message.
    *
-   * @param xml The &lt;newBLOBVector&gt; XML message to be parsed.
+   * @param message The &lt;newBLOBVector&gt; message to be parsed.
    */
-  private void processNewBLOBVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewBLOBVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -513,9 +574,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDIBLOBElementAndValue[] newEvs = new INDIBLOBElementAndValue[evs.length];
 
@@ -541,46 +602,20 @@ public abstract class INDIDriver implements INDIProtocolParser {
 
   /**
    * Returns an array of Elements and its corresponded requested values from a
-   * XML message.
+   * message.
    *
    * @param property The property from which to parse the Elements.
-   * @param xml The XML message
+   * @param message The message
    * @return An array of Elements and its corresponding requested values
    */
-  private INDIElementAndValue[] processINDIElements(INDIProperty property, Element xml) {
-
-    String oneType;
-    if (property instanceof INDITextProperty) {
-      oneType = "oneText";
-    } else if (property instanceof INDIBLOBProperty) {
-      oneType = "oneBLOB";
-    } else if (property instanceof INDINumberProperty) {
-      oneType = "oneNumber";
-    } else if (property instanceof INDISwitchProperty) {
-      oneType = "oneSwitch";
-    } else {
-      return new INDIElementAndValue[0];
-    }
-
+  private INDIElementAndValue[] processINDIElements(INDIProperty property, INDIMessage message) {
     ArrayList<INDIElementAndValue> list = new ArrayList<INDIElementAndValue>();
 
-    NodeList nodes = xml.getChildNodes();
-
-    for (int i = 0 ; i < nodes.getLength() ; i++) {
-      Node n = nodes.item(i);
-
-      if (n instanceof Element) {
-        Element child = (Element)n;
-
-        String name = child.getNodeName();
+    for (int i = 0 ; i < message.getElementCount() ; i++) {
+      INDIElementAndValue ev = processOneXXX(property, message, i);
 
-        if (name.equals(oneType)) {
-          INDIElementAndValue ev = processOneXXX(property, child);
-
-          if (ev != null) {
-            list.add(ev);
-          }
-        }
+      if (ev != null) {
+        list.add(ev);
       }
     }
 
@@ -588,19 +623,20 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Processes a XML &lt;oneXXX&gt; message for a property.
+   * Processes a &lt;oneXXX&gt; Element of a message for a property.
    *
    * @param property The property from which to parse the Element.
-   * @param xml The &lt;oneXXX&gt; XML message
+   * @param message The message
+   * @param index The index of the &lt;oneXXX&gt; Element in the message
    * @return A Element and its corresponding requested value
    */
-  private INDIElementAndValue processOneXXX(INDIProperty property, Element xml) {
-    if (!xml.hasAttribute("name")) {
+  private INDIElementAndValue processOneXXX(INDIProperty property, INDIMessage message, int index) {
+    String elName = message.getElementName(index);
+
+    if (elName == null) {
       return null;
     }
 
-    String elName = xml.getAttribute("name");
-
     INDIElement el = property.getElement(elName);
 
     if (el == null) {
@@ -610,7 +646,7 @@ public abstract class INDIDriver implements INDIProtocolParser {
     Object value;
 
     try {
-      value = el.parseOneValue(xml);
+      value = el.parseOneValue(message, index);
     } catch (IllegalArgumentException e) {
       return null;
     }
@@ -629,35 +665,33 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Returns the subdriver to which a xml message is sent (if any).
+   * Returns the subdriver to which a message is sent (if any).
    * <code>null</code> if it is not directed to any subdriver.
    *
-   * @param xml The XML message
+   * @param message The message
    * @return The subdriver to which the message is directed.
    */
-  private INDIDriver getSubdriver(Element xml) {
-    if (!xml.hasAttribute("device")) {
+  private INDIDriver getSubdriver(INDIMessage message) {
+    if (message.getDevice() == null) {
       return null;
     }
 
-    String deviceName = xml.getAttribute("device").trim();
-
-    return getSubdriver(deviceName);
+    return getSubdriver(message.getDevice());
   }
 
   /**
    * Processes a &lt;newXXXVector&gt; message.
    *
-   * @param xml The XML message
-   * @return The INDI Property to which the <code>xml</code> message refers.
+   * @param message The message
+   * @return The INDI Property to which the <code>message</code> refers.
    */
-  private INDIProperty processNewXXXVector(Element xml) {
-    if ((!xml.hasAttribute("device")) || (!xml.hasAttribute("name"))) {
+  private INDIProperty processNewXXXVector(INDIMessage message) {
+    if ((message.getDevice() == null) || (message.getName() == null)) {
       return null;
     }
 
-    String devName = xml.getAttribute("device");
-    String propName = xml.getAttribute("name");
+    String devName = message.getDevice();
+    String propName = message.getName();
 
     if (devName.compareTo(getName()) != 0) {  // If the message is not for this device
       return null;
@@ -671,25 +705,25 @@ public abstract class INDIDriver implements INDIProtocolParser {
   /**
    * Processes a &lt;getProperties&gt; message.
    *
-   * @param xml The XML message
+   * @param message The message
    */
-  private void processGetProperties(Element xml) {
-    if (!xml.hasAttribute("version")) {
+  private void processGetProperties(INDIMessage message) {
+    if (message.getVersion() == null) {
       printMessage("getProperties: no version specified\n");
 
       return;
     }
 
-    if (xml.hasAttribute("device")) {
-      String deviceName = xml.getAttribute("device").trim();
+    if (message.getDevice() != null) {
+      String deviceName = message.getDevice();
 
       if (deviceName.compareTo(deviceName) != 0) {  // not asking for this driver
         return;
       }
     }
 
-    if (xml.hasAttribute("name")) {
-      String propertyName = xml.getAttribute("name");
+    if (message.getName() != null) {
+      String propertyName = message.getName();
       INDIProperty p = getProperty(propertyName);
 
       if (p != null) {
@@ -782,14 +816,324 @@ public abstract class INDIDriver implements INDIProtocolParser {
         }
       }
 
-      String msg = property.getXMLPropertySet(message);
+      synchronized (xmlBuffer) {
+        CoalescedUpdate c = coalescedUpdates.get(property);
+
+        if (c == null) {
+          sendSetXXXVectorMessage(property, message, false);
+
+          return;
+        }
+
+        if (c.pending) {  // A trailing update will send the latest values
+          if (message != null) {
+            c.message = message;
+          }
+
+          return;
+        }
+
+        long now = System.nanoTime();
+        long wait = c.lastUpdate + c.interval - now;
+
+        if ((c.sent) && (wait > 0)) {  // Too soon: delay it to the end of the interval
+          c.pending = true;
+          c.message = message;
 
-      sendXML(msg);
+          getCoalescingTimer().schedule(new TrailingUpdateTask(property), wait / 1000000 + 1);
+
+          return;
+        }
+
+        c.sent = true;
+        c.lastUpdate = now;
+
+        if (!sendSetXXXVectorMessage(property, message, true)) {  // Dropped: a trailing update at the end of the interval repairs its loss
+          c.pending = true;
+
+          getCoalescingTimer().schedule(new TrailingUpdateTask(property), c.interval / 1000000 + 1);
+        }
+      }
     } else {
       throw new INDIException("The Property is not from this driver. Maybe you forgot to add it?");
     }
   }
 
+  /**
+   * Sends a &lt;setXXXVector&gt; message about a property to the clients
+   * (unless it uses delta updates and nothing has changed). Must be called
+   * while holding the lock of the reusable buffer.
+   *
+   * @param property The property that will be notified.
+   * @param message The message to be sended with the update (may be
+   * <code>null</code>).
+   * @param droppable <code>true</code> if the update may be dropped when the
+   * output queue is full, because the caller sends a later update in that
+   * case. Only complete updates without a message are actually dropped.
+   * @return <code>true</code> if the update has been sent (or queued) or was
+   * not needed, <code>false</code> if it has been dropped.
+   */
+  private boolean sendSetXXXVectorMessage(INDIProperty property, String message, boolean droppable) {
+    if (!property.isUpdateNeeded(message)) {  // Delta updates and nothing has changed
+      return true;
+    }
+
+    xmlBuffer.setLength(0);
+
+    property.appendXMLPropertySet(xmlBuffer, message);
+
+    return sendXMLBuffer((droppable) && (!property.isDeltaUpdates()) && (message == null));
+  }
+
+  /**
+   * Sets the minimum interval between two updates of a Property. The updates
+   * requested (with <code>updateProperty</code>) before the interval has
+   * elapsed are coalesced into a single trailing update with the latest
+   * values (and the latest message, if any) that is sent at the end of the
+   * interval, so the clients always end with the final state of the
+   * Property. Useful for Properties that are updated by very chatty driver
+   * logic.
+   *
+   * @param property The Property.
+   * @param milliseconds The minimum interval (in milliseconds) between two
+   * updates of the Property. <code>0</code> to send all the updates
+   * immediately (the default).
+   */
+  protected void setMinimumUpdateInterval(INDIProperty property, long milliseconds) {
+    synchronized (xmlBuffer) {
+      if (milliseconds <= 0) {
+        CoalescedUpdate c = coalescedUpdates.remove(property);
+
+        if ((c != null) && (c.pending)) {  // Send the delayed values now
+          c.pending = false;
+
+          if (properties.containsValue(property)) {
+            sendSetXXXVectorMessage(property, c.message, false);
+          }
+        }
+      } else {
+        CoalescedUpdate c = coalescedUpdates.get(property);
+
+        if (c == null) {
+          c = new CoalescedUpdate();
+
+          coalescedUpdates.put(property, c);
+        }
+
+        c.interval = milliseconds * 1000000;
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum rate of updates of a Property. It is equivalent to
+   * <code>setMinimumUpdateInterval(property, 1000 / updatesPerSecond)</code>.
+   *
+   * @param property The Property.
+   * @param updatesPerSecond The maximum number of updates per second of the
+   * Property. <code>0</code> (or negative) to send all the updates
+   * immediately (the default).
+   * @see #setMinimumUpdateInterval
+   */
+  protected void setMaximumUpdateRate(INDIProperty property, double updatesPerSecond) {
+    if (updatesPerSecond <= 0) {
+      setMinimumUpdateInterval(property, 0);
+    } else {
+      setMinimumUpdateInterval(property, Math.max(1, Math.round(1000 / updatesPerSecond)));
+    }
+  }
+
+  /**
+   * Gets the minimum interval between two updates of a Property.
+   *
+   * @param property The Property.
+   * @return The minimum interval (in milliseconds) between two updates of the
+   * Property. <code>0</code> if all the updates are sent immediately.
+   * @see #setMinimumUpdateInterval
+   */
+  protected long getMinimumUpdateInterval(INDIProperty property) {
+    synchronized (xmlBuffer) {
+      CoalescedUpdate c = coalescedUpdates.get(property);
+
+      if (c == null) {
+        return 0;
+      }
+
+      return c.interval / 1000000;
+    }
+  }
+
+  /**
+   * Makes the messages to the clients to be sent from a dedicated thread, so
+   * that the threads that update the Properties never block on the output
+   * stream. The messages are queued in a bounded queue and written in
+   * batches, with a single flush per batch. If the queue gets full the
+   * complete updates (without a message) of the rate limited Properties
+   * without delta updates are dropped (and a trailing update with the latest
+   * values is sent at the end of their interval), and any other message waits
+   * for some room in the queue. Usually called in the constructor of the Driver.
+   *
+   * @param queueCapacity The maximum number of messages waiting to be sent.
+   * @see #getOutputQueueDepth()
+   * @see #getDroppedOutputMessages()
+   */
+  protected void startAsynchronousOutput(int queueCapacity) {
+    synchronized (xmlBuffer) {
+      if (asynchronousWriter != null) {
+        return;
+      }
+
+      asynchronousWriter = new INDIAsynchronousWriter(encoder, queueCapacity, "INDI Driver writer " + getName());
+      asynchronousWriter.start();
+    }
+  }
+
+  /**
+   * Makes the messages to the clients to be sent synchronously again, once
+   * all the queued messages have been sent.
+   */
+  protected void stopAsynchronousOutput() {
+    synchronized (xmlBuffer) {  // The writer thread never takes this lock
+      if (asynchronousWriter != null) {
+        asynchronousWriter.stop();  // Waits for the queued messages to be written
+        asynchronousWriter = null;
+      }
+    }
+  }
+
+  /**
+   * Gets the number of messages waiting to be sent to the clients.
+   *
+   * @return The number of messages waiting to be sent (always 0 if the
+   * messages are sent synchronously).
+   */
+  public int getOutputQueueDepth() {
+    INDIAsynchronousWriter w = asynchronousWriter;
+
+    if (w == null) {
+      return 0;
+    }
+
+    return w.getQueueDepth();
+  }
+
+  /**
+   * Gets the number of updates to the clients that have been dropped because
+   * the output queue was full.
+   *
+   * @return The number of dropped messages (always 0 if the messages are sent
+   * synchronously).
+   */
+  public long getDroppedOutputMessages() {
+    INDIAsynchronousWriter w = asynchronousWriter;
+
+    if (w == null) {
+      return 0;
+    }
+
+    return w.getDroppedMessages();
+  }
+
+  /**
+   * Gets the timer that sends the trailing coalesced updates, creating it if
+   * needed. Must be called while holding the lock of the reusable buffer.
+   *
+   * @return The timer that sends the trailing coalesced updates.
+   */
+  private Timer getCoalescingTimer() {
+    if (coalescingTimer == null) {
+      coalescingTimer = new Timer("INDI Driver update coalescing", true);
+    }
+
+    return coalescingTimer;
+  }
+
+  /**
+   * Cancels the timer that sends the trailing coalesced updates (and its
+   * pending updates) and forgets the coalescing state of the Properties. As
+   * the Drivers may be loaded and unloaded inside a Server, this avoids
+   * leaking the timer thread (and the Driver through its pending tasks).
+   */
+  private void stopCoalescing() {
+    synchronized (xmlBuffer) {
+      if (coalescingTimer != null) {
+        coalescingTimer.cancel();
+        coalescingTimer = null;
+      }
+
+      coalescedUpdates.clear();
+    }
+  }
+
+  /**
+   * The coalescing state of a Property whose updates are rate limited.
+   */
+  private static class CoalescedUpdate {
+
+    /**
+     * The minimum interval between two updates (in nanoseconds).
+     */
+    private long interval;
+    /**
+     * The moment of the last sent update (as given by
+     * <code>System.nanoTime()</code>).
+     */
+    private long lastUpdate;
+    /**
+     * <code>true</code> if any update has been sent.
+     */
+    private boolean sent;
+    /**
+     * <code>true</code> if a trailing update is scheduled.
+     */
+    private boolean pending;
+    /**
+     * The message of the trailing update (may be <code>null</code>).
+     */
+    private String message;
+  }
+
+  /**
+   * A task that sends the trailing update of a coalesced Property.
+   */
+  private class TrailingUpdateTask extends TimerTask {
+
+    /**
+     * The Property to be updated.
+     */
+    private INDIProperty property;
+
+    /**
+     * Constructs a new trailing update task.
+     *
+     * @param property The Property to be updated.
+     */
+    public TrailingUpdateTask(INDIProperty property) {
+      this.property = property;
+    }
+
+    @Override
+    public void run() {
+      synchronized (xmlBuffer) {
+        CoalescedUpdate c = coalescedUpdates.get(property);
+
+        if ((c == null) || (!c.pending)) {
+          return;
+        }
+
+        c.pending = false;
+        c.lastUpdate = System.nanoTime();
+
+        String message = c.message;
+        c.message = null;
+
+        if (properties.containsValue(property)) {
+          sendSetXXXVectorMessage(property, message, false);  // The last one of a burst: never dropped
+        }
+      }
+    }
+  }
+
   /**
    * Notifies the clients about a new property with a
    * <code>message</code>. The
@@ -800,9 +1144,13 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * @param message
    */
   private void sendDefXXXVectorMessage(INDIProperty property, String message) {
-    String msg = property.getXMLPropertyDefinition(message);
+    synchronized (xmlBuffer) {
+      xmlBuffer.setLength(0);
 
-    sendXML(msg);
+      property.appendXMLPropertyDefinition(xmlBuffer, message);
+
+      sendXMLBuffer(false);
+    }
   }
 
   /**
@@ -814,8 +1162,51 @@ public abstract class INDIDriver implements INDIProtocolParser {
     /*
      * if (XML.length() < 500) { printMessage(XML); }
      */
-    out.print(XML);
-    out.flush();
+    synchronized (xmlBuffer) {
+      if (asynchronousWriter != null) {
+        asynchronousWriter.write(XML);
+
+        return;
+      }
+
+      try {
+        encoder.write(XML);
+      } catch (IOException e) {  // As with the PrintWriter, errors are silently ignored
+      }
+    }
+  }
+
+  /**
+   * Sends the message in the reusable buffer to the clients. The buffer is
+   * replaced by a small one after sending big messages (usually BLOBs) so that
+   * it does not retain too much memory. Must be called while holding the lock
+   * of the buffer.
+   *
+   * @param droppable <code>true</code> if the message may be dropped when the
+   * output queue is full (only for complete updates without a message that
+   * are followed by a later update if they are dropped).
+   * @return <code>true</code> if the message has been sent (or queued),
+   * <code>false</code> if it has been dropped.
+   */
+  private boolean sendXMLBuffer(boolean droppable) {
+    boolean sent = true;
+
+    if (asynchronousWriter != null) {
+      sent = asynchronousWriter.write(xmlBuffer.toString(), droppable);
+    } else {
+      try {
+        encoder.write(xmlBuffer);
+      } catch (IOException e) {  // As with the PrintWriter, errors are silently ignored
+      }
+    }
+
+    if (xmlBuffer.length() > MAX_REUSABLE_BUFFER_SIZE) {
+      xmlBuffer.setLength(0);
+      xmlBuffer.trimToSize();
+      xmlBuffer.ensureCapacity(1024);
+    }
+
+    return sent;
   }
 
   /**
@@ -969,5 +1360,6 @@ public abstract class INDIDriver implements INDIProtocolParser {
   public void isBeingDestroyed() {
     finishReader();
     removeDevice("Removing " + getName());
+    stopCoalescing();
   }
 }
@@ -17,6 +17,8 @@
  */
 package laazotea.indi.driver;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
@@ -52,7 +54,8 @@ public class INDIDriverRunner {
     try {
       Class theClass = Class.forName(args[0]);
       Constructor c = theClass.getConstructor(InputStream.class, OutputStream.class);
-      driver = (INDIDriver)c.newInstance(System.in, System.out);
+      // The standard output is used directly (without the buffering of System.out) so that the messages are written through its channel
+      driver = (INDIDriver)c.newInstance(System.in, new FileOutputStream(FileDescriptor.out));
     } catch (ClassNotFoundException ex) {
       System.err.println(ex + " class must be in class path.");
       System.exit(-1);
@@ -18,6 +18,7 @@
 package laazotea.indi.driver;
 
 import java.io.Serializable;
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -46,6 +47,16 @@ public abstract class INDIElement implements Serializable {
    * The Property to which this Element belongs.
    */
   private INDIProperty property;
+  /**
+   * The cached beginning of the &lt;defXXX&gt; XML string (everything but the
+   * value). <code>null</code> if it has to be generated again.
+   */
+  private transient String cachedXMLDefElementHead;
+  /**
+   * <code>true</code> if the value of the Element has changed since it was
+   * last sent to the Clients.
+   */
+  private transient boolean changed;
 
   /**
    * Constructs an instance of
@@ -158,6 +169,17 @@ public abstract class INDIElement implements Serializable {
    */
   public abstract Object parseOneValue(Element xml);
 
+  /**
+   * Gets the desired value of a Element of a typed &lt;newXXXVector&gt;
+   * message.
+   *
+   * @param message The message to be parsed.
+   * @param index The index of the Element in the message.
+   * @return The value of the element described in the <code>message</code>.
+   * @throws IllegalArgumentException if the value is not correct.
+   */
+  public abstract Object parseOneValue(INDIMessage message, int index) throws IllegalArgumentException;
+
   /**
    * Sets the value of the Element to
    * <code>newValue</code>.
@@ -170,21 +192,159 @@ public abstract class INDIElement implements Serializable {
 
   /**
    * Gets a &lt;oneXXX&gt; XML string describing the current value of the
-   * Element.
+   * Element. Subclasses must override either this method or
+   * <code>appendXMLOneElement</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return the &lt;oneXXX&gt; XML string describing the current value of the
    * Element.
    */
-  protected abstract String getXMLOneElement();
+  protected String getXMLOneElement() {
+    String previous = INDIProperty.enterDefaultXMLMethod(this, "getXMLOneElement", "appendXMLOneElement");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLOneElement(xml);
+
+      return xml.toString();
+    } finally {
+      INDIProperty.exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets a &lt;defXXX&gt; XML string describing the current value and
-   * properties of the Element.
+   * properties of the Element. Subclasses must override either this method
+   * or <code>appendXMLDefElementHead</code> and
+   * <code>appendXMLDefElementEnd</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return The &lt;defXXX&gt; XML string describing the current value and
    * properties of the Element.
    */
-  protected abstract String getXMLDefElement();
+  protected String getXMLDefElement() {
+    String previous = INDIProperty.enterDefaultXMLMethod(this, "getXMLDefElement", "appendXMLDefElementHead");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLDefElement(xml);
+
+      return xml.toString();
+    } finally {
+      INDIProperty.exitDefaultXMLMethod(previous);
+    }
+  }
+
+  /**
+   * Appends a &lt;oneXXX&gt; XML string describing the current value of the
+   * Element to a (reusable) buffer. By default it appends the string returned
+   * by <code>getXMLOneElement</code>, so the Elements that only implement that
+   * method keep working.
+   *
+   * @param xml The buffer to which the XML string is appended.
+   */
+  protected void appendXMLOneElement(StringBuilder xml) {
+    xml.append(getXMLOneElement());
+  }
+
+  /**
+   * Appends a &lt;defXXX&gt; XML string describing the current value and
+   * properties of the Element to a (reusable) buffer. The beginning of the
+   * string (which does not depend on the value) is cached, so defining the
+   * Element again (for example when a Client asks for all the Properties) is
+   * mostly a copy.
+   *
+   * @param xml The buffer to which the XML string is appended.
+   */
+  protected void appendXMLDefElement(StringBuilder xml) {
+    String head = cachedXMLDefElementHead;
+
+    if (head == null) {
+      StringBuilder aux = new StringBuilder();
+
+      appendXMLDefElementHead(aux);
+
+      head = aux.toString();
+      cachedXMLDefElementHead = head;
+    }
+
+    if (head.length() == 0) {  // Only getXMLDefElement is implemented
+      xml.append(getXMLDefElement());
+
+      return;
+    }
+
+    xml.append(head);
+
+    appendXMLDefElementEnd(xml);
+  }
+
+  /**
+   * Marks the value of the Element as changed, so that it is included in the
+   * next update of its Property when the delta updates are enabled. Must be
+   * called by the subclasses each time the value changes, after storing the
+   * new value (so a concurrent update that has just cleared the mark cannot
+   * miss it).
+   *
+   * @see INDIProperty#setDeltaUpdates
+   */
+  protected synchronized void markAsChanged() {
+    changed = true;
+  }
+
+  /**
+   * Gets if the value of the Element has changed since it was last sent to
+   * the Clients.
+   *
+   * @return <code>true</code> if the value has changed since it was last
+   * sent.
+   */
+  synchronized boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * Marks the value of the Element as sent to the Clients. It must be called
+   * just before appending the value to a message: a value set after it will
+   * be marked again, and so it will be sent in the next update.
+   */
+  synchronized void clearChanged() {
+    changed = false;
+  }
+
+  /**
+   * Discards the cached beginning of the &lt;defXXX&gt; XML string. Must be
+   * called each time any attribute of the Element (label, format, limits,
+   * etc.) changes.
+   */
+  protected void invalidateXMLDefElementCache() {
+    cachedXMLDefElementHead = null;
+  }
+
+  /**
+   * Appends the beginning of the &lt;defXXX&gt; XML string describing the
+   * Element: the opening tag with all its attributes. It must not depend on
+   * the value of the Element. By default it appends nothing, and the
+   * definitions are built with the (not cached) <code>getXMLDefElement</code>,
+   * which must be overridden in that case.
+   *
+   * @param xml The buffer to which the XML string is appended.
+   */
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+  }
+
+  /**
+   * Appends the end of the &lt;defXXX&gt; XML string describing the Element:
+   * its current value and the closing tag. It is only used (and must be
+   * overridden) when <code>appendXMLDefElementHead</code> is overridden. By
+   * default it appends nothing.
+   *
+   * @param xml The buffer to which the XML string is appended.
+   */
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
+  }
 
   /**
    * Gets the name of the element and its current value
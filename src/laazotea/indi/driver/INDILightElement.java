@@ -19,6 +19,7 @@ package laazotea.indi.driver;
 
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.LightStates;
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -89,16 +90,25 @@ public class INDILightElement extends INDIElement {
       throw new IllegalArgumentException("Value for a Light Element must be a INDILightElement.LightStates");
     }
 
+    boolean changed = ns != state;
+
     this.state = ns;
+
+    if (changed) {
+      markAsChanged();
+    }
   }
 
   @Override
   public String getXMLOneElement() {
-    String v = Constants.getLightStateAsString(state);
+    return super.getXMLOneElement();
+  }
 
-    String xml = "<oneLight name=\"" + this.getName() + "\">" + v + "</oneLight>";
+  @Override
+  protected void appendXMLOneElement(StringBuilder xml) {
+    String v = Constants.getLightStateAsString(state);
 
-    return xml;
+    xml.append("<oneLight name=\"").append(getName()).append("\">").append(v).append("</oneLight>");
   }
 
   @Override
@@ -107,16 +117,28 @@ public class INDILightElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String v = Constants.getLightStateAsString(state);
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+    xml.append("<defLight name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\">");
+  }
 
-    String xml = "<defLight name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + v + "</defLight>";
+  @Override
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
+    String v = Constants.getLightStateAsString(state);
 
-    return xml;
+    xml.append(v).append("</defLight>");
   }
 
   @Override
   public Object parseOneValue(Element xml) {
     return Constants.parseLightState(xml.getTextContent().trim());
   }
+
+  @Override
+  public Object parseOneValue(INDIMessage message, int index) {
+    if (message.getLightValue(index) == null) {
+      throw new IllegalArgumentException("Invalid value for Light State");
+    }
+
+    return message.getLightValue(index);
+  }
 }
@@ -20,7 +20,6 @@ package laazotea.indi.driver;
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
-import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
 
 /**
@@ -213,44 +212,24 @@ public class INDILightProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionAttributes(StringBuilder xml) {
+    xml.append("<defLightVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\" group=\"").append(getGroup()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\"");
   }
 
   @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defLightVector>";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionEnd(StringBuilder xml) {
+    xml.append("</defLightVector>");
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
+  protected void appendXMLPropertySetInit(StringBuilder xml, String message) {
+    xml.append("<setLightVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\"");
 
-    return xml;
+    appendXMLTimestampAndMessage(xml, message);
   }
 
   @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setLightVector>";
-
-    return xml;
+  protected void appendXMLPropertySetEnd(StringBuilder xml) {
+    xml.append("</setLightVector>");
   }
 }
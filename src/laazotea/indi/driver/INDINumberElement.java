@@ -19,6 +19,7 @@ package laazotea.indi.driver;
 
 import java.util.Formatter;
 import java.util.Locale;
+import laazotea.indi.INDIMessage;
 import laazotea.indi.INDISexagesimalFormatter;
 import org.w3c.dom.Element;
 
@@ -226,6 +227,8 @@ public class INDINumberElement extends INDIElement {
     }
 
     this.numberFormat = newNumberFormat;
+
+    invalidateXMLDefElementCache();
   }
 
   /**
@@ -348,6 +351,8 @@ public class INDINumberElement extends INDIElement {
    */
   private void setMax(String maxS) {
     max = parseNumber(maxS);
+
+    invalidateXMLDefElementCache();
   }
 
   /**
@@ -357,6 +362,8 @@ public class INDINumberElement extends INDIElement {
    */
   private void setMin(String minS) {
     min = parseNumber(minS);
+
+    invalidateXMLDefElementCache();
   }
 
   /**
@@ -366,6 +373,8 @@ public class INDINumberElement extends INDIElement {
    */
   private void setStep(String stepS) {
     step = parseNumber(stepS);
+
+    invalidateXMLDefElementCache();
   }
 
   /**
@@ -374,7 +383,15 @@ public class INDINumberElement extends INDIElement {
    * @throws IllegalArgumentException if it is not a value within the limits.
    */
   private void setValueAsString(String valueS) throws IllegalArgumentException {
-    value = parseNumber(valueS);
+    double v = parseNumber(valueS);
+
+    boolean changed = Double.compare(v, value) != 0;
+
+    value = v;
+
+    if (changed) {
+      markAsChanged();
+    }
 
     if ((value < min) || (value > max)) {
       throw new IllegalArgumentException(getName() + " ; " + "Number (" + valueS + ") not in range [" + min + ", " + max + "]");
@@ -387,8 +404,14 @@ public class INDINumberElement extends INDIElement {
    * @throws IllegalArgumentException if it is not a value within the limits.
    */
   private void setValueAsdouble(double value) throws IllegalArgumentException {
+    boolean changed = Double.compare(value, this.value) != 0;
+
     this.value = value;
 
+    if (changed) {
+      markAsChanged();
+    }
+
     if ((value < min) || (value > max)) {
       throw new IllegalArgumentException(getName() + " ; " + "Number (" + value + ") not in range [" + min + ", " + max + "]");
     }
@@ -420,9 +443,12 @@ public class INDINumberElement extends INDIElement {
 
   @Override
   public String getXMLOneElement() {
-    String xml = "<oneNumber name=\"" + this.getName() + "\">" + value + "</oneNumber>";
+    return super.getXMLOneElement();
+  }
 
-    return xml;
+  @Override
+  protected void appendXMLOneElement(StringBuilder xml) {
+    xml.append("<oneNumber name=\"").append(getName()).append("\">").append(value).append("</oneNumber>");
   }
 
   @Override
@@ -431,10 +457,13 @@ public class INDINumberElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defNumber name=\"" + this.getName() + "\" label=\"" + getLabel() + "\" format=\"" + numberFormat + "\" min=\"" + min + "\" max=\"" + max + "\" step=\"" + step + "\">" + value + "</defNumber>";
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+    xml.append("<defNumber name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\" format=\"").append(numberFormat).append("\" min=\"").append(min).append("\" max=\"").append(max).append("\" step=\"").append(step).append("\">");
+  }
 
-    return xml;
+  @Override
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
+    xml.append(value).append("</defNumber>");
   }
 
   @Override
@@ -447,4 +476,19 @@ public class INDINumberElement extends INDIElement {
 
     return v;
   }
+
+  @Override
+  public Object parseOneValue(INDIMessage message, int index) {
+    double v = message.getNumberValue(index);
+
+    if (Double.isNaN(v)) {
+      throw new IllegalArgumentException(getName() + " ; " + "Number not correct");
+    }
+
+    if ((v < min) || (v > max)) {
+      throw new IllegalArgumentException(getName() + " ; " + "Number (" + v + ") not in range [" + min + ", " + max + "]");
+    }
+
+    return v;
+  }
 }
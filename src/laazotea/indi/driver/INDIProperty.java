@@ -29,6 +29,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
 
 /**
@@ -77,6 +78,24 @@ public abstract class INDIProperty implements Serializable {
    * A list of Elements for this Property
    */
   private LinkedHashMap<String, INDIElement> elements;
+  /**
+   * A cached array with the Elements of this Property (to iterate them
+   * without creating any garbage).
+   */
+  private transient INDIElement[] elementArray;
+  /**
+   * The cached opening of the definition message (with every attribute but
+   * the timestamp and message). <code>null</code> if it has to be generated
+   * again.
+   */
+  private transient String cachedXMLDefinitionAttributes;
+  /**
+   * The default String based XML method (of any Property or Element) being
+   * run by each thread. Used to detect the subclasses that override neither
+   * the String based method nor its <code>append</code> counterpart, which
+   * would otherwise call each other forever.
+   */
+  private static final ThreadLocal<String> DEFAULT_XML_METHOD = new ThreadLocal<String>();
   /**
    * <code>true</code> if property has completely init (sent to any client).
    */
@@ -89,6 +108,25 @@ public abstract class INDIProperty implements Serializable {
    * It marks if the property should be saved each time that it is changed.
    */
   private boolean saveable;
+  /**
+   * It marks if the updates of the property should only include the changed
+   * Elements (and be suppressed if nothing has changed).
+   */
+  private boolean deltaUpdates;
+  /**
+   * <code>true</code> if the values of the property have already been sent
+   * to the clients (in a definition or update message).
+   */
+  private transient boolean valuesSent;
+  /**
+   * The state of the property when its values were last sent to the clients.
+   */
+  private transient PropertyStates sentState;
+  /**
+   * The timeout of the property when its values were last sent to the
+   * clients.
+   */
+  private transient int sentTimeout;
 
   /**
    * Constructs an instance of a
@@ -185,6 +223,77 @@ public abstract class INDIProperty implements Serializable {
     this.driver = driver;
   }
 
+  /**
+   * Sets if the updates of this Property should only include the Elements
+   * whose values have changed since the last message sent to the clients
+   * (which is legal according to the INDI protocol). In this mode an update
+   * is not sent at all if neither the values, the state nor the timeout have
+   * changed (unless it carries a message). By default all the Elements are
+   * always sent.
+   *
+   * @param deltaUpdates <code>true</code> if only the changed Elements should
+   * be sent.
+   */
+  public void setDeltaUpdates(boolean deltaUpdates) {
+    this.deltaUpdates = deltaUpdates;
+  }
+
+  /**
+   * Gets if the updates of this Property only include the Elements whose
+   * values have changed.
+   *
+   * @return <code>true</code> if only the changed Elements are sent.
+   * @see #setDeltaUpdates
+   */
+  public boolean isDeltaUpdates() {
+    return deltaUpdates;
+  }
+
+  /**
+   * Gets if an update of this Property has to be sent to the clients. It is
+   * always the case unless the delta updates are enabled and nothing has
+   * changed since the last message.
+   *
+   * @param message The message to be sent with the update (may be
+   * <code>null</code>).
+   * @return <code>true</code> if the update has to be sent.
+   * @see #setDeltaUpdates
+   */
+  protected boolean isUpdateNeeded(String message) {
+    if ((!deltaUpdates) || (!valuesSent) || (message != null)) {
+      return true;
+    }
+
+    if ((state != sentState) || (timeout != sentTimeout)) {
+      return true;
+    }
+
+    INDIElement[] elem = getElementArray();
+
+    for (int i = 0 ; i < elem.length ; i++) {
+      if (elem[i].isChanged()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Marks the values, state and timeout of the Property as sent to the
+   * clients. The Elements are marked one by one as they are appended, so
+   * this only records the state and timeout (taken before appending the
+   * message, so a change while appending it is sent in the next update).
+   *
+   * @param state The state of the Property before appending the message.
+   * @param timeout The timeout of the Property before appending the message.
+   */
+  private void markValuesAsSent(PropertyStates state, int timeout) {
+    valuesSent = true;
+    sentState = state;
+    sentTimeout = timeout;
+  }
+
   /**
    * Gets the Driver of the Property.
    *
@@ -201,6 +310,8 @@ public abstract class INDIProperty implements Serializable {
    */
   public void setState(PropertyStates newState) {
     this.state = newState;
+
+    invalidateXMLDefinitionCache();
   }
 
   /**
@@ -215,6 +326,8 @@ public abstract class INDIProperty implements Serializable {
     }
 
     this.timeout = newTimeout;
+
+    invalidateXMLDefinitionCache();
   }
 
   /**
@@ -313,6 +426,8 @@ public abstract class INDIProperty implements Serializable {
     if (!isInit) {  // We still can add new properties
       if (!elements.containsValue(element)) {
         elements.put(element.getName(), element);
+
+        invalidateXMLDefinitionCache();
       }
     }
   }
@@ -391,25 +506,39 @@ public abstract class INDIProperty implements Serializable {
    * @return The XML code to define the property.
    */
   protected String getXMLPropertyDefinition(String message) {
-    String xml;
+    StringBuilder xml = new StringBuilder();
 
-    if (message == null) {
-      xml = getXMLPropertyDefinitionInit();
-    } else {
-      xml = getXMLPropertyDefinitionInit(message);
-    }
+    appendXMLPropertyDefinition(xml, message);
+
+    return xml.toString();
+  }
+
+  /**
+   * Appends the XML code to define the property with a <code>message</code>
+   * to a (reusable) buffer. Should not usually be called by the Drivers.
+   *
+   * @param xml The buffer to which the XML code is appended.
+   * @param message An message to be sent to the client when defining the
+   * property. May be <code>null</code>.
+   */
+  protected void appendXMLPropertyDefinition(StringBuilder xml, String message) {
+    PropertyStates currentState = state;
+    int currentTimeout = timeout;
+
+    appendXMLPropertyDefinitionInit(xml, message);
 
-    List<INDIElement> elem = getElementsAsList();
+    INDIElement[] elem = getElementArray();
 
-    for (int i = 0 ; i < elements.size() ; i++) {
-      xml += elem.get(i).getXMLDefElement();
+    for (int i = 0 ; i < elem.length ; i++) {
+      elem[i].clearChanged();
+      elem[i].appendXMLDefElement(xml);
     }
 
-    xml += getXMLPropertyDefinitionEnd();
+    appendXMLPropertyDefinitionEnd(xml);
+
+    markValuesAsSent(currentState, currentTimeout);
 
     isInit = true; // The property now is initialized. No further changes allowed
-    
-    return xml;
   }
 
   /**
@@ -431,6 +560,24 @@ public abstract class INDIProperty implements Serializable {
    * @return The XML code to set the values of the property.
    */
   protected String getXMLPropertySet(String message) {
+    StringBuilder xml = new StringBuilder();
+
+    appendXMLPropertySet(xml, message);
+
+    return xml.toString();
+  }
+
+  /**
+   * Appends the XML code to set the values of the property with a
+   * <code>message</code> to a (reusable) buffer. If the delta updates are
+   * enabled only the Elements that have changed since the last message are
+   * included. Should not usually be called by the Drivers.
+   *
+   * @param xml The buffer to which the XML code is appended.
+   * @param message An message to be sent to the client when setting the values
+   * of the property. May be <code>null</code>.
+   */
+  protected void appendXMLPropertySet(StringBuilder xml, String message) {
     if (saveable) {
       try {
         saveToFile();
@@ -438,31 +585,186 @@ public abstract class INDIProperty implements Serializable {
       }
     }
 
-    String xml;
+    PropertyStates currentState = state;
+    int currentTimeout = timeout;
 
-    if (message == null) {
-      xml = getXMLPropertySetInit();
-    } else {
-      xml = getXMLPropertySetInit(message);
+    appendXMLPropertySetInit(xml, message);
+
+    boolean onlyChanged = deltaUpdates && valuesSent;
+    INDIElement[] elem = getElementArray();
+
+    for (int i = 0 ; i < elem.length ; i++) {
+      if ((!onlyChanged) || (elem[i].isChanged())) {
+        elem[i].clearChanged();  // Before reading the value, so a concurrent change is not lost
+        elem[i].appendXMLOneElement(xml);
+      }
     }
 
-    List<INDIElement> elem = getElementsAsList();
+    appendXMLPropertySetEnd(xml);
+
+    markValuesAsSent(currentState, currentTimeout);
+  }
 
-    for (int i = 0 ; i < elem.size() ; i++) {
-      xml += elem.get(i).getXMLOneElement();
+  /**
+   * Gets the Elements of this Property as an array. The array is cached, as
+   * Elements cannot be added once the Property has been sent to the clients.
+   *
+   * @return The Elements of this Property.
+   */
+  private INDIElement[] getElementArray() {
+    INDIElement[] elem = elementArray;
+
+    if ((elem == null) || (elem.length != elements.size())) {
+      elem = elements.values().toArray(new INDIElement[elements.size()]);
+
+      elementArray = elem;
     }
 
-    xml += getXMLPropertySetEnd();
+    return elem;
+  }
+
+  /**
+   * Appends the timestamp and the (optional) <code>message</code> attributes
+   * and closes the opening XML Element of this Property.
+   *
+   * @param xml The buffer to which the attributes are appended.
+   * @param message A message to be sent to the client. May be
+   * <code>null</code>.
+   */
+  protected void appendXMLTimestampAndMessage(StringBuilder xml, String message) {
+    xml.append(" timestamp=\"");
 
-    return xml;
+    INDIDateFormat.appendCurrentTimestamp(xml);
+
+    xml.append("\"");
+
+    if (message != null) {
+      xml.append(" message=\"").append(message).append("\"");
+    }
+
+    xml.append(">");
+  }
+
+  /**
+   * Appends the opening XML Element &lt;defXXXVector&gt; for this Property
+   * with an optional <code>message</code> to the client. Its attributes (but
+   * the timestamp and message) are cached until the metadata, state or
+   * timeout of the Property change, so defining the Property again (for
+   * example when a Client asks for all the Properties) is mostly a copy.
+   *
+   * @param xml The buffer to which the XML Element is appended.
+   * @param message A message to be sent to the client. May be
+   * <code>null</code>.
+   */
+  protected void appendXMLPropertyDefinitionInit(StringBuilder xml, String message) {
+    String attributes = cachedXMLDefinitionAttributes;
+
+    if (attributes == null) {
+      StringBuilder aux = new StringBuilder();
+
+      appendXMLPropertyDefinitionAttributes(aux);
+
+      attributes = aux.toString();
+      cachedXMLDefinitionAttributes = attributes;
+    }
+
+    if (attributes.length() == 0) {  // Only the String based methods are implemented
+      if (message == null) {
+        xml.append(getXMLPropertyDefinitionInit());
+      } else {
+        xml.append(getXMLPropertyDefinitionInit(message));
+      }
+
+      return;
+    }
+
+    xml.append(attributes);
+
+    appendXMLTimestampAndMessage(xml, message);
+  }
+
+  /**
+   * Discards the cached opening of the definition message. Must be called
+   * each time any attribute of the Property (label, group, permission, state,
+   * timeout, Elements, etc.) changes.
+   */
+  protected void invalidateXMLDefinitionCache() {
+    cachedXMLDefinitionAttributes = null;
+  }
+
+  /**
+   * Appends the opening XML Element &lt;defXXXVector&gt; for this Property
+   * with all its attributes but the timestamp and message (and without
+   * closing it). By default it appends nothing, and the definitions are
+   * built with the (not cached) <code>getXMLPropertyDefinitionInit</code>
+   * methods, which must be overridden in that case.
+   *
+   * @param xml The buffer to which the XML Element is appended.
+   */
+  protected void appendXMLPropertyDefinitionAttributes(StringBuilder xml) {
+  }
+
+  /**
+   * Appends the closing XML Element &lt;/defXXXVector&gt; for this Property.
+   * By default it appends the string returned by
+   * <code>getXMLPropertyDefinitionEnd</code>.
+   *
+   * @param xml The buffer to which the XML Element is appended.
+   */
+  protected void appendXMLPropertyDefinitionEnd(StringBuilder xml) {
+    xml.append(getXMLPropertyDefinitionEnd());
+  }
+
+  /**
+   * Appends the opening XML Element &lt;setXXXVector&gt; for this Property
+   * with an optional <code>message</code> to the client. By default it appends
+   * the string returned by <code>getXMLPropertySetInit</code>.
+   *
+   * @param xml The buffer to which the XML Element is appended.
+   * @param message A message to be sent to the client. May be
+   * <code>null</code>.
+   */
+  protected void appendXMLPropertySetInit(StringBuilder xml, String message) {
+    if (message == null) {
+      xml.append(getXMLPropertySetInit());
+    } else {
+      xml.append(getXMLPropertySetInit(message));
+    }
+  }
+
+  /**
+   * Appends the closing XML Element &lt;/setXXXVector&gt; for this Property.
+   * By default it appends the string returned by
+   * <code>getXMLPropertySetEnd</code>.
+   *
+   * @param xml The buffer to which the XML Element is appended.
+   */
+  protected void appendXMLPropertySetEnd(StringBuilder xml) {
+    xml.append(getXMLPropertySetEnd());
   }
 
   /**
    * Gets the opening XML Element &lt;defXXXVector&gt; for this Property.
+   * Subclasses must override either both
+   * <code>getXMLPropertyDefinitionInit</code> methods or
+   * <code>appendXMLPropertyDefinitionAttributes</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return the opening XML Element &lt;defXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertyDefinitionInit();
+  protected String getXMLPropertyDefinitionInit() {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertyDefinitionInit", "appendXMLPropertyDefinitionAttributes");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertyDefinitionInit(xml, null);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets the opening XML Element &lt;defXXXVector&gt; for this Property with a
@@ -471,21 +773,63 @@ public abstract class INDIProperty implements Serializable {
    * @param message A message to be sent to the client.
    * @return the opening XML Element &lt;defXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertyDefinitionInit(String message);
+  protected String getXMLPropertyDefinitionInit(String message) {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertyDefinitionInit(String)", "appendXMLPropertyDefinitionAttributes");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertyDefinitionInit(xml, message);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets the closing XML Element &lt;/defXXXVector&gt; for this Property.
+   * Subclasses must override either this method or
+   * <code>appendXMLPropertyDefinitionEnd</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return the closing XML Element &lt;/defXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertyDefinitionEnd();
+  protected String getXMLPropertyDefinitionEnd() {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertyDefinitionEnd", "appendXMLPropertyDefinitionEnd");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertyDefinitionEnd(xml);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets the opening XML Element &lt;setXXXVector&gt; for this Property.
+   * Subclasses must override either both <code>getXMLPropertySetInit</code>
+   * methods or <code>appendXMLPropertySetInit</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return the opening XML Element &lt;setXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertySetInit();
+  protected String getXMLPropertySetInit() {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertySetInit", "appendXMLPropertySetInit");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertySetInit(xml, null);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets the opening XML Element &lt;setXXXVector&gt; for this Property with a
@@ -494,14 +838,78 @@ public abstract class INDIProperty implements Serializable {
    * @param message A message to be sent to the client.
    * @return the opening XML Element &lt;setXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertySetInit(String message);
+  protected String getXMLPropertySetInit(String message) {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertySetInit(String)", "appendXMLPropertySetInit");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertySetInit(xml, message);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
 
   /**
    * Gets the closing XML Element &lt;/setXXXVector&gt; for this Property.
+   * Subclasses must override either this method or
+   * <code>appendXMLPropertySetEnd</code>. Otherwise an
+   * <code>IllegalStateException</code> is thrown.
    *
    * @return the closing XML Element &lt;/setXXXVector&gt; for this Property.
    */
-  protected abstract String getXMLPropertySetEnd();
+  protected String getXMLPropertySetEnd() {
+    String previous = enterDefaultXMLMethod(this, "getXMLPropertySetEnd", "appendXMLPropertySetEnd");
+
+    try {
+      StringBuilder xml = new StringBuilder();
+
+      appendXMLPropertySetEnd(xml);
+
+      return xml.toString();
+    } finally {
+      exitDefaultXMLMethod(previous);
+    }
+  }
+
+  /**
+   * Marks the start of a default String based XML method (which delegates to
+   * its <code>append</code> counterpart) in the current thread. The previous
+   * mark must be restored with <code>exitDefaultXMLMethod</code> when the
+   * method finishes.
+   *
+   * @param owner The Property or Element whose method is run.
+   * @param method The name of the method.
+   * @param counterpart The name of the <code>append</code> method that
+   * subclasses may override instead.
+   * @return The previous mark.
+   * @throws IllegalStateException if the same method is already being run by
+   * the current thread, that is, if the class of <code>owner</code> overrides
+   * neither the method nor its counterpart.
+   */
+  static String enterDefaultXMLMethod(Object owner, String method, String counterpart) {
+    String previous = DEFAULT_XML_METHOD.get();
+
+    if (method.equals(previous)) {
+      throw new IllegalStateException(owner.getClass().getName() + " must override " + method + " or " + counterpart);
+    }
+
+    DEFAULT_XML_METHOD.set(method);
+
+    return previous;
+  }
+
+  /**
+   * Restores the mark of the default String based XML method being run by
+   * the current thread.
+   *
+   * @param previous The mark returned by <code>enterDefaultXMLMethod</code>.
+   */
+  static void exitDefaultXMLMethod(String previous) {
+    DEFAULT_XML_METHOD.set(previous);
+  }
 
   /**
    * Saves the property and its elements to a file. Ideal to later restore it on
@@ -20,6 +20,7 @@ package laazotea.indi.driver;
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.SwitchRules;
 import laazotea.indi.Constants.SwitchStatus;
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -112,16 +113,25 @@ public class INDISwitchElement extends INDIElement {
       }
     }
 
+    boolean changed = ss != status;
+
     this.status = ss;
+
+    if (changed) {
+      markAsChanged();
+    }
   }
 
   @Override
   public String getXMLOneElement() {
-    String stat = Constants.getSwitchStatusAsString(status);
+    return super.getXMLOneElement();
+  }
 
-    String xml = "<oneSwitch name=\"" + this.getName() + "\">" + stat + "</oneSwitch>";
+  @Override
+  protected void appendXMLOneElement(StringBuilder xml) {
+    String stat = Constants.getSwitchStatusAsString(status);
 
-    return xml;
+    xml.append("<oneSwitch name=\"").append(getName()).append("\">").append(stat).append("</oneSwitch>");
   }
 
   @Override
@@ -130,16 +140,28 @@ public class INDISwitchElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String stat = Constants.getSwitchStatusAsString(status);
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+    xml.append("<defSwitch name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\">");
+  }
 
-    String xml = "<defSwitch name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + stat + "</defSwitch>";
+  @Override
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
+    String stat = Constants.getSwitchStatusAsString(status);
 
-    return xml;
+    xml.append(stat).append("</defSwitch>");
   }
 
   @Override
   public Object parseOneValue(Element xml) {
     return Constants.parseSwitchStatus(xml.getTextContent().trim());
   }
+
+  @Override
+  public Object parseOneValue(INDIMessage message, int index) {
+    if (message.getSwitchValue(index) == null) {
+      throw new IllegalArgumentException("Invalid value for Switch Status");
+    }
+
+    return message.getSwitchValue(index);
+  }
 }
@@ -24,7 +24,6 @@ import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.Constants.SwitchRules;
 import laazotea.indi.Constants.SwitchStatus;
-import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
 
 /**
@@ -427,44 +426,24 @@ public class INDISwitchProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" rule=\"" + Constants.getSwitchRuleAsString(getRule()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" rule=\"" + Constants.getSwitchRuleAsString(getRule()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionAttributes(StringBuilder xml) {
+    xml.append("<defSwitchVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\" group=\"").append(getGroup()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\" perm=\"").append(Constants.getPropertyPermissionAsString(getPermission())).append("\" rule=\"").append(Constants.getSwitchRuleAsString(getRule())).append("\" timeout=\"").append(getTimeout()).append("\"");
   }
 
   @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defSwitchVector>";
-
-    return xml;
+  protected void appendXMLPropertyDefinitionEnd(StringBuilder xml) {
+    xml.append("</defSwitchVector>");
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
+  protected void appendXMLPropertySetInit(StringBuilder xml, String message) {
+    xml.append("<setSwitchVector device=\"").append(getDriver().getName()).append("\" name=\"").append(getName()).append("\" state=\"").append(Constants.getPropertyStateAsString(getState())).append("\" timeout=\"").append(getTimeout()).append("\"");
 
-    return xml;
+    appendXMLTimestampAndMessage(xml, message);
   }
 
   @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setSwitchVector>";
-
-    return xml;
+  protected void appendXMLPropertySetEnd(StringBuilder xml) {
+    xml.append("</setSwitchVector>");
   }
 }
@@ -17,6 +17,7 @@
  */
 package laazotea.indi.driver;
 
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -88,14 +89,23 @@ public class INDITextElement extends INDIElement {
       throw new IllegalArgumentException("Value for a Text Element must be a String");
     }
 
+    boolean changed = (v == null) ? (value != null) : (!v.equals(value));
+
     this.value = v;
+
+    if (changed) {
+      markAsChanged();
+    }
   }
 
   @Override
   public String getXMLOneElement() {
-    String xml = "<oneText name=\"" + this.getName() + "\">" + value + "</oneText>";
+    return super.getXMLOneElement();
+  }
 
-    return xml;
+  @Override
+  protected void appendXMLOneElement(StringBuilder xml) {
+    xml.append("<oneText name=\"").append(getName()).append("\">").append(value).append("</oneText>");
   }
 
   @Override
@@ -104,14 +114,22 @@ public class INDITextElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defText name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + value + "</defText>";
+  protected void appendXMLDefElementHead(StringBuilder xml) {
+    xml.append("<defText name=\"").append(getName()).append("\" label=\"").append(getLabel()).append("\">");
+  }
 
-    return xml;
+  @Override
+  protected void appendXMLDefElementEnd(StringBuilder xml) {
+    xml.append(value).append("</defText>");
   }
 
   @Override
   public String parseOneValue(Element xml) {
     return xml.getTextContent().trim();
   }
+
+  @Override
+  public String parseOneValue(INDIMessage message, int index) {
+    return message.getTextValue(index);
+  }
 }
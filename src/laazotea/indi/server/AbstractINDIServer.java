@@ -18,15 +18,19 @@
 package laazotea.indi.server;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIMessageFramer;
+import laazotea.indi.INDIProtocolReader;
+import laazotea.indi.INDIThreadFactory;
+import laazotea.indi.XMLToString;
 import laazotea.indi.driver.INDIDriver;
-import laazotea.indi.driver.INDINotLoadableDriver;
 import org.w3c.dom.Element;
 
 /**
@@ -48,14 +52,20 @@ import org.w3c.dom.Element;
 public abstract class AbstractINDIServer implements Runnable {
 
   /**
-   * A list of Devices loaded by the server.
+   * A list of Devices loaded by the server. It is a copy on write list, so it
+   * can be iterated by any thread without any lock.
    */
-  private ArrayList<INDIDevice> devices;
+  private CopyOnWriteArrayList<INDIDevice> devices;
   /**
    * A list of clients (and devices if they are snooping) connected to the
-   * server.
+   * server. It is a copy on write list, so it can be iterated by any thread
+   * without any lock.
    */
-  private ArrayList<INDIDeviceListener> clients;
+  private CopyOnWriteArrayList<INDIDeviceListener> clients;
+  /**
+   * The index of the Devices and Properties to which the clients listen.
+   */
+  private INDISubscriptionIndex subscriptions;
   /**
    * The port to which the Server listens.
    */
@@ -64,11 +74,55 @@ public abstract class AbstractINDIServer implements Runnable {
    * The socket to which the Server listens.
    */
   private ServerSocket socket;
+  /**
+   * The channel of the socket to which the Server listens
+   * (<code>null</code> if the Server does not use event loops).
+   */
+  private ServerSocketChannel serverChannel;
   /**
    * If
    * <code>true</code> the mainThread will continue running.
    */
   private boolean mainThreadRunning;
+  /**
+   * The event loops that read from the Clients and Devices (<code>null</code>
+   * if each Client and Device is read by its own thread).
+   */
+  private INDIEventLoop[] eventLoops;
+  /**
+   * The index of the event loop to which the next Client or Device will be
+   * assigned.
+   */
+  private int nextEventLoop;
+  /**
+   * The maximum size (in bytes) of a non BLOB message read from a Client or
+   * Device.
+   */
+  private int maxMessageSize;
+  /**
+   * The maximum size (in bytes) of a BLOB message read from a Client or
+   * Device.
+   */
+  private int maxBLOBMessageSize;
+  /**
+   * The maximum size (in bytes) of the buffer used by each reader to keep the
+   * message being received.
+   */
+  private int readerMemoryBudget;
+  /**
+   * The maximum number of messages waiting to be sent to each Client.
+   */
+  private int maxClientQueuedMessages;
+  /**
+   * The maximum time (in milliseconds) that a Client may stay without
+   * receiving any of its pending messages.
+   */
+  private long maxClientLag;
+  /**
+   * The capacity (in bytes) of the buffer of the messages waiting to be
+   * delivered to each Java Driver (when using event loops).
+   */
+  private int javaDriverBufferSize;
 
   /**
    * Constructs a new Server. The Server begins to listen to the default port.
@@ -90,13 +144,56 @@ public abstract class AbstractINDIServer implements Runnable {
     initServer();
   }
 
+  /**
+   * Constructs a new Server that reads from all its Clients and Devices with
+   * a fixed number of event loop threads instead of a thread for each one of
+   * them. The event loops also accept the new Clients and write the messages
+   * to them without blocking, so the Server can serve hundreds of Clients
+   * with just a few threads. The Server begins to listen to a particular
+   * port.
+   *
+   * @param listeningPort The port to which the Server will listen.
+   * @param eventLoopThreads The number of event loop threads (usually between
+   * 1 and the number of available processors). If 0 each Client and Device
+   * will be read by its own thread.
+   * @throws INDIException if the event loops cannot be created.
+   * @see INDIEventLoop
+   */
+  protected AbstractINDIServer(int listeningPort, int eventLoopThreads) throws INDIException {
+    this.listeningPort = listeningPort;
+
+    if (eventLoopThreads > 0) {
+      eventLoops = new INDIEventLoop[eventLoopThreads];
+
+      for (int i = 0 ; i < eventLoopThreads ; i++) {
+        try {
+          eventLoops[i] = new INDIEventLoop();
+        } catch (IOException e) {
+          throw new INDIException("Could not create the event loops: " + e.getMessage());
+        }
+
+        eventLoops[i].start();
+      }
+    }
+
+    initServer();
+  }
+
   /**
    * Inits the Server and launches the listening thread.
    */
   private void initServer() {
+    nextEventLoop = 0;
+    maxMessageSize = INDIMessageFramer.DEFAULT_MAX_MESSAGE_SIZE;
+    maxBLOBMessageSize = INDIMessageFramer.DEFAULT_MAX_BLOB_MESSAGE_SIZE;
+    readerMemoryBudget = INDIMessageFramer.DEFAULT_MAX_BLOB_MESSAGE_SIZE;
+    maxClientQueuedMessages = INDIClientOutputQueue.DEFAULT_MAX_QUEUED_MESSAGES;
+    maxClientLag = INDIClientOutputQueue.DEFAULT_MAX_LAG;
+    javaDriverBufferSize = INDIByteRing.DEFAULT_CAPACITY;
     mainThreadRunning = false;
-    devices = new ArrayList<INDIDevice>();
-    clients = new ArrayList<INDIDeviceListener>();
+    devices = new CopyOnWriteArrayList<INDIDevice>();
+    clients = new CopyOnWriteArrayList<INDIDeviceListener>();
+    subscriptions = new INDISubscriptionIndex();
 
     startListeningToClients();
   }
@@ -107,11 +204,117 @@ public abstract class AbstractINDIServer implements Runnable {
    */
   protected void startListeningToClients() {
     if (!mainThreadRunning) {
-      Thread serverThread = new Thread(this);
+      Thread serverThread = new Thread(this);  // Always a platform thread, as it keeps the Server alive
       serverThread.start();
     }
   }
 
+  /**
+   * Checks if the Server uses event loops.
+   *
+   * @return <code>true</code> if the Server uses event loops.
+   * <code>false</code> otherwise.
+   */
+  boolean usesEventLoops() {
+    return eventLoops != null;
+  }
+
+  /**
+   * Gets the event loop that will read from a new Client or Device. The
+   * event loops are assigned in turns.
+   *
+   * @return The event loop that will read from a new Client or Device
+   * (<code>null</code> if the Server does not use event loops).
+   */
+  protected synchronized INDIEventLoop getEventLoop() {
+    if (eventLoops == null) {
+      return null;
+    }
+
+    INDIEventLoop eventLoop = eventLoops[nextEventLoop];
+
+    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+    return eventLoop;
+  }
+
+  /**
+   * Sets the limits of the memory used by the readers of the Clients and
+   * Devices connected from now on. Messages bigger than their limit are
+   * dropped.
+   *
+   * @param maxMessageSize The maximum size (in bytes) of a non BLOB message.
+   * @param maxBLOBMessageSize The maximum size (in bytes) of a BLOB message.
+   * @param readerMemoryBudget The maximum size (in bytes) of the buffer used
+   * by each reader to keep the message being received.
+   */
+  public void setReaderLimits(int maxMessageSize, int maxBLOBMessageSize, int readerMemoryBudget) {
+    this.maxMessageSize = maxMessageSize;
+    this.maxBLOBMessageSize = maxBLOBMessageSize;
+    this.readerMemoryBudget = readerMemoryBudget;
+  }
+
+  /**
+   * Applies the memory limits of the Server to the reader of a Client or
+   * Device.
+   *
+   * @param reader The reader.
+   */
+  protected void configureReader(INDIProtocolReader reader) {
+    reader.setLimits(maxMessageSize, maxBLOBMessageSize, readerMemoryBudget);
+  }
+
+  /**
+   * Sets the limits of the output queues of the Clients connected from now
+   * on. Pending Property updates are replaced by newer ones with all their
+   * Elements (unless they carry a text message or a BLOB), but the rest of
+   * messages are never dropped: if a Client gets too many pending messages or
+   * does not receive any of them for too long it is disconnected.
+   *
+   * @param maxQueuedMessages The maximum number of messages waiting to be
+   * sent to each Client. If 0 the messages are sent synchronously by the
+   * thread that receives them from the Devices (except to the Clients served
+   * by the event loops, which are always queued with the default limits so
+   * that the loops never block writing).
+   * @param maxLag The maximum time (in milliseconds) that a Client may stay
+   * without receiving any of its pending messages.
+   */
+  public void setClientOutputLimits(int maxQueuedMessages, long maxLag) {
+    this.maxClientQueuedMessages = maxQueuedMessages;
+    this.maxClientLag = maxLag;
+  }
+
+  /**
+   * Applies the output limits of the Server to the queue of a Client.
+   *
+   * @param queue The output queue of the Client.
+   */
+  void configureOutputQueue(INDIClientOutputQueue queue) {
+    queue.setLimits(maxClientQueuedMessages, maxClientLag);
+  }
+
+  /**
+   * Sets the capacity of the buffer of the messages waiting to be delivered
+   * to each Java Driver loaded from now on. It is only used with event loops,
+   * which never wait for the Drivers to process the messages unless their
+   * buffer gets full.
+   *
+   * @param bufferSize The capacity (in bytes) of the buffer.
+   */
+  public void setJavaDriverBufferSize(int bufferSize) {
+    this.javaDriverBufferSize = bufferSize;
+  }
+
+  /**
+   * Gets the capacity of the buffer of the messages waiting to be delivered
+   * to each Java Driver.
+   *
+   * @return The capacity (in bytes) of the buffer.
+   */
+  int getJavaDriverBufferSize() {
+    return javaDriverBufferSize;
+  }
+
   /**
    * Gets the port to which the Server listens.
    *
@@ -121,14 +324,32 @@ public abstract class AbstractINDIServer implements Runnable {
     return listeningPort;
   }
 
+  /**
+   * Gets the channel of the socket to which the Server listens.
+   *
+   * @return The channel of the socket to which the Server listens
+   * (<code>null</code> if the Server does not use event loops).
+   */
+  ServerSocketChannel getServerChannel() {
+    return serverChannel;
+  }
+
   /**
    * The thread listens to the server socket and when a client connects, it is
-   * added to the list of clients.
+   * added to the list of clients. If the Server uses event loops the thread
+   * just opens the listening channel and hands it to the first event loop,
+   * which accepts the new Clients without blocking.
    */
   @Override
   public void run() {
     try {
-      socket = new ServerSocket(listeningPort);
+      if (eventLoops == null) {
+        socket = new ServerSocket(listeningPort);
+      } else {  // The sockets of the Clients must have channels to be read by the event loops
+        serverChannel = ServerSocketChannel.open();
+        socket = serverChannel.socket();
+        socket.bind(new InetSocketAddress(listeningPort));
+      }
     } catch (IOException e) {
       System.err.println("Could not listen on port: " + listeningPort + " (maybe busy)");
       return; // The thread will stop
@@ -139,6 +360,12 @@ public abstract class AbstractINDIServer implements Runnable {
 
     mainThreadRunning = true;
 
+    if (eventLoops != null) {
+      eventLoops[0].register(this);
+
+      return;
+    }
+
     while (mainThreadRunning) {
       Socket clientSocket;
 
@@ -152,21 +379,34 @@ public abstract class AbstractINDIServer implements Runnable {
       }
 
       if (clientSocket != null) {
-        if (acceptClient(clientSocket)) {
-          INDIClient client = new INDIClient(clientSocket, this);
+        clientConnected(clientSocket);
+      }
+    }
+  }
 
-          clients.add(client);
+  /**
+   * Adds a new Client to the Server if it is accepted, closing its socket
+   * otherwise. Called by the listening thread or by the event loop that
+   * accepts the connections.
+   *
+   * @param clientSocket The socket of the new connection.
+   * @see #acceptClient(java.net.Socket)
+   */
+  void clientConnected(Socket clientSocket) {
+    if (acceptClient(clientSocket)) {
+      INDIClient client = new INDIClient(clientSocket, this);
 
-          connectionWithClientEstablished(client);
-        } else {
-          try {
-            clientSocket.close();
-          } catch (IOException e) {
-          }
+      clients.add(client);
+      subscriptions.add(client);
 
-          // System.err.println("Client " + clientSocket.getInetAddress() + " rejected");
-        }
+      connectionWithClientEstablished(client);
+    } else {
+      try {
+        clientSocket.close();
+      } catch (IOException e) {
       }
+
+      // System.err.println("Client " + clientSocket.getInetAddress() + " rejected");
     }
   }
 
@@ -192,25 +432,57 @@ public abstract class AbstractINDIServer implements Runnable {
     } catch (IOException e) {
     }
 
-    for (int i = 0 ; i < clients.size() ; i++) {
-      if (clients.get(i) instanceof INDIClient) {
-        ((INDIClient) clients.get(i)).disconnect();
+    if (eventLoops != null) {  // There is no listening thread to notice it
+      System.err.println("Server has stopped listening to new Client connections");
+    }
+
+    for (INDIDeviceListener c : clients) {
+      if (c instanceof INDIClient) {
+        ((INDIClient) c).disconnect();
       }
     }
   }
 
   /**
-   * Loads all INDI for Java Drivers in a JAR file.
+   * Loads all INDI for Java Drivers in a JAR file. The Drivers are found by
+   * means of an index of the JAR file (see <code>INDIDriverIndex</code>), so
+   * that only their classes are loaded, and they are instantiated in
+   * parallel. The time taken is printed.
    *
    * @param jarFileName The jar file from which to load Drivers.
-   * @throws INDIException if there is a problem with the JAR file
+   * @throws INDIException if there is a problem with the JAR file or
+   * instantiating any of the Drivers (the rest of them are loaded anyway).
    */
-  public synchronized void loadJavaDriversFromJAR(String jarFileName) throws INDIException {
+  public void loadJavaDriversFromJAR(String jarFileName) throws INDIException {
     if (isAlreadyLoaded(jarFileName)) {
       throw new INDIException("JAR file already loaded.");
     }
 
-    ArrayList<String> list = getClassesInJAR(jarFileName);
+    ArrayList<INDIException> errors = new ArrayList<INDIException>();
+    ArrayList<INDIDevice> newDevices = createJavaDevicesFromJAR(jarFileName, errors, 0);
+
+    publishDevices(newDevices, jarFileName, "JAR file already loaded.");
+
+    if (!errors.isEmpty()) {
+      throw errors.get(0);
+    }
+  }
+
+  /**
+   * Instantiates (in parallel) the Drivers in a JAR file, without adding them
+   * to the Server. The time taken is printed.
+   *
+   * @param jarFileName The jar file from which to load Drivers.
+   * @param errors A list to which the problems instantiating the Drivers are
+   * added.
+   * @param deadline The time (in milliseconds) until which to wait for the
+   * Drivers to be instantiated (0 to wait for them forever). The Drivers
+   * instantiated later are destroyed.
+   * @return The Devices of the Drivers that have been instantiated.
+   * @throws INDIException if there is a problem with the JAR file.
+   */
+  private ArrayList<INDIDevice> createJavaDevicesFromJAR(String jarFileName, ArrayList<INDIException> errors, long deadline) throws INDIException {
+    long start = System.nanoTime();
 
     File file = new File(jarFileName);
     URL url;
@@ -224,31 +496,111 @@ public abstract class AbstractINDIServer implements Runnable {
     URL[] urls = new URL[]{url};
     ClassLoader cl = new URLClassLoader(urls);
 
-    for (int i = 0 ; i < list.size() ; i++) {
-      String className = list.get(i);
-      Class cls;
+    INDIDriverIndex index = new INDIDriverIndex(file, cl);
+    ArrayList<Class<? extends INDIDriver>> driverClasses = index.getDriverClasses();
 
-      try {
-        cls = cl.loadClass(className);
-      } catch (ClassNotFoundException e) {
-        throw new INDIException("Error loading class " + className);
-      }
+    for (int i = 0 ; i < driverClasses.size() ; i++) {
+      print("Loading Driver " + driverClasses.get(i).getName() + " from " + jarFileName);
+    }
+
+    final INDIJavaDevice[] created = new INDIJavaDevice[driverClasses.size()];
+    final INDIException[] createErrors = new INDIException[driverClasses.size()];
+    final boolean[] abandoned = new boolean[driverClasses.size()];
+    Thread[] threads = new Thread[driverClasses.size()];
+
+    for (int i = 0 ; i < threads.length ; i++) {
+      final int n = i;
+      final Class<? extends INDIDriver> cls = driverClasses.get(i);
+      final String identifier = jarFileName;
+
+      threads[i] = INDIThreadFactory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          INDIJavaDevice device = null;
+          INDIException error = null;
+
+          try {
+            device = new INDIJavaDevice(AbstractINDIServer.this, cls, identifier);
+          } catch (INDIException e) {
+            error = e;
+          } catch (RuntimeException e) {
+            error = new INDIException("Problem instantiating driver " + cls.getName() + " - " + e);
+          }
+
+          synchronized (created) {
+            if (!abandoned[n]) {
+              created[n] = device;
+              createErrors[n] = error;
+
+              return;
+            }
+          }
+
+          if (device != null) {  // Too late
+            device.destroy();
+          }
+        }
+      }, "INDI Driver Loader");
+
+      threads[i].start();
+    }
+
+    ArrayList<INDIDevice> newDevices = new ArrayList<INDIDevice>();
+    boolean interrupted = false;
+
+    for (int i = 0 ; i < threads.length ; i++) {
+      while (threads[i].isAlive()) {
+        long left = 0;
 
-      if (isINDIDriver(cls)) {
-        print("Loading Driver " + className + " from " + jarFileName);
+        if (deadline != 0) {
+          left = deadline - System.currentTimeMillis();
 
-        loadJavaDriver(cls, jarFileName);
+          if (left <= 0) {
+            break;
+          }
+        }
+
+        try {
+          threads[i].join(left);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
       }
     }
+
+    synchronized (created) {
+      for (int i = 0 ; i < threads.length ; i++) {
+        if (created[i] != null) {
+          newDevices.add(created[i]);
+        } else if (createErrors[i] != null) {
+          errors.add(createErrors[i]);
+        } else if (!threads[i].isAlive()) {  // Killed by an Error
+          errors.add(new INDIException("Problem instantiating driver " + driverClasses.get(i).getName()));
+        } else {  // Still being instantiated: it will be destroyed when ready
+          abandoned[i] = true;
+
+          errors.add(new INDIException("Timed out instantiating driver " + driverClasses.get(i).getName()));
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    print("Loaded " + newDevices.size() + " Drivers from " + jarFileName + " in " + ((System.nanoTime() - start) / 1000000) + " ms (" + index.getSource() + ")");
+
+    return newDevices;
   }
 
   /**
    * Gets the list of loaded Devices.
    *
-   * @return The list of loaded Devices.
+   * @return A snapshot of the list of loaded Devices (it is not modified if
+   * Devices are loaded or removed later).
    */
   protected ArrayList<INDIDevice> getDevices() {
-    return devices;
+    return new ArrayList<INDIDevice>(devices);
   }
 
   /**
@@ -260,10 +612,10 @@ public abstract class AbstractINDIServer implements Runnable {
    * FUTURE.
    * @throws INDIException If there is any problem instantiating the Driver.
    */
-  private synchronized void loadJavaDriver(Class cls, String identifier) throws INDIException {
+  private void loadJavaDriver(Class cls, String identifier) throws INDIException {
     INDIJavaDevice newDevice = new INDIJavaDevice(this, cls, identifier);
 
-    addDevice(newDevice);
+    publishDevice(newDevice, null, null);
   }
 
   /**
@@ -272,7 +624,7 @@ public abstract class AbstractINDIServer implements Runnable {
    * @param cls The Class of the driver to load.
    * @throws INDIException If there is any problem instantiating the Driver.
    */
-  public synchronized void loadJavaDriver(Class cls) throws INDIException {
+  public void loadJavaDriver(Class cls) throws INDIException {
     loadJavaDriver(cls, "class+-+" + cls.getName());
   }
 
@@ -283,7 +635,7 @@ public abstract class AbstractINDIServer implements Runnable {
    * process.
    * @throws INDIException if there is any problem executing the Driver.
    */
-  public synchronized void loadNativeDriver(String driverPath) throws INDIException {
+  public void loadNativeDriver(String driverPath) throws INDIException {
 
     if (isAlreadyLoaded(driverPath)) {
       throw new INDIException("Driver already loaded.");
@@ -295,7 +647,7 @@ public abstract class AbstractINDIServer implements Runnable {
 
     newDevice = new INDINativeDevice(this, driverPath);
 
-    addDevice(newDevice);
+    publishDevice(newDevice, driverPath, "Driver already loaded.");
   }
 
   /**
@@ -305,7 +657,7 @@ public abstract class AbstractINDIServer implements Runnable {
    * @param port The port of the Network Driver.
    * @throws INDIException if there is any problem with the connection.
    */
-  public synchronized void loadNetworkDriver(String host, int port) throws INDIException {
+  public void loadNetworkDriver(String host, int port) throws INDIException {
     String networkName = host + ":" + port;
 
     if (isAlreadyLoaded(networkName)) {
@@ -318,7 +670,97 @@ public abstract class AbstractINDIServer implements Runnable {
 
     newDevice = new INDINetworkDevice(this, host, port);
 
-    addDevice(newDevice);
+    publishDevice(newDevice, networkName, "Network Driver " + networkName + " already loaded.");
+  }
+
+  /**
+   * Loads a batch of Drivers concurrently. Each entry of the batch (a JAR
+   * file, a Native Driver or a Network Driver) is loaded in its own thread
+   * and its Devices are added to the Server as soon as they are ready, so a
+   * slow Driver does not delay the rest of them. The entries that are not
+   * ready before the timeout are abandoned (and destroyed if they get ready
+   * later). The entries whose Devices are still being added to the Server
+   * when the timeout expires are not waited for, and their result is set in
+   * the batch once they are added. The result of each entry is kept in the
+   * batch.
+   *
+   * @param batch The batch of Drivers.
+   * @param timeout The maximum time (in milliseconds) to wait for the
+   * entries of the batch.
+   */
+  public void loadDrivers(INDIDriverBatch batch, long timeout) {
+    long start = System.nanoTime();
+    long deadline = System.currentTimeMillis() + timeout;
+
+    DriverLoader[] loaders = new DriverLoader[batch.size()];
+
+    for (int i = 0 ; i < loaders.length ; i++) {
+      loaders[i] = new DriverLoader(batch.getEntry(i), deadline);
+
+      INDIThreadFactory.newThread(loaders[i], "INDI Driver Loader").start();
+    }
+
+    int loaded = 0;
+
+    for (int i = 0 ; i < loaders.length ; i++) {
+      if (loaders[i].await(deadline)) {
+        loaded++;
+      }
+    }
+
+    print("Loaded " + loaded + " of " + loaders.length + " Driver entries in " + ((System.nanoTime() - start) / 1000000) + " ms");
+  }
+
+  /**
+   * Adds a new Device to the Server, checking (atomically) that its
+   * identifier has not been already loaded.
+   *
+   * @param newDevice The new Device.
+   * @param identifier The identifier to check (<code>null</code> if it must
+   * not be checked).
+   * @param alreadyLoadedMessage The message of the exception if the
+   * identifier has been already loaded.
+   * @throws INDIException if the identifier has been already loaded (the
+   * new Device is destroyed).
+   */
+  private void publishDevice(INDIDevice newDevice, String identifier, String alreadyLoadedMessage) throws INDIException {
+    ArrayList<INDIDevice> newDevices = new ArrayList<INDIDevice>();
+
+    newDevices.add(newDevice);
+
+    publishDevices(newDevices, identifier, alreadyLoadedMessage);
+  }
+
+  /**
+   * Adds some new Devices to the Server at once, checking (atomically) that
+   * their identifier has not been already loaded.
+   *
+   * @param newDevices The new Devices.
+   * @param identifier The identifier to check (<code>null</code> if it must
+   * not be checked).
+   * @param alreadyLoadedMessage The message of the exception if the
+   * identifier has been already loaded.
+   * @throws INDIException if the identifier has been already loaded (the
+   * new Devices are destroyed).
+   */
+  private void publishDevices(ArrayList<INDIDevice> newDevices, String identifier, String alreadyLoadedMessage) throws INDIException {
+    synchronized (this) {
+      if (identifier != null && isAlreadyLoaded(identifier)) {
+        for (int i = 0 ; i < newDevices.size() ; i++) {
+          newDevices.get(i).destroy();
+        }
+
+        throw new INDIException(alreadyLoadedMessage);
+      }
+
+      for (int i = 0 ; i < newDevices.size() ; i++) {
+        addDevice(newDevices.get(i));
+      }
+    }
+
+    for (int i = 0 ; i < newDevices.size() ; i++) {  // Outside the lock, as they talk to the Drivers
+      startDevice(newDevices.get(i));
+    }
   }
 
   /**
@@ -331,9 +773,7 @@ public abstract class AbstractINDIServer implements Runnable {
    * <code>false</code> otherwise.
    */
   public boolean isAlreadyLoaded(String deviceIdentifier) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
-
+    for (INDIDevice d : devices) {
       if (d.isDevice(deviceIdentifier)) {
         return true;
       }
@@ -353,9 +793,7 @@ public abstract class AbstractINDIServer implements Runnable {
   private ArrayList<INDIDevice> getDevicesWithIdentifier(String deviceIdentifier) {
     ArrayList<INDIDevice> found = new ArrayList<INDIDevice>();
 
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
-
+    for (INDIDevice d : devices) {
       if (d.isDevice(deviceIdentifier)) {
         found.add(d);
       }
@@ -365,20 +803,27 @@ public abstract class AbstractINDIServer implements Runnable {
   }
 
   /**
-   * Adds a Device to the list of devices, starts its reading process and asks
-   * for the properties.
+   * Adds a Device to the list of devices (and of listeners).
    *
    * @param device The device to add.
    */
   private void addDevice(INDIDevice device) {
     devices.add(device);
     clients.add(device);
+    subscriptions.add(device);
+  }
 
+  /**
+   * Starts the reading process of a new Device and asks for its properties.
+   * Must be called without holding the lock of the Server, as the Drivers
+   * running in the Server may answer (and be routed) in the calling thread.
+   *
+   * @param device The device that has been added.
+   */
+  private void startDevice(INDIDevice device) {
     device.startReading();
 
-    String message = "<getProperties version=\"1.7\" />";  // Force the device to send its properties for already connected clients
-
-    device.sendXMLMessage(message);
+    device.requestAllProperties();  // Force the device to send its properties for already connected clients
   }
 
   /**
@@ -456,6 +901,7 @@ public abstract class AbstractINDIServer implements Runnable {
 
     devices.remove(device);
     clients.remove(device);
+    subscriptions.remove(device);
 
     notifyClientsDeviceRemoved(names);
 
@@ -501,67 +947,11 @@ public abstract class AbstractINDIServer implements Runnable {
    */
   protected void removeClient(INDIClient client) {
     clients.remove(client);
+    subscriptions.remove(client);
 
     connectionWithClientBroken(client);
   }
 
-  /**
-   * Checks if a Class is subclass of INDIDriver.
-   *
-   * @param c The class to check
-   * @return
-   * <code>true</code> if the Class inherits from INDIDriver.
-   * <code>false</code> otherwise.
-   */
-  private boolean isINDIDriver(Class c) {
-if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
-  return false; 
-}
-    Class s = c.getSuperclass();
-
-    while (s != null) {
-      if (s == INDIDriver.class) {
-        return true;
-      }
-
-      s = s.getSuperclass();
-    }
-
-    return false;
-  }
-
-  /**
-   * Gets a list of Strings with the name of the classes in a JAR file.
-   *
-   * @param file The JAR file.
-   * @return A list with all the names of the classes in the JAR file.
-   * @throws INDIException if there is any problem accessing to the JAR file.
-   */
-  private ArrayList<String> getClassesInJAR(String file) throws INDIException {
-
-    ArrayList<String> list = new ArrayList<String>();
-
-    try {
-      JarInputStream jarFile = new JarInputStream(new FileInputStream(file));
-      JarEntry jarEntry = jarFile.getNextJarEntry();
-      while (jarEntry != null) {
-        if (jarEntry.getName().endsWith(".class")) {
-          String n = jarEntry.getName().replace("/", ".");
-
-          n = n.substring(0, n.length() - 6);
-
-          list.add(n);
-        }
-
-        jarEntry = jarFile.getNextJarEntry();
-      }
-    } catch (IOException e) {
-      throw new INDIException("Error loading JAR file contents.");
-    }
-
-    return list;
-  }
-
   /**
    * Prints a message to the standard output.
    *
@@ -580,9 +970,9 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * <code>deviceName</code>.
    */
   protected INDIDevice getDevice(String deviceName) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      if (devices.get(i).hasName(deviceName)) {
-        return devices.get(i);
+    for (INDIDevice d : devices) {
+      if (d.hasName(deviceName)) {
+        return d;
       }
     }
 
@@ -595,10 +985,21 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * @param xml The message to send.
    */
   protected void sendXMLMessageToAllDevices(Element xml) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
+    ByteBuffer bytes = ByteBuffer.wrap(XMLToString.transformToBytes(xml));
 
-      d.sendXMLMessage(xml);
+    for (INDIDevice d : devices) {
+      d.sendXMLMessage(bytes);
+    }
+  }
+
+  /**
+   * Sends a typed message to all the Devices.
+   *
+   * @param message The message to send.
+   */
+  protected void sendXMLMessageToAllDevices(INDIMessage message) {
+    for (INDIDevice d : devices) {
+      d.sendXMLMessage(message);
     }
   }
 
@@ -608,38 +1009,43 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * @param xml The message to send.
    */
   protected void sendXMLMessageToAllClients(Element xml) {
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
+    ByteBuffer bytes = ByteBuffer.wrap(XMLToString.transformToBytes(xml));
+
+    for (INDIDeviceListener c : clients) {
+      if (c instanceof INDIClient) {
+        c.sendXMLMessage(bytes);
+      }
+    }
+  }
 
+  /**
+   * Sends a typed message to all the Clients.
+   *
+   * @param message The message to send.
+   */
+  protected void sendXMLMessageToAllClients(INDIMessage message) {
+    for (INDIDeviceListener c : clients) {
       if (c instanceof INDIClient) {
-        c.sendXMLMessage(xml);
+        c.sendXMLMessage(message);
       }
     }
   }
 
   /**
-   * Gets a list of Clients that listen to a Property.
+   * Gets a list of Clients that listen to a Property. The list is shared and
+   * must not be modified.
    *
    * @param deviceName The name of the Device of the Property.
    * @param propertyName The name of the Property.
    * @return A list of Clients that listen to a Property.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToProperty(String deviceName, String propertyName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToProperty(deviceName, propertyName)) {
-        list.add(c);
-      }
-    }
-
-    return list;
+    return subscriptions.getListenersToProperty(deviceName, propertyName);
   }
 
   /**
-   * Gets a list of Clients that listen to Property updates.
+   * Gets a list of Clients that listen to Property updates. The list is
+   * shared and must not be modified.
    *
    * @param deviceName The name of the Device of the Property.
    * @param propertyName The name of the Property.
@@ -647,72 +1053,39 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * @return A list of Clients that listen to a Property.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToPropertyUpdates(String deviceName, String propertyName, boolean isBLOB) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToProperty(deviceName, propertyName)) {
-        if (isBLOB) {
-          if (c.isBLOBAccepted(deviceName, propertyName))  {
-            list.add(c);
-          }
-        } else {
-          if (c.areNonBLOBsAccepted(deviceName)) {
-            list.add(c);
-          }
-        }
-      }
-    }
-
-    return list;
+    return subscriptions.getListenersToPropertyUpdates(deviceName, propertyName, isBLOB);
   }
 
   /**
    * Gets a list of Clients that specifically listen to a Property of a Device.
+   * The list is shared and must not be modified.
    *
    * @param deviceName The name of the Device.
    * @return A list of Clients that specifically listen to a Property of a
    * Device.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToSingleProperties(String deviceName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToSingleProperty(deviceName)) {
-        list.add(c);
-      }
-    }
-
-    return list;
+    return subscriptions.getListenersToSingleProperties(deviceName);
   }
 
   /**
-   * Gets a list of Clients that listen to a Device.
+   * Gets a list of Clients that listen to a Device. The list is shared and
+   * must not be modified.
    *
    * @param deviceName The name of the Device.
    * @return A list of Clients that specifically listen to a Device.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToDevice(String deviceName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToDevice(deviceName)) {
-        list.add(c);
-      }
-    }
-
-    return list;
+    return subscriptions.getListenersToDevice(deviceName);
   }
 
   /**
    * Must return
    * <code>true</code> is the Client that stablished this connection must be
-   * allowed in the Server. Otherwise the connection will be closed.
+   * allowed in the Server. Otherwise the connection will be closed. If the
+   * Server uses event loops it is called (as
+   * <code>connectionWithClientEstablished</code>) from the event loop that
+   * accepts the connections, so it should not block.
    *
    * @param socket The socket created with a possible client.
    * @return
@@ -730,6 +1103,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyDeviceListenersDefXXXVector(INDIDevice device, Element xml);
 
+  /**
+   * Notifies Clients of a typed
+   * <code>defXXXVector</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param device The Device sending the message.
+   * @param message The message.
+   */
+  protected void notifyDeviceListenersDefXXXVector(INDIDevice device, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersDefXXXVector(device, xml);
+    }
+  }
+
   /**
    * Notifies Clients of a
    * <code>setXXXVector</code> message.
@@ -739,6 +1129,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyDeviceListenersSetXXXVector(INDIDevice device, Element xml);
 
+  /**
+   * Notifies Clients of a typed
+   * <code>setXXXVector</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param device The Device sending the message.
+   * @param message The message.
+   */
+  protected void notifyDeviceListenersSetXXXVector(INDIDevice device, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersSetXXXVector(device, xml);
+    }
+  }
+
   /**
    * Notifies Clients of a
    * <code>message</code> message.
@@ -748,6 +1155,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyDeviceListenersMessage(INDIDevice device, Element xml);
 
+  /**
+   * Notifies Clients of a typed
+   * <code>message</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param device The Device sending the message.
+   * @param message The message.
+   */
+  protected void notifyDeviceListenersMessage(INDIDevice device, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersMessage(device, xml);
+    }
+  }
+
   /**
    * Notifies Clients of a
    * <code>delProperty</code> message.
@@ -757,6 +1181,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyDeviceListenersDelProperty(INDIDevice device, Element xml);
 
+  /**
+   * Notifies Clients of a typed
+   * <code>delProperty</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param device The Device sending the message.
+   * @param message The message.
+   */
+  protected void notifyDeviceListenersDelProperty(INDIDevice device, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersDelProperty(device, xml);
+    }
+  }
+
   /**
    * Notifies Devices of a
    * <code>getProperties</code> message.
@@ -766,6 +1207,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyClientListenersGetProperties(INDIDeviceListener client, Element xml);
 
+  /**
+   * Notifies Devices of a typed
+   * <code>getProperties</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param client The Client sending the message.
+   * @param message The message.
+   */
+  protected void notifyClientListenersGetProperties(INDIDeviceListener client, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyClientListenersGetProperties(client, xml);
+    }
+  }
+
   /**
    * Notifies Devices of a
    * <code>newXXXVector</code> message.
@@ -775,6 +1233,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyClientListenersNewXXXVector(INDIClient client, Element xml);
 
+  /**
+   * Notifies Devices of a typed
+   * <code>newXXXVector</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param client The Client sending the message.
+   * @param message The message.
+   */
+  protected void notifyClientListenersNewXXXVector(INDIClient client, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyClientListenersNewXXXVector(client, xml);
+    }
+  }
+
   /**
    * Notifies Devices of a
    * <code>enableBLOB</code> message (if necessary). Usually it is not necessary
@@ -786,6 +1261,23 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyClientListenersEnableBLOB(INDIClient client, Element xml);
 
+  /**
+   * Notifies Devices of a typed
+   * <code>enableBLOB</code> message. By default it converts the message into a
+   * XML Element and calls the <code>Element</code> version of this method.
+   * Servers should override it to avoid building any DOM tree.
+   *
+   * @param client The Client sending the message.
+   * @param message The message.
+   */
+  protected void notifyClientListenersEnableBLOB(INDIClient client, INDIMessage message) {
+    Element xml = message.toElement();
+
+    if (xml != null) {
+      notifyClientListenersEnableBLOB(client, xml);
+    }
+  }
+
   /**
    * Used to notify extending Servers that a Client connection has been broken.
    *
@@ -809,4 +1301,181 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * @param deviceNames The name of the devices that are no longer available.
    */
   protected abstract void driverDisconnected(String driverIdentifier, String[] deviceNames);
+
+  /**
+   * A class that loads an entry of a batch of Drivers (in its own thread) and
+   * adds its Devices to the Server as soon as they are ready, unless the entry
+   * has been abandoned because of a timeout (in which case the Devices are
+   * destroyed). The Devices are added without holding the lock of the
+   * loader, so that the thread waiting for it is not blocked while they
+   * request their Properties.
+   */
+  private class DriverLoader implements Runnable {
+
+    /**
+     * The entry of the batch.
+     */
+    private INDIDriverBatch.Entry entry;
+    /**
+     * The time (in nanoseconds) when the loading started.
+     */
+    private long start;
+    /**
+     * To know if the loading has finished.
+     */
+    private boolean finished;
+    /**
+     * To know if the entry has been abandoned.
+     */
+    private boolean abandoned;
+    /**
+     * To know if the Devices of the entry are being added to the Server (so
+     * it cannot be abandoned any more).
+     */
+    private boolean claimed;
+    /**
+     * The time (in milliseconds) until which the entry may be loaded.
+     */
+    private long deadline;
+
+    /**
+     * Constructs a new loader.
+     *
+     * @param entry The entry of the batch.
+     * @param deadline The time (in milliseconds) until which the entry may be
+     * loaded.
+     */
+    private DriverLoader(INDIDriverBatch.Entry entry, long deadline) {
+      this.entry = entry;
+      this.deadline = deadline;
+
+      start = System.nanoTime();
+      finished = false;
+      abandoned = false;
+      claimed = false;
+    }
+
+    @Override
+    public void run() {
+      String identifier = entry.getName();
+      String alreadyLoadedMessage;
+      ArrayList<INDIException> errors = new ArrayList<INDIException>();
+      ArrayList<INDIDevice> newDevices = new ArrayList<INDIDevice>();
+
+      switch (entry.getKind()) {
+        case JAVA:
+          alreadyLoadedMessage = "JAR file " + identifier + " already loaded.";
+          break;
+        case NATIVE:
+          alreadyLoadedMessage = "Driver " + identifier + " already loaded.";
+          break;
+        default:
+          alreadyLoadedMessage = "Network Driver " + identifier + " already loaded.";
+      }
+
+      try {
+        if (isAlreadyLoaded(identifier)) {
+          throw new INDIException(alreadyLoadedMessage);
+        }
+
+        switch (entry.getKind()) {
+          case JAVA:
+            newDevices = createJavaDevicesFromJAR(identifier, errors, deadline);
+            break;
+          case NATIVE:
+            print("Loading Native Driver " + identifier);
+
+            newDevices.add(new INDINativeDevice(AbstractINDIServer.this, identifier));
+            break;
+          default:
+            print("Loading Network Driver " + identifier);
+
+            newDevices.add(new INDINetworkDevice(AbstractINDIServer.this, entry.getHost(), entry.getPort()));
+        }
+      } catch (INDIException e) {
+        errors.add(0, e);
+      } catch (RuntimeException e) {
+        errors.add(0, new INDIException("Problem loading " + identifier + " - " + e));
+      }
+
+      synchronized (this) {
+        if (!abandoned) {
+          claimed = true;
+        }
+      }
+
+      boolean loaded = false;
+
+      if (!claimed) {
+        for (int i = 0 ; i < newDevices.size() ; i++) {
+          newDevices.get(i).destroy();
+        }
+      } else if (!newDevices.isEmpty()) {
+        try {
+          publishDevices(newDevices, identifier, alreadyLoadedMessage);
+
+          loaded = true;
+        } catch (INDIException e) {
+          errors.add(0, e);
+        }
+      }
+
+      synchronized (this) {
+        if (claimed) {
+          entry.setResult(loaded, errors.isEmpty() ? null : errors.get(0), getElapsedTime());
+        }
+
+        finished = true;
+
+        notifyAll();
+      }
+    }
+
+    /**
+     * Waits for the entry to be loaded. If it is not ready before the
+     * deadline (or the waiting thread is interrupted) it is abandoned. If its
+     * Devices are still being added to the Server it is not abandoned, but it
+     * is not waited for either.
+     *
+     * @param deadline The time (in milliseconds) until which to wait.
+     * @return <code>true</code> if the Devices of the entry have been added to
+     * the Server. <code>false</code> otherwise.
+     */
+    private synchronized boolean await(long deadline) {
+      while (!finished) {
+        long left = deadline - System.currentTimeMillis();
+
+        if (left > 0) {
+          try {
+            wait(left);
+
+            continue;
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+
+        if (claimed) {  // Its result will be set once the Devices are added
+          return false;
+        }
+
+        abandoned = true;
+
+        entry.setResult(false, new INDIException("Timed out loading " + entry.getName()), getElapsedTime());
+
+        return false;
+      }
+
+      return entry.isLoaded();
+    }
+
+    /**
+     * Gets the time taken by the loading.
+     *
+     * @return The time (in milliseconds) since the loading started.
+     */
+    private long getElapsedTime() {
+      return (System.nanoTime() - start) / 1000000;
+    }
+  }
 }
@@ -18,7 +18,12 @@
 package laazotea.indi.server;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import laazotea.indi.Constants.MessageTypes;
+import laazotea.indi.INDIException;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.XMLToString;
 import org.w3c.dom.Element;
 
 /**
@@ -50,6 +55,36 @@ public class DefaultINDIServer extends AbstractINDIServer {
     super(port);
   }
 
+  /**
+   * Constructs the server with a particular port that reads from all its
+   * Clients and Devices with a fixed number of event loop threads.
+   *
+   * @param port The port to which the server will listen.
+   * @param eventLoopThreads The number of event loop threads (0 to use a
+   * thread for each Client and Device).
+   * @throws INDIException if the event loops cannot be created.
+   */
+  public DefaultINDIServer(int port, int eventLoopThreads) throws INDIException {
+    super(port, eventLoopThreads);
+  }
+
+  /**
+   * Serializes a XML message once, so that the same bytes are sent to all the
+   * listeners.
+   *
+   * @param xml The message
+   * @param list The listeners to which the message will be sent.
+   * @return The serialized message (<code>null</code> if there are no
+   * listeners).
+   */
+  private ByteBuffer serialize(Element xml, ArrayList<INDIDeviceListener> list) {
+    if (list.isEmpty()) {
+      return null;
+    }
+
+    return ByteBuffer.wrap(XMLToString.transformToBytes(xml));
+  }
+
   /**
    * Sends the
    * <code>defXXXVector</code> message to the appropriate Clients.
@@ -64,10 +99,12 @@ public class DefaultINDIServer extends AbstractINDIServer {
 
     ArrayList<INDIDeviceListener> list = getClientsListeningToProperty(deviceName, propertyName);
 
+    ByteBuffer bytes = serialize(xml, list);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(bytes);
     }
   }
 
@@ -92,10 +129,12 @@ public class DefaultINDIServer extends AbstractINDIServer {
      
     ArrayList<INDIDeviceListener> list = getClientsListeningToPropertyUpdates(deviceName, propertyName, isBLOB);
 
+    ByteBuffer bytes = serialize(xml, list);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(bytes);
     }
   }
 
@@ -115,10 +154,12 @@ public class DefaultINDIServer extends AbstractINDIServer {
     } else {
       ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
 
+      ByteBuffer bytes = serialize(xml, list);
+
       for (int i = 0 ; i < list.size() ; i++) {
         INDIDeviceListener c = list.get(i);
 
-        c.sendXMLMessage(xml);
+        c.sendXMLMessage(bytes);
       }
     }
   }
@@ -136,10 +177,12 @@ public class DefaultINDIServer extends AbstractINDIServer {
    
     ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
           
+    ByteBuffer bytes = serialize(xml, list);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(bytes);
     }
   }
 
@@ -201,6 +244,145 @@ public class DefaultINDIServer extends AbstractINDIServer {
      */
   }
 
+  /**
+   * Sends the typed
+   * <code>defXXXVector</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyDeviceListenersDefXXXVector(INDIDevice device, INDIMessage message) {
+    ArrayList<INDIDeviceListener> list = getClientsListeningToProperty(message.getDevice(), message.getName());
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(message);
+    }
+  }
+
+  /**
+   * Sends the typed
+   * <code>setXXXVector</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyDeviceListenersSetXXXVector(INDIDevice device, INDIMessage message) {
+    boolean isBLOB = message.getType() == MessageTypes.SET_BLOB_VECTOR;
+
+    ArrayList<INDIDeviceListener> list = getClientsListeningToPropertyUpdates(message.getDevice(), message.getName(), isBLOB);
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(message);
+    }
+  }
+
+  /**
+   * Sends the typed
+   * <code>message</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyDeviceListenersMessage(INDIDevice device, INDIMessage message) {
+    String deviceName = message.getDevice();
+
+    if ((deviceName == null) || (deviceName.length() == 0)) {
+      sendXMLMessageToAllClients(message);
+    } else {
+      ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
+
+      for (int i = 0 ; i < list.size() ; i++) {
+        INDIDeviceListener c = list.get(i);
+
+        c.sendXMLMessage(message);
+      }
+    }
+  }
+
+  /**
+   * Sends the typed
+   * <code>delProperty</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyDeviceListenersDelProperty(INDIDevice device, INDIMessage message) {
+    ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(message.getDevice());
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(message);
+    }
+  }
+
+  /**
+   * Answers the typed
+   * <code>getProperties</code> message with the state of the Properties of
+   * the appropriate Devices (which send it to their Drivers only the first
+   * time).
+   *
+   * @param client The Client sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyClientListenersGetProperties(INDIDeviceListener client, INDIMessage message) {
+    String device = message.getDevice();
+
+    if ((device == null) || (device.length() == 0)) {
+      ArrayList<INDIDevice> devices = getDevices();
+
+      for (int i = 0 ; i < devices.size() ; i++) {
+        devices.get(i).getProperties(client, message);
+      }
+
+      return;
+    }
+
+    INDIDevice d = this.getDevice(device);
+
+    if (d == null) {
+      sendXMLMessageToAllDevices(message);
+    } else {
+      d.getProperties(client, message);
+    }
+  }
+
+  /**
+   * Sends the typed
+   * <code>newXXXVector</code> message to the appropriate Devices.
+   *
+   * @param client The Client sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyClientListenersNewXXXVector(INDIClient client, INDIMessage message) {
+    INDIDevice d = this.getDevice(message.getDevice());
+
+    if (d != null) {
+      d.sendXMLMessage(message);
+    }
+  }
+
+  /**
+   * Does nothing since the enableBLOB message is not usually useful for
+   * Devices.
+   *
+   * @param client The Client sending the message.
+   * @param message The message
+   */
+  @Override
+  protected void notifyClientListenersEnableBLOB(INDIClient client, INDIMessage message) {
+  }
+
   /**
    * Accepts all Clients.
    *
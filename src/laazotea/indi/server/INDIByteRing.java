@@ -0,0 +1,234 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+/**
+ * A bounded ring of bytes used as an in memory pipe between the threads that
+ * produce some messages and a single consumer. Its memory is fixed: when the
+ * ring is full the producers wait for the consumer to make room (back
+ * pressure), writing big messages in several chunks. The consumer is started
+ * on demand, as the ring keeps track of whether it is active, so that no
+ * thread is needed while there are no pending bytes. The ring also keeps the
+ * maximum number of pending bytes (its high watermark) and the number of
+ * times a producer has had to wait.
+ *
+ * @author farom
+ * @see INDIJavaDevice
+ */
+class INDIByteRing {
+
+  /**
+   * The default capacity (in bytes) of a ring.
+   */
+  public static final int DEFAULT_CAPACITY = 1024 * 1024;
+  /**
+   * The bytes of the ring.
+   */
+  private byte[] buffer;
+  /**
+   * The position of the first pending byte.
+   */
+  private int readPosition;
+  /**
+   * The number of pending bytes.
+   */
+  private int size;
+  /**
+   * The maximum number of pending bytes that the ring has had.
+   */
+  private int highWatermark;
+  /**
+   * The number of times that a producer has waited for the ring to have some
+   * room.
+   */
+  private long blockedWrites;
+  /**
+   * To know if the consumer is active.
+   */
+  private boolean consumerActive;
+  /**
+   * To know if the ring has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * Constructs a new empty ring.
+   *
+   * @param capacity The capacity (in bytes) of the ring.
+   */
+  public INDIByteRing(int capacity) {
+    buffer = new byte[Math.max(1, capacity)];
+    readPosition = 0;
+    size = 0;
+    highWatermark = 0;
+    blockedWrites = 0;
+    consumerActive = false;
+    closed = false;
+  }
+
+  /**
+   * Copies as many bytes as they fit in the ring, without waiting.
+   *
+   * @param bytes The array containing the bytes.
+   * @param offset The position of the first byte.
+   * @param length The number of bytes.
+   * @return The number of copied bytes (0 if the ring is full or closed).
+   */
+  public synchronized int offer(byte[] bytes, int offset, int length) {
+    if (closed) {
+      return 0;
+    }
+
+    int n = Math.min(length, buffer.length - size);
+    int writePosition = (readPosition + size) % buffer.length;
+    int first = Math.min(n, buffer.length - writePosition);
+
+    System.arraycopy(bytes, offset, buffer, writePosition, first);
+    System.arraycopy(bytes, offset + first, buffer, 0, n - first);
+
+    size += n;
+
+    if (size > highWatermark) {
+      highWatermark = size;
+    }
+
+    return n;
+  }
+
+  /**
+   * Waits until the ring has some room or it is closed.
+   *
+   * @throws InterruptedException If the waiting thread is interrupted.
+   */
+  public synchronized void awaitRoom() throws InterruptedException {
+    if (size < buffer.length || closed) {
+      return;
+    }
+
+    blockedWrites++;
+
+    while (size == buffer.length && !closed) {
+      wait();
+    }
+  }
+
+  /**
+   * Marks the consumer as active if there are pending bytes and it is not
+   * already active. The producers call it after each <code>offer</code>.
+   *
+   * @return <code>true</code> if the consumer must be started.
+   * <code>false</code> otherwise.
+   */
+  public synchronized boolean activateConsumer() {
+    if (consumerActive || size == 0 || closed) {
+      return false;
+    }
+
+    consumerActive = true;
+
+    return true;
+  }
+
+  /**
+   * Copies some pending bytes to an array, without waiting. If there are no
+   * pending bytes the consumer is marked as not active (and it should end).
+   *
+   * @param bytes The array to which the bytes are copied.
+   * @param offset The position of the first byte.
+   * @param length The maximum number of bytes.
+   * @return The number of copied bytes (-1 if there are no pending bytes).
+   */
+  public synchronized int poll(byte[] bytes, int offset, int length) {
+    if (size == 0 || closed) {
+      consumerActive = false;
+
+      return -1;
+    }
+
+    int n = Math.min(length, size);
+    int first = Math.min(n, buffer.length - readPosition);
+
+    System.arraycopy(buffer, readPosition, bytes, offset, first);
+    System.arraycopy(buffer, 0, bytes, offset + first, n - first);
+
+    readPosition = (readPosition + n) % buffer.length;
+    size -= n;
+
+    notifyAll();
+
+    return n;
+  }
+
+  /**
+   * Closes the ring, discarding the pending bytes and waking up the waiting
+   * producers.
+   */
+  public synchronized void close() {
+    closed = true;
+    size = 0;
+
+    notifyAll();
+  }
+
+  /**
+   * Checks if the ring has been closed.
+   *
+   * @return <code>true</code> if the ring has been closed.
+   * <code>false</code> otherwise.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Gets the capacity of the ring.
+   *
+   * @return The capacity (in bytes) of the ring.
+   */
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Gets the number of pending bytes.
+   *
+   * @return The number of pending bytes.
+   */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the maximum number of pending bytes that the ring has had.
+   *
+   * @return The high watermark (in bytes) of the ring.
+   */
+  public synchronized int getHighWatermark() {
+    return highWatermark;
+  }
+
+  /**
+   * Gets the number of times that a producer has waited for the ring to have
+   * some room.
+   *
+   * @return The number of blocked writes.
+   */
+  public synchronized long getBlockedWrites() {
+    return blockedWrites;
+  }
+}
@@ -19,10 +19,16 @@ package laazotea.indi.server;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
-import laazotea.indi.Constants;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import laazotea.indi.Constants.BLOBEnables;
-import laazotea.indi.INDIProtocolParser;
+import laazotea.indi.Constants.MessageTypes;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIMessageParser;
 import laazotea.indi.INDIProtocolReader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -35,12 +41,22 @@ import org.w3c.dom.NodeList;
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.31, April 12, 2012
  */
-public class INDIClient extends INDIDeviceListener implements INDIProtocolParser {
+public class INDIClient extends INDIDeviceListener implements INDIMessageParser {
 
+  /**
+   * The maximum number of bytes written to the socket at once, so that the
+   * progress of the Client is noticed while receiving big messages.
+   */
+  private static final int WRITE_CHUNK_SIZE = 65536;
   /**
    * The socket to communicate with the Client.
    */
   private Socket socket;
+  /**
+   * The host and port of the Client (kept, as the socket is forgotten when
+   * the Client is disconnected).
+   */
+  private String inetAddress;
   /**
    * The Server to which the Client is connected.
    */
@@ -50,9 +66,29 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
    */
   private INDIProtocolReader reader;
 
+  /**
+   * The event loop that reads from the Client (<code>null</code> if the
+   * reader runs in its own thread).
+   */
+  private INDIEventLoop eventLoop;
+  /**
+   * The channel of the socket (only used if the Client is read by an event
+   * loop).
+   */
+  private SocketChannel channel;
+  /**
+   * The queue of messages to be sent to the Client.
+   */
+  private INDIClientOutputQueue outputQueue;
+
   /**
    * Constructs a new INDIClient that connects to the server and starts
-   * listening to it.
+   * listening to it. If the server uses event loops and the socket has a
+   * channel the Client is read by one of the event loops of the server, which
+   * also writes the queued messages to it (they are always queued, so that
+   * the loop never blocks writing). Otherwise a reader thread is
+   * started and the messages to the Client are queued and sent from a
+   * dedicated thread (unless the Server disables the queue).
    *
    * @param socket The socket to communicate with the Client.
    * @param server The Server to which the Client is connected.
@@ -61,8 +97,30 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
     this.socket = socket;
     this.server = server;
 
+    inetAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+
     reader = new INDIProtocolReader(this);
-    reader.start();
+    server.configureReader(reader);
+
+    if (socket.getChannel() != null) {
+      eventLoop = server.getEventLoop();
+    }
+
+    outputQueue = new INDIClientOutputQueue(this);
+    server.configureOutputQueue(outputQueue);
+
+    if ((eventLoop != null) && (!outputQueue.isEnabled())) {  // The loop must not block writing
+      outputQueue.setLimits(INDIClientOutputQueue.DEFAULT_MAX_QUEUED_MESSAGES, INDIClientOutputQueue.DEFAULT_MAX_LAG);
+    }
+
+    outputQueue.start(eventLoop);
+
+    if (eventLoop != null) {
+      channel = socket.getChannel();
+      eventLoop.register(this);
+    } else {
+      reader.startReading();
+    }
   }
 
   /**
@@ -73,12 +131,18 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
       try {
         reader.setStop(true);
 
-        socket.shutdownInput();
-        socket.getInputStream().close();
-        socket.getOutputStream().close();
-        socket.close();
+        if (eventLoop != null) {  // The event loop will close the channel once it reads the end of the input
+          socket.shutdownInput();
+          socket = null;
+
+          return;
+        }
 
+        Socket s = socket;
         socket = null;
+
+        s.shutdownInput();
+        s.close();  // Also closes its streams (which cannot be got once the input is shut down)
       } catch (IOException e) {
       }
     }
@@ -86,6 +150,8 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
 
   @Override
   public void finishReader() {
+    outputQueue.close();
+
     server.removeClient(this);
   }
 
@@ -95,7 +161,7 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
    * @return A String representation of the host and port of the Client.
    */
   public String getInetAddress() {
-    return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    return inetAddress;
   }
 
   @Override
@@ -114,112 +180,290 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
       if (n instanceof Element) {
         Element child = (Element) n;
 
-        String name = child.getNodeName();
-
-        if (name.equals("getProperties")) {
-          processGetProperties(child);
-        } else if (name.equals("newTextVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newNumberVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newSwitchVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newBLOBVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("enableBLOB")) {
-          processEnableBLOB(child);
+        INDIMessage message;
+
+        try {
+          message = new INDIMessage(child);
+        } catch (IllegalArgumentException e) {  // Not a INDI message
+          continue;
         }
+
+        parseMessage(message);
       }
     }
   }
 
+  @Override
+  public void parseMessage(INDIMessage message) {
+    MessageTypes type = message.getType();
+
+    if (type == MessageTypes.GET_PROPERTIES) {
+      processGetProperties(message);
+    } else if (message.isNewVector()) {
+      processNewXXXVector(message);
+    } else if (type == MessageTypes.ENABLE_BLOB) {
+      processEnableBLOB(message);
+    }
+  }
+
   /**
    * Adds the appropriate BLOB Enable rules.
-   * @param xml 
+   * @param message 
    */
-  private void processEnableBLOB(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    if (device.length() == 0) {
+  private void processEnableBLOB(INDIMessage message) {
+    String device = message.getDevice();
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
+    String property = message.getName();
 
-    String rule = xml.getTextContent();
-    BLOBEnables enable;
+    BLOBEnables enable = message.getBLOBEnable();
 
-    try {
-      enable = Constants.parseBLOBEnable(rule);
-    } catch (IllegalArgumentException e) {
+    if (enable == null) {
       return;
     }
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       if (this.listensToDevice(device)) {
         this.addBLOBEnableRule(device, enable);
-        server.notifyClientListenersEnableBLOB(this, xml);
+        server.notifyClientListenersEnableBLOB(this, message);
       }
     } else {
       if (this.listensToProperty(device, property)) {
         this.addBLOBEnableRule(device, property, enable);
-        server.notifyClientListenersEnableBLOB(this, xml);
+        server.notifyClientListenersEnableBLOB(this, message);
       }
     }
   }
 
-  private void processNewXXXVector(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    if (device.length() == 0) {
+  private void processNewXXXVector(INDIMessage message) {
+    String device = message.getDevice();
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
-    if (property.length() == 0) {
+    String property = message.getName();
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
     if (this.listensToProperty(device, property)) {  // If this client does not listen to the property avoid changing it
-      server.notifyClientListenersNewXXXVector(this, xml);
+      server.notifyClientListenersNewXXXVector(this, message);
     }
   }
 
-  private void processGetProperties(Element xml) {
-    String version = xml.getAttribute("version").trim();
+  private void processGetProperties(INDIMessage message) {
+    String version = message.getVersion();
 
-    if (version.length() == 0) { // Some conditions to ignore the messages
+    if ((version == null) || (version.length() == 0)) { // Some conditions to ignore the messages
       return;
     }
 
-    String device = xml.getAttribute("device").trim();
-    String property = xml.getAttribute("name").trim();
+    String device = message.getDevice();
+    String property = message.getName();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       setListenToAllDevices(true);
     } else {
-      if (property.length() == 0) {
+      if ((property == null) || (property.length() == 0)) {
         addDeviceToListen(device);
       } else {
         addPropertyToListen(device, property);
       }
     }
 
-    server.notifyClientListenersGetProperties(this, xml);
+    server.notifyClientListenersGetProperties(this, message);
+  }
+
+  /**
+   * Gets the channel of the socket of the Client.
+   *
+   * @return The channel of the socket of the Client (<code>null</code> if
+   * it is not read by an event loop).
+   */
+  SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Gets the number of messages from the Client that have been dropped
+   * (truncated, oversized or malformed ones).
+   *
+   * @return The number of dropped messages.
+   */
+  public long getDroppedMessages() {
+    return reader.getDroppedMessages();
+  }
+
+  /**
+   * Gets the number of messages from the Client that have been dropped because
+   * they were too big.
+   *
+   * @return The number of oversized messages.
+   */
+  public long getOversizedMessages() {
+    return reader.getOversizedMessages();
+  }
+
+  /**
+   * Gets the number of messages waiting to be sent to the Client.
+   *
+   * @return The number of messages waiting to be sent.
+   */
+  public int getOutputQueueDepth() {
+    return outputQueue.getDepth();
+  }
+
+  /**
+   * Gets the number of Property updates that have not been sent to the Client
+   * because they have been replaced by newer ones while waiting in the queue.
+   *
+   * @return The number of replaced updates.
+   */
+  public long getCoalescedMessages() {
+    return outputQueue.getCoalescedMessages();
+  }
+
+  /**
+   * Determines if the Client has been disconnected because it could not
+   * receive the messages fast enough.
+   *
+   * @return <code>true</code> if the Client has been disconnected for being
+   * too slow.
+   */
+  public boolean isTooSlow() {
+    return outputQueue.isTooSlow();
+  }
+
+  /**
+   * Gets the reader of the Client.
+   *
+   * @return The reader of the Client.
+   */
+  INDIProtocolReader getReader() {
+    return reader;
   }
 
   @Override
   protected void sendXMLMessage(String xml) {
     try {
-      socket.getOutputStream().write(xml.getBytes());
-      socket.getOutputStream().flush();
+      sendXMLMessage(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      sendXMLMessage(ByteBuffer.wrap(xml.getBytes()));
+    }
+  }
+
+  /**
+   * Sends a typed message to the Client. Pending updates of the same Property
+   * are replaced by newer ones that include all their Elements. BLOB updates
+   * are never replaced.
+   *
+   * @param message The message to be sent.
+   */
+  @Override
+  public void sendXMLMessage(INDIMessage message) {
+    if ((outputQueue.isEnabled()) && (message.isSetVector()) && (!message.isBLOBVector())) {
+      String[] elements = new String[message.getElementCount()];
+
+      for (int i = 0 ; i < elements.length ; i++) {
+        elements[i] = message.getElementName(i);
+      }
+
+      outputQueue.add(message.getXMLBytes(), message.getDevice() + '\u0000' + message.getName(), elements, message.getMessage() != null);
+    } else {
+      sendXMLMessage(message.getXMLBytes());
+    }
+  }
+
+  /**
+   * Sends an already serialized message to the Client. The (shared) bytes are
+   * queued or written directly to the socket.
+   *
+   * @param xml The bytes to be sent.
+   */
+  @Override
+  public void sendXMLMessage(ByteBuffer xml) {
+    if (outputQueue.isEnabled()) {
+      outputQueue.add(xml);
+
+      return;
+    }
+
+    ArrayList<ByteBuffer> messages = new ArrayList<ByteBuffer>(1);
+    messages.add(xml);
+
+    try {
+      writeXMLBytes(messages);
     } catch (IOException e) {
       disconnect();
     }
   }
 
+  /**
+   * Writes the queued messages to the non blocking channel of the Client
+   * without waiting. Called by its event loop.
+   *
+   * @return <code>true</code> if there are no more messages to write,
+   * <code>false</code> if the channel cannot accept more bytes by now.
+   * @throws IOException if there is any problem writing.
+   */
+  boolean flushOutput() throws IOException {
+    return outputQueue.flush(channel);
+  }
+
+  /**
+   * Writes some messages to the (blocking) socket of the Client, flushing it
+   * once. The messages are written in chunks, and the output queue is told
+   * about each written one, so a Client that is slowly receiving a big BLOB
+   * is not taken as stalled. The Clients served by an event loop are written
+   * by the loop (see <code>flushOutput</code>).
+   *
+   * @param messages The bytes of the messages (they are not modified).
+   * @throws IOException if there is any problem writing.
+   */
+  void writeXMLBytes(ArrayList<ByteBuffer> messages) throws IOException {
+    Socket s = socket;
+
+    if (s == null) {
+      return;
+    }
+
+    OutputStream os = s.getOutputStream();
+
+    synchronized (os) {
+      for (int i = 0 ; i < messages.size() ; i++) {
+        ByteBuffer xml = messages.get(i);
+
+        int offset = xml.arrayOffset() + xml.position();
+        int remaining = xml.remaining();
+
+        while (remaining > 0) {
+          int n = Math.min(remaining, WRITE_CHUNK_SIZE);
+
+          os.write(xml.array(), offset, n);
+
+          offset += n;
+          remaining -= n;
+
+          outputQueue.progress();
+        }
+      }
+
+      os.flush();
+    }
+  }
+
   @Override
   public InputStream getInputStream() {
+    Socket s = socket;
+
+    if (s == null) {  // Already disconnected
+      return null;
+    }
+
     try {
-      return socket.getInputStream();
+      return s.getInputStream();
     } catch (IOException e) {
       return null;
     }
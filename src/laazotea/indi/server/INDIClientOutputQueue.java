@@ -0,0 +1,531 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import laazotea.indi.INDIThreadFactory;
+
+/**
+ * A class that queues the messages to be sent to a Client and writes them
+ * from a dedicated thread, so that a slow Client does not stall the Devices
+ * (and the rest of Clients). If the Client is served by an event loop there
+ * is no writer thread: the loop writes the queued messages to the non
+ * blocking channel of the Client, gathering them in a single write whenever
+ * possible, and waits for the channel to be writable when it is full. The
+ * queue is bounded: pending
+ * <code>setXXXVector</code> messages are replaced by the newer ones of the
+ * same Property that carry all their Elements (as long as they do not carry a
+ * text message), while the rest of messages (definitions, messages, BLOBs,
+ * partial updates, etc.) are never dropped. If the queue gets full or the Client does not make any
+ * progress for some time it is disconnected.
+ *
+ * @author farom
+ * @see INDIClient
+ */
+class INDIClientOutputQueue implements Runnable {
+
+  /**
+   * The default maximum number of messages waiting to be sent to a Client.
+   */
+  public static final int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+  /**
+   * The default maximum time (in milliseconds) that a Client may stay without
+   * receiving any of its pending messages.
+   */
+  public static final long DEFAULT_MAX_LAG = 30000;
+  /**
+   * The Client to which the messages are sent.
+   */
+  private INDIClient client;
+  /**
+   * The maximum number of messages waiting to be sent (0 if the queue is not
+   * used and the messages are sent synchronously).
+   */
+  private int maxQueuedMessages;
+  /**
+   * The maximum time (in milliseconds) that the Client may stay without
+   * receiving any of its pending messages.
+   */
+  private long maxLag;
+  /**
+   * The queued messages (including the ones replaced by newer updates).
+   */
+  private ArrayDeque<QueuedMessage> queue;
+  /**
+   * The pending <code>setXXXVector</code> messages by Property.
+   */
+  private HashMap<String, QueuedMessage> pendingUpdates;
+  /**
+   * The number of messages waiting to be sent.
+   */
+  private int depth;
+  /**
+   * <code>true</code> while the writer thread is sending messages.
+   */
+  private boolean writing;
+  /**
+   * The last time (in milliseconds) in which the Client made some progress
+   * receiving messages.
+   */
+  private long lastProgress;
+  /**
+   * <code>true</code> if the queue has been closed.
+   */
+  private boolean closed;
+  /**
+   * <code>true</code> if the Client has been disconnected for being too
+   * slow.
+   */
+  private volatile boolean tooSlow;
+  /**
+   * The number of updates that have been replaced by newer ones.
+   */
+  private volatile long coalescedMessages;
+  /**
+   * The writer thread (<code>null</code> if the messages are written by an
+   * event loop).
+   */
+  private Thread thread;
+  /**
+   * The event loop that writes the messages (<code>null</code> if they are
+   * written by the writer thread).
+   */
+  private INDIEventLoop eventLoop;
+  /**
+   * <code>true</code> if the event loop has been asked to write the queued
+   * messages and has not finished yet.
+   */
+  private boolean scheduled;
+  /**
+   * The messages being written by the event loop.
+   */
+  private ByteBuffer[] batch;
+  /**
+   * The index of the first message of <code>batch</code> not completely
+   * written.
+   */
+  private int batchOffset;
+  /**
+   * The number of messages in <code>batch</code>.
+   */
+  private int batchLength;
+
+  /**
+   * Constructs a new queue with the default limits.
+   *
+   * @param client The Client to which the messages are sent.
+   */
+  INDIClientOutputQueue(INDIClient client) {
+    this.client = client;
+
+    maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    maxLag = DEFAULT_MAX_LAG;
+    queue = new ArrayDeque<QueuedMessage>();
+    pendingUpdates = new HashMap<String, QueuedMessage>();
+    depth = 0;
+    writing = false;
+    closed = false;
+    tooSlow = false;
+    coalescedMessages = 0;
+    scheduled = false;
+    batch = new ByteBuffer[16];
+    batchOffset = 0;
+    batchLength = 0;
+  }
+
+  /**
+   * Sets the limits of the queue. Must be called before starting it.
+   *
+   * @param maxQueuedMessages The maximum number of messages waiting to be
+   * sent (0 to send the messages synchronously, without any queue).
+   * @param maxLag The maximum time (in milliseconds) that the Client may stay
+   * without receiving any of its pending messages.
+   */
+  void setLimits(int maxQueuedMessages, long maxLag) {
+    this.maxQueuedMessages = maxQueuedMessages;
+    this.maxLag = maxLag;
+  }
+
+  /**
+   * Determines if the queue is used.
+   *
+   * @return <code>true</code> if the messages are queued,
+   * <code>false</code> if they are sent synchronously.
+   */
+  boolean isEnabled() {
+    return maxQueuedMessages > 0;
+  }
+
+  /**
+   * Starts the writer thread (if the queue is used and the messages are not
+   * written by an event loop).
+   *
+   * @param eventLoop The event loop that serves the Client (<code>null</code>
+   * if its socket is blocking).
+   */
+  void start(INDIEventLoop eventLoop) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    if (eventLoop != null) {
+      this.eventLoop = eventLoop;
+    } else {
+      thread = INDIThreadFactory.newThread(this, "INDI Client writer " + client.getInetAddress());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Closes the queue, discarding the pending messages and stopping the
+   * writer thread.
+   */
+  void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      queue.clear();
+      pendingUpdates.clear();
+      depth = 0;
+
+      notifyAll();
+    }
+
+    if ((thread != null) && (thread != Thread.currentThread())) {
+      thread.interrupt();  // In case it is waiting for a slow channel
+    }
+  }
+
+  /**
+   * Queues a message that must always be sent. If the Client has fallen too
+   * much behind it is disconnected.
+   *
+   * @param xml The bytes of the message (they are never modified).
+   */
+  void add(ByteBuffer xml) {
+    add(xml, null, null, false);
+  }
+
+  /**
+   * Queues a message. If the Client has fallen too much behind it is
+   * disconnected. A pending update of the same Property is replaced by this
+   * one only if this one includes all its Elements and the pending one does
+   * not carry a text message (so no value nor message is lost).
+   *
+   * @param xml The bytes of the message (they are never modified).
+   * @param updateKey A key that identifies the Property of a
+   * <code>setXXXVector</code> message. <code>null</code> if the message is not
+   * an update that may replace others (and it must always be sent).
+   * @param elements The names of the Elements included in the update.
+   * @param withMessage <code>true</code> if the update carries a text message
+   * (and so it cannot be replaced by a newer one).
+   */
+  void add(ByteBuffer xml, String updateKey, String[] elements, boolean withMessage) {
+    boolean queued = false;
+    boolean schedule = false;
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+
+      if ((depth == 0) && (!writing)) {
+        lastProgress = now;
+      } else if (now - lastProgress > maxLag) {
+        tooSlow = true;
+      }
+
+      if (updateKey != null) {
+        QueuedMessage old = pendingUpdates.get(updateKey);
+
+        if ((old != null) && (old.canBeReplacedBy(elements))) {  // Replaced by the new one, in its new position
+          old.xml = null;
+          depth--;
+          coalescedMessages++;
+        }
+      }
+
+      if (depth >= maxQueuedMessages) {
+        tooSlow = true;
+      }
+
+      if (!tooSlow) {
+        QueuedMessage m = new QueuedMessage(xml, elements, withMessage);
+
+        queue.add(m);
+
+        if (updateKey != null) {
+          pendingUpdates.put(updateKey, m);
+        }
+
+        depth++;
+        queued = true;
+
+        if (eventLoop == null) {
+          notifyAll();
+        } else if (!scheduled) {
+          scheduled = true;
+          schedule = true;
+        }
+      }
+    }
+
+    if (queued) {
+      if (schedule) {
+        eventLoop.scheduleWrite(client);
+      }
+
+      return;
+    }
+
+    System.err.println("Client " + client.getInetAddress() + " too slow. Disconnecting it.");
+
+    close();
+    client.disconnect();
+  }
+
+  /**
+   * Records that the Client has received some bytes of the messages being
+   * written.
+   */
+  synchronized void progress() {
+    lastProgress = System.currentTimeMillis();
+  }
+
+  /**
+   * Gets the number of messages waiting to be sent.
+   *
+   * @return The number of messages waiting to be sent.
+   */
+  synchronized int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Gets the number of updates that have been replaced by newer ones before
+   * being sent.
+   *
+   * @return The number of replaced updates.
+   */
+  long getCoalescedMessages() {
+    return coalescedMessages;
+  }
+
+  /**
+   * Determines if the Client has been disconnected for being too slow.
+   *
+   * @return <code>true</code> if the Client has been disconnected for being
+   * too slow.
+   */
+  boolean isTooSlow() {
+    return tooSlow;
+  }
+
+  /**
+   * Writes the queued messages to the non blocking channel of the Client,
+   * gathering all of them in each write. Called by the event loop of the
+   * Client when it has been scheduled and when the channel is writable again.
+   *
+   * @param channel The channel of the Client.
+   * @return <code>true</code> if there are no more messages to write,
+   * <code>false</code> if the channel cannot accept more bytes by now.
+   * @throws IOException if there is any problem writing.
+   */
+  boolean flush(SocketChannel channel) throws IOException {
+    while (true) {
+      if (batchOffset == batchLength) {
+        synchronized (this) {
+          batchOffset = 0;
+          batchLength = 0;
+
+          if ((closed) || (depth == 0)) {
+            writing = false;
+            scheduled = false;
+            lastProgress = System.currentTimeMillis();
+
+            return true;
+          }
+
+          if (batch.length < depth) {
+            batch = new ByteBuffer[Math.max(depth, batch.length * 2)];
+          }
+
+          while (!queue.isEmpty()) {
+            QueuedMessage m = queue.poll();
+
+            if (m.xml != null) {
+              batch[batchLength++] = m.xml.duplicate();  // The bytes are shared with other Clients
+            }
+          }
+
+          pendingUpdates.clear();
+          depth = 0;
+          writing = true;
+        }
+      }
+
+      long written = channel.write(batch, batchOffset, batchLength - batchOffset);
+
+      while ((batchOffset < batchLength) && (!batch[batchOffset].hasRemaining())) {
+        batch[batchOffset++] = null;
+      }
+
+      if (batchOffset < batchLength) {  // The channel is full
+        if (written > 0) {
+          synchronized (this) {
+            lastProgress = System.currentTimeMillis();
+          }
+        }
+
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Writes the queued messages in batches until the queue is closed.
+   */
+  @Override
+  public void run() {
+    ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+
+    while (true) {
+      synchronized (this) {
+        writing = false;
+        lastProgress = System.currentTimeMillis();
+
+        while ((!closed) && (depth == 0)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+          }
+        }
+
+        if (closed) {
+          return;
+        }
+
+        while (!queue.isEmpty()) {
+          QueuedMessage m = queue.poll();
+
+          if (m.xml != null) {
+            batch.add(m.xml);
+          }
+        }
+
+        pendingUpdates.clear();
+        depth = 0;
+        writing = true;
+      }
+
+      try {
+        client.writeXMLBytes(batch);
+      } catch (IOException e) {
+        close();
+        client.disconnect();
+
+        return;
+      }
+
+      batch.clear();
+    }
+  }
+
+  /**
+   * A queued message.
+   */
+  private static class QueuedMessage {
+
+    /**
+     * The bytes of the message (<code>null</code> if it has been replaced by
+     * a newer update).
+     */
+    private ByteBuffer xml;
+    /**
+     * The names of the Elements of an update (<code>null</code> if it is not
+     * an update).
+     */
+    private String[] elements;
+    /**
+     * <code>true</code> if the update carries a text message.
+     */
+    private boolean withMessage;
+
+    /**
+     * Constructs a new queued message.
+     *
+     * @param xml The bytes of the message.
+     * @param elements The names of the Elements of an update
+     * (<code>null</code> if it is not an update).
+     * @param withMessage <code>true</code> if the update carries a text
+     * message.
+     */
+    QueuedMessage(ByteBuffer xml, String[] elements, boolean withMessage) {
+      this.xml = xml;
+      this.elements = elements;
+      this.withMessage = withMessage;
+    }
+
+    /**
+     * Determines if this (pending) update can be replaced by a newer one
+     * without losing any value or text message.
+     *
+     * @param newElements The names of the Elements of the newer update.
+     * @return <code>true</code> if the newer update includes all the Elements
+     * of this one (all of them named) and this one does not carry a text
+     * message.
+     */
+    boolean canBeReplacedBy(String[] newElements) {
+      if ((withMessage) || (elements == null) || (newElements == null)) {
+        return false;
+      }
+
+      for (int i = 0 ; i < elements.length ; i++) {
+        if (elements[i] == null) {  // An unnamed Element cannot be matched
+          return false;
+        }
+
+        boolean found = false;
+
+        for (int j = 0 ; j < newElements.length ; j++) {
+          if (elements[i].equals(newElements[j])) {
+            found = true;
+            break;
+          }
+        }
+
+        if (!found) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -20,9 +20,12 @@ package laazotea.indi.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import laazotea.indi.Constants;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import laazotea.indi.Constants.MessageTypes;
 import laazotea.indi.INDIException;
-import laazotea.indi.INDIProtocolParser;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIMessageParser;
 import laazotea.indi.INDIProtocolReader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -36,7 +39,7 @@ import org.w3c.dom.NodeList;
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, January 13, 2013
  */
-public abstract class INDIDevice extends INDIDeviceListener implements INDIProtocolParser {
+public abstract class INDIDevice extends INDIDeviceListener implements INDIMessageParser {
 
   /**
    * The Server that listens to this Device
@@ -46,6 +49,16 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
    * The reader that reads from the Device.
    */
   private INDIProtocolReader reader;
+  /**
+   * The current state of the Properties of the Device, used to answer the
+   * <code>getProperties</code> messages.
+   */
+  private INDIPropertyCache propertyCache;
+  /**
+   * The queue of the messages to the Device, written by its own thread
+   * (<code>null</code> if they are written synchronously).
+   */
+  private volatile INDIDeviceOutputQueue outputQueue;
 
   /**
    * Constructs a new
@@ -57,15 +70,77 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
    */
   protected INDIDevice(AbstractINDIServer server) throws INDIException {
     this.server = server;
+
+    propertyCache = new INDIPropertyCache();
   }
 
   /**
-   * Starts the reader. Usually not directly called by Server particular
-   * implementations.
+   * Starts the reader. If the Server uses event loops the Device is read by
+   * one of them (and the messages to it are written from a dedicated thread,
+   * so that the loop never blocks). Otherwise a reader thread is started. Usually not directly
+   * called by Server particular implementations. The Devices that are not
+   * read from a stream (see <code>isReadFromStream</code>) just get their
+   * reader, which they feed themselves.
    */
   protected void startReading() {
     reader = new INDIProtocolReader(this);
-    reader.start();
+    server.configureReader(reader);
+
+    if (!isReadFromStream()) {
+      return;
+    }
+
+    INDIEventLoop eventLoop = server.getEventLoop();
+
+    if (eventLoop != null) {
+      outputQueue = new INDIDeviceOutputQueue(this);
+
+      eventLoop.register(this);
+    } else {
+      reader.startReading();
+    }
+  }
+
+  /**
+   * Checks if the messages of the Device must be read from its
+   * <code>InputStream</code> (by a reader thread or an event loop). By default
+   * it returns <code>true</code>. Devices that directly feed their reader (as
+   * the ones running in the Server JVM) return <code>false</code>.
+   *
+   * @return <code>true</code> if the Device must be read from its
+   * <code>InputStream</code>. <code>false</code> otherwise.
+   */
+  protected boolean isReadFromStream() {
+    return true;
+  }
+
+  /**
+   * Gets the number of messages from the Device that have been dropped
+   * (truncated, oversized or malformed ones).
+   *
+   * @return The number of dropped messages.
+   */
+  public long getDroppedMessages() {
+    return reader.getDroppedMessages();
+  }
+
+  /**
+   * Gets the number of messages from the Device that have been dropped because
+   * they were too big.
+   *
+   * @return The number of oversized messages.
+   */
+  public long getOversizedMessages() {
+    return reader.getOversizedMessages();
+  }
+
+  /**
+   * Gets the reader of the Device.
+   *
+   * @return The reader of the Device.
+   */
+  INDIProtocolReader getReader() {
+    return reader;
   }
 
   @Override
@@ -84,53 +159,46 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
       if (n instanceof Element) {
         Element child = (Element) n;
 
-        String nodeName = child.getNodeName();
-        
-        if (nodeName.equals("getProperties")) {
-          processGetProperties(child);
-        } else if (nodeName.equals("defTextVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defNumberVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defSwitchVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defLightVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defBLOBVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("setTextVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setNumberVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setSwitchVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setLightVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setBLOBVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("message")) {
-          processMessage(child);
-        } else if (nodeName.equals("delProperty")) {
-          processDelProperty(child);
+        INDIMessage message;
+
+        try {
+          message = new INDIMessage(child);
+        } catch (IllegalArgumentException e) {  // Not a INDI message
+          continue;
         }
+
+        parseMessage(message);
       }
     }
   }
 
+  @Override
+  public void parseMessage(INDIMessage message) {
+    MessageTypes type = message.getType();
+
+    if (type == MessageTypes.GET_PROPERTIES) {
+      processGetProperties(message);
+    } else if (message.isDefVector()) {
+      checkName(message);
+      processDefXXXVector(message);
+    } else if (message.isSetVector()) {
+      processSetXXXVector(message);
+    } else if (type == MessageTypes.MESSAGE) {
+      processMessage(message);
+    } else if (type == MessageTypes.DEL_PROPERTY) {
+      processDelProperty(message);
+    }
+  }
+
   /**
-   * Checks the name in a XML element to detect possible new names in the Driver (specially for multiple possible devices, like the Network one).
+   * Checks the name in a message to detect possible new names in the Driver (specially for multiple possible devices, like the Network one).
    *
-   * @param elem The XML element from which to extract the name of the Device.
+   * @param message The message from which to extract the name of the Device.
    */
-  private void checkName(Element elem) {
-    String newName = elem.getAttribute("device").trim();
+  private void checkName(INDIMessage message) {
+    String newName = message.getDevice();
 
-    if (!(newName.length() == 0)) {
+    if ((newName != null) && (!(newName.length() == 0))) {
       dealWithPossibleNewDeviceName(newName);
     }
   }
@@ -157,106 +225,198 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
   
   /**
    * Processes the
-   * <code>getProperties</code> XML message.
+   * <code>getProperties</code> message.
    *
-   * @param xml The
-   * <code>getProperties</code> XML message
+   * @param message The
+   * <code>getProperties</code> message
    */
-  private void processGetProperties(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    String property = xml.getAttribute("name").trim();
+  private void processGetProperties(INDIMessage message) {
+    String device = message.getDevice();
+    String property = message.getName();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       setListenToAllDevices(true);
     } else {
-      if (property.length() == 0) {
+      if ((property == null) || (property.length() == 0)) {
         addDeviceToListen(device);
       } else {
         addPropertyToListen(device, property);
       }
     }
 
-    server.notifyClientListenersGetProperties(this, xml);
+    server.notifyClientListenersGetProperties(this, message);
   }
 
   /**
    * Processes the
-   * <code>defXXXVector</code> XML message.
+   * <code>defXXXVector</code> message.
    *
-   * @param xml The
-   * <code>defXXXVector</code> XML message
+   * @param message The
+   * <code>defXXXVector</code> message
    */
-  private void processDefXXXVector(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processDefXXXVector(INDIMessage message) {
+    String device = message.getDevice();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
     
-    String property = xml.getAttribute("name").trim();
+    String property = message.getName();
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
-    String state = xml.getAttribute("state").trim();
-
-    if (!Constants.isValidPropertyState(state)) {
+    if (message.getState() == null) {
       return;
     }
 
-    server.notifyDeviceListenersDefXXXVector(this, xml);
+    synchronized (propertyCache) {
+      propertyCache.define(message);
+    }
+
+    server.notifyDeviceListenersDefXXXVector(this, message);
   }
 
   /**
    * Processes the
-   * <code>setXXXVector</code> XML message.
+   * <code>setXXXVector</code> message.
    *
-   * @param xml The
-   * <code>setXXXVector</code> XML message
+   * @param message The
+   * <code>setXXXVector</code> message
    */
-  private void processSetXXXVector(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processSetXXXVector(INDIMessage message) {
+    String device = message.getDevice();
 
-    if (!hasName(device)) { // Some conditions to ignore the messages
+    if ((device == null) || (!hasName(device))) { // Some conditions to ignore the messages
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
+    String property = message.getName();
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
-    server.notifyDeviceListenersSetXXXVector(this, xml);
+    synchronized (propertyCache) {
+      propertyCache.update(message);
+    }
+
+    server.notifyDeviceListenersSetXXXVector(this, message);
   }
 
   /**
    * Processes the
-   * <code>message</code> XML message.
+   * <code>message</code> message.
    *
-   * @param xml The
-   * <code>message</code> XML message
+   * @param message The
+   * <code>message</code> message
    */
-  private void processMessage(Element xml) {
-    server.notifyDeviceListenersMessage(this, xml);
+  private void processMessage(INDIMessage message) {
+    server.notifyDeviceListenersMessage(this, message);
   }
 
   /**
    * Processes the
-   * <code>delProperty</code> XML message.
+   * <code>delProperty</code> message.
    *
-   * @param xml The
-   * <code>delProperty</code> XML message
+   * @param message The
+   * <code>delProperty</code> message
    */
-  private void processDelProperty(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processDelProperty(INDIMessage message) {
+    String device = message.getDevice();
 
-    if (!hasName(device)) { // Some conditions to ignore the messages
+    if ((device == null) || (!hasName(device))) { // Some conditions to ignore the messages
       return;
     }
 
-    server.notifyDeviceListenersDelProperty(this, xml);
+    String property = message.getName();
+
+    if ((property != null) && (property.length() == 0)) {
+      property = null;
+    }
+
+    synchronized (propertyCache) {
+      propertyCache.delete(device, property);
+    }
+
+    server.notifyDeviceListenersDelProperty(this, message);
+  }
+
+  /**
+   * Answers a <code>getProperties</code> message of a Client (or a snooping
+   * Device). The first time that the Properties of a Device are requested the
+   * message is sent to the Driver, whose definitions will reach every
+   * listener. From then on the message is answered with the current state of
+   * the Properties kept by the Server, and the Driver is not bothered. The
+   * answer is sent without holding the lock of the cache, and then completed
+   * with the Properties that have changed meanwhile.
+   *
+   * @param listener The Client (or Device) that sent the message.
+   * @param message The <code>getProperties</code> message.
+   */
+  protected void getProperties(INDIDeviceListener listener, INDIMessage message) {
+    String device = message.getDevice();
+    String property = message.getName();
+
+    if ((device != null) && (device.length() == 0)) {
+      device = null;
+    }
+
+    if ((property != null) && (property.length() == 0)) {
+      property = null;
+    }
+
+    INDIPropertyCache.Replay replay = null;
+
+    synchronized (propertyCache) {
+      if (propertyCache.isRequested(device)) {
+        replay = propertyCache.startReplay(listener, device, property);
+      } else if (property == null) {
+        propertyCache.setRequested(device);
+      }
+    }
+
+    if (replay == null) {
+      sendXMLMessage(message);
+
+      return;
+    }
+
+    boolean pending = true;
+
+    while (pending) {
+      replay.send();
+
+      synchronized (propertyCache) {
+        pending = propertyCache.continueReplay(replay);
+      }
+    }
+  }
+
+  /**
+   * Asks the Driver for the definitions of all its Properties, which will
+   * reach every listener. From then on the <code>getProperties</code>
+   * messages are answered by the Server.
+   */
+  void requestAllProperties() {
+    synchronized (propertyCache) {
+      propertyCache.setRequested(null);
+    }
+
+    sendXMLMessage("<getProperties version=\"1.7\" />");
+  }
+
+  /**
+   * Gets the number of Properties of the Device whose state is kept by the
+   * Server.
+   *
+   * @return The number of cached Properties.
+   */
+  public int getCachedPropertyCount() {
+    synchronized (propertyCache) {
+      return propertyCache.size();
+    }
   }
 
   /**
@@ -264,8 +424,14 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
    */
   public void destroy() {
     isBeingDestroyed();
-    
-    reader.setStop(true);
+
+    if (reader != null) {  // It may have not started reading
+      reader.setStop(true);
+    }
+
+    if (outputQueue != null) {
+      outputQueue.close();
+    }
 
     closeConnections();
   }
@@ -284,8 +450,32 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
   protected void sendXMLMessage(String xml) {
 //    System.err.println(xml);
     try {
-      getOutputStream().write(xml.getBytes());
-      getOutputStream().flush();
+      sendXMLMessage(ByteBuffer.wrap(xml.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      sendXMLMessage(ByteBuffer.wrap(xml.getBytes()));
+    }
+  }
+
+  /**
+   * Sends an already serialized message to the Device, writing the (shared)
+   * bytes directly to its output stream (or queueing them if the Device is
+   * read by an event loop).
+   *
+   * @param xml The bytes to be sent.
+   */
+  @Override
+  public void sendXMLMessage(ByteBuffer xml) {
+    if (outputQueue != null) {
+      outputQueue.add(xml);
+
+      return;
+    }
+
+    try {
+      OutputStream os = getOutputStream();
+
+      os.write(xml.array(), xml.arrayOffset() + xml.position(), xml.remaining());
+      os.flush();
     } catch (IOException e) {
       destroy();
     }
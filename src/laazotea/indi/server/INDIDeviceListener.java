@@ -17,8 +17,12 @@
  */
 package laazotea.indi.server;
 
-import java.util.ArrayList;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
 import laazotea.indi.Constants.BLOBEnables;
+import laazotea.indi.INDIMessage;
 import laazotea.indi.XMLToString;
 import org.w3c.dom.Element;
 
@@ -35,30 +39,44 @@ public abstract class INDIDeviceListener {
   /**
    * Determines if the object listens to all devices.
    */
-  private boolean listenToAllDevices;
+  private volatile boolean listenToAllDevices;
   /**
-   * A list of devices that are listened.
+   * The names of the devices that are listened.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> devicesToListen;
+  private volatile HashSet<String> devicesToListen;
   /**
-   * A list of properties that are listened.
+   * The names of the properties that are listened, by device name.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> propertiesToListen;
+  private volatile HashMap<String, HashSet<String>> propertiesToListen;
   /**
-   * A list of BLOBEnable rules
+   * The BLOBEnable rules for whole devices, by device name.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> BLOBEnableRules;
+  private volatile HashMap<String, BLOBEnables> deviceBLOBEnableRules;
+  /**
+   * The BLOBEnable rules for particular properties, by device and property
+   * name.
+   */
+  private volatile HashMap<String, HashMap<String, BLOBEnables>> propertyBLOBEnableRules;
+  /**
+   * The index of the Server that must be notified when the subscriptions of
+   * the listener change (<code>null</code> if the listener is not indexed).
+   */
+  private volatile INDISubscriptionIndex subscriptionIndex;
 
   /**
    * Constructs a new
-   * <code>INDIDeviceListener</code>.
+   * <code>INDIDeviceListener</code>. The rules about the listened Devices,
+   * Properties and BLOBs are kept in hash tables that are never modified once
+   * built (they are replaced by modified copies when a rule is added), so
+   * they can be checked from any thread without any lock.
    */
   protected INDIDeviceListener() {
     listenToAllDevices = false;
 
-    devicesToListen = new ArrayList<DevicePropertyBLOBEnableTuple>();
-    propertiesToListen = new ArrayList<DevicePropertyBLOBEnableTuple>();
-    BLOBEnableRules = new ArrayList<DevicePropertyBLOBEnableTuple>();
+    devicesToListen = new HashSet<String>();
+    propertiesToListen = new HashMap<String, HashSet<String>>();
+    deviceBLOBEnableRules = new HashMap<String, BLOBEnables>();
+    propertyBLOBEnableRules = new HashMap<String, HashMap<String, BLOBEnables>>();
   }
 
   /**
@@ -67,14 +85,14 @@ public abstract class INDIDeviceListener {
    * @param deviceName The Device name
    * @param enable The rule
    */
-  protected void addBLOBEnableRule(String deviceName, BLOBEnables enable) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName);
+  protected synchronized void addBLOBEnableRule(String deviceName, BLOBEnables enable) {
+    HashMap<String, BLOBEnables> rules = new HashMap<String, BLOBEnables>(deviceBLOBEnableRules);
 
-    if (aux != null) {
-      BLOBEnableRules.remove(aux);
-    }
+    rules.put(deviceName, enable);
+
+    deviceBLOBEnableRules = rules;
 
-    BLOBEnableRules.add(new DevicePropertyBLOBEnableTuple(deviceName, enable));
+    subscriptionsChanged();
   }
 
   /**
@@ -84,14 +102,22 @@ public abstract class INDIDeviceListener {
    * @param propertyName The Property name
    * @param enable The rule
    */
-  protected void addBLOBEnableRule(String deviceName, String propertyName, BLOBEnables enable) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName, propertyName);
-
-    if (aux != null) {
-      BLOBEnableRules.remove(aux);
+  protected synchronized void addBLOBEnableRule(String deviceName, String propertyName, BLOBEnables enable) {
+    HashMap<String, HashMap<String, BLOBEnables>> rules = new HashMap<String, HashMap<String, BLOBEnables>>(propertyBLOBEnableRules);
+    HashMap<String, BLOBEnables> deviceRules = rules.get(deviceName);
+
+    if (deviceRules == null) {
+      deviceRules = new HashMap<String, BLOBEnables>();
+    } else {
+      deviceRules = new HashMap<String, BLOBEnables>(deviceRules);
     }
 
-    BLOBEnableRules.add(new DevicePropertyBLOBEnableTuple(deviceName, propertyName, enable));
+    deviceRules.put(propertyName, enable);
+    rules.put(deviceName, deviceRules);
+
+    propertyBLOBEnableRules = rules;
+
+    subscriptionsChanged();
   }
 
   /**
@@ -100,17 +126,7 @@ public abstract class INDIDeviceListener {
    * @return <code>true</code> if non BLOBs are accepted. <code>false</code> otherwise.
    */
   protected boolean areNonBLOBsAccepted(String deviceName) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName);
-    
-    if (aux == null) {
-      return true; 
-    }
-    
-    if (aux.getBLOBEnable() == BLOBEnables.ONLY) {
-      return false; 
-    }
-    
-    return true;
+    return deviceBLOBEnableRules.get(deviceName) != BLOBEnables.ONLY;
   }
   
   /**
@@ -120,27 +136,23 @@ public abstract class INDIDeviceListener {
    * @return <code>true</code> if the BLOB is accepted. <code>false</code> otherwise.
    */
   protected boolean isBLOBAccepted(String deviceName, String propertyName) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName, propertyName);
-    
-    if (aux != null) {
-      if (aux.getBLOBEnable() == BLOBEnables.NEVER) {
-        return false; 
-      } else {
-        return true; 
+    HashMap<String, BLOBEnables> deviceRules = propertyBLOBEnableRules.get(deviceName);
+
+    if (deviceRules != null) {
+      BLOBEnables enable = deviceRules.get(propertyName);
+
+      if (enable != null) {
+        return enable != BLOBEnables.NEVER;
       }
     }
-    
-    aux = getBLOBEnableRule(deviceName);
-    
-    if (aux == null) {
+
+    BLOBEnables enable = deviceBLOBEnableRules.get(deviceName);
+
+    if (enable == null) {
       return false;
     }
-    
-    if (aux.getBLOBEnable() == BLOBEnables.NEVER) {
-      return false; 
-    }
-    
-    return true;
+
+    return enable != BLOBEnables.NEVER;
   }
   
   /**
@@ -158,8 +170,14 @@ public abstract class INDIDeviceListener {
    *
    * @param deviceName The Device name to be listened.
    */
-  protected void addDeviceToListen(String deviceName) {
-    devicesToListen.add(new DevicePropertyBLOBEnableTuple(deviceName));
+  protected synchronized void addDeviceToListen(String deviceName) {
+    HashSet<String> devices = new HashSet<String>(devicesToListen);
+
+    devices.add(deviceName);
+
+    devicesToListen = devices;
+
+    subscriptionsChanged();
   }
 
   /**
@@ -168,46 +186,56 @@ public abstract class INDIDeviceListener {
    * @param deviceName The Device name owner of the Property
    * @param propertyName The Property name to be listened.
    */
-  protected void addPropertyToListen(String deviceName, String propertyName) {
-    propertiesToListen.add(new DevicePropertyBLOBEnableTuple(deviceName, propertyName));
+  protected synchronized void addPropertyToListen(String deviceName, String propertyName) {
+    HashMap<String, HashSet<String>> properties = new HashMap<String, HashSet<String>>(propertiesToListen);
+    HashSet<String> deviceProperties = properties.get(deviceName);
+
+    if (deviceProperties == null) {
+      deviceProperties = new HashSet<String>();
+    } else {
+      deviceProperties = new HashSet<String>(deviceProperties);
+    }
+
+    deviceProperties.add(propertyName);
+    properties.put(deviceName, deviceProperties);
+
+    propertiesToListen = properties;
+
+    subscriptionsChanged();
   }
 
   /**
-   * Gets the BLOB Enable rule for a Property (if it exists).
+   * Sets the listenToAllDevices flag.
    *
-   * @param deviceName The Device name.
-   * @param propertyName The Property name.
-   * @return The BLOB Enable rule.
+   * @param listenToAllDevices The new value of the flag.
    */
-  private DevicePropertyBLOBEnableTuple getBLOBEnableRule(String deviceName, String propertyName) {
-    for (int i = 0 ; i < BLOBEnableRules.size() ; i++) {
-      DevicePropertyBLOBEnableTuple aux = BLOBEnableRules.get(i);
-
-      if (aux.isProperty(deviceName, propertyName)) {
-        return aux;
-      }
-    }
+  protected void setListenToAllDevices(boolean listenToAllDevices) {
+    this.listenToAllDevices = listenToAllDevices;
 
-    return null;
+    subscriptionsChanged();
   }
 
   /**
-   * Gets the BLOB Enable rule for a Device (if it exists).
+   * Sets the index of the Server that must be notified when the
+   * subscriptions of the listener change.
    *
-   * @param deviceName The Device name.
-   * @return The BLOB Enable rule.
+   * @param subscriptionIndex The index (<code>null</code> if the listener is
+   * no longer indexed).
    */
-  private DevicePropertyBLOBEnableTuple getBLOBEnableRule(String deviceName) {
-    return getBLOBEnableRule(deviceName, null);
+  void setSubscriptionIndex(INDISubscriptionIndex subscriptionIndex) {
+    this.subscriptionIndex = subscriptionIndex;
   }
 
   /**
-   * Sets the listenToAllDevices flag.
-   *
-   * @param listenToAllDevices The new value of the flag.
+   * Notifies the index of the Server (if any) that the Devices, Properties or
+   * BLOBs that the listener listens to have changed.
    */
-  protected void setListenToAllDevices(boolean listenToAllDevices) {
-    this.listenToAllDevices = listenToAllDevices;
+  private void subscriptionsChanged() {
+    INDISubscriptionIndex index = subscriptionIndex;
+
+    if (index != null) {
+      index.subscriptionsChanged();
+    }
   }
 
   /**
@@ -223,29 +251,7 @@ public abstract class INDIDeviceListener {
       return true;
     }
 
-    if (listensToParticularDevice(deviceName)) {
-      return true;
-    }
-
-    return false;
-  }
-
-  /**
-   * Checks if it is specifically listening to a particular Device.
-   *
-   * @param deviceName The Device name.
-   * @return
-   * <code>true</code> if the listener specifically listens to the Device.
-   * <code>false</code> otherwise.
-   */
-  private boolean listensToParticularDevice(String deviceName) {
-    for (int i = 0 ; i < devicesToListen.size() ; i++) {
-      if (devicesToListen.get(i).isDevice(deviceName)) {
-        return true;
-      }
-    }
-
-    return false;
+    return devicesToListen.contains(deviceName);
   }
 
   /**
@@ -262,28 +268,10 @@ public abstract class INDIDeviceListener {
       return true;
     }
 
-    if (listensToParticularProperty(deviceName, propertyName)) {
-      return true;
-    }
-
-    return false;
-  }
+    HashSet<String> deviceProperties = propertiesToListen.get(deviceName);
 
-  /**
-   * Checks if it is specifically listening to a particular Property of a
-   * Device.
-   *
-   * @param deviceName The Device name.
-   * @return
-   * <code>true</code> if the listener specifically listens to the Property of a
-   * Device.
-   * <code>false</code> otherwise.
-   */
-  private boolean listensToParticularProperty(String deviceName, String propertyName) {
-    for (int i = 0 ; i < propertiesToListen.size() ; i++) {
-      if (propertiesToListen.get(i).isProperty(deviceName, propertyName)) {
-        return true;
-      }
+    if ((deviceProperties != null) && (deviceProperties.contains(propertyName))) {
+      return true;
     }
 
     return false;
@@ -300,13 +288,7 @@ public abstract class INDIDeviceListener {
    * <code>false</code> otherwise.
    */
   protected boolean listensToSingleProperty(String deviceName) {
-    for (int i = 0 ; i < propertiesToListen.size() ; i++) {
-      if (propertiesToListen.get(i).isDevice(deviceName)) {
-        return true;
-      }
-    }
-
-    return false;
+    return propertiesToListen.containsKey(deviceName);
   }
 
   /**
@@ -315,9 +297,38 @@ public abstract class INDIDeviceListener {
    * @param xml The message to be sent.
    */
   public void sendXMLMessage(Element xml) {
-    String message = XMLToString.transform(xml);
+    sendXMLMessage(ByteBuffer.wrap(XMLToString.transformToBytes(xml)));
+  }
+
+  /**
+   * Sends a typed message to the listener. If the message has been decoded
+   * from some bytes they are sent without any change. The message is
+   * serialized only once, no matter the number of listeners it is sent to.
+   *
+   * @param message The message to be sent.
+   */
+  public void sendXMLMessage(INDIMessage message) {
+    sendXMLMessage(message.getXMLBytes());
+  }
 
-    sendXMLMessage(message);
+  /**
+   * Sends an already serialized (UTF-8 encoded) message to the listener. The
+   * buffer (backed by an array) may be shared by several listeners, so it is
+   * never modified (not even its position). By default it is decoded and sent as a String, but
+   * the listeners that write to streams or channels send the bytes directly.
+   *
+   * @param xml The bytes to be sent.
+   */
+  public void sendXMLMessage(ByteBuffer xml) {
+    ByteBuffer b = xml.duplicate();
+    byte[] bytes = new byte[b.remaining()];
+    b.get(bytes);
+
+    try {
+      sendXMLMessage(new String(bytes, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      sendXMLMessage(new String(bytes));
+    }
   }
 
   /**
@@ -0,0 +1,150 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import laazotea.indi.INDIThreadFactory;
+
+/**
+ * A class that queues the messages to be sent to a Device read by an event
+ * loop and writes them to its stream from a dedicated thread, so that the
+ * loop (which routes the messages of the Clients to the Devices) never blocks
+ * on the pipe of a slow Driver. The queue is bounded: if it gets full the
+ * Device is destroyed, as the Clients that fall too much behind are
+ * disconnected.
+ *
+ * @author farom
+ * @see INDIEventLoop
+ * @see INDIClientOutputQueue
+ */
+class INDIDeviceOutputQueue implements Runnable {
+
+  /**
+   * The maximum number of messages waiting to be sent to a Device.
+   */
+  public static final int MAX_QUEUED_MESSAGES = 1024;
+  /**
+   * The Device to which the messages are sent.
+   */
+  private INDIDevice device;
+  /**
+   * The queued messages.
+   */
+  private ArrayDeque<ByteBuffer> queue;
+  /**
+   * <code>true</code> if the queue has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * Constructs a new queue and starts its writer thread.
+   *
+   * @param device The Device to which the messages are sent.
+   */
+  INDIDeviceOutputQueue(INDIDevice device) {
+    this.device = device;
+
+    queue = new ArrayDeque<ByteBuffer>();
+    closed = false;
+
+    Thread t = INDIThreadFactory.newThread(this, "INDI Device writer " + device.getDeviceIdentifier());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Queues a message. If the Device has fallen too much behind it is
+   * destroyed.
+   *
+   * @param xml The bytes of the message (they are never modified).
+   */
+  void add(ByteBuffer xml) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      if (queue.size() < MAX_QUEUED_MESSAGES) {
+        queue.add(xml);
+
+        notifyAll();
+
+        return;
+      }
+    }
+
+    System.err.println("Driver " + device.getDeviceIdentifier() + " too slow. Destroying it.");
+
+    device.destroy();
+  }
+
+  /**
+   * Closes the queue, discarding the pending messages and stopping the
+   * writer thread.
+   */
+  synchronized void close() {
+    closed = true;
+    queue.clear();
+
+    notifyAll();
+  }
+
+  /**
+   * Writes the queued messages until the queue is closed.
+   */
+  @Override
+  public void run() {
+    OutputStream os = device.getOutputStream();
+
+    while (true) {
+      ByteBuffer xml;
+      boolean flush;
+
+      synchronized (this) {
+        while ((!closed) && (queue.isEmpty())) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+          }
+        }
+
+        if (closed) {
+          return;
+        }
+
+        xml = queue.poll();
+        flush = queue.isEmpty();
+      }
+
+      try {
+        os.write(xml.array(), xml.arrayOffset() + xml.position(), xml.remaining());
+
+        if (flush) {  // Once for all the messages that were waiting
+          os.flush();
+        }
+      } catch (IOException e) {
+        device.destroy();
+
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.util.ArrayList;
+import laazotea.indi.INDIException;
+
+/**
+ * A class representing a batch of Drivers (Java Drivers in JAR files, Native
+ * Drivers and Network Drivers) to be loaded concurrently by a Server. After
+ * loading it, the batch keeps the result of each of its entries.
+ *
+ * @author farom
+ * @see AbstractINDIServer#loadDrivers
+ */
+public class INDIDriverBatch {
+
+  /**
+   * The kinds of entries of a batch.
+   */
+  enum DriverKinds {
+
+    /**
+     * Java Drivers in a JAR file
+     */
+    JAVA,
+    /**
+     * Native Driver
+     */
+    NATIVE,
+    /**
+     * Network Driver
+     */
+    NETWORK
+  }
+
+  /**
+   * The entries of the batch.
+   */
+  private ArrayList<Entry> entries;
+
+  /**
+   * Constructs a new empty batch.
+   */
+  public INDIDriverBatch() {
+    entries = new ArrayList<Entry>();
+  }
+
+  /**
+   * Adds the Java Drivers in a JAR file to the batch.
+   *
+   * @param jarFileName The JAR file from which to load Drivers.
+   */
+  public void addJavaDriversFromJAR(String jarFileName) {
+    entries.add(new Entry(DriverKinds.JAVA, jarFileName, null, 0));
+  }
+
+  /**
+   * Adds a Native Driver to the batch.
+   *
+   * @param driverPath The Driver path name.
+   */
+  public void addNativeDriver(String driverPath) {
+    entries.add(new Entry(DriverKinds.NATIVE, driverPath, null, 0));
+  }
+
+  /**
+   * Adds a Network Driver to the batch.
+   *
+   * @param host The host of the Network Driver.
+   * @param port The port of the Network Driver.
+   */
+  public void addNetworkDriver(String host, int port) {
+    entries.add(new Entry(DriverKinds.NETWORK, host + ":" + port, host, port));
+  }
+
+  /**
+   * Gets the number of entries of the batch.
+   *
+   * @return The number of entries of the batch.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Gets an entry of the batch.
+   *
+   * @param index The index of the entry.
+   * @return The entry.
+   */
+  Entry getEntry(int index) {
+    return entries.get(index);
+  }
+
+  /**
+   * Gets the name of an entry of the batch: its JAR file, Native Driver path
+   * or Network Driver host and port (<code>host:port</code>).
+   *
+   * @param index The index of the entry.
+   * @return The name of the entry.
+   */
+  public String getName(int index) {
+    return entries.get(index).getName();
+  }
+
+  /**
+   * Checks if an entry of the batch is a JAR file with Java Drivers.
+   *
+   * @param index The index of the entry.
+   * @return <code>true</code> if the entry is a JAR file with Java Drivers.
+   * <code>false</code> otherwise.
+   */
+  public boolean isJavaDriversFromJAR(int index) {
+    return entries.get(index).getKind() == DriverKinds.JAVA;
+  }
+
+  /**
+   * Gets a description of an entry of the batch.
+   *
+   * @param index The index of the entry.
+   * @return A description of the entry.
+   */
+  public String getDescription(int index) {
+    Entry e = entries.get(index);
+
+    switch (e.getKind()) {
+      case JAVA:
+        return "JAR file " + e.getName();
+      case NATIVE:
+        return "Native Driver " + e.getName();
+      default:
+        return "Network Driver " + e.getName();
+    }
+  }
+
+  /**
+   * Checks if the Devices of an entry have been added to the Server (for a
+   * JAR file, even if some of its Drivers have failed).
+   *
+   * @param index The index of the entry.
+   * @return <code>true</code> if the Devices of the entry have been added to
+   * the Server. <code>false</code> otherwise.
+   */
+  public boolean isLoaded(int index) {
+    return entries.get(index).isLoaded();
+  }
+
+  /**
+   * Gets the error of an entry (if it has failed, has timed out or, for a JAR
+   * file, any of its Drivers has failed).
+   *
+   * @param index The index of the entry.
+   * @return The error of the entry (<code>null</code> if there is no error).
+   */
+  public INDIException getError(int index) {
+    return entries.get(index).getError();
+  }
+
+  /**
+   * Gets the time taken to load an entry.
+   *
+   * @param index The index of the entry.
+   * @return The time (in milliseconds) taken to load the entry (or until it
+   * has timed out).
+   */
+  public long getLoadingTime(int index) {
+    return entries.get(index).getLoadingTime();
+  }
+
+  /**
+   * An entry of a batch and its result. The result may be set by the thread
+   * that loads the entry after the batch has timed out, so it is accessed
+   * while holding the lock of the entry.
+   */
+  static class Entry {
+
+    /**
+     * The kind of Driver.
+     */
+    private DriverKinds kind;
+    /**
+     * The JAR file, Native Driver path or Network Driver host and port.
+     */
+    private String name;
+    /**
+     * The host of a Network Driver.
+     */
+    private String host;
+    /**
+     * The port of a Network Driver.
+     */
+    private int port;
+    /**
+     * To know if the Devices have been added to the Server.
+     */
+    private boolean loaded;
+    /**
+     * The error of the entry.
+     */
+    private INDIException error;
+    /**
+     * The time (in milliseconds) taken to load the entry.
+     */
+    private long loadingTime;
+
+    /**
+     * Constructs a new entry.
+     *
+     * @param kind The kind of Driver.
+     * @param name The JAR file, Native Driver path or Network Driver host and
+     * port.
+     * @param host The host of a Network Driver.
+     * @param port The port of a Network Driver.
+     */
+    private Entry(DriverKinds kind, String name, String host, int port) {
+      this.kind = kind;
+      this.name = name;
+      this.host = host;
+      this.port = port;
+    }
+
+    DriverKinds getKind() {
+      return kind;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    int getPort() {
+      return port;
+    }
+
+    synchronized boolean isLoaded() {
+      return loaded;
+    }
+
+    synchronized INDIException getError() {
+      return error;
+    }
+
+    synchronized long getLoadingTime() {
+      return loadingTime;
+    }
+
+    /**
+     * Sets the result of the entry.
+     *
+     * @param loaded If the Devices have been added to the Server.
+     * @param error The error of the entry (may be <code>null</code>).
+     * @param loadingTime The time (in milliseconds) taken to load the entry.
+     */
+    synchronized void setResult(boolean loaded, INDIException error, long loadingTime) {
+      this.loaded = loaded;
+      this.error = error;
+      this.loadingTime = loadingTime;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Modifier;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import laazotea.indi.INDIException;
+import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDINotLoadableDriver;
+
+/**
+ * A class that finds the INDI for Java Drivers in a JAR file without loading
+ * (nor initializing) all its classes. The names of the Drivers are taken
+ * from:
+ * <ol>
+ * <li>The service index of the JAR file
+ * (<code>META-INF/services/laazotea.indi.driver.INDIDriver</code>, a class
+ * name per line), if the JAR file has been built with it.</li>
+ * <li>A cached index next to the JAR file (with the <code>.drivers</code>
+ * suffix), generated the first time the JAR file is scanned and discarded if
+ * the JAR file changes.</li>
+ * <li>A scan of the classes of the JAR file (only used if there is no valid
+ * index).</li>
+ * </ol>
+ * Only the concrete Drivers with the <code>(InputStream, OutputStream)</code>
+ * constructor are returned.
+ *
+ * @author farom
+ * @see AbstractINDIServer#loadJavaDriversFromJAR
+ */
+class INDIDriverIndex {
+
+  /**
+   * The name of the service index of a JAR file.
+   */
+  public static final String SERVICE_INDEX = "META-INF/services/laazotea.indi.driver.INDIDriver";
+  /**
+   * The suffix of the cached indexes.
+   */
+  public static final String CACHED_INDEX_SUFFIX = ".drivers";
+  /**
+   * The JAR file.
+   */
+  private File jarFile;
+  /**
+   * The Class Loader of the classes in the JAR file.
+   */
+  private ClassLoader classLoader;
+  /**
+   * The Driver classes in the JAR file.
+   */
+  private ArrayList<Class<? extends INDIDriver>> driverClasses;
+  /**
+   * A description of the source of the Driver names.
+   */
+  private String source;
+
+  /**
+   * Constructs the index of a JAR file.
+   *
+   * @param jarFile The JAR file.
+   * @param classLoader The Class Loader of the classes in the JAR file.
+   * @throws INDIException if there is any problem accessing to the JAR file.
+   */
+  public INDIDriverIndex(File jarFile, ClassLoader classLoader) throws INDIException {
+    this.jarFile = jarFile;
+    this.classLoader = classLoader;
+
+    ArrayList<String> names = readServiceIndex();
+
+    if (names != null) {
+      source = "service index";
+    } else {
+      names = readCachedIndex();
+
+      if (names != null) {
+        source = "cached index";
+      } else {
+        names = scan();
+        source = "JAR scan";
+
+        writeCachedIndex(names);
+      }
+    }
+
+    driverClasses = new ArrayList<Class<? extends INDIDriver>>();
+
+    for (int i = 0 ; i < names.size() ; i++) {
+      Class<? extends INDIDriver> c = loadDriverClass(names.get(i));
+
+      if (c != null) {
+        driverClasses.add(c);
+      }
+    }
+  }
+
+  /**
+   * Gets the Driver classes in the JAR file.
+   *
+   * @return The Driver classes in the JAR file.
+   */
+  public ArrayList<Class<? extends INDIDriver>> getDriverClasses() {
+    return driverClasses;
+  }
+
+  /**
+   * Gets a description of the source of the Driver names (the service index,
+   * the cached index or a scan of the JAR file).
+   *
+   * @return A description of the source of the Driver names.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * Reads the service index of the JAR file.
+   *
+   * @return The names in the service index (<code>null</code> if there is no
+   * service index).
+   * @throws INDIException if there is any problem accessing to the JAR file.
+   */
+  private ArrayList<String> readServiceIndex() throws INDIException {
+    JarFile jar = openJarFile();
+
+    try {
+      JarEntry entry = jar.getJarEntry(SERVICE_INDEX);
+
+      if (entry == null) {
+        return null;
+      }
+
+      return readNames(jar.getInputStream(entry));
+    } catch (IOException e) {
+      throw new INDIException("Error reading the driver index of the JAR file.");
+    } finally {
+      closeJarFile(jar);
+    }
+  }
+
+  /**
+   * Reads the cached index of the JAR file.
+   *
+   * @return The names in the cached index (<code>null</code> if there is no
+   * cached index or it does not correspond to the current JAR file).
+   */
+  private ArrayList<String> readCachedIndex() {
+    File cache = getCachedIndexFile();
+
+    if (!cache.isFile()) {
+      return null;
+    }
+
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cache), "UTF-8"));
+
+      try {
+        in.readLine();  // Title
+
+        if (!getJarStamp().equals(in.readLine())) {
+          return null;
+        }
+      } finally {
+        in.close();
+      }
+
+      return readNames(new FileInputStream(cache));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the cached index of the JAR file. It is written to a temporary
+   * file that is then renamed, so a partially written index (if the disk is
+   * full or the Server dies) never replaces a valid one. If it cannot be
+   * written (for example, if the directory is read only) the JAR file will
+   * be scanned again the next time.
+   *
+   * @param names The names of the Drivers in the JAR file.
+   */
+  private void writeCachedIndex(ArrayList<String> names) {
+    File cache = getCachedIndexFile().getAbsoluteFile();
+    File tmp = null;
+
+    try {
+      tmp = File.createTempFile(cache.getName(), ".tmp", cache.getParentFile());
+
+      OutputStream os = new FileOutputStream(tmp);
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+
+      out.println("# INDI for Java Drivers in " + jarFile.getName());
+      out.println(getJarStamp());
+
+      for (int i = 0 ; i < names.size() ; i++) {
+        out.println(names.get(i));
+      }
+
+      out.close();
+
+      if (out.checkError()) {  // PrintWriter swallows the errors
+        throw new IOException("Error writing " + tmp);
+      }
+
+      try {
+        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      tmp = null;
+    } catch (IOException e) {
+    } finally {
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Gets the file of the cached index of the JAR file.
+   *
+   * @return The file of the cached index.
+   */
+  private File getCachedIndexFile() {
+    return new File(jarFile.getPath() + CACHED_INDEX_SUFFIX);
+  }
+
+  /**
+   * Gets a line that identifies the current version of the JAR file (its size
+   * and modification time).
+   *
+   * @return A line that identifies the current version of the JAR file.
+   */
+  private String getJarStamp() {
+    return "# " + jarFile.length() + " " + jarFile.lastModified();
+  }
+
+  /**
+   * Scans the classes of the JAR file. The classes are loaded but not
+   * initialized.
+   *
+   * @return The names of the Drivers in the JAR file.
+   * @throws INDIException if there is any problem accessing to the JAR file.
+   */
+  private ArrayList<String> scan() throws INDIException {
+    ArrayList<String> names = new ArrayList<String>();
+    JarFile jar = openJarFile();
+
+    try {
+      Enumeration<JarEntry> entries = jar.entries();
+
+      while (entries.hasMoreElements()) {
+        String n = entries.nextElement().getName();
+
+        if (n.endsWith(".class") && !n.startsWith("META-INF/")) {
+          n = n.substring(0, n.length() - 6).replace("/", ".");
+
+          if (loadDriverClass(n) != null) {
+            names.add(n);
+          }
+        }
+      }
+    } finally {
+      closeJarFile(jar);
+    }
+
+    return names;
+  }
+
+  /**
+   * Loads (without initializing it) a class and checks if it is a Driver that
+   * can be loaded by the Server.
+   *
+   * @param className The name of the class.
+   * @return The class (<code>null</code> if it cannot be loaded or it is not
+   * a loadable Driver).
+   */
+  private Class<? extends INDIDriver> loadDriverClass(String className) {
+    Class<?> c;
+
+    try {
+      c = Class.forName(className, false, classLoader);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {  // Classes with missing dependencies
+      return null;
+    }
+
+    if (!INDIDriver.class.isAssignableFrom(c) || INDINotLoadableDriver.class.isAssignableFrom(c)) {
+      return null;
+    }
+
+    if (Modifier.isAbstract(c.getModifiers())) {
+      return null;
+    }
+
+    Class<? extends INDIDriver> driverClass = c.asSubclass(INDIDriver.class);
+
+    try {
+      driverClass.getConstructor(InputStream.class, OutputStream.class);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+
+    return driverClass;
+  }
+
+  /**
+   * Reads a list of class names (one per line, ignoring empty lines and
+   * comments starting with <code>#</code>) and closes the stream.
+   *
+   * @param is The stream to read.
+   * @return The class names.
+   * @throws IOException if there is any problem reading the stream.
+   */
+  private ArrayList<String> readNames(InputStream is) throws IOException {
+    ArrayList<String> names = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+
+    try {
+      String line = in.readLine();
+
+      while (line != null) {
+        int comment = line.indexOf('#');
+
+        if (comment != -1) {
+          line = line.substring(0, comment);
+        }
+
+        line = line.trim();
+
+        if (line.length() > 0) {
+          names.add(line);
+        }
+
+        line = in.readLine();
+      }
+    } finally {
+      in.close();
+    }
+
+    return names;
+  }
+
+  /**
+   * Opens the JAR file.
+   *
+   * @return The opened JAR file.
+   * @throws INDIException if the JAR file cannot be opened.
+   */
+  private JarFile openJarFile() throws INDIException {
+    try {
+      return new JarFile(jarFile);
+    } catch (IOException e) {
+      throw new INDIException("Error loading JAR file contents.");
+    }
+  }
+
+  /**
+   * Closes the JAR file.
+   *
+   * @param jar The JAR file.
+   */
+  private void closeJarFile(JarFile jar) {
+    try {
+      jar.close();
+    } catch (IOException e) {
+    }
+  }
+}
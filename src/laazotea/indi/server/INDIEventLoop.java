@@ -0,0 +1,545 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import laazotea.indi.INDIProtocolReader;
+import laazotea.indi.INDIThreadFactory;
+
+/**
+ * A class representing a thread that reads from many Clients and Devices
+ * without blocking, feeding their <code>INDIProtocolReader</code>s (which are
+ * not run in their own threads). The socket channels of the Clients are read
+ * through a <code>Selector</code> (sharing a single read buffer). The streams
+ * of the Devices (pipes of native processes, etc.), which cannot be selected,
+ * are read by a blocking thread for each Device that hands the read bytes to
+ * the loop, so that the loop never polls them and every message is still
+ * parsed in the loop.<p>
+ *
+ * The loop also writes the queued messages of its Clients to their non
+ * blocking channels (with gathering writes), waiting for the channels that
+ * get full to be writable again, and may accept the new connections of a
+ * Server, so that no thread is needed for each Client. The loop never blocks
+ * writing: the messages to the Devices that it serves are written by their
+ * own writer threads (see <code>INDIDeviceOutputQueue</code>).
+ *
+ * @author farom
+ * @see AbstractINDIServer
+ */
+public class INDIEventLoop extends Thread {
+
+  /**
+   * The size of the read buffer shared by all the connections.
+   */
+  private static final int BUFFER_SIZE = 65536;
+  /**
+   * The selector for the socket channels of the Clients.
+   */
+  private Selector selector;
+  /**
+   * The read buffer shared by all the connections.
+   */
+  private byte[] buffer;
+  /**
+   * The read buffer shared by all the connections (as a
+   * <code>ByteBuffer</code>).
+   */
+  private ByteBuffer byteBuffer;
+  /**
+   * The Clients waiting to be registered in the selector.
+   */
+  private ArrayList<INDIClient> pendingClients;
+  /**
+   * The readers of the Devices with read bytes (or the end of their streams)
+   * waiting to be fed to their protocol readers.
+   */
+  private ArrayList<DeviceReader> pendingReads;
+  /**
+   * The readers of the Devices whose bytes are being fed (swapped with
+   * <code>pendingReads</code> in each iteration).
+   */
+  private ArrayList<DeviceReader> reads;
+  /**
+   * The Servers whose listening channels are waiting to be registered in the
+   * selector.
+   */
+  private ArrayList<AbstractINDIServer> pendingServers;
+  /**
+   * The Clients with new queued messages to be written.
+   */
+  private ArrayList<INDIClient> pendingWrites;
+  /**
+   * The Clients with new queued messages being written (swapped with
+   * <code>pendingWrites</code> in each iteration).
+   */
+  private ArrayList<INDIClient> writes;
+  /**
+   * Used to friendly stop the loop.
+   */
+  private volatile boolean stop;
+
+  /**
+   * Constructs a new event loop (that must be started).
+   *
+   * @throws IOException if the selector cannot be opened.
+   */
+  public INDIEventLoop() throws IOException {
+    super("INDI Event Loop");
+
+    setDaemon(true);
+
+    selector = Selector.open();
+    buffer = new byte[BUFFER_SIZE];
+    byteBuffer = ByteBuffer.wrap(buffer);
+    pendingClients = new ArrayList<INDIClient>();
+    pendingReads = new ArrayList<DeviceReader>();
+    reads = new ArrayList<DeviceReader>();
+    pendingServers = new ArrayList<AbstractINDIServer>();
+    pendingWrites = new ArrayList<INDIClient>();
+    writes = new ArrayList<INDIClient>();
+    stop = false;
+  }
+
+  /**
+   * Adds a Client to the loop. The socket of the Client must have a channel,
+   * which will be configured as non blocking.
+   *
+   * @param client The Client to add.
+   */
+  public void register(INDIClient client) {
+    synchronized (pendingClients) {
+      pendingClients.add(client);
+    }
+
+    selector.wakeup();
+  }
+
+  /**
+   * Adds a Device to the loop. A thread is started to read its stream, whose
+   * bytes are parsed in the loop.
+   *
+   * @param device The Device to add.
+   */
+  public void register(INDIDevice device) {
+    Thread t = INDIThreadFactory.newThread(new DeviceReader(device), "INDI Device reader " + device.getDeviceIdentifier());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Hands the bytes read by the reader of a Device to the loop.
+   *
+   * @param reader The reader of the Device.
+   */
+  private void scheduleRead(DeviceReader reader) {
+    synchronized (pendingReads) {
+      pendingReads.add(reader);
+    }
+
+    selector.wakeup();
+  }
+
+  /**
+   * Makes the loop accept the new Clients of a Server. The listening channel
+   * of the Server is configured as non blocking.
+   *
+   * @param server The Server.
+   */
+  public void register(AbstractINDIServer server) {
+    synchronized (pendingServers) {
+      pendingServers.add(server);
+    }
+
+    selector.wakeup();
+  }
+
+  /**
+   * Asks the loop to write the queued messages of a Client (that must have
+   * been registered in this loop).
+   *
+   * @param client The Client.
+   */
+  void scheduleWrite(INDIClient client) {
+    synchronized (pendingWrites) {
+      pendingWrites.add(client);
+    }
+
+    selector.wakeup();
+  }
+
+  /**
+   * Stops the loop. The connections are not closed.
+   */
+  public void stopLoop() {
+    stop = true;
+
+    selector.wakeup();
+  }
+
+  /**
+   * The main body of the loop.
+   */
+  @Override
+  public void run() {
+    while (!stop) {
+      registerPending();
+
+      writeClients();
+
+      try {
+        selector.select();
+      } catch (IOException e) {
+        e.printStackTrace();
+
+        return;
+      }
+
+      processSelectedKeys();
+
+      readDevices();
+    }
+  }
+
+  /**
+   * Registers the pending Clients and Servers.
+   */
+  private void registerPending() {
+    synchronized (pendingClients) {
+      for (int i = 0 ; i < pendingClients.size() ; i++) {
+        INDIClient client = pendingClients.get(i);
+        SocketChannel channel = client.getChannel();
+
+        try {
+          channel.configureBlocking(false);
+          channel.register(selector, SelectionKey.OP_READ, client);
+        } catch (IOException e) {
+          client.getReader().finish();
+        }
+      }
+
+      pendingClients.clear();
+    }
+
+    synchronized (pendingServers) {
+      for (int i = 0 ; i < pendingServers.size() ; i++) {
+        ServerSocketChannel channel = pendingServers.get(i).getServerChannel();
+
+        try {
+          channel.configureBlocking(false);
+          channel.register(selector, SelectionKey.OP_ACCEPT, pendingServers.get(i));
+        } catch (IOException e) {  // Already closed
+        }
+      }
+
+      pendingServers.clear();
+    }
+  }
+
+  /**
+   * Writes the queued messages of the Clients that have been scheduled.
+   */
+  private void writeClients() {
+    synchronized (pendingWrites) {
+      ArrayList<INDIClient> aux = writes;
+      writes = pendingWrites;
+      pendingWrites = aux;
+    }
+
+    for (int i = 0 ; i < writes.size() ; i++) {
+      INDIClient client = writes.get(i);
+      SocketChannel channel = client.getChannel();
+      SelectionKey key = channel.keyFor(selector);
+
+      if (key == null) {
+        if (channel.isOpen()) {  // Still waiting to be registered
+          synchronized (pendingWrites) {
+            pendingWrites.add(client);
+          }
+        }
+      } else if (key.isValid()) {
+        writeClient(key);
+      }
+    }
+
+    writes.clear();
+  }
+
+  /**
+   * Writes the queued messages of a Client. If its channel gets full the loop
+   * waits for it to be writable again.
+   *
+   * @param key The key of the channel of the Client.
+   */
+  private void writeClient(SelectionKey key) {
+    INDIClient client = (INDIClient)key.attachment();
+
+    try {
+      if (client.flushOutput()) {
+        key.interestOps(SelectionKey.OP_READ);
+      } else {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      closeClient(key);
+    }
+  }
+
+  /**
+   * Accepts all the pending connections of a Server.
+   *
+   * @param key The key of the listening channel of the Server.
+   */
+  private void acceptClients(SelectionKey key) {
+    AbstractINDIServer server = (AbstractINDIServer)key.attachment();
+    ServerSocketChannel channel = (ServerSocketChannel)key.channel();
+
+    while (true) {
+      SocketChannel clientChannel;
+
+      try {
+        clientChannel = channel.accept();
+      } catch (IOException e) {  // Closed (or out of resources: retried in the next select)
+        if (!channel.isOpen()) {
+          key.cancel();
+        }
+
+        return;
+      }
+
+      if (clientChannel == null) {
+        return;
+      }
+
+      server.clientConnected(clientChannel.socket());
+    }
+  }
+
+  /**
+   * Processes the channels that are ready: accepts new Clients, continues
+   * writing to the Clients whose channels are writable again and reads from
+   * the Clients with available data.
+   */
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+
+      if (!key.isValid()) {
+        continue;
+      }
+
+      if (key.isAcceptable()) {
+        acceptClients(key);
+
+        continue;
+      }
+
+      if (key.isWritable()) {
+        writeClient(key);
+      }
+
+      if ((key.isValid()) && (key.isReadable())) {
+        readClient(key);
+      }
+    }
+  }
+
+  /**
+   * Closes the channel of a Client and finishes its reader.
+   *
+   * @param key The key of the channel of the Client.
+   */
+  private void closeClient(SelectionKey key) {
+    key.cancel();
+
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+    }
+
+    ((INDIClient)key.attachment()).getReader().finish();
+  }
+
+  /**
+   * Reads from a Client whose channel is ready.
+   *
+   * @param key The key of the channel of the Client.
+   */
+  private void readClient(SelectionKey key) {
+    INDIClient client = (INDIClient)key.attachment();
+    INDIProtocolReader reader = client.getReader();
+    SocketChannel channel = (SocketChannel)key.channel();
+
+    int nReaded;
+
+    try {
+      byteBuffer.clear();
+
+      nReaded = channel.read(byteBuffer);
+    } catch (IOException e) {
+      nReaded = -1;
+    }
+
+    if ((nReaded == -1) || reader.isStopped()) {  // End of the connection
+      closeClient(key);
+    } else if (nReaded > 0) {
+      reader.feed(buffer, 0, nReaded);
+    }
+  }
+
+  /**
+   * Feeds the bytes read from the streams of the Devices to their protocol
+   * readers, finishing the ones whose streams have ended.
+   */
+  private void readDevices() {
+    synchronized (pendingReads) {
+      ArrayList<DeviceReader> aux = reads;
+      reads = pendingReads;
+      pendingReads = aux;
+    }
+
+    for (int i = 0 ; i < reads.size() ; i++) {
+      reads.get(i).feed();
+    }
+
+    reads.clear();
+  }
+
+  /**
+   * A class that reads the stream of a Device from its own thread, blocking
+   * while there is no data, and hands each read chunk to the loop, waiting
+   * for the loop to parse it before reading the next one.
+   */
+  private class DeviceReader implements Runnable {
+
+    /**
+     * The Device.
+     */
+    private INDIDevice device;
+    /**
+     * The bytes read from the stream of the Device.
+     */
+    private byte[] data;
+    /**
+     * The number of bytes in <code>data</code> waiting to be parsed (-1 if
+     * the stream has ended).
+     */
+    private int length;
+    /**
+     * <code>true</code> while the loop has not parsed the read bytes.
+     */
+    private boolean pending;
+
+    /**
+     * Constructs a new reader for a Device.
+     *
+     * @param device The Device.
+     */
+    private DeviceReader(INDIDevice device) {
+      this.device = device;
+
+      data = new byte[BUFFER_SIZE];
+      length = 0;
+      pending = false;
+    }
+
+    /**
+     * Reads the stream of the Device until it ends.
+     */
+    @Override
+    public void run() {
+      InputStream in = device.getInputStream();
+      INDIProtocolReader reader = device.getReader();
+
+      while (true) {
+        int nReaded;
+
+        if (reader.isStopped()) {
+          nReaded = -1;
+        } else {
+          try {
+            nReaded = in.read(data, 0, data.length);
+          } catch (IOException e) {
+            nReaded = -1;
+          }
+        }
+
+        if (nReaded != 0) {
+          hand(nReaded);
+        }
+
+        if (nReaded == -1) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Hands some read bytes (or the end of the stream) to the loop and waits
+     * until they have been parsed.
+     *
+     * @param nReaded The number of read bytes (-1 for the end of the stream).
+     */
+    private synchronized void hand(int nReaded) {
+      length = nReaded;
+      pending = true;
+
+      scheduleRead(this);
+
+      if (nReaded == -1) {  // Finished by the loop, no need to wait
+        return;
+      }
+
+      while (pending) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Feeds the read bytes to the protocol reader of the Device (or finishes
+     * it). Called by the loop.
+     */
+    private synchronized void feed() {
+      INDIProtocolReader reader = device.getReader();
+
+      if (length == -1) {
+        reader.finish();
+      } else if (!reader.isStopped()) {
+        reader.feed(data, 0, length);
+      }
+
+      pending = false;
+
+      notifyAll();
+    }
+  }
+}
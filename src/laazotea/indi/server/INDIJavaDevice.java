@@ -17,18 +17,31 @@
  */
 package laazotea.indi.server;
 
-import com.Ostermiller.util.CircularByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIProtocolReader;
+import laazotea.indi.INDIThreadFactory;
 import laazotea.indi.driver.INDIDriver;
 
 /**
  * A class that represent a Java Device (created with the INDI Driver library).
+ * The Driver runs in the Server JVM and no pipes nor reader threads are used
+ * to communicate with it: the bytes written by the Driver are directly fed to
+ * the reader of the Device (in the thread of the Driver) and the messages of
+ * the Clients are directly delivered to the Driver (in the thread of the
+ * Client). If the Server uses event loops the messages are written to a
+ * bounded buffer and delivered by a thread that only lives while there are
+ * pending messages, so the loops only wait for the Driver when the buffer
+ * gets full.
  *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, July 23, 2013
@@ -37,6 +50,10 @@ import laazotea.indi.driver.INDIDriver;
  */
 public class INDIJavaDevice extends INDIDevice {
 
+  /**
+   * The size of the chunks in which the pending messages are delivered.
+   */
+  private static final int DELIVERY_BUFFER_SIZE = 65536;
   /**
    * The Driver
    */
@@ -47,13 +64,29 @@ public class INDIJavaDevice extends INDIDevice {
    */
   private String identifier;
   /**
-   * A buffer to send information to the Driver.
+   * A reader (never started) used to deliver already serialized messages to
+   * the Driver.
    */
-  private CircularByteBuffer toDriver;
+  private INDIProtocolReader driverReader;
   /**
-   * A buffer to get information from the Driver.
+   * A lock to deliver the messages to the Driver one at a time (as its reader
+   * thread did).
    */
-  private CircularByteBuffer fromDriver;
+  private final Object driverLock;
+  /**
+   * The stream that gets the information from the Driver.
+   */
+  private DriverOutputStream fromDriver;
+  /**
+   * The buffer of the (already serialized) messages pending to be delivered
+   * to the Driver. <code>null</code> if the Server does not use event loops.
+   */
+  private INDIByteRing pendingMessages;
+  /**
+   * A lock to write the pending messages one at a time (so that they are not
+   * mixed).
+   */
+  private final Object pendingMessagesLock;
   /**
    * The class of the Driver.
    */
@@ -64,12 +97,14 @@ public class INDIJavaDevice extends INDIDevice {
    */
 //  private String name;
   /**
-   * A list of names of the Device (it may be more than one)
+   * A list of names of the Device (it may be more than one). It is changed by
+   * the thread of the Driver that writes its messages while others read it.
    */
-  private ArrayList<String> names;
+  private CopyOnWriteArrayList<String> names;
 
   /**
-   * Constructs a new Java Device and starts listening to its messages.
+   * Constructs a new Java Device and starts the Driver. The messages sent by
+   * the Driver before the Device starts reading are kept until then.
    *
    * @param server The server which listens to this Device.
    * @param driverClass The class of the Driver.
@@ -80,16 +115,21 @@ public class INDIJavaDevice extends INDIDevice {
     super(server);
 
     //name = null;
-    names = new ArrayList<String>();
+    names = new CopyOnWriteArrayList<String>();
     this.identifier = identifier;
     this.driverClass = driverClass;
 
-    toDriver = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
-    fromDriver = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
+    driverLock = new Object();
+    pendingMessagesLock = new Object();
+
+    if (server.usesEventLoops()) {
+      pendingMessages = new INDIByteRing(server.getJavaDriverBufferSize());
+    }
+    fromDriver = new DriverOutputStream();
 
     try {
       Constructor c = driverClass.getConstructor(InputStream.class, OutputStream.class);
-      this.driver = (INDIDriver) c.newInstance(toDriver.getInputStream(), fromDriver.getOutputStream());
+      this.driver = (INDIDriver) c.newInstance(new ByteArrayInputStream(new byte[0]), fromDriver);
     } catch (InstantiationException ex) {
       throw new INDIException("Problem instantiating driver (not an INDI for Java Driver?) - InstantiationException");
     } catch (IllegalAccessException ex) {
@@ -102,7 +142,30 @@ public class INDIJavaDevice extends INDIDevice {
       throw new INDIException("Problem instantiating driver (not an INDI for Java Driver?) - ClassCastException");
     }
 
-    driver.startListening();
+    driverReader = new INDIProtocolReader(driver);
+
+    driver.startWithoutListening();
+  }
+
+  /**
+   * Starts the reader of the Device and feeds it with the messages that the
+   * Driver has already sent.
+   */
+  @Override
+  protected void startReading() {
+    super.startReading();
+
+    fromDriver.connect(getReader());
+  }
+
+  /**
+   * The Java Devices directly feed their reader.
+   *
+   * @return <code>false</code>
+   */
+  @Override
+  protected boolean isReadFromStream() {
+    return false;
   }
 
   /**
@@ -134,9 +197,7 @@ public class INDIJavaDevice extends INDIDevice {
    */
   @Override
   protected void dealWithPossibleNewDeviceName(String possibleNewName) {
-    if (!names.contains(possibleNewName)) {
-      names.add(possibleNewName);
-    }
+    names.addIfAbsent(possibleNewName);
   }
 
   /**
@@ -178,34 +239,214 @@ public class INDIJavaDevice extends INDIDevice {
     return false;
   }
 
+  /**
+   * Delivers a message to the Driver, without serializing it. The Driver must
+   * copy any value of <code>message</code> it wants to keep, as it may be
+   * reused after this call. If called by an event loop the message is queued
+   * (its original bytes, if it has been decoded from them), waiting if the
+   * buffer of pending messages is full.
+   *
+   * @param message The message to be delivered.
+   */
   @Override
-  public void closeConnections() {
-    try {
-      toDriver.getInputStream().close();
-    } catch (IOException e) {
+  public void sendXMLMessage(INDIMessage message) {
+    if (Thread.currentThread() instanceof INDIEventLoop) {
+      deliverLater(message.getXMLBytes());
+
+      return;
     }
-    try {
-      toDriver.getOutputStream().close();
-    } catch (IOException e) {
+
+    synchronized (driverLock) {
+      try {
+        driver.parseMessage(message);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
     }
-    try {
-      fromDriver.getInputStream().close();
-    } catch (IOException e) {
+  }
+
+  /**
+   * Delivers an already serialized message to the Driver, decoding it in the
+   * calling thread. If the Server uses event loops the message is queued
+   * (even if not called by a loop, as the Driver decodes the queued messages
+   * in chunks).
+   *
+   * @param xml The bytes to be delivered.
+   */
+  @Override
+  public void sendXMLMessage(ByteBuffer xml) {
+    if (pendingMessages != null) {
+      deliverLater(xml);
+
+      return;
     }
-    try {
-      fromDriver.getOutputStream().close();
-    } catch (IOException e) {
+
+    deliver(xml);
+  }
+
+  /**
+   * Decodes an already serialized message and delivers it to the Driver.
+   *
+   * @param xml The bytes to be delivered.
+   */
+  private void deliver(ByteBuffer xml) {
+    deliver(xml.array(), xml.arrayOffset() + xml.position(), xml.remaining());
+  }
+
+  /**
+   * Decodes some bytes of serialized messages and delivers them to the Driver.
+   *
+   * @param bytes The array containing the bytes.
+   * @param offset The position of the first byte.
+   * @param length The number of bytes.
+   */
+  private void deliver(byte[] bytes, int offset, int length) {
+    synchronized (driverLock) {
+      try {
+        driverReader.feed(bytes, offset, length);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
     }
   }
 
+  /**
+   * Queues an already serialized message to be delivered to the Driver,
+   * starting a delivering thread if there is none. If the buffer of pending
+   * messages gets full it waits for the Driver to make room.
+   *
+   * @param xml The bytes to be delivered (they must not be modified).
+   */
+  private void deliverLater(ByteBuffer xml) {
+    byte[] bytes = xml.array();
+    int offset = xml.arrayOffset() + xml.position();
+    int length = xml.remaining();
+
+    synchronized (pendingMessagesLock) {
+      while (length > 0) {
+        int n = pendingMessages.offer(bytes, offset, length);
+
+        if (pendingMessages.activateConsumer()) {
+          INDIThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+              deliverPendingMessages();
+            }
+          }, "INDI Java Device Delivery").start();
+        }
+
+        offset += n;
+        length -= n;
+
+        if (length > 0) {
+          if (pendingMessages.isClosed()) {
+            return;
+          }
+
+          try {
+            pendingMessages.awaitRoom();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // The loop is being stopped
+
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers the pending messages to the Driver, until there are no more.
+   */
+  private void deliverPendingMessages() {
+    byte[] buffer = new byte[DELIVERY_BUFFER_SIZE];
+
+    while (true) {
+      int n = pendingMessages.poll(buffer, 0, buffer.length);
+
+      if (n == -1) {
+        return;
+      }
+
+      deliver(buffer, 0, n);
+    }
+  }
+
+  /**
+   * Gets the number of bytes pending to be delivered to the Driver.
+   *
+   * @return The number of pending bytes (always 0 if the Server does not use
+   * event loops).
+   */
+  public int getPendingBytes() {
+    if (pendingMessages == null) {
+      return 0;
+    }
+
+    return pendingMessages.getSize();
+  }
+
+  /**
+   * Gets the maximum number of bytes that have been pending to be delivered
+   * to the Driver.
+   *
+   * @return The high watermark (in bytes) of the buffer of pending messages
+   * (always 0 if the Server does not use event loops).
+   */
+  public int getPendingBytesHighWatermark() {
+    if (pendingMessages == null) {
+      return 0;
+    }
+
+    return pendingMessages.getHighWatermark();
+  }
+
+  /**
+   * Gets the number of times that the Server has waited for the Driver
+   * because the buffer of pending messages was full.
+   *
+   * @return The number of blocked deliveries.
+   */
+  public long getBlockedDeliveries() {
+    if (pendingMessages == null) {
+      return 0;
+    }
+
+    return pendingMessages.getBlockedWrites();
+  }
+
+  /**
+   * Discards the messages pending to be delivered to the Driver, stops
+   * getting messages from it and finishes the reader of the Device (which
+   * removes it from the Server).
+   */
+  @Override
+  public void closeConnections() {
+    if (pendingMessages != null) {
+      pendingMessages.close();
+    }
+
+    fromDriver.close();
+  }
+
+  /**
+   * The Java Devices are not read from a stream.
+   *
+   * @return <code>null</code>
+   */
   @Override
   public InputStream getInputStream() {
-    return fromDriver.getInputStream();
+    return null;
   }
 
+  /**
+   * The Java Devices are not written through a stream.
+   *
+   * @return <code>null</code>
+   */
   @Override
   public OutputStream getOutputStream() {
-    return toDriver.getOutputStream();
+    return null;
   }
 
   @Override
@@ -231,13 +472,7 @@ public class INDIJavaDevice extends INDIDevice {
    }*/
   @Override
   protected String[] getNames() {
-    String[] ns = new String[names.size()];
-
-    for (int i = 0 ; i < ns.length ; i++) {
-      ns[i] = names.get(i);
-    }
-
-    return ns;
+    return names.toArray(new String[0]);
   }
 
   /**
@@ -254,4 +489,116 @@ public class INDIJavaDevice extends INDIDevice {
   public void isBeingDestroyed() {
     driver.isBeingDestroyed();
   }
+
+  /**
+   * The stream given to the Driver. The written bytes are directly fed to the
+   * reader of the Device (or kept until the Device starts reading).
+   */
+  private static class DriverOutputStream extends OutputStream {
+
+    /**
+     * The reader of the Device. <code>null</code> until the Device starts
+     * reading.
+     */
+    private INDIProtocolReader reader;
+    /**
+     * The bytes written before the Device starts reading.
+     */
+    private ByteArrayOutputStream pending;
+    /**
+     * To know if the stream has been closed.
+     */
+    private boolean closed;
+    /**
+     * The lock that keeps the bytes fed to the reader in order. The reader
+     * (which routes the messages to the listeners) is fed while holding it
+     * instead of the lock of the stream, which only guards its state.
+     */
+    private final Object feedLock;
+
+    /**
+     * Constructs a new stream, keeping the written bytes until it is
+     * connected to a reader.
+     */
+    private DriverOutputStream() {
+      pending = new ByteArrayOutputStream();
+      closed = false;
+      feedLock = new Object();
+    }
+
+    /**
+     * Connects the stream to the reader of the Device, feeding it with the
+     * pending bytes.
+     *
+     * @param reader The reader of the Device.
+     */
+    private void connect(INDIProtocolReader reader) {
+      synchronized (feedLock) {  // The later writes wait for the pending bytes
+        byte[] bytes;
+
+        synchronized (this) {
+          this.reader = reader;
+
+          bytes = pending.toByteArray();
+          pending = null;
+        }
+
+        if (bytes.length > 0) {
+          reader.feed(bytes, 0, bytes.length);
+        }
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      INDIProtocolReader r;
+
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("Java Device closed");
+        }
+
+        if (reader == null) {
+          pending.write(b, off, len);
+
+          return;
+        }
+
+        r = reader;
+      }
+
+      synchronized (feedLock) {
+        r.feed(b, off, len);
+      }
+    }
+
+    /**
+     * Closes the stream and, if it was connected, finishes the reader of the
+     * Device (only once).
+     */
+    @Override
+    public void close() {
+      INDIProtocolReader r;
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        closed = true;
+        r = reader;
+      }
+
+      if (r != null) {
+        synchronized (feedLock) {  // After the bytes being fed
+          r.finish();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,770 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import laazotea.indi.Constants;
+import laazotea.indi.Constants.LightStates;
+import laazotea.indi.Constants.MessageTypes;
+import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.Constants.SwitchStatus;
+import laazotea.indi.INDIMessage;
+
+/**
+ * A class that keeps the current state of the Properties of a Device, built
+ * from the <code>defXXXVector</code>, <code>setXXXVector</code> and
+ * <code>delProperty</code> messages that it sends, so that the
+ * <code>getProperties</code> messages of new Clients can be answered without
+ * asking the Driver (which would send its definitions to every listening
+ * Client). For each Property it keeps the bytes of its last definition and
+ * the current values of its Elements (merging the updates that only include
+ * some of them). The answer consists of the definition followed, if the
+ * Property has been updated since then, by a <code>setXXXVector</code> with
+ * its current state and values. The values of BLOBs are not kept.<p>
+ *
+ * The methods of the cache must be called while holding its lock, but the
+ * messages (both the updates of the Device and the answers built from the
+ * cache) are sent outside it. Every change increases the version of the
+ * cache (and of the changed Property), so an answer that may have been
+ * overtaken by some updates sent to the same listener is completed with the
+ * current state of the Properties changed meanwhile (see
+ * <code>Replay</code>).
+ *
+ * @author farom
+ * @see INDIDevice
+ */
+class INDIPropertyCache {
+
+  /**
+   * The Properties of each Device (by Device and Property name, in order of
+   * definition).
+   */
+  private LinkedHashMap<String, LinkedHashMap<String, CachedProperty>> devices;
+  /**
+   * The names of the Devices whose Properties have already been requested
+   * to the Driver.
+   */
+  private HashSet<String> requestedDevices;
+  /**
+   * <code>true</code> if the Properties of all the Devices of the Driver have
+   * already been requested.
+   */
+  private boolean allRequested;
+  /**
+   * The version of the cache, increased with each change.
+   */
+  private long version;
+
+  /**
+   * Constructs an empty cache.
+   */
+  INDIPropertyCache() {
+    devices = new LinkedHashMap<String, LinkedHashMap<String, CachedProperty>>();
+    requestedDevices = new HashSet<String>();
+    allRequested = false;
+    version = 0;
+  }
+
+  /**
+   * Determines if the Properties of a Device have already been requested to
+   * the Driver (and therefore its definitions are or will be in the cache).
+   *
+   * @param deviceName The name of the Device (<code>null</code> for all the
+   * Devices of the Driver).
+   * @return <code>true</code> if the Properties have already been requested.
+   */
+  boolean isRequested(String deviceName) {
+    if (allRequested) {
+      return true;
+    }
+
+    return (deviceName != null) && (requestedDevices.contains(deviceName));
+  }
+
+  /**
+   * Records that the Properties of a Device have been requested to the
+   * Driver.
+   *
+   * @param deviceName The name of the Device (<code>null</code> for all the
+   * Devices of the Driver).
+   */
+  void setRequested(String deviceName) {
+    if (deviceName == null) {
+      allRequested = true;
+    } else {
+      requestedDevices.add(deviceName);
+    }
+  }
+
+  /**
+   * Keeps a <code>defXXXVector</code> message, replacing any previous state
+   * of the Property.
+   *
+   * @param message The message.
+   */
+  void define(INDIMessage message) {
+    LinkedHashMap<String, CachedProperty> properties = devices.get(message.getDevice());
+
+    if (properties == null) {
+      properties = new LinkedHashMap<String, CachedProperty>();
+
+      devices.put(message.getDevice(), properties);
+    }
+
+    version++;
+
+    CachedProperty p = new CachedProperty(message, version);
+
+    properties.remove(message.getName());  // A redefinition goes to the end
+    properties.put(message.getName(), p);
+  }
+
+  /**
+   * Merges a <code>setXXXVector</code> message into the state of its
+   * Property. Messages of undefined Properties and BLOBs are ignored.
+   *
+   * @param message The message.
+   */
+  void update(INDIMessage message) {
+    LinkedHashMap<String, CachedProperty> properties = devices.get(message.getDevice());
+
+    if (properties == null) {
+      return;
+    }
+
+    CachedProperty p = properties.get(message.getName());
+
+    if ((p != null) && (p.update(message, version + 1))) {
+      version++;
+    }
+  }
+
+  /**
+   * Removes a Property (or all the Properties of a Device) after a
+   * <code>delProperty</code> message.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property (<code>null</code> for all
+   * the Properties of the Device).
+   */
+  void delete(String deviceName, String propertyName) {
+    version++;
+
+    if (propertyName == null) {
+      devices.remove(deviceName);
+
+      return;
+    }
+
+    LinkedHashMap<String, CachedProperty> properties = devices.get(deviceName);
+
+    if (properties != null) {
+      properties.remove(propertyName);
+    }
+  }
+
+  /**
+   * Gets the current state of a Property.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property.
+   * @return The state of the Property (<code>null</code> if it is not
+   * defined).
+   */
+  private CachedProperty get(String deviceName, String propertyName) {
+    LinkedHashMap<String, CachedProperty> properties = devices.get(deviceName);
+
+    if (properties == null) {
+      return null;
+    }
+
+    return properties.get(propertyName);
+  }
+
+  /**
+   * Builds the answer to a <code>getProperties</code> message of a listener
+   * with the cached Properties to which it listens. It must be sent (outside
+   * the lock of the cache) with <code>Replay.send</code> and completed with
+   * <code>continueReplay</code>.
+   *
+   * @param listener The listener.
+   * @param deviceName The name of the requested Device (<code>null</code>
+   * for all the Devices).
+   * @param propertyName The name of the requested Property
+   * (<code>null</code> for all the Properties).
+   * @return The answer.
+   */
+  Replay startReplay(INDIDeviceListener listener, String deviceName, String propertyName) {
+    Replay replay = new Replay(listener, version);
+
+    Iterator<Map.Entry<String, LinkedHashMap<String, CachedProperty>>> it = devices.entrySet().iterator();
+
+    while (it.hasNext()) {
+      Map.Entry<String, LinkedHashMap<String, CachedProperty>> device = it.next();
+      String name = device.getKey();
+
+      if ((deviceName != null) && (!deviceName.equals(name))) {
+        continue;
+      }
+
+      Iterator<CachedProperty> properties = device.getValue().values().iterator();
+
+      while (properties.hasNext()) {
+        CachedProperty p = properties.next();
+
+        if ((propertyName != null) && (!propertyName.equals(p.name))) {
+          continue;
+        }
+
+        if (listener.listensToProperty(name, p.name)) {
+          replay.add(p, true);
+        }
+      }
+    }
+
+    return replay;
+  }
+
+  /**
+   * Prepares the messages that complete an answer that has already been
+   * sent: the current state of the sent Properties that have changed since
+   * it was built (or a <code>delProperty</code> message for the deleted
+   * ones), as the updates sent meanwhile to the listener may have arrived
+   * before the answer.
+   *
+   * @param replay The answer.
+   * @return <code>true</code> if there are new messages to send (after which
+   * this method must be called again), <code>false</code> if the answer is
+   * complete.
+   */
+  boolean continueReplay(Replay replay) {
+    if (replay.version == version) {
+      return false;
+    }
+
+    replay.version = version;
+
+    ArrayList<CachedProperty> sent = new ArrayList<CachedProperty>(replay.sent);
+    ArrayList<Long> sentVersions = new ArrayList<Long>(replay.sentVersions);
+
+    replay.clear();
+
+    for (int i = 0 ; i < sent.size() ; i++) {
+      CachedProperty old = sent.get(i);
+      CachedProperty p = get(old.device, old.name);
+
+      if (p == null) {
+        replay.addDeletion(old);
+      } else if (p != old) {  // Redefined
+        replay.add(p, true);
+      } else if (p.version != sentVersions.get(i)) {
+        replay.add(p, false);
+      } else {
+        replay.keep(p);
+      }
+    }
+
+    return replay.messages.size() > 0;
+  }
+
+  /**
+   * Gets the number of cached Properties.
+   *
+   * @return The number of cached Properties.
+   */
+  int size() {
+    int size = 0;
+
+    Iterator<LinkedHashMap<String, CachedProperty>> it = devices.values().iterator();
+
+    while (it.hasNext()) {
+      size += it.next().size();
+    }
+
+    return size;
+  }
+
+  /**
+   * Formats a number for a message (without decimals if it is an integer).
+   *
+   * @param number The number.
+   * @return The formatted number.
+   */
+  private static String formatNumber(double number) {
+    if ((number == Math.rint(number)) && (Math.abs(number) < 1e15)) {
+      return "" + (long)number;
+    }
+
+    return "" + number;
+  }
+
+  /**
+   * Removes the <code>message</code> and <code>timestamp</code> attributes of
+   * the opening tag of a message, so that it can be replayed to new Clients
+   * without repeating an old text message nor pretending to be new.
+   *
+   * @param xml The bytes of the message (they are not modified).
+   * @return The bytes of the message without those attributes (the same
+   * buffer if it has none of them).
+   */
+  private static ByteBuffer stripMessageAndTimestamp(ByteBuffer xml) {
+    byte[] bytes = xml.array();
+    int start = xml.arrayOffset() + xml.position();
+    int end = start + xml.remaining();
+
+    ByteBuffer stripped = null;
+    int copied = start;
+    int i = start;
+
+    while ((i < end) && (bytes[i] != ' ') && (bytes[i] != '\t') && (bytes[i] != '\n') && (bytes[i] != '\r') && (bytes[i] != '>') && (bytes[i] != '/')) {  // The name of the tag
+      i++;
+    }
+
+    while (i < end) {
+      int attributeStart = i;
+
+      while ((i < end) && ((bytes[i] == ' ') || (bytes[i] == '\t') || (bytes[i] == '\n') || (bytes[i] == '\r'))) {
+        i++;
+      }
+
+      if ((i == end) || (bytes[i] == '>') || (bytes[i] == '/')) {  // End of the opening tag
+        break;
+      }
+
+      int nameStart = i;
+
+      while ((i < end) && (bytes[i] != '=') && (bytes[i] != '>')) {
+        i++;
+      }
+
+      String attribute = new String(bytes, nameStart, i - nameStart).trim();
+
+      while ((i < end) && (bytes[i] != '"') && (bytes[i] != '\'') && (bytes[i] != '>')) {
+        i++;
+      }
+
+      if ((i == end) || (bytes[i] == '>')) {  // Malformed: keep it as it is
+        break;
+      }
+
+      byte quote = bytes[i++];
+
+      while ((i < end) && (bytes[i] != quote)) {
+        i++;
+      }
+
+      i++;
+
+      if ((attribute.equals("message")) || (attribute.equals("timestamp"))) {
+        if (stripped == null) {
+          stripped = ByteBuffer.allocate(xml.remaining());
+        }
+
+        stripped.put(bytes, copied, attributeStart - copied);
+        copied = Math.min(i, end);
+      }
+    }
+
+    if (stripped == null) {
+      return xml;
+    }
+
+    stripped.put(bytes, copied, end - copied);
+    stripped.flip();
+
+    return stripped;
+  }
+
+  /**
+   * Appends a text to a XML message, escaping the characters that cannot
+   * appear in attribute values or contents.
+   *
+   * @param xml The message.
+   * @param text The text.
+   */
+  private static void appendEscaped(StringBuilder xml, String text) {
+    for (int i = 0 ; i < text.length() ; i++) {
+      char c = text.charAt(i);
+
+      if (c == '&') {
+        xml.append("&amp;");
+      } else if (c == '<') {
+        xml.append("&lt;");
+      } else if (c == '>') {
+        xml.append("&gt;");
+      } else if (c == '"') {
+        xml.append("&quot;");
+      } else if (c == '\'') {
+        xml.append("&apos;");
+      } else {
+        xml.append(c);
+      }
+    }
+  }
+
+  /**
+   * Encodes a XML message (in UTF-8) to be sent to the listeners.
+   *
+   * @param xml The message.
+   * @return The bytes of the message.
+   */
+  private static ByteBuffer encode(StringBuilder xml) {
+    try {
+      return ByteBuffer.wrap(xml.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      return ByteBuffer.wrap(xml.toString().getBytes());
+    }
+  }
+
+  /**
+   * The state of a Property.
+   */
+  private static class CachedProperty {
+
+    /**
+     * The name of the Device.
+     */
+    private String device;
+    /**
+     * The name of the Property.
+     */
+    private String name;
+    /**
+     * The version of the cache in which the Property was last changed.
+     */
+    private long version;
+    /**
+     * The bytes of the last definition of the Property (without its
+     * <code>message</code> and <code>timestamp</code>, which only made sense
+     * when it was sent by the Driver).
+     */
+    private ByteBuffer definition;
+    /**
+     * The name of the XML elements of the updates (<code>null</code> for
+     * BLOBs).
+     */
+    private String updateTag;
+    /**
+     * The name of the XML elements of the Elements in the updates.
+     */
+    private String elementTag;
+    /**
+     * The current state of the Property.
+     */
+    private PropertyStates state;
+    /**
+     * The current timeout of the Property (<code>NaN</code> if not known).
+     */
+    private double timeout;
+    /**
+     * The timestamp of the last update.
+     */
+    private String timestamp;
+    /**
+     * The current values of the Elements (by name, in order of definition).
+     */
+    private LinkedHashMap<String, String> values;
+    /**
+     * <code>true</code> if the Property has been updated since its
+     * definition.
+     */
+    private boolean updated;
+    /**
+     * The bytes of the <code>setXXXVector</code> message with the current
+     * state (<code>null</code> if it has not been built since the last
+     * update).
+     */
+    private ByteBuffer update;
+
+    /**
+     * Constructs the state of a Property from its definition.
+     *
+     * @param message The <code>defXXXVector</code> message.
+     * @param version The version of the cache with the definition.
+     */
+    CachedProperty(INDIMessage message, long version) {
+      this.version = version;
+
+      device = message.getDevice();
+      name = message.getName();
+      definition = stripMessageAndTimestamp(message.getXMLBytes());
+      state = message.getState();
+      timeout = message.getTimeout();
+      values = new LinkedHashMap<String, String>();
+      updated = false;
+
+      MessageTypes type = message.getType();
+
+      if (type == MessageTypes.DEF_NUMBER_VECTOR) {
+        updateTag = "setNumberVector";
+        elementTag = "oneNumber";
+      } else if (type == MessageTypes.DEF_SWITCH_VECTOR) {
+        updateTag = "setSwitchVector";
+        elementTag = "oneSwitch";
+      } else if (type == MessageTypes.DEF_LIGHT_VECTOR) {
+        updateTag = "setLightVector";
+        elementTag = "oneLight";
+      } else if (type == MessageTypes.DEF_TEXT_VECTOR) {
+        updateTag = "setTextVector";
+        elementTag = "oneText";
+      }
+
+      if (updateTag != null) {
+        setValues(message);
+      }
+    }
+
+    /**
+     * Merges an update into the state.
+     *
+     * @param message The <code>setXXXVector</code> message.
+     * @param version The version of the cache with the update.
+     * @return <code>true</code> if the update has been merged,
+     * <code>false</code> if it has been ignored.
+     */
+    boolean update(INDIMessage message, long version) {
+      if ((updateTag == null) || (!updateTag.equals(Constants.getMessageTypeAsString(message.getType())))) {
+        return false;
+      }
+
+      this.version = version;
+
+      if (message.getState() != null) {
+        state = message.getState();
+      }
+
+      if (!Double.isNaN(message.getTimeout())) {
+        timeout = message.getTimeout();
+      }
+
+      timestamp = message.getTimestampAsString();
+
+      setValues(message);
+
+      updated = true;
+      update = null;
+
+      return true;
+    }
+
+    /**
+     * Sets the values of the Elements that appear in a message.
+     *
+     * @param message The message.
+     */
+    private void setValues(INDIMessage message) {
+      for (int i = 0 ; i < message.getElementCount() ; i++) {
+        String value = null;
+
+        if (message.isNumberVector()) {
+          double d = message.getNumberValue(i);
+
+          if (!Double.isNaN(d)) {
+            value = formatNumber(d);
+          }
+        } else if (message.isSwitchVector()) {
+          SwitchStatus s = message.getSwitchValue(i);
+
+          if (s != null) {
+            value = Constants.getSwitchStatusAsString(s);
+          }
+        } else if (message.isLightVector()) {
+          LightStates l = message.getLightValue(i);
+
+          if (l != null) {
+            value = Constants.getLightStateAsString(l);
+          }
+        } else {
+          value = message.getTextValue(i);
+        }
+
+        if ((value != null) && (message.getElementName(i) != null)) {
+          values.put(message.getElementName(i), value);
+        }
+      }
+    }
+
+    /**
+     * Gets the <code>setXXXVector</code> message with the current state and
+     * values of the Property.
+     *
+     * @return The bytes of the message.
+     */
+    ByteBuffer getUpdate() {
+      if (update == null) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<").append(updateTag).append(" device=\"");
+        appendEscaped(xml, device);
+        xml.append("\" name=\"");
+        appendEscaped(xml, name);
+        xml.append("\"");
+
+        if (state != null) {
+          xml.append(" state=\"").append(Constants.getPropertyStateAsString(state)).append("\"");
+        }
+
+        if (!Double.isNaN(timeout)) {
+          xml.append(" timeout=\"").append(formatNumber(timeout)).append("\"");
+        }
+
+        if (timestamp != null) {
+          xml.append(" timestamp=\"");
+          appendEscaped(xml, timestamp);
+          xml.append("\"");
+        }
+
+        xml.append(">");
+
+        Iterator<Map.Entry<String, String>> it = values.entrySet().iterator();
+
+        while (it.hasNext()) {
+          Map.Entry<String, String> value = it.next();
+
+          xml.append("<").append(elementTag).append(" name=\"");
+          appendEscaped(xml, value.getKey());
+          xml.append("\">");
+          appendEscaped(xml, value.getValue());
+          xml.append("</").append(elementTag).append(">");
+        }
+
+        xml.append("</").append(updateTag).append(">");
+
+        update = encode(xml);
+      }
+
+      return update;
+    }
+  }
+
+  /**
+   * The answer to a <code>getProperties</code> message of a listener. Its
+   * messages are sent outside the lock of the cache and it remembers the
+   * version of each sent Property, so that it can be completed with the
+   * changes made while it was being sent.
+   */
+  static class Replay {
+
+    /**
+     * The listener.
+     */
+    private INDIDeviceListener listener;
+    /**
+     * The version of the cache when the messages were prepared.
+     */
+    private long version;
+    /**
+     * The messages to be sent.
+     */
+    private ArrayList<ByteBuffer> messages;
+    /**
+     * The Properties sent to the listener.
+     */
+    private ArrayList<CachedProperty> sent;
+    /**
+     * The versions of the Properties sent to the listener.
+     */
+    private ArrayList<Long> sentVersions;
+
+    /**
+     * Constructs an empty answer.
+     *
+     * @param listener The listener.
+     * @param version The current version of the cache.
+     */
+    private Replay(INDIDeviceListener listener, long version) {
+      this.listener = listener;
+      this.version = version;
+
+      messages = new ArrayList<ByteBuffer>();
+      sent = new ArrayList<CachedProperty>();
+      sentVersions = new ArrayList<Long>();
+    }
+
+    /**
+     * Adds the state of a Property to the answer.
+     *
+     * @param p The Property.
+     * @param withDefinition <code>true</code> if its definition must also be
+     * sent.
+     */
+    private void add(CachedProperty p, boolean withDefinition) {
+      if (withDefinition) {
+        messages.add(p.definition);
+      }
+
+      if ((p.updated) && (listener.areNonBLOBsAccepted(p.device))) {
+        messages.add(p.getUpdate());
+      }
+
+      keep(p);
+    }
+
+    /**
+     * Adds the deletion of a Property to the answer.
+     *
+     * @param p The deleted Property.
+     */
+    private void addDeletion(CachedProperty p) {
+      StringBuilder xml = new StringBuilder();
+
+      xml.append("<delProperty device=\"");
+      appendEscaped(xml, p.device);
+      xml.append("\" name=\"");
+      appendEscaped(xml, p.name);
+      xml.append("\" />");
+
+      messages.add(encode(xml));
+    }
+
+    /**
+     * Remembers a Property that has been sent to the listener.
+     *
+     * @param p The Property.
+     */
+    private void keep(CachedProperty p) {
+      sent.add(p);
+      sentVersions.add(p.version);
+    }
+
+    /**
+     * Forgets the prepared messages and the sent Properties.
+     */
+    private void clear() {
+      messages.clear();
+      sent.clear();
+      sentVersions.clear();
+    }
+
+    /**
+     * Sends the prepared messages to the listener. Must be called without
+     * holding the lock of the cache.
+     */
+    void send() {
+      for (int i = 0 ; i < messages.size() ; i++) {
+        listener.sendXMLMessage(messages.get(i));
+      }
+    }
+  }
+}
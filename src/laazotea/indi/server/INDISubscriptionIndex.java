@@ -0,0 +1,334 @@
+/*
+ *  This file is part of INDI for Java Server.
+ * 
+ *  INDI for Java Server is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation, either version 3 of 
+ *  the License, or (at your option) any later version.
+ * 
+ *  INDI for Java Server is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java Server.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class that indexes which listeners (Clients and snooping Devices) are
+ * interested in each Device and Property, so that routing a message to its
+ * listeners does not require checking all of them. The lists of listeners
+ * are built when first needed for each Device and Property (and kind of
+ * message) and kept until the subscriptions change (a listener is added or
+ * removed or it changes the Devices, Properties or BLOBs it listens to).
+ * Therefore, routing a message usually costs a couple of hash lookups and
+ * does not create any object.
+ *
+ * The routing never takes any lock: the registered listeners and the built
+ * lists form an immutable snapshot that is atomically replaced by a new one
+ * when the subscriptions change. The returned lists are shared and must not
+ * be modified.
+ *
+ * @author farom
+ * @see INDIDeviceListener
+ */
+class INDISubscriptionIndex {
+
+  /**
+   * The key used for <code>null</code> Device names (not accepted by the
+   * hash tables).
+   */
+  private static final String NULL_KEY = "";
+  /**
+   * The current snapshot of the listeners and the lists built from them.
+   */
+  private volatile Snapshot snapshot;
+
+  /**
+   * Constructs an empty index.
+   */
+  INDISubscriptionIndex() {
+    snapshot = new Snapshot(new INDIDeviceListener[0]);
+  }
+
+  /**
+   * Adds a listener to the index. From now on it will notify the index when
+   * its subscriptions change.
+   *
+   * @param listener The listener to add.
+   */
+  synchronized void add(INDIDeviceListener listener) {
+    INDIDeviceListener[] old = snapshot.listeners;
+    INDIDeviceListener[] listeners = new INDIDeviceListener[old.length + 1];
+
+    System.arraycopy(old, 0, listeners, 0, old.length);
+    listeners[old.length] = listener;
+
+    listener.setSubscriptionIndex(this);
+
+    snapshot = new Snapshot(listeners);
+  }
+
+  /**
+   * Removes a listener from the index.
+   *
+   * @param listener The listener to remove.
+   */
+  synchronized void remove(INDIDeviceListener listener) {
+    INDIDeviceListener[] old = snapshot.listeners;
+
+    for (int i = 0 ; i < old.length ; i++) {
+      if (old[i] == listener) {
+        INDIDeviceListener[] listeners = new INDIDeviceListener[old.length - 1];
+
+        System.arraycopy(old, 0, listeners, 0, i);
+        System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+
+        listener.setSubscriptionIndex(null);
+
+        snapshot = new Snapshot(listeners);
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Discards the built lists of listeners. Called when the subscriptions of
+   * a listener change.
+   */
+  synchronized void subscriptionsChanged() {
+    snapshot = new Snapshot(snapshot.listeners);
+  }
+
+  /**
+   * Gets the listeners of a Device.
+   *
+   * @param deviceName The name of the Device.
+   * @return The listeners of the Device.
+   */
+  ArrayList<INDIDeviceListener> getListenersToDevice(String deviceName) {
+    return snapshot.getDeviceListeners(deviceName).device;
+  }
+
+  /**
+   * Gets the listeners that specifically listen to some Property of a Device.
+   *
+   * @param deviceName The name of the Device.
+   * @return The listeners that specifically listen to some Property of the
+   * Device.
+   */
+  ArrayList<INDIDeviceListener> getListenersToSingleProperties(String deviceName) {
+    return snapshot.getDeviceListeners(deviceName).singleProperties;
+  }
+
+  /**
+   * Gets the listeners of a Property.
+   *
+   * @param deviceName The name of the Device of the Property.
+   * @param propertyName The name of the Property.
+   * @return The listeners of the Property.
+   */
+  ArrayList<INDIDeviceListener> getListenersToProperty(String deviceName, String propertyName) {
+    return snapshot.getPropertyListeners(deviceName, propertyName).property;
+  }
+
+  /**
+   * Gets the listeners of a Property that accept its updates according to
+   * their BLOB Enable rules.
+   *
+   * @param deviceName The name of the Device of the Property.
+   * @param propertyName The name of the Property.
+   * @param isBLOB If the Property is a BLOB one.
+   * @return The listeners that accept the updates of the Property.
+   */
+  ArrayList<INDIDeviceListener> getListenersToPropertyUpdates(String deviceName, String propertyName, boolean isBLOB) {
+    PropertyListeners p = snapshot.getPropertyListeners(deviceName, propertyName);
+
+    if (isBLOB) {
+      return p.BLOBUpdates;
+    }
+
+    return p.updates;
+  }
+
+  /**
+   * A snapshot of the registered listeners and the lists of listeners built
+   * from them. The lists are built concurrently without any lock: if two
+   * threads build the same list at the same time only one of them is kept.
+   */
+  private static class Snapshot {
+
+    /**
+     * The registered listeners.
+     */
+    private final INDIDeviceListener[] listeners;
+    /**
+     * The listeners of each Device (and its Properties) built until now.
+     */
+    private final ConcurrentHashMap<String, DeviceListeners> devices;
+
+    /**
+     * Constructs a snapshot without any built list.
+     *
+     * @param listeners The registered listeners.
+     */
+    Snapshot(INDIDeviceListener[] listeners) {
+      this.listeners = listeners;
+      this.devices = new ConcurrentHashMap<String, DeviceListeners>();
+    }
+
+    /**
+     * Gets (building them if necessary) the listeners of a Device.
+     *
+     * @param deviceName The name of the Device.
+     * @return The listeners of the Device.
+     */
+    private DeviceListeners getDeviceListeners(String deviceName) {
+      String key = (deviceName == null) ? NULL_KEY : deviceName;
+      DeviceListeners d = devices.get(key);
+
+      if (d == null) {
+        d = new DeviceListeners();
+
+        for (int i = 0 ; i < listeners.length ; i++) {
+          INDIDeviceListener l = listeners[i];
+
+          if (l.listensToDevice(deviceName)) {
+            d.device.add(l);
+
+            if (l.areNonBLOBsAccepted(deviceName)) {
+              d.deviceUpdates.add(l);
+            }
+          }
+
+          if (l.listensToSingleProperty(deviceName)) {
+            d.singleProperties.add(l);
+          }
+        }
+
+        DeviceListeners other = devices.putIfAbsent(key, d);
+
+        if (other != null) {
+          d = other;
+        }
+      }
+
+      return d;
+    }
+
+    /**
+     * Gets (building them if necessary) the listeners of a Property.
+     *
+     * @param deviceName The name of the Device of the Property.
+     * @param propertyName The name of the Property.
+     * @return The listeners of the Property.
+     */
+    private PropertyListeners getPropertyListeners(String deviceName, String propertyName) {
+      DeviceListeners d = getDeviceListeners(deviceName);
+      String key = (propertyName == null) ? NULL_KEY : propertyName;
+
+      PropertyListeners p = d.properties.get(key);
+
+      if (p == null) {
+        p = new PropertyListeners();
+
+        if (d.singleProperties.isEmpty()) {  // The usual case: only the listeners of the whole Device
+          p.property = d.device;
+          p.updates = d.deviceUpdates;
+        } else {
+          p.property = new ArrayList<INDIDeviceListener>();
+          p.updates = new ArrayList<INDIDeviceListener>();
+
+          for (int i = 0 ; i < listeners.length ; i++) {
+            INDIDeviceListener l = listeners[i];
+
+            if (l.listensToProperty(deviceName, propertyName)) {
+              p.property.add(l);
+
+              if (l.areNonBLOBsAccepted(deviceName)) {
+                p.updates.add(l);
+              }
+            }
+          }
+        }
+
+        p.BLOBUpdates = new ArrayList<INDIDeviceListener>();
+
+        for (int i = 0 ; i < p.property.size() ; i++) {
+          INDIDeviceListener l = p.property.get(i);
+
+          if (l.isBLOBAccepted(deviceName, propertyName)) {
+            p.BLOBUpdates.add(l);
+          }
+        }
+
+        PropertyListeners other = d.properties.putIfAbsent(key, p);
+
+        if (other != null) {
+          p = other;
+        }
+      }
+
+      return p;
+    }
+  }
+
+  /**
+   * The listeners of a Device.
+   */
+  private static class DeviceListeners {
+
+    /**
+     * The listeners of the whole Device.
+     */
+    private ArrayList<INDIDeviceListener> device;
+    /**
+     * The listeners of the whole Device that accept non BLOB updates.
+     */
+    private ArrayList<INDIDeviceListener> deviceUpdates;
+    /**
+     * The listeners that specifically listen to some Property of the Device.
+     */
+    private ArrayList<INDIDeviceListener> singleProperties;
+    /**
+     * The listeners of each Property of the Device built until now.
+     */
+    private ConcurrentHashMap<String, PropertyListeners> properties;
+
+    /**
+     * Constructs an empty set of listeners.
+     */
+    DeviceListeners() {
+      device = new ArrayList<INDIDeviceListener>();
+      deviceUpdates = new ArrayList<INDIDeviceListener>();
+      singleProperties = new ArrayList<INDIDeviceListener>();
+      properties = new ConcurrentHashMap<String, PropertyListeners>();
+    }
+  }
+
+  /**
+   * The listeners of a Property.
+   */
+  private static class PropertyListeners {
+
+    /**
+     * The listeners of the Property.
+     */
+    private ArrayList<INDIDeviceListener> property;
+    /**
+     * The listeners of the Property that accept its non BLOB updates.
+     */
+    private ArrayList<INDIDeviceListener> updates;
+    /**
+     * The listeners of the Property that accept its BLOB updates.
+     */
+    private ArrayList<INDIDeviceListener> BLOBUpdates;
+  }
+}
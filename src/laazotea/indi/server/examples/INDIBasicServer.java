@@ -25,6 +25,7 @@ import laazotea.indi.INDIException;
 import laazotea.indi.server.DefaultINDIServer;
 import laazotea.indi.server.INDIClient;
 import laazotea.indi.server.INDIDevice;
+import laazotea.indi.server.INDIDriverBatch;
 
 /**
  * A simple INDI Server that basically sends all messages from drivers and
@@ -46,6 +47,10 @@ public class INDIBasicServer extends DefaultINDIServer {
    * Loaded jar files.
    */
   private static ArrayList<String> jarFiles;
+  /**
+   * The maximum time (in milliseconds) to wait for each Driver of a batch.
+   */
+  private static long driverTimeout = 30000;
 
   /**
    * Constructs the server.
@@ -67,6 +72,21 @@ public class INDIBasicServer extends DefaultINDIServer {
     jarFiles = new ArrayList<String>();
   }
 
+  /**
+   * Constructs the server with a particular port that reads from all its
+   * Clients and Devices with a fixed number of event loop threads.
+   *
+   * @param port The port to which the server will listen.
+   * @param eventLoopThreads The number of event loop threads (0 to use a
+   * thread for each Client and Device).
+   * @throws INDIException if the event loops cannot be created.
+   */
+  public INDIBasicServer(int port, int eventLoopThreads) throws INDIException {
+    super(port, eventLoopThreads);
+
+    jarFiles = new ArrayList<String>();
+  }
+
   /**
    * Loads the Java Drivers in a JAR file
    *
@@ -98,20 +118,72 @@ public class INDIBasicServer extends DefaultINDIServer {
   private void reloadJava(String jar) {
     server.unloadJava(jar);
 
+    waitForUnloading(jar);
+
+    server.loadJava(jar);
+  }
+
+  /**
+   * Reloads the Java Drivers in some JAR files, loading all of them
+   * concurrently.
+   *
+   * @param jars The JAR files.
+   */
+  private void reloadJava(ArrayList<String> jars) {
+    INDIDriverBatch batch = new INDIDriverBatch();
+
+    for (int i = 0 ; i < jars.size() ; i++) {
+      server.unloadJava(jars.get(i));
+    }
+
+    for (int i = 0 ; i < jars.size() ; i++) {
+      waitForUnloading(jars.get(i));
+
+      batch.addJavaDriversFromJAR(jars.get(i));
+    }
+
+    loadBatch(batch);
+  }
+
+  /**
+   * Waits for the Drivers with a particular identifier to be unloaded.
+   *
+   * @param identifier The identifier of the Drivers (JAR file, Driver path,
+   * etc.).
+   */
+  private void waitForUnloading(String identifier) {
     try {
       Thread.sleep(500);
     } catch (InterruptedException e) {
     }
 
-    while (server.isAlreadyLoaded(jar)) {
-      System.err.println("Waiting for " + jar + " to unload");
+    while (server.isAlreadyLoaded(identifier)) {
+      System.err.println("Waiting for " + identifier + " to unload");
       try {
         Thread.sleep(500);
       } catch (InterruptedException e) {
       }
     }
+  }
 
-    server.loadJava(jar);
+  /**
+   * Loads a batch of Drivers concurrently, printing the ones that could not
+   * be loaded.
+   *
+   * @param batch The batch of Drivers.
+   */
+  public void loadBatch(INDIDriverBatch batch) {
+    loadDrivers(batch, driverTimeout);
+
+    for (int i = 0 ; i < batch.size() ; i++) {
+      if (batch.getError(i) != null) {
+        System.err.println(batch.getDescription(i) + ": " + batch.getError(i).getMessage());
+      }
+
+      if (batch.isLoaded(i) && batch.isJavaDriversFromJAR(i)) {
+        jarFiles.add(batch.getName(i));
+      }
+    }
   }
 
   /**
@@ -186,9 +258,12 @@ public class INDIBasicServer extends DefaultINDIServer {
    * @param args The arguments of the program.
    */
   public static void main(String[] args) {
+    long start = System.currentTimeMillis();
+
     System.err.println("INDI for Java Basic Server initializing...");
 
     int port = 7624;
+    int eventLoops = 0;
 
     for (int i = 0 ; i < args.length ; i++) {
       String[] s = splitArgument(args[i]);
@@ -201,14 +276,41 @@ public class INDIBasicServer extends DefaultINDIServer {
           printArgumentHelp();
           System.exit(-1);
         }
+      } else if (s[0].equals("-loops")) {
+        try {
+          eventLoops = Integer.parseInt(s[1]);
+        } catch (NumberFormatException e) {
+          System.err.println("Incorrect number of event loops");
+          printArgumentHelp();
+          System.exit(-1);
+        }
+      } else if (s[0].equals("-timeout")) {
+        try {
+          driverTimeout = Integer.parseInt(s[1]) * 1000L;
+        } catch (NumberFormatException e) {
+          System.err.println("Incorrect timeout");
+          printArgumentHelp();
+          System.exit(-1);
+        }
       }
     }
 
-    server = new INDIBasicServer(port);
+    if (eventLoops > 0) {
+      try {
+        server = new INDIBasicServer(port, eventLoops);
+      } catch (INDIException e) {
+        System.err.println(e.getMessage());
+        System.exit(-1);
+      }
+    } else {
+      server = new INDIBasicServer(port);
+    }
+
+    // Parse arguments (the Drivers are loaded concurrently)
+    INDIDriverBatch batch = new INDIDriverBatch();
 
-    // Parse arguments
     for (int i = 0 ; i < args.length ; i++) {
-      boolean correct = parseArgument(args[i]);
+      boolean correct = parseArgument(args[i], batch);
 
       if (!correct) {
         System.err.println("Argument '" + args[i] + "' not correct. Use -help for help. Exiting.");
@@ -216,6 +318,9 @@ public class INDIBasicServer extends DefaultINDIServer {
       }
     }
 
+    server.loadBatch(batch);
+
+    System.err.println("Server started in " + (System.currentTimeMillis() - start) + " ms (" + server.getDevices().size() + " Drivers loaded).");
     System.err.println("Type 'help' for help.");
 
     BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
@@ -239,25 +344,28 @@ public class INDIBasicServer extends DefaultINDIServer {
    * Parses a single argument of the application. Possible arguments are:
    * <code>-help</code>,
    * <code>-add jarFile</code>,
-   * <code>-addn driverPath</code> and
-   * <code>-connect host[:port]</code>.
+   * <code>-addn driverPath</code>,
+   * <code>-connect host[:port]</code> and
+   * <code>-timeout seconds</code>. The Drivers are not loaded but added to a
+   * batch.
    *
    * @param arg The argument to be parsed.
+   * @param batch The batch to which the Drivers are added.
    * @return <code>true</code> if it has been correctly parsed.
    * <code>false</code> otherwise.
    */
-  private static boolean parseArgument(String arg) {
+  private static boolean parseArgument(String arg, INDIDriverBatch batch) {
     String[] s = splitArgument(arg);
 
     if (s[0].equals("-help")) {
       printArgumentHelp();
       return true;
     } else if (s[0].equals("-add")) {
-      server.loadJava(s[1]);
+      batch.addJavaDriversFromJAR(s[1]);
 
       return true;
     } else if (s[0].equals("-addn")) {
-      server.loadNative(s[1]);
+      batch.addNativeDriver(s[1]);
 
       return true;
     } else if (s[0].equals("-connect")) {
@@ -269,7 +377,7 @@ public class INDIBasicServer extends DefaultINDIServer {
       if (pos == -1) {
         host = s[1];
       } else {
-        host = s[1].substring(0, pos - 1);
+        host = s[1].substring(0, pos);
 
         String p = s[1].substring(pos + 1);
 
@@ -280,11 +388,15 @@ public class INDIBasicServer extends DefaultINDIServer {
         }
       }
 
-      server.connect(host, port);
+      batch.addNetworkDriver(host, port);
 
       return true;
     } else if (s[0].equals("-p")) {
       return true;
+    } else if (s[0].equals("-loops")) {
+      return true;
+    } else if (s[0].equals("-timeout")) {
+      return true;
     }
 
     return false;
@@ -298,9 +410,12 @@ public class INDIBasicServer extends DefaultINDIServer {
     System.err.println("\nThe following arguments can be used:");
     System.err.println("  -help                Shows this help.");
     System.err.println("  -p=port              Port to which the Server will listen.");
+    System.err.println("  -loops=n             Reads all Clients and Drivers with n event loop threads.");
     System.err.println("  -add=jarFile         Loads all INDIDrivers in the jarFile.");
     System.err.println("  -addn=driverPath     Loads the native driver described by driverPath.");
-    System.err.println("  -connect=host[:port] Loads the drivers in a remote INDI server.\n");
+    System.err.println("  -connect=host[:port] Loads the drivers in a remote INDI server.");
+    System.err.println("  -timeout=seconds     Maximum time to wait for each driver at startup (default 30).\n");
+    System.err.println("All the drivers in the arguments are loaded concurrently.\n");
   }
 
   /**
@@ -311,11 +426,11 @@ public class INDIBasicServer extends DefaultINDIServer {
     System.err.println("\nThe following commands can be used:");
     System.err.println("  help                    Shows this help.");
     System.err.println("  list                    Lists all loaded drivers.");
-    System.err.println("  add jarFile             Loads all INDIDrivers in the jarFile.");
+    System.err.println("  add jarFile...          Loads all INDIDrivers in the jarFiles (concurrently).");
     System.err.println("  remove jarFile          Removes all INDIDrivers in the jarFile");
     System.err.println("  reload jarFile          Reloads all INDIDrivers in the jarFile");
     System.err.println("  r                       Reloads all INDIDrivers in jarFiles (useful for testing)");
-    System.err.println("  addn driverPath         Loads the native driver described by driverPath");
+    System.err.println("  addn driverPath...      Loads the native drivers described by driverPaths (concurrently)");
     System.err.println("  removen driverPath      Removes the native driver described by driverPath");
     System.err.println("  reloadn driverPath      Reloads the native driver described by driverPath");
     System.err.println("  connect host[:port]     Loads the drivers in a remote INDI server.");
@@ -344,11 +459,11 @@ public class INDIBasicServer extends DefaultINDIServer {
    * Parses an input command. Possible commands are
    * <code>help</code>,
    * <code>list</code>,
-   * <code>add jarFile</code>,
+   * <code>add jarFile...</code>,
    * <code>remove jarFile</code>,
    * <code>reload jarFile</code>,
    * <code>r</code>,
-   * <code>addn driverPath</code>,
+   * <code>addn driverPath...</code>,
    * <code>removen driverPath</code>,
    * <code>reloadn driverPath</code>,
    * <code>connect host[:port]</code>,
@@ -388,11 +503,7 @@ public class INDIBasicServer extends DefaultINDIServer {
     } else if (args[0].equals("r")) {
       ArrayList<String> copy = (ArrayList<String>) jarFiles.clone();
 
-      for (int i = 0 ; i < copy.size() ; i++) {
-        String jar = copy.get(i);
-
-        server.reloadJava(jar);
-      }
+      server.reloadJava(copy);
 
       return;
     }
@@ -404,9 +515,17 @@ public class INDIBasicServer extends DefaultINDIServer {
     }
 
     if (args[0].equals("add")) {
-      String f = args[1];
+      if (args.length == 2) {
+        server.loadJava(args[1]);
+      } else {
+        INDIDriverBatch batch = new INDIDriverBatch();
 
-      server.loadJava(f);
+        for (int i = 1 ; i < args.length ; i++) {
+          batch.addJavaDriversFromJAR(args[i]);
+        }
+
+        server.loadBatch(batch);
+      }
 
       return;
     } else if (args[0].equals("remove")) {
@@ -422,9 +541,17 @@ public class INDIBasicServer extends DefaultINDIServer {
 
       return;
     } else if ((args[0].equals("addN")) || (args[0].equals("addn"))) {
-      String f = args[1];
+      if (args.length == 2) {
+        server.loadNative(args[1]);
+      } else {
+        INDIDriverBatch batch = new INDIDriverBatch();
 
-      server.loadNative(f);
+        for (int i = 1 ; i < args.length ; i++) {
+          batch.addNativeDriver(args[i]);
+        }
+
+        server.loadBatch(batch);
+      }
 
       return;
     } else if ((args[0].equals("removeN")) || (args[0].equals("removen"))) {